@@ -0,0 +1,89 @@
+(ns cqp-clj.kwic-bench
+  "Allocation of the per-token map representation of a concordance
+  against the columnar KwicBlock, for the same synthetic data and
+  without any server round trip.
+
+  lein with-profile bench run -m cqp-clj.kwic-bench [hits] [context]"
+  (:import [KwicBlock]
+           [java.lang.management ManagementFactory])
+  (:require [cqp-clj.core :refer [sort-position kwic-hits merge-windows]]))
+
+(set! *warn-on-reflection* true)
+
+(def attrs ["word" "pos" "lemma" "np_h" "text_title"])
+
+(defn- allocated-bytes ^long []
+  (let [bean (ManagementFactory/getThreadMXBean)]
+    (.getThreadAllocatedBytes ^com.sun.management.ThreadMXBean bean
+                              (.getId (Thread/currentThread)))))
+
+(defn- measure
+  "Bytes allocated and ms taken by the best of `runs` calls of f."
+  [runs f]
+  (reduce (fn [best _]
+            (let [before (allocated-bytes)
+                  start (System/nanoTime)
+                  result (f)
+                  elapsed (/ (- (System/nanoTime) start) 1e6)
+                  bytes (- (allocated-bytes) before)]
+              (when (nil? result) (throw (IllegalStateException.)))
+              (if (or (nil? best) (< bytes (:bytes best)))
+                {:bytes bytes :ms elapsed}
+                best)))
+          nil (range runs)))
+
+(defn- synthetic-hits [hits context]
+  (let [starts (mapv #(+ context (* % (+ 3 (* 2 context)))) (range hits))]
+    [starts (mapv inc starts) (mapv inc starts)]))
+
+(defn- synthetic-values
+  "One String[] per attribute for each range, values taken from a small
+  vocabulary as the lexicon path would."
+  [ranges]
+  (let [vocab (vec (map #(str "v" %) (range 100)))]
+    (mapv (fn [[from to]]
+            (mapv (fn [_] (into-array String (map #(vocab (mod % 100)) (range from (inc to)))))
+                  attrs))
+          ranges)))
+
+(defn- maps-path
+  "What `cpos-batch-handler` does with the values of the merged ranges:
+  a map per token of every range, sliced per hit with `subvec`."
+  [[starts ends targets] context ranges slots values]
+  (let [tokens (mapv (fn [range-values]
+                       (apply mapv merge
+                              (map (fn [attr ^objects vs]
+                                     (mapv #(hash-map (keyword attr) %) vs))
+                                   attrs range-values)))
+                     values)]
+    (mapv (fn [start end target [r offset]]
+            (let [from (max 0 (- start context))
+                  n (+ (- end from) context 1)]
+              (vec (map-indexed (fn [idx i] (merge i (sort-position idx start end target from)))
+                                (subvec (tokens r) offset (+ offset n))))))
+          starts ends targets slots)))
+
+(defn- columnar-path
+  [[starts ends targets] context ranges values]
+  (let [block (KwicBlock/build (into-array String attrs)
+                               (int-array starts) (int-array ends) (int-array targets)
+                               (int context)
+                               (int-array (map first ranges))
+                               (into-array (Class/forName "[[Ljava.lang.String;")
+                                           (map #(into-array (Class/forName "[Ljava.lang.String;") %)
+                                                values)))]
+    (mapv doall (kwic-hits block))))
+
+(defn -main [& [hits context]]
+  (let [hits (Integer/parseInt (or hits "10000"))
+        context (Integer/parseInt (or context "5"))
+        cpos (synthetic-hits hits context)
+        windows (mapv (fn [s e] [(max 0 (- s context)) (+ e context)]) (first cpos) (second cpos))
+        {:keys [ranges slots]} (merge-windows windows 0)
+        values (synthetic-values ranges)
+        maps (measure 5 #(maps-path cpos context ranges slots values))
+        columnar (measure 5 #(columnar-path cpos context ranges values))]
+    (println (format "%d hits, %d-token windows, %d attributes" hits (+ 2 (* 2 context)) (count attrs)))
+    (doseq [[label {:keys [bytes ms]}] [["maps" maps] ["columnar" columnar]]]
+      (println (format "%-9s %10.1f MB allocated %8.1f ms" label (/ bytes 1048576.0) ms)))
+    (println (format "allocation ratio %.1fx" (/ (double (:bytes maps)) (:bytes columnar))))))
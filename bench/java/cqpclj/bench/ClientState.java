@@ -0,0 +1,53 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+package cqpclj.bench;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A CqiClient per benchmark thread, connected to the replay server. With
+ * -p stats=false,true the cost of recording CqiStats is measured too.
+ */
+@State(Scope.Thread)
+public class ClientState {
+
+    @Param({"false"})
+    public boolean stats;
+
+    Object client;
+
+    @Setup(Level.Trial)
+    public void connect(Endpoint endpoint) throws Throwable {
+        client = Cqi.NEW_CLIENT.invokeExact("127.0.0.1", endpoint.server.getPort());
+        boolean connected = (boolean) Cqi.CONNECT.invokeExact(client, "bench", "bench");
+        if (!connected) {
+            throw new IllegalStateException("connection refused by the replay server");
+        }
+        if (stats) {
+            Cqi.SET_STATS.invokeExact(client, (Object) Cqi.NEW_STATS.invokeExact());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void disconnect() throws Throwable {
+        // invokeExact needs the boolean result at the call site
+        boolean bye = (boolean) Cqi.DISCONNECT.invokeExact(client);
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+package cqpclj.bench;
+
+import java.io.DataInput;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+
+/**
+ * Handles on the client classes. JMH doesn't accept benchmarks in the
+ * default package, where the client lives, and classes of a named package
+ * can't refer to it, so the benchmarks go through these constant method
+ * handles, which the JIT inlines like direct calls. Receivers are typed
+ * Object, call them with invokeExact.
+ */
+final class Cqi {
+
+    static final MethodHandle NEW_STRING_DECODER;
+    static final MethodHandle READ_STRINGS;
+
+    static final MethodHandle NEW_CLIENT;
+    static final MethodHandle CONNECT;
+    static final MethodHandle DISCONNECT;
+    static final MethodHandle PING;
+    static final MethodHandle DUMP_POSITIONAL_ATTRIBUTES;
+    static final MethodHandle DUMP_POSITIONAL_ATTRIBUTE_IDS;
+    static final MethodHandle DUMP_SUBCORPUS;
+    static final MethodHandle DUMP_SUBCORPUS_BULK;
+    static final MethodHandle SET_STATS;
+    static final MethodHandle NEW_STATS;
+
+    /**
+     * CqiFrame is package private: its handles are obtained through
+     * reflection. CqiClient.writeString and writeIntArray only forward to it.
+     */
+    static final MethodHandle NEW_FRAME;
+    static final MethodHandle FRAME_PUT_STRING;
+    static final MethodHandle FRAME_PUT_INT_ARRAY;
+    static final MethodHandle FRAME_PUT_INT_RANGE;
+    static final MethodHandle FRAME_CLEAR;
+
+    static {
+        try {
+            Class<?> decoder = Class.forName("CqiStringDecoder");
+            NEW_STRING_DECODER = constructor(decoder, int.class);
+            READ_STRINGS = method(decoder, "readStrings", String[].class,
+                    DataInput.class, int.class, Charset.class, String.class);
+
+            Class<?> client = Class.forName("CqiClient");
+            NEW_CLIENT = constructor(client, String.class, int.class);
+            CONNECT = method(client, "connect", boolean.class, String.class, String.class);
+            DISCONNECT = method(client, "disconnect", boolean.class);
+            PING = method(client, "ping", boolean.class);
+            DUMP_POSITIONAL_ATTRIBUTES = method(client, "dumpPositionalAttributes", String[].class,
+                    String.class, String.class, int.class, int.class, Charset.class);
+            DUMP_POSITIONAL_ATTRIBUTE_IDS = method(client, "dumpPositionalAttributeIds", int[].class,
+                    String.class, String.class, int.class, int.class);
+            DUMP_SUBCORPUS = method(client, "dumpSubCorpus", int[][].class,
+                    String.class, int.class, int.class);
+            DUMP_SUBCORPUS_BULK = method(client, "dumpSubCorpusBulk", int[][].class,
+                    String.class, int.class, int.class);
+            Class<?> stats = Class.forName("CqiStats");
+            SET_STATS = method(client, "setStats", void.class, stats);
+            NEW_STATS = constructor(stats);
+
+            Class<?> frame = Class.forName("CqiFrame");
+            NEW_FRAME = constructor(frame);
+            FRAME_PUT_STRING = method(frame, "putString", frame, String.class, Charset.class);
+            FRAME_PUT_INT_ARRAY = method(frame, "putIntArray", frame, int[].class);
+            FRAME_PUT_INT_RANGE = method(frame, "putIntRange", frame, int.class, int.class);
+            FRAME_CLEAR = method(frame, "clear", void.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Cqi() {
+    }
+
+    private static Class<?> erase(Class<?> type) {
+        return type.isPrimitive() || type.isArray() || type.getName().startsWith("java.")
+                ? type : Object.class;
+    }
+
+    private static MethodHandle constructor(Class<?> type, Class<?>... parameters)
+            throws ReflectiveOperationException {
+        Constructor<?> constructor = type.getDeclaredConstructor(parameters);
+        constructor.setAccessible(true);
+        return MethodHandles.lookup().unreflectConstructor(constructor)
+                .asType(MethodType.methodType(Object.class, parameters));
+    }
+
+    private static MethodHandle method(Class<?> type, String name, Class<?> returnType,
+            Class<?>... parameters) throws ReflectiveOperationException {
+        Method method = type.getDeclaredMethod(name, parameters);
+        method.setAccessible(true);
+        Class<?>[] erased = new Class<?>[parameters.length];
+        for (int i = 0; i < parameters.length; i++) {
+            erased[i] = erase(parameters[i]);
+        }
+        return MethodHandles.lookup().unreflect(method)
+                .asType(MethodType.methodType(erase(returnType), erased)
+                        .insertParameterTypes(0, Object.class));
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+package cqpclj.bench;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reply decoding, one round trip to the replay server per operation:
+ * readHeaderFromServer alone (ping), readIntArray (cpos2Id) and
+ * readStringArray (cpos2Str) for windows of <length> positions.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodingBench {
+
+    private static final Charset UTF8 = StandardCharsets.UTF_8;
+
+    @State(Scope.Thread)
+    public static class Window {
+
+        @Param({"16", "1024", "16384"})
+        public int length;
+    }
+
+    @Benchmark
+    public boolean readHeaderFromServer(ClientState state) throws Throwable {
+        return (boolean) Cqi.PING.invokeExact(state.client);
+    }
+
+    @Benchmark
+    public int[] readIntArray(ClientState state, Window window) throws Throwable {
+        return (int[]) Cqi.DUMP_POSITIONAL_ATTRIBUTE_IDS.invokeExact(state.client,
+                ReplayServer.CORPUS, "word", 0, window.length - 1);
+    }
+
+    @Benchmark
+    public String[] readStringArrayWord(ClientState state, Window window) throws Throwable {
+        return (String[]) Cqi.DUMP_POSITIONAL_ATTRIBUTES.invokeExact(state.client,
+                ReplayServer.CORPUS, "word", 0, window.length - 1, UTF8);
+    }
+
+    @Benchmark
+    public String[] readStringArrayPos(ClientState state, Window window) throws Throwable {
+        return (String[]) Cqi.DUMP_POSITIONAL_ATTRIBUTES.invokeExact(state.client,
+                ReplayServer.CORPUS, "pos", 0, window.length - 1, UTF8);
+    }
+}
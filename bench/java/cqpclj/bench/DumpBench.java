@@ -0,0 +1,53 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+package cqpclj.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Dumping the first <hits> hits of a subcorpus: dumpSubCorpus, three
+ * requests per BUFFER_SIZE hits, against dumpSubCorpusBulk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DumpBench {
+
+    @Param({"100", "1000", "10000"})
+    public int hits;
+
+    @Benchmark
+    public int[][] dumpSubCorpus(ClientState state) throws Throwable {
+        return (int[][]) Cqi.DUMP_SUBCORPUS.invokeExact(state.client, ReplayServer.CORPUS, 0, hits);
+    }
+
+    @Benchmark
+    public int[][] dumpSubCorpusBulk(ClientState state) throws Throwable {
+        return (int[][]) Cqi.DUMP_SUBCORPUS_BULK.invokeExact(state.client, ReplayServer.CORPUS, 0, hits);
+    }
+}
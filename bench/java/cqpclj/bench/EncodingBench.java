@@ -0,0 +1,96 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+package cqpclj.bench;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Request encoding: what CqiClient.writeString and writeIntArray do, i.e.
+ * appending to the CqiFrame of the next write. No I/O involved, the frame
+ * is cleared after each command.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodingBench {
+
+    private static final Charset UTF8 = StandardCharsets.UTF_8;
+    private static final String ATTRIBUTE = "BENCH.word";
+    private static final String QUERY = "[pos='DT'] [pos='JJ']* @[pos='NN' & word!='the']";
+
+    private Object frame;
+
+    @State(Scope.Thread)
+    public static class Positions {
+
+        @Param({"16", "1024", "65536"})
+        public int length;
+
+        int[] cpos;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            cpos = new int[length];
+            for (int i = 0; i < length; i++) {
+                cpos[i] = i * 7;
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        frame = Cqi.NEW_FRAME.invokeExact();
+    }
+
+    @Benchmark
+    public Object writeString() throws Throwable {
+        Object result = Cqi.FRAME_PUT_STRING.invokeExact(frame, QUERY, UTF8);
+        Cqi.FRAME_CLEAR.invokeExact(frame);
+        return result;
+    }
+
+    @Benchmark
+    public Object writeIntArray(Positions positions) throws Throwable {
+        Object result = Cqi.FRAME_PUT_STRING.invokeExact(frame, ATTRIBUTE, UTF8);
+        result = Cqi.FRAME_PUT_INT_ARRAY.invokeExact(frame, positions.cpos);
+        Cqi.FRAME_CLEAR.invokeExact(frame);
+        return result;
+    }
+
+    @Benchmark
+    public Object writeIntRange(Positions positions) throws Throwable {
+        Object result = Cqi.FRAME_PUT_STRING.invokeExact(frame, ATTRIBUTE, UTF8);
+        result = Cqi.FRAME_PUT_INT_RANGE.invokeExact(frame, 0, positions.length - 1);
+        Cqi.FRAME_CLEAR.invokeExact(frame);
+        return result;
+    }
+}
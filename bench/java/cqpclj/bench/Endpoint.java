@@ -0,0 +1,41 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+package cqpclj.bench;
+
+import java.io.IOException;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The replay server of a benchmark run, shared by all its threads.
+ */
+@State(Scope.Benchmark)
+public class Endpoint {
+
+    ReplayServer server;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        server = new ReplayServer();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        server.close();
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+package cqpclj.bench;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The Clojure concordance pipeline: the tokens of <hits> hits with
+ * <CONTEXT> tokens of context and the attributes word, pos and np_h, through
+ * cpos-seq-handler (fully realized), cpos-batch-handler and
+ * cpos-columnar-handler.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandlerBench {
+
+    private static final long CONTEXT = 5;
+
+    private static final IFn SEQ_HANDLER;
+    private static final IFn BATCH_HANDLER;
+    private static final IFn COLUMNAR_HANDLER;
+    private static final IFn REALIZE;
+    private static final IFn MAKE_CLIENT;
+    private static final IFn CPOS_RANGE;
+    private static final IFn DISCONNECT;
+
+    static {
+        Clojure.var("clojure.core", "require").invoke(Clojure.read("cqp-clj.core"));
+        SEQ_HANDLER = Clojure.var("cqp-clj.core", "cpos-seq-handler");
+        BATCH_HANDLER = Clojure.var("cqp-clj.core", "cpos-batch-handler");
+        COLUMNAR_HANDLER = Clojure.var("cqp-clj.core", "cpos-columnar-handler");
+        MAKE_CLIENT = Clojure.var("cqp-clj.core", "make-cqi-client");
+        CPOS_RANGE = Clojure.var("cqp-clj.core", "cpos-range-bulk");
+        DISCONNECT = Clojure.var("cqp-clj.core", "disconnect!");
+        REALIZE = (IFn) Clojure.var("clojure.core", "eval")
+                .invoke(Clojure.read("(fn [hits] (doall (map doall hits)))"));
+    }
+
+    @Param({"100", "1000"})
+    public int hits;
+
+    private Object client;
+    private Object cpos;
+    private Object attrs;
+
+    @Setup(Level.Trial)
+    public void setUp(Endpoint endpoint) {
+        client = MAKE_CLIENT.invoke("127.0.0.1", endpoint.server.getPort(), "bench", "bench");
+        cpos = CPOS_RANGE.invoke(client, ReplayServer.CORPUS, 0, hits);
+        attrs = Clojure.read("[{:attr-type :pos :attr-name \"word\"}"
+                + " {:attr-type :pos :attr-name \"pos\"}"
+                + " {:attr-type :struc :attr-name \"np_h\"}]");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        DISCONNECT.invoke(client);
+    }
+
+    @Benchmark
+    public Object cposSeqHandler() {
+        return REALIZE.invoke(SEQ_HANDLER.invoke(client, ReplayServer.CORPUS, cpos, CONTEXT, "utf8", attrs));
+    }
+
+    @Benchmark
+    public Object cposBatchHandler() {
+        return BATCH_HANDLER.invoke(client, ReplayServer.CORPUS, cpos, CONTEXT, "utf8", attrs);
+    }
+
+    @Benchmark
+    public Object cposColumnarHandler() {
+        return COLUMNAR_HANDLER.invoke(client, ReplayServer.CORPUS, cpos, CONTEXT, "utf8", attrs);
+    }
+}
@@ -0,0 +1,407 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+package cqpclj.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * CQi endpoint on the loopback interface that answers from canned byte
+ * streams, so that benchmarks measure the client rather than a CQP server.
+ * It serves one corpus, BENCH, of CORPUS_SIZE tokens with the positional
+ * attributes word and pos (Zipfian, see Tokens), the structural attribute
+ * np_h (one region every REGION_SIZE tokens) and a subcorpus Results with a
+ * hit every HIT_STEP tokens. Replies are copied out of byte arrays encoded
+ * once at startup; the handlers don't allocate per request, so that the gc
+ * profiler only sees the allocation of the client.
+ *
+ * Only the commands the client issues in the benchmarks are understood.
+ */
+final class ReplayServer implements Closeable {
+
+    static final String CORPUS = "BENCH";
+    static final String SUBCORPUS = "Results";
+    static final int CORPUS_SIZE = 1 << 16;
+    static final int REGION_SIZE = 8;
+    static final int HIT_STEP = 5;
+    static final int HITS = CORPUS_SIZE / HIT_STEP;
+
+    private static final int CTRL_CONNECT = 0x1101;
+    private static final int CTRL_BYE = 0x1102;
+    private static final int CTRL_PING = 0x1104;
+    private static final int CORPUS_CHARSET = 0x1303;
+    private static final int CORPUS_POSITIONAL_ATTRIBUTES = 0x1305;
+    private static final int CORPUS_STRUCTURAL_ATTRIBUTES = 0x1306;
+    private static final int CORPUS_STRUCTURAL_ATTRIBUTE_HAS_VALUES = 0x1307;
+    private static final int CL_ATTRIBUTE_SIZE = 0x1401;
+    private static final int CL_CPOS2STR = 0x1408;
+    private static final int CL_CPOS2ID = 0x1407;
+    private static final int CL_CPOS2STRUC = 0x1409;
+    private static final int CL_STRUC2STR = 0x140B;
+    private static final int CQP_QUERY = 0x1501;
+    private static final int CQP_LIST_SUBCORPORA = 0x1502;
+    private static final int CQP_SUBCORPUS_SIZE = 0x1503;
+    private static final int CQP_DUMP_SUBCORPUS = 0x1505;
+    private static final int CQP_DROP_SUBCORPUS = 0x1509;
+
+    /**
+     * Encoded list items, item i being data[offsets[i]] .. data[offsets[i + 1]].
+     */
+    private static final class Canned {
+        private final byte[] data;
+        private final int[] offsets;
+
+        private Canned(byte[] data, int[] offsets) {
+            this.data = data;
+            this.offsets = offsets;
+        }
+
+        static Canned strings(String[] values) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            int[] offsets = new int[values.length + 1];
+            for (int i = 0; i < values.length; i++) {
+                byte[] b = values[i].getBytes(StandardCharsets.UTF_8);
+                out.writeShort(b.length);
+                out.write(b);
+                offsets[i + 1] = out.size();
+            }
+            return new Canned(bytes.toByteArray(), offsets);
+        }
+
+        static Canned ints(int[] values) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            int[] offsets = new int[values.length + 1];
+            for (int i = 0; i < values.length; i++) {
+                out.writeInt(values[i]);
+                offsets[i + 1] = out.size();
+            }
+            return new Canned(bytes.toByteArray(), offsets);
+        }
+
+        int size() {
+            return offsets.length - 1;
+        }
+
+        /**
+         * Writes items <from> .. <to> (inclusive, wrapping around).
+         */
+        void writeRange(DataOutputStream out, int from, int to) throws IOException {
+            int n = size();
+            int i = from;
+            while (i <= to) {
+                int first = Math.floorMod(i, n);
+                int last = Math.min(n - 1, first + (to - i));
+                out.write(data, offsets[first], offsets[last + 1] - offsets[first]);
+                i += last - first + 1;
+            }
+        }
+
+        /**
+         * Writes the items at <indexes>, copying runs of consecutive ones at once.
+         */
+        void writeItems(DataOutputStream out, int[] indexes, int count) throws IOException {
+            int i = 0;
+            while (i < count) {
+                int j = i + 1;
+                while (j < count && indexes[j] == indexes[j - 1] + 1) {
+                    j++;
+                }
+                writeRange(out, indexes[i], indexes[j - 1]);
+                i = j;
+            }
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final Thread acceptor;
+    private final Canned words;
+    private final Canned wordIds;
+    private final Canned tags;
+    private final Canned regions;
+    private final Canned heads;
+    private final Canned[] dumpFields = new Canned[3];
+
+    ReplayServer() throws IOException {
+        Random random = new Random(42);
+        String[] vocabulary = Tokens.vocabulary("word", random);
+        int[] ids = Tokens.zipfIds(vocabulary.length, CORPUS_SIZE, random);
+        String[] text = new String[CORPUS_SIZE];
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            text[i] = vocabulary[ids[i]];
+        }
+        words = Canned.strings(text);
+        wordIds = Canned.ints(ids);
+        tags = Canned.strings(Tokens.zipf(Tokens.vocabulary("pos", random), CORPUS_SIZE, random));
+        int[] region = new int[CORPUS_SIZE];
+        String[] head = new String[CORPUS_SIZE / REGION_SIZE];
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            region[i] = i / REGION_SIZE;
+        }
+        for (int r = 0; r < head.length; r++) {
+            head[r] = text[r * REGION_SIZE + REGION_SIZE - 1];
+        }
+        regions = Canned.ints(region);
+        heads = Canned.strings(head);
+        int[][] hits = new int[3][HITS];
+        for (int h = 0; h < HITS; h++) {
+            hits[0][h] = h * HIT_STEP;
+            hits[1][h] = h * HIT_STEP + 1;
+            hits[2][h] = (h % 4 == 0) ? h * HIT_STEP + 1 : -1;
+        }
+        for (int f = 0; f < 3; f++) {
+            dumpFields[f] = Canned.ints(hits[f]);
+        }
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "cqi-replay");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread handler = new Thread(new Connection(socket), "cqi-replay-" + socket.getPort());
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Serves the requests of one client, with buffers reused across them.
+     */
+    private final class Connection implements Runnable {
+
+        private final Socket socket;
+        private byte[] string = new byte[1024];
+        private int[] ints = new int[1024];
+        private int count;
+
+        private Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        public void run() {
+            try {
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(socket.getInputStream(), 1 << 16));
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+                while (serve(in, out)) {
+                    if (in.available() == 0) {
+                        out.flush();
+                    }
+                }
+                out.flush();
+            } catch (IOException e) {
+                // client gone or server closed
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        /**
+         * Answers one request.
+         *
+         * @return false once the connection is to be closed
+         */
+        private boolean serve(DataInputStream in, DataOutputStream out) throws IOException {
+            int command = in.readUnsignedShort();
+            switch (command) {
+                case CTRL_CONNECT:
+                    readString(in);
+                    readString(in);
+                    out.writeShort(0x0102);
+                    return true;
+                case CTRL_BYE:
+                    out.writeShort(0x0103);
+                    return false;
+                case CTRL_PING:
+                    out.writeShort(0x0104);
+                    return true;
+                case CORPUS_CHARSET:
+                    readString(in);
+                    writeString(out, "utf8");
+                    return true;
+                case CORPUS_POSITIONAL_ATTRIBUTES:
+                    readString(in);
+                    writeStrings(out, "word", "pos");
+                    return true;
+                case CORPUS_STRUCTURAL_ATTRIBUTES:
+                    readString(in);
+                    writeStrings(out, "np_h");
+                    return true;
+                case CORPUS_STRUCTURAL_ATTRIBUTE_HAS_VALUES:
+                    readString(in);
+                    out.writeShort(0x0302);
+                    out.writeByte(1);
+                    return true;
+                case CL_ATTRIBUTE_SIZE:
+                    out.writeShort(0x0303);
+                    out.writeInt(endsWith(readString(in), "np_h") ? heads.size() : CORPUS_SIZE);
+                    return true;
+                case CL_CPOS2STR: {
+                    Canned values = endsWith(readString(in), "pos") ? tags : words;
+                    readInts(in);
+                    writeList(out, 0x0308, values);
+                    return true;
+                }
+                case CL_CPOS2ID:
+                    readString(in);
+                    readInts(in);
+                    writeList(out, 0x0307, wordIds);
+                    return true;
+                case CL_CPOS2STRUC:
+                    readString(in);
+                    readInts(in);
+                    writeList(out, 0x0307, regions);
+                    return true;
+                case CL_STRUC2STR:
+                    readString(in);
+                    readInts(in);
+                    writeList(out, 0x0308, heads);
+                    return true;
+                case CQP_QUERY:
+                    readString(in);
+                    readString(in);
+                    readString(in);
+                    out.writeShort(0x0101);
+                    return true;
+                case CQP_LIST_SUBCORPORA:
+                    readString(in);
+                    writeStrings(out, SUBCORPUS);
+                    return true;
+                case CQP_SUBCORPUS_SIZE:
+                    readString(in);
+                    out.writeShort(0x0303);
+                    out.writeInt(HITS);
+                    return true;
+                case CQP_DUMP_SUBCORPUS: {
+                    readString(in);
+                    int field = in.readUnsignedByte();
+                    int first = in.readInt();
+                    int last = in.readInt();
+                    Canned values = dumpFields[field == 0x10 ? 0 : field == 0x11 ? 1 : 2];
+                    out.writeShort(0x0307);
+                    out.writeInt(last - first + 1);
+                    values.writeRange(out, first, last);
+                    return true;
+                }
+                case CQP_DROP_SUBCORPUS:
+                    readString(in);
+                    out.writeShort(0x0101);
+                    return true;
+                default:
+                    // CQI_ERROR_GENERAL_ERROR; the arguments can't be skipped
+                    out.writeShort(0x0201);
+                    return false;
+            }
+        }
+
+        /**
+         * Reads a string argument into the string buffer, undecoded.
+         *
+         * @return its length in bytes
+         */
+        private int readString(DataInputStream in) throws IOException {
+            int length = in.readUnsignedShort();
+            if (string.length < length) {
+                string = new byte[length];
+            }
+            in.readFully(string, 0, length);
+            return length;
+        }
+
+        /**
+         * Whether the string argument just read ends with <suffix> (ASCII).
+         */
+        private boolean endsWith(int length, String suffix) {
+            int n = suffix.length();
+            if (length < n) {
+                return false;
+            }
+            for (int i = 0; i < n; i++) {
+                if (string[length - n + i] != suffix.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void readInts(DataInputStream in) throws IOException {
+            count = in.readInt();
+            if (ints.length < count) {
+                ints = new int[Math.max(count, ints.length * 2)];
+            }
+            for (int i = 0; i < count; i++) {
+                ints[i] = in.readInt();
+            }
+        }
+
+        /**
+         * Answers with the items of <values> at the positions just read.
+         */
+        private void writeList(DataOutputStream out, int header, Canned values) throws IOException {
+            out.writeShort(header);
+            out.writeInt(count);
+            values.writeItems(out, ints, count);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeShort(0x0304);
+        out.writeUTF(value);
+    }
+
+    private static void writeStrings(DataOutputStream out, String... values) throws IOException {
+        out.writeShort(0x0308);
+        out.writeInt(values.length);
+        for (String value : values) {
+            out.writeUTF(value);
+        }
+    }
+}
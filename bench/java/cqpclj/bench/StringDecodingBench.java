@@ -0,0 +1,99 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+package cqpclj.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding of a cpos2Str reply: the former byte[] + new String per value
+ * against CqiStringDecoder with and without interning. Run with
+ * lein jmh StringDecoding.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringDecodingBench {
+
+    private static final Charset UTF8 = StandardCharsets.UTF_8;
+
+    @Param({"pos", "word"})
+    public String distribution;
+
+    @Param({"100000"})
+    public int count;
+
+    private ByteArrayInputStream bytes;
+    private DataInputStream input;
+    private Object interning;
+    private Object plain;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        Random random = new Random(42);
+        String[] tokens = Tokens.zipf(Tokens.vocabulary(distribution, random), count, random);
+        bytes = new ByteArrayInputStream(Tokens.encode(tokens));
+        input = new DataInputStream(bytes);
+        interning = Cqi.NEW_STRING_DECODER.invokeExact(4096);
+        plain = Cqi.NEW_STRING_DECODER.invokeExact(0);
+    }
+
+    @Benchmark
+    public String[] newStringPerValue() throws IOException {
+        bytes.reset();
+        String[] strings = new String[count];
+        for (int i = 0; i < count; i++) {
+            short length = input.readShort();
+            byte[] b = new byte[length];
+            input.readFully(b);
+            strings[i] = new String(b, UTF8);
+        }
+        return strings;
+    }
+
+    @Benchmark
+    public String[] reusedBuffer() throws Throwable {
+        bytes.reset();
+        return (String[]) Cqi.READ_STRINGS.invokeExact(plain, (java.io.DataInput) input, count, UTF8,
+                distribution);
+    }
+
+    @Benchmark
+    public String[] reusedBufferInterned() throws Throwable {
+        bytes.reset();
+        return (String[]) Cqi.READ_STRINGS.invokeExact(interning, (java.io.DataInput) input, count, UTF8,
+                distribution);
+    }
+}
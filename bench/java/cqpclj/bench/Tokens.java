@@ -0,0 +1,114 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+package cqpclj.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Synthetic token streams with a Zipfian distribution over a vocabulary, the
+ * shape of real positional attributes: a few dozen values for "pos", tens
+ * of thousands for "word".
+ */
+final class Tokens {
+
+    private static final String[] TAGS = {
+        "NN", "NNS", "NP", "NPS", "DT", "IN", "JJ", "JJR", "JJS", "RB", "RBR", "VB", "VBD",
+        "VBG", "VBN", "VBP", "VBZ", "CC", "CD", "PP", "PP$", "MD", "TO", "WDT", "WP", "WRB",
+        "EX", "FW", "LS", "PDT", "POS", "RP", "SYM", "UH", "SENT", ",", ":", "(", ")", "``", "''"
+    };
+
+    private Tokens() {
+    }
+
+    /**
+     * Vocabulary of <distribution>: "pos" or "word".
+     */
+    static String[] vocabulary(String distribution, Random random) {
+        if ("pos".equals(distribution)) {
+            return TAGS.clone();
+        }
+        String letters = "etaoinshrdlucmfwypvbgkjqxz\u00e9";
+        String[] words = new String[20000];
+        for (int i = 0; i < words.length; i++) {
+            int length = 1 + (int) Math.round(Math.abs(random.nextGaussian()) * 4) + (i > 100 ? 2 : 0);
+            StringBuilder word = new StringBuilder();
+            for (int j = 0; j < length; j++) {
+                word.append(letters.charAt(Math.min(letters.length() - 1,
+                        (int) (Math.abs(random.nextGaussian()) * 8))));
+            }
+            words[i] = word.toString();
+        }
+        return words;
+    }
+
+    /**
+     * <count> values drawn with probability proportional to 1 / rank.
+     */
+    static String[] zipf(String[] vocabulary, int count, Random random) {
+        int[] ids = zipfIds(vocabulary.length, count, random);
+        String[] tokens = new String[count];
+        for (int i = 0; i < count; i++) {
+            tokens[i] = vocabulary[ids[i]];
+        }
+        return tokens;
+    }
+
+    /**
+     * <count> ranks in 0 .. <types> - 1 drawn with probability proportional
+     * to 1 / (rank + 1).
+     */
+    static int[] zipfIds(int types, int count, Random random) {
+        double[] cumulative = new double[types];
+        double sum = 0;
+        for (int i = 0; i < types; i++) {
+            sum += 1.0 / (i + 1);
+            cumulative[i] = sum;
+        }
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            double x = random.nextDouble() * sum;
+            int lo = 0;
+            int hi = types - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cumulative[mid] < x) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            ids[i] = lo;
+        }
+        return ids;
+    }
+
+    /**
+     * The body of a CQI_DATA_STRING_LIST reply, after the count.
+     */
+    static byte[] encode(String[] tokens) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (String token : tokens) {
+            byte[] b = token.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(b.length);
+            out.write(b);
+        }
+        return bytes.toByteArray();
+    }
+}
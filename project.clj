@@ -4,4 +4,11 @@
   :license {:name "GPL-3.0"
             :url "http://www.gnu.org/licenses/gpl-3.0.en.html"}
   :dependencies [[org.clojure/clojure "1.7.0"]]
-  :java-source-paths ["src/java"])
+  :java-source-paths ["src/java"]
+  :javac-options ["--release" "11"]
+  :profiles {:bench {:source-paths ["bench"]
+                     :java-source-paths ["src/java" "bench/java"]
+                     :dependencies [[org.openjdk.jmh/jmh-core "1.37"]
+                                    [org.openjdk.jmh/jmh-generator-annprocess "1.37"]]
+                     :jvm-opts ["-Xms1g" "-Xmx1g"]}}
+  :aliases {"jmh" ["with-profile" "bench" "run" "-m" "org.openjdk.jmh.Main" "-prof" "gc"]})
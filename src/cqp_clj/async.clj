@@ -0,0 +1,83 @@
+(ns cqp-clj.async
+  "Non-blocking counterparts of the `cqp-clj.core` helpers. Every function
+  returns a java.util.concurrent.CompletableFuture right away; use `deref`
+  (optionally with a timeout) to wait for the value. A failed request
+  throws an ExecutionException whose cause is the CqiClientException.
+  Requests are served by a thread per connection (see CqiAsyncClient),
+  which spares the caller from blocking but not the thread."
+  (:import [CqiAsyncClient] [CqiClient]
+           [java.util.concurrent CompletableFuture]
+           [java.util.function Function])
+  (:require [cqp-clj.core :refer [socket-options map->CQiClient]]))
+
+(set! *warn-on-reflection* true)
+
+(defrecord CQiAsyncClient [client])
+
+(defn make-async-client
+  "Connect to the server and start the thread serving the connection.
+  Takes the same spec as `cqp-clj.core/make-cqi-client`, or an already
+  connected CQiClient record, which shouldn't be used directly anymore."
+  [{host :host port :port user :user pass :pass opts :socket client :client :as spec}]
+  (map->CQiAsyncClient
+   {:client (if client
+              (CqiAsyncClient. ^CqiClient client)
+              (CqiAsyncClient. ^String host (int port) ^String user ^String pass
+                               (socket-options (or opts {}))))}))
+
+(defn disconnect!
+  "Say goodbye to the server once the queued requests are served."
+  ^CompletableFuture [async-client]
+  (let [{client :client} async-client]
+    (.disconnect ^CqiAsyncClient client)))
+
+(defn then
+  "Future of (f value) once `future` completes."
+  ^CompletableFuture [^CompletableFuture future f]
+  (.thenApply future (reify Function (apply [_ v] (f v)))))
+
+(defn submit
+  "Run (f cqi-client) on the connection thread; f receives a CQiClient
+  record so any `cqp-clj.core` function can be used."
+  ^CompletableFuture [async-client f]
+  (let [{client :client} async-client]
+    (.apply ^CqiAsyncClient client
+            (reify Function
+              (apply [_ c] (f (map->CQiClient {:client c})))))))
+
+(defn query!
+  ([async-client corpus query]
+   (query! async-client corpus query "utf8"))
+  ([async-client ^String corpus ^String query ^String charset]
+   (let [{client :client} async-client]
+     (.query ^CqiAsyncClient client corpus query charset))))
+
+(defn query-size
+  [async-client ^String corpus]
+  (let [{client :client} async-client]
+    (.querySize ^CqiAsyncClient client corpus)))
+
+(defn cpos-range
+  "Future of the match, match-end & target vectors of the hits `from`..`to`."
+  ([async-client corpus from]
+   (cpos-range async-client corpus from Integer/MAX_VALUE))
+  ([async-client ^String corpus from to]
+   (let [{client :client} async-client]
+     (then (.dumpSubCorpus ^CqiAsyncClient client corpus (int from) (int to))
+           #(map vec %)))))
+
+(defn span->attr
+  ([async-client corpus name from to]
+   (span->attr async-client corpus name from to "utf8"))
+  ([async-client ^String corpus ^String name from to ^String charset]
+   (let [{client :client} async-client]
+     (then (.dumpPositionalAttributes ^CqiAsyncClient client corpus name (int from) (int to) charset)
+           vec))))
+
+(defn span->struc
+  ([async-client corpus name from to]
+   (span->struc async-client corpus name from to "utf8"))
+  ([async-client ^String corpus ^String name from to ^String charset]
+   (let [{client :client} async-client]
+     (then (.dumpStructuralAttributes ^CqiAsyncClient client corpus name (int from) (int to) charset)
+           vec))))
@@ -0,0 +1,77 @@
+(ns cqp-clj.collocations
+  "Collocates of query hits, counted as lexicon ids by CqiCollocations
+  and scored against corpus frequencies. The contexts never reach
+  Clojure: only the distinct collocates do."
+  (:import [CqiCollocations] [CqiCollocations$Result] [CqiCollocations$Collocate]
+           [CqiClientPool] [java.nio.charset Charset])
+  (:require [cqp-clj.core :refer [query! subcorpus]]
+            [cqp-clj.parallel :refer [call-with-pooled-clients]]))
+
+(set! *warn-on-reflection* true)
+
+(def ^:private scores
+  {:log-likelihood #(.getLogLikelihood ^CqiCollocations$Collocate %)
+   :mi #(.getMutualInformation ^CqiCollocations$Collocate %)
+   :t-score #(.getTScore ^CqiCollocations$Collocate %)
+   :frequency #(.getFrequency ^CqiCollocations$Collocate %)})
+
+(defn- collocate->map [^CqiCollocations$Collocate c]
+  {:value (.getValue c)
+   :frequency (.getFrequency c)
+   :corpus-frequency (.getCorpusFrequency c)
+   :expected (.getExpected c)
+   :log-likelihood (.getLogLikelihood c)
+   :mi (.getMutualInformation c)
+   :t-score (.getTScore c)})
+
+(defn- compute
+  [clients ^String corpus ^String sub ^String attr-name
+   {:keys [left right min-freq chunk charset sort-by limit]
+    :or {left 5 right 5 min-freq 1 chunk 1000 charset "utf8" sort-by :log-likelihood}}]
+  (let [^CqiCollocations$Result result
+        (.compute (-> (CqiCollocations. corpus sub attr-name)
+                      (.setSpan (int left) (int right))
+                      (.setMinFrequency (int min-freq))
+                      (.setChunkSize (int chunk)))
+                  (Charset/forName charset)
+                  ^"[LCqiClient;" (into-array (Class/forName "CqiClient") (map :client clients)))
+        score (scores sort-by)
+        ranked (clojure.core/sort-by score > (.getCollocates result))]
+    (with-meta
+      (mapv collocate->map (if limit (take limit ranked) ranked))
+      {:hits (.getHits result)
+       :window-tokens (.getWindowTokens result)
+       :corpus-size (.getCorpusSize result)
+       :distinct (.getDistinctCollocates result)})))
+
+(defn collocations
+  "Collocates of the values of the positional attribute `attr-name` in
+  the hits of the last query: the values within :left and :right
+  positions (default 5 and 5) around each hit, as maps with :value,
+  :frequency (in the windows), :corpus-frequency, :expected,
+  :log-likelihood, :mi and :t-score, ranked by :sort-by (one of
+  those scores or :frequency, default :log-likelihood). Collocates
+  seen fewer than :min-freq times are left out, and only the :limit
+  first are returned if given. Hits are processed :chunk at a time
+  (default 1000).
+
+  The metadata reports :hits, :window-tokens, :corpus-size and the
+  :distinct collocates counted."
+  ([cqi-client corpus attr-name]
+   (collocations cqi-client corpus attr-name {}))
+  ([cqi-client corpus attr-name opts]
+   (compute [cqi-client] corpus (subcorpus cqi-client) attr-name opts)))
+
+(defn parallel-collocations
+  "Like `collocations` for the hits of `query`, which is run on up to
+  :parallelism connections (default 4) borrowed from `pool` (see
+  `call-with-pooled-clients`); the chunks of hits are then counted on a
+  thread per connection."
+  [^CqiClientPool pool corpus query attr-name
+   {:keys [charset parallelism] :or {charset "utf8" parallelism 4} :as opts}]
+  (call-with-pooled-clients
+   pool parallelism corpus
+   (fn [clients]
+     (doseq [client clients]
+       (query! client corpus query charset))
+     (compute clients corpus (subcorpus (first clients)) attr-name opts))))
@@ -1,5 +1,10 @@
 (ns cqp-clj.core
-  (:import [CqiClient] [CqiClientException])
+  (:import [CqiClient] [CqiClientException] [CqiSocketOptions]
+           [CqiClientPool] [CqiPoolOptions]
+           [CqiPipeline] [CqiPipeline$Reply] [TokenWindowCache] [KwicBlock]
+           [CqiStats] [CqiStats$Summary] [CqiQueryCache]
+           [java.nio.charset Charset]
+           [java.util Arrays])
   (:require [cqp-clj.spec :refer [read-init]]
             [cqp-clj.paginator :refer [paginator]]))
 
@@ -9,17 +14,45 @@
 
 (defrecord CQiClient [client])
 
+(def ^:private default-subcorpus "Results")
+
+(defn subcorpus
+  "The subcorpus the helpers read and `query!` writes: :subcorpus of the
+  CQiClient record, by default \"Results\"."
+  ^String [cqi-client]
+  (:subcorpus cqi-client default-subcorpus))
+
+(defn socket-options
+  "Build CqiSocketOptions out of a map with any of the keys
+  :tcp-no-delay, :send-buffer-size, :receive-buffer-size,
+  :connect-timeout, :read-timeout (ms) and :stream-buffer-size."
+  ^CqiSocketOptions
+  [{:keys [tcp-no-delay send-buffer-size receive-buffer-size
+           connect-timeout read-timeout stream-buffer-size]}]
+  (cond-> (CqiSocketOptions.)
+    (some? tcp-no-delay) (.setTcpNoDelay (boolean tcp-no-delay))
+    send-buffer-size (.setSendBufferSize (int send-buffer-size))
+    receive-buffer-size (.setReceiveBufferSize (int receive-buffer-size))
+    connect-timeout (.setConnectTimeout (int connect-timeout))
+    read-timeout (.setReadTimeout (int read-timeout))
+    stream-buffer-size (.setStreamBufferSize (int stream-buffer-size))))
+
 (defn make-cqi-client
-  "Ctor for CQiClient record."
+  "Ctor for CQiClient record. The spec map may carry socket
+  settings under :socket (see `socket-options`)."
   ([host port]
-   (let [client (CqiClient. host port)]
+   (make-cqi-client host port {}))
+  ([host port opts]
+   (let [client (CqiClient. ^String host (int port) (socket-options opts))]
      (map->CQiClient {:client client})))
   ([host port user pass]
-   (let [cqi-client (make-cqi-client host port)]
+   (make-cqi-client host port user pass {}))
+  ([host port user pass opts]
+   (let [cqi-client (make-cqi-client host port opts)]
      (do (connect! cqi-client user pass)
          cqi-client)))
-  ([{host :host port :port user :user pass :pass}]
-   (make-cqi-client host port user pass)))
+  ([{host :host port :port user :user pass :pass opts :socket}]
+   (make-cqi-client host port user pass (or opts {}))))
 
 (defn connect! [cqi-client user pass]
   (let [{client :client} cqi-client] 
@@ -35,12 +68,47 @@
    (query! cqi-client corpus query "utf8"))
   ([cqi-client ^String corpus ^String query ^String charset]
    (let [{client :client} cqi-client]
-     (.query ^CqiClient client corpus query charset))))
+     (.query ^CqiClient client corpus (subcorpus cqi-client) query (Charset/forName charset)))))
 
 (defn query-size
   ([cqi-client corpus]
    (let [{client :client} cqi-client]
-     (.querySize ^CqiClient client corpus))))
+     (.querySize ^CqiClient client corpus (subcorpus cqi-client)))))
+
+(defn query-cache
+  "A CqiQueryCache for `cached-query!`, keeping at most :max-entries
+  subcorpora (default 64) with at most :max-hits hits together (default
+  10 million) on the server. It serves a single client."
+  ^CqiQueryCache
+  ([] (query-cache {}))
+  ([{:keys [max-entries max-hits] :or {max-entries 64 max-hits 10000000}}]
+   (CqiQueryCache. (int max-entries) (long max-hits))))
+
+(defn set-query-cache!
+  "Keep the results of `cached-query!` in `cache`, dropping the
+  subcorpora of the previous one. nil turns caching off."
+  [cqi-client cache]
+  (let [{client :client} cqi-client]
+    (.setQueryCache ^CqiClient client cache)))
+
+(defn cached-query!
+  "Like `query!`, but the results go to a subcorpus of the client's
+  query cache (see `set-query-cache!`), which repeating the query reuses
+  instead of running it again. Returns `cqi-client` reading that
+  subcorpus, to be passed to the other helpers."
+  ([cqi-client corpus query]
+   (cached-query! cqi-client corpus query "utf8"))
+  ([cqi-client ^String corpus ^String query ^String charset]
+   (let [{client :client} cqi-client]
+     (assoc cqi-client :subcorpus (.cachedQuery ^CqiClient client corpus query charset)))))
+
+(defn query-cache-stats [^CqiQueryCache cache]
+  {:hits (.getHits cache)
+   :misses (.getMisses cache)
+   :evictions (.getEvictions cache)
+   :entries (.size cache)
+   :cached-hits (.getCachedHits cache)
+   :server-bytes (.getServerBytes cache)})
 
 (defn cpos-range
   "Extract corpus positions for current query.
@@ -51,19 +119,188 @@
      (cpos-range cqi-client corpus from to)))
   ([cqi-client corpus from to]   
    (let [{client :client} cqi-client]
-     (map vec (.dumpSubCorpus ^CqiClient client corpus from to)))))
+     (map vec (.dumpSubCorpus ^CqiClient client corpus (subcorpus cqi-client) from to)))))
+
+(defn cpos-range-bulk
+  "Like `cpos-range` but dumps the hits in large chunks, sending the
+  requests for match, match-end & target together. Throws if the
+  subcorpus doesn't exist instead of returning an empty range."
+  ([cqi-client corpus from]
+   (cpos-range-bulk cqi-client corpus from Integer/MAX_VALUE))
+  ([cqi-client ^String corpus from to]
+   (let [{client :client} cqi-client]
+     (map vec (.dumpSubCorpusBulk ^CqiClient client corpus (subcorpus cqi-client)
+                                  (int from) (int to))))))
+
+(defn set-dump-chunk-size!
+  "Fix the number of hits per chunk used by `cpos-range-bulk`.
+  0 lets the client adapt it to the measured round trip time."
+  [cqi-client chunk-size]
+  (let [{client :client} cqi-client]
+    (.setDumpChunkSize ^CqiClient client (int chunk-size))))
+
+(defn dump-rate
+  "Hits per second achieved by the last `cpos-range-bulk` call."
+  [cqi-client]
+  (let [{client :client} cqi-client]
+    (.getLastDumpHitsPerSecond ^CqiClient client)))
 
-(defn target->idx 
+(defn corpus-info
+  "Charset, full name and attributes of `corpus`. These are cached by
+  the client, so only the first call costs round trips."
+  [cqi-client ^String corpus]
+  (let [{client :client} cqi-client
+        client ^CqiClient client
+        strucs (vec (.corpusStructuralAttributes client corpus))]
+    {:charset (.corpusCharset client corpus)
+     :full-name (.corpusFullName client corpus)
+     :positional (vec (.corpusPositionalAttributes client corpus))
+     :structural strucs
+     :has-values (into {} (map (juxt identity #(.structuralAttributeHasValues client corpus %)))
+                       strucs)}))
+
+(defn invalidate-metadata!
+  "Forget what the client cached about `corpus` (all corpora by default)."
+  ([cqi-client]
+   (let [{client :client} cqi-client]
+     (.invalidateMetadata ^CqiClient client)))
+  ([cqi-client ^String corpus]
+   (let [{client :client} cqi-client]
+     (.invalidateMetadata ^CqiClient client corpus))))
+
+(defn token-cache
+  "A TokenWindowCache of at most :blocks blocks (default 4096) of
+  :block-size corpus positions (default 256). It can be shared by
+  several clients of the same server, see `set-token-cache!`."
+  ^TokenWindowCache
+  ([] (token-cache {}))
+  ([{:keys [blocks block-size] :or {blocks 4096 block-size 256}}]
+   (TokenWindowCache. (int blocks) (int block-size))))
+
+(defn set-token-cache!
+  "Serve `span->attr`, `span->struc` and the context helpers built on
+  them from `cache`, fetching only the positions not cached yet.
+  nil turns caching off."
+  [cqi-client cache]
+  (let [{client :client} cqi-client]
+    (.setTokenCache ^CqiClient client cache)))
+
+(defn token-cache-stats [^TokenWindowCache cache]
+  {:hits (.getHits cache)
+   :misses (.getMisses cache)
+   :evictions (.getEvictions cache)
+   :blocks (.size cache)})
+
+(defn make-stats
+  "A CqiStats to record the traffic of one or more clients into (see
+  `set-stats!` and :stats in `pool-options`). `(.register stats name)`
+  publishes it through JMX."
+  ^CqiStats []
+  (CqiStats.))
+
+(defn set-stats!
+  "Record the commands, errors, bytes and round trips of the client
+  into `stats`, which may be shared with other clients. nil turns
+  recording off, which is the default. Returns `stats`."
+  [cqi-client stats]
+  (let [{client :client} cqi-client]
+    (.setStats ^CqiClient client stats)
+    stats))
+
+(defn- summary->map [^CqiStats$Summary summary]
+  {:count (.getCount summary)
+   :errors (.getErrors summary)
+   :mean-us (.getMeanMicros summary)
+   :p50-us (.getP50Micros summary)
+   :p99-us (.getP99Micros summary)
+   :max-us (.getMaxMicros summary)})
+
+(defn stats
+  "Snapshot of a CqiStats as a map: totals, latency of every command
+  sent (:commands), error replies by kind (:errors), latency and round
+  trips of the high level calls (:operations) and the time spent
+  waiting for pooled connections (:pool-wait)."
+  [^CqiStats stats]
+  {:bytes-sent (.getBytesSent stats)
+   :bytes-received (.getBytesReceived stats)
+   :round-trips (.getRoundTrips stats)
+   :commands (into {} (map (fn [^CqiStats$Summary s] [(.getName s) (summary->map s)]))
+                   (.getCommands stats))
+   :errors (into {} (.getErrorCounts stats))
+   :operations (into {} (map (fn [^CqiStats$Summary s]
+                               [(.getName s)
+                                (-> (summary->map s)
+                                    (dissoc :errors)
+                                    (assoc :mean-round-trips (.getMeanRoundTrips s)
+                                           :max-round-trips (.getMaxRoundTrips s)))]))
+                     (.getOperations stats))
+   :pool-wait (dissoc (summary->map (.getPoolWait stats)) :errors)})
+
+(def ^:private fields
+  {:match CqiClient/CQI_CONST_FIELD_MATCH
+   :matchend CqiClient/CQI_CONST_FIELD_MATCHEND
+   :target CqiClient/CQI_CONST_FIELD_TARGET
+   :keyword CqiClient/CQI_CONST_FIELD_KEYWORD})
+
+(defn- resolve-column
+  [^CqiClient client corpus attr-name rows column ^Charset charset]
+  (.resolveLexiconIds client (str corpus "." attr-name)
+                      (int-array (map #(aget ^ints % (int column)) rows)) charset))
+
+(defn fdist-1
+  "Frequencies of the values of the positional attribute `attr-name`
+  at :field (:match, :matchend, :target or :keyword; default :match) of
+  the hits of the last query, as a map from value to count. Counting is
+  done by the server; values occurring less than :cutoff times (default
+  1) are left out."
+  ([cqi-client corpus attr-name]
+   (fdist-1 cqi-client corpus attr-name {}))
+  ([cqi-client ^String corpus ^String attr-name
+    {:keys [field cutoff charset] :or {field :match cutoff 1 charset "utf8"}}]
+   (let [{client :client} cqi-client
+         rows (.fdist1 ^CqiClient client corpus (subcorpus cqi-client) (int cutoff)
+                       (byte (fields field)) attr-name)
+         values (resolve-column client corpus attr-name rows 0 (Charset/forName charset))]
+     (zipmap values (map #(aget ^ints % 1) rows)))))
+
+(defn fdist-2
+  "Joint frequencies of `attr-name1` at :field1 and `attr-name2` at
+  :field2 (both default :match) of the hits of the last query, as a map
+  from [value1 value2] to count. See `fdist-1`."
+  ([cqi-client corpus attr-name1 attr-name2]
+   (fdist-2 cqi-client corpus attr-name1 attr-name2 {}))
+  ([cqi-client ^String corpus ^String attr-name1 ^String attr-name2
+    {:keys [field1 field2 cutoff charset]
+     :or {field1 :match field2 :match cutoff 1 charset "utf8"}}]
+   (let [{client :client} cqi-client
+         charset (Charset/forName charset)
+         rows (.fdist2 ^CqiClient client corpus (subcorpus cqi-client) (int cutoff)
+                       (byte (fields field1)) attr-name1 (byte (fields field2)) attr-name2)
+         values1 (resolve-column client corpus attr-name1 rows 0 charset)
+         values2 (resolve-column client corpus attr-name2 rows 1 charset)]
+     (zipmap (map vector values1 values2) (map #(aget ^ints % 2) rows)))))
+
+(defn target->idx
   "Extract target position in a range"
   [start end target]
   (- target start))
 
 (defn span->attr
+  "Values of the positional attribute `name` for the positions `from`..`to`.
+  With {:lexicon true} only lexicon ids are fetched and resolved through
+  the client side lexicon cache, which pays off for attributes with few
+  distinct values (e.g. \"pos\")."
   ([cqi-client corpus name from to]
    (span->attr cqi-client corpus name from to "utf8"))
   ([cqi-client ^String corpus ^String name ^Integer from ^Integer to ^String charset]
    (let [{client :client} cqi-client]
-     (vec (.dumpPositionalAttributes ^CqiClient client corpus name from to charset)))))
+     (vec (.dumpPositionalAttributes ^CqiClient client corpus name from to charset))))
+  ([cqi-client ^String corpus ^String name from to ^String charset {lexicon :lexicon}]
+   (if lexicon
+     (let [{client :client} cqi-client]
+       (vec (.dumpPositionalAttributesByLexicon ^CqiClient client corpus name
+                                                (int from) (int to) charset)))
+     (span->attr cqi-client corpus name from to charset))))
 
 ;;; check java source
 (defn span->struc
@@ -83,11 +320,98 @@
                   :struc (span->struc cqi-client corpus attr-name from to charset))]
      (vec (map #(hash-map (keyword attr-name) %) tokens)))))
 
-(defn span->values 
+(defn- reply-value [^CqiPipeline$Reply reply]
+  (.get reply))
+
+(defn- request-values
+  "Queue the first request needed for the values of `attr` over
+  `from`..`to`."
+  [^CqiPipeline pipeline attr-name attr-type lexicon from to ^Charset charset]
+  (case attr-type
+    :pos (if lexicon
+           (.cpos2Id pipeline attr-name (int from) (int to))
+           (.cpos2Str pipeline attr-name (int from) (int to) charset))
+    :struc (.cpos2Struc pipeline attr-name (int from) (int to))))
+
+(defn- follow-up-values
+  "Queue the second request for `attr` if it needs one (struc2Str), or
+  resolve lexicon ids locally. Returns what `reply->values` expects."
+  [^CqiClient client ^CqiPipeline pipeline attr-name attr-type lexicon reply ^Charset charset]
+  (case attr-type
+    :pos (if lexicon
+           (.resolveLexiconIds client attr-name ^ints (reply-value reply) charset)
+           reply)
+    :struc (.struc2Str pipeline attr-name ^ints (reply-value reply) charset)))
+
+(defn- reply->values [{attr-type :attr-type lexicon :lexicon} reply]
+  (if (and lexicon (= attr-type :pos)) reply (reply-value reply)))
+
+(defn- values->tokens
+  "One map per position out of the value arrays of every attribute."
+  [attrs values]
+  (apply mapv merge
+         (map (fn [{attr-name :attr-name} vs]
+                (mapv #(hash-map (keyword attr-name) %) vs))
+              attrs values)))
+
+(defn- fetch-cached-ranges
+  "For clients with a token cache, which the pipeline doesn't go through."
+  [^CqiClient client ^String corpus ranges ^Charset charset attrs]
+  (mapv (fn [[from to]]
+          (mapv (fn [{attr-type :attr-type ^String attr-name :attr-name}]
+                  (case attr-type
+                    :pos (.dumpPositionalAttributes client corpus attr-name (int from) (int to) charset)
+                    :struc (.dumpStructuralAttributes client corpus attr-name (int from) (int to) charset)))
+                attrs))
+        ranges))
+
+(defn- fetch-pipelined-ranges
+  "Requests for all ranges and attributes are pipelined together: one
+  round trip, two with structural attributes."
+  [^CqiClient client corpus ranges ^Charset charset attrs]
+  (let [pipeline (.pipeline client)
+        full-name (fn [{attr-name :attr-name}] (str corpus "." attr-name))
+        replies (mapv (fn [[from to]]
+                        (mapv (fn [{attr-type :attr-type lexicon :lexicon :as attr}]
+                                (request-values pipeline (full-name attr) attr-type lexicon
+                                                from to charset))
+                              attrs))
+                      ranges)
+        _ (.sync pipeline)
+        replies (mapv (fn [range-replies]
+                        (mapv (fn [{attr-type :attr-type lexicon :lexicon :as attr} reply]
+                                (follow-up-values client pipeline (full-name attr) attr-type
+                                                  lexicon reply charset))
+                              attrs range-replies))
+                      replies)
+        _ (when (pos? (.size pipeline)) (.sync pipeline))]
+    (mapv (fn [range-replies]
+            (mapv reply->values attrs range-replies))
+          replies)))
+
+(defn- fetch-range-values
+  "Values of all `attrs` for each of the inclusive position `ranges`:
+  a vector with one String[] per attribute for every range."
+  [^CqiClient client corpus ranges ^Charset charset attrs]
+  (if (.getTokenCache client)
+    (fetch-cached-ranges client corpus ranges charset attrs)
+    (fetch-pipelined-ranges client corpus ranges charset attrs)))
+
+(defn- fetch-ranges
+  "Like `fetch-range-values`, as a vector of token vectors."
+  [client corpus ranges charset attrs]
+  (mapv #(values->tokens attrs %) (fetch-range-values client corpus ranges charset attrs)))
+
+(defn span->values
+  "Values of all `attrs` for the positions `from`..`to`. The requests for
+  all attributes are pipelined, so they cost one round trip (two if there
+  are structural attributes). Positional attributes marked :lexicon true
+  are fetched as lexicon ids and resolved through the lexicon cache."
   ([cqi-client corpus from to attrs]
    (span->values cqi-client corpus from to "utf8" attrs))
   ([cqi-client corpus from to charset attrs]
-   (apply mapv merge (map #(span->value cqi-client corpus from to charset %) attrs))))
+   (let [{client :client} cqi-client]
+     (first (fetch-ranges client corpus [[from to]] (Charset/forName charset) attrs)))))
 
 (defn sort-position
   "from might not be equal to (- start context)"
@@ -103,7 +427,8 @@
 
 (defn cpos-token-handler
   "Extract desired info from cpos token adding positional
-  information as defined in `sort-position`"
+  information as defined in `sort-position`. Positional attrs
+  may be marked :lexicon true (see `span->values`)."
   ([cqi-client corpus [start end target] context attrs]
    (cpos-token-handler cqi-client corpus [start end target] context "utf-8" attrs))
   ([cqi-client corpus [start end target] context charset attrs]
@@ -121,6 +446,208 @@
    (map #(cpos-token-handler cqi-client corpus % context charset attrs)
         (apply map vector cpos))))
 
+(defn merge-windows
+  "Merge the inclusive position windows [from to] into as few inclusive
+  ranges as possible, joining windows that overlap or are at most `gap`
+  positions apart. Returns the ranges sorted by position and, for every
+  window in input order, [range-index offset-in-range]."
+  [windows gap]
+  (let [ranges (KwicBlock/mergeWindows (int-array (map first windows))
+                                       (int-array (map second windows))
+                                       (int gap))
+        starts (int-array (map #(aget ^ints % 0) ranges))]
+    {:ranges (mapv vec ranges)
+     :slots (mapv (fn [[from]]
+                    (let [r (Arrays/binarySearch starts (int from))
+                          r (if (neg? r) (- (- r) 2) r)]
+                      [r (- from (aget starts r))]))
+                  windows)}))
+
+(defn cpos-batch-handler
+  "Like `cpos-seq-handler`, but the context windows of all hits are
+  merged first (see `merge-windows`) and every attribute is fetched once
+  per merged range; the tokens of each hit are then sliced out locally.
+  Merged ranges are requested :batch (default 64) at a time, each batch
+  costing one round trip (two with structural attributes). Windows up
+  to :gap positions apart (default 8) are merged, fetching the positions
+  in between.
+
+  Returns a vector whose metadata reports :hits, :ranges, :requests,
+  :round-trips and :saved-round-trips, the latter compared to fetching
+  each hit on its own as `cpos-seq-handler` does."
+  ([cqi-client corpus cpos context attrs]
+   (cpos-batch-handler cqi-client corpus cpos context "utf8" attrs {}))
+  ([cqi-client corpus cpos context charset attrs]
+   (cpos-batch-handler cqi-client corpus cpos context charset attrs {}))
+  ([cqi-client corpus cpos context charset attrs {:keys [gap batch] :or {gap 8 batch 64}}]
+   (let [{client :client} cqi-client
+         hits (vec (apply map vector cpos))
+         windows (mapv (fn [[start end]] [(max 0 (- start context)) (+ end context)]) hits)
+         {ranges :ranges slots :slots} (merge-windows windows gap)
+         batches (partition-all batch ranges)
+         tokens (into [] (mapcat #(fetch-ranges client corpus % (Charset/forName charset) attrs))
+                      batches)
+         trips-per-fetch (if (some #(= :struc (:attr-type %)) attrs) 2 1)]
+     (with-meta
+       (mapv (fn [[start end target] [from to] [r offset]]
+               (let [range-tokens (nth tokens r)]
+                 (vec (map-indexed (fn [idx i]
+                                     (merge i (sort-position idx start end target from)))
+                                   (subvec range-tokens offset (+ offset (- to from) 1))))))
+             hits windows slots)
+       {:hits (count hits)
+        :ranges (count ranges)
+        :requests (* (count ranges) (+ (count attrs) (count (filter #(= :struc (:attr-type %)) attrs))))
+        :round-trips (* (count batches) trips-per-fetch)
+        :saved-round-trips (* (- (count hits) (count batches)) trips-per-fetch)}))))
+
+(defn cpos-region-handler
+  "Like `cpos-batch-handler`, but the context of each hit is the region
+  of the structural attribute `struc-name` enclosing it (e.g. the
+  sentence, \"s\") instead of a fixed number of tokens. The bounds of
+  all hits are resolved with one round trip; hits sharing a region share
+  its tokens, which are fetched once, :batch regions (default 64) per
+  round trip (two with structural attributes).
+
+  Returns a vector whose metadata reports :hits, :regions and
+  :round-trips."
+  ([cqi-client corpus cpos struc-name attrs]
+   (cpos-region-handler cqi-client corpus cpos struc-name "utf8" attrs {}))
+  ([cqi-client corpus cpos struc-name charset attrs]
+   (cpos-region-handler cqi-client corpus cpos struc-name charset attrs {}))
+  ([cqi-client ^String corpus cpos ^String struc-name charset attrs {:keys [batch] :or {batch 64}}]
+   (let [{client :client} cqi-client
+         [starts ends targets] (map int-array cpos)
+         [lbounds rbounds] (.regionBounds ^CqiClient client corpus struc-name starts ends)
+         windows (mapv vector lbounds rbounds)
+         regions (vec (sort (distinct windows)))
+         region-index (zipmap regions (range))
+         batches (partition-all batch regions)
+         tokens (into [] (mapcat #(fetch-ranges client corpus % (Charset/forName charset) attrs))
+                      batches)
+         trips-per-fetch (if (some #(= :struc (:attr-type %)) attrs) 2 1)]
+     (with-meta
+       (mapv (fn [start end target [from :as window]]
+               (vec (map-indexed (fn [idx i]
+                                   (merge i (sort-position idx start end target from)))
+                                 (nth tokens (region-index window)))))
+             starts ends targets windows)
+       {:hits (count windows)
+        :regions (count regions)
+        :round-trips (if (seq windows) (inc (* (count batches) trips-per-fetch)) 0)}))))
+
+(defn cpos-columnar-handler
+  "Contexts of the hits in `cpos` as a KwicBlock: the positions, one
+  column per attribute and the match & target flags of all tokens in
+  flat arrays, instead of one map per token. Windows are merged and
+  fetched as in `cpos-batch-handler` (same options). Use `kwic-hits` to
+  get the familiar per-hit token sequences out of it."
+  ([cqi-client corpus cpos context charset attrs]
+   (cpos-columnar-handler cqi-client corpus cpos context charset attrs {}))
+  ([cqi-client corpus cpos context charset attrs {:keys [gap batch] :or {gap 8 batch 64}}]
+   (let [{client :client} cqi-client
+         [starts ends targets] (map int-array cpos)
+         windows (mapv (fn [start end] [(max 0 (- start context)) (+ end context)]) starts ends)
+         {ranges :ranges} (merge-windows windows gap)
+         values (into [] (mapcat #(fetch-range-values client corpus % (Charset/forName charset) attrs))
+                      (partition-all batch ranges))]
+     (KwicBlock/build (into-array String (map :attr-name attrs))
+                      starts ends targets (int context)
+                      (int-array (map first ranges))
+                      (into-array (Class/forName "[[Ljava.lang.String;")
+                                  (map #(into-array (Class/forName "[Ljava.lang.String;") %) values))))))
+
+(defn kwic-hits
+  "Hits of a KwicBlock as a vector of lazy token sequences, shaped like
+  the output of `cpos-seq-handler`. Tokens are read-only map views over
+  the columns of the block, so nothing is copied until a token is
+  modified."
+  [^KwicBlock block]
+  (mapv (fn [h]
+          (map #(.token block %) (range (.hitOffset block h) (.hitOffset block (inc h)))))
+        (range (.getHitCount block))))
+
+(defn- reduce-chunk
+  "Reduce the items of one chunk, returning the reduced wrapper as is
+  so that the caller can stop."
+  [f acc items]
+  (reduce (fn [acc item]
+            (let [acc (f acc item)]
+              (if (reduced? acc) (reduced acc) acc)))
+          acc items))
+
+(def ^:private source-subcorpus-prefix "Source")
+
+(def ^:private source-subcorpus-count (atom 0))
+
+(defn concordance-source
+  "A reducible source of the hits of `corpus` (see `cpos-seq-handler` for
+  their shape, or [start end target] triples if there are no :attrs).
+  Nothing is fetched until it is reduced; hits and contexts are then
+  pulled :chunk hits at a time (default 1000), so memory stays bounded
+  by the chunk size whatever the size of the result. Reduction stops
+  fetching as soon as the reducing function returns a `reduced` value.
+
+  With :query the source runs the query itself on every reduction, into
+  a subcorpus of its own (Source<n>) that is dropped afterwards, so the
+  last query of the client is left alone; otherwise it reads the last
+  query and drops it only if :drop is true.
+
+  With :within (e.g. \"s\") the context of each hit is the enclosing
+  region of that structural attribute instead (see `cpos-region-handler`).
+
+  Options: :query, :drop, :from, :to, :context (default 0), :within,
+  :charset (default \"utf8\"), :attrs, :chunk and :gap (see
+  `cpos-batch-handler`)."
+  [cqi-client ^String corpus {:keys [query from to context within charset attrs chunk gap]
+                              drop? :drop
+                              :or {from 0 to Integer/MAX_VALUE context 0 charset "utf8"
+                                   chunk 1000 gap 8}}]
+  (let [{client :client} cqi-client
+        client ^CqiClient client
+        run (fn [f init]
+              (let [sub (if query
+                          (str source-subcorpus-prefix (swap! source-subcorpus-count inc))
+                          (subcorpus cqi-client))
+                    cqi-client (assoc cqi-client :subcorpus sub)]
+                (when query
+                  (query! cqi-client corpus query charset))
+                (try
+                  (let [to (min to (.subCorpusSize client corpus sub))]
+                    (loop [acc init start from]
+                      (if (>= start to)
+                        acc
+                        (let [end (min to (+ start chunk))
+                              dump ^"[[I" (make-array Integer/TYPE 3 (- end start))
+                              _ (.dumpSubCorpusBulk client corpus sub (int start) (int end) dump 0)
+                              [starts ends targets] dump
+                              items (cond
+                                      within
+                                      (cpos-region-handler cqi-client corpus [starts ends targets]
+                                                           within charset attrs)
+                                      (seq attrs)
+                                      (kwic-hits (cpos-columnar-handler
+                                                  cqi-client corpus [starts ends targets]
+                                                  context charset attrs {:gap gap}))
+                                      :else
+                                      (map vector starts ends targets))
+                              acc (reduce-chunk f acc items)]
+                          (if (reduced? acc)
+                            @acc
+                            (recur acc end))))))
+                  (finally
+                    (when (or query drop?)
+                      (.dropQuery client corpus sub))))))]
+    (reify
+      clojure.lang.IReduceInit
+      (reduce [_ f init]
+        (run f init))
+      clojure.lang.IReduce
+      (reduce [_ f]
+        (let [none (Object.)
+              acc (run (fn [acc item] (if (identical? acc none) item (f acc item))) none)]
+          (if (identical? acc none) (f) acc))))))
+
 (defmacro with-cqi-client [client-bindings & body]
   (assert (vector? client-bindings) "binding has vector form")
   (assert (= 2 (count client-bindings)) "admits only one binding")
@@ -131,6 +658,82 @@
          (throw (ex-info (:message (bean e#)) {})))
        (finally (disconnect! ~(client-bindings 0))))))
 
+;;; Connection pool
+
+(defn pool-options
+  "Build CqiPoolOptions out of a map with any of the keys :min-size,
+  :max-size, :max-idle-time, :eviction-interval, :borrow-timeout and
+  :validate-after-idle (all times in ms). Socket settings go under
+  :socket (see `socket-options`); a CqiStats under :stats is recorded
+  into by every connection (see `make-stats`)."
+  ^CqiPoolOptions
+  [{:keys [min-size max-size max-idle-time eviction-interval
+           borrow-timeout validate-after-idle socket stats]}]
+  (cond-> (CqiPoolOptions.)
+    min-size (.setMinSize (int min-size))
+    max-size (.setMaxSize (int max-size))
+    max-idle-time (.setMaxIdleTime (long max-idle-time))
+    eviction-interval (.setEvictionInterval (long eviction-interval))
+    borrow-timeout (.setBorrowTimeout (long borrow-timeout))
+    validate-after-idle (.setValidateAfterIdle (long validate-after-idle))
+    socket (.setSocketOptions (socket-options socket))
+    stats (.setStats ^CqiStats stats)))
+
+(defn make-cqi-pool
+  "Open a pool of authenticated connections for the given spec
+  (as returned by `read-init`). Pool settings are taken from :pool
+  in the spec (see `pool-options`); socket ones from :socket.
+  The minimum number of connections is opened right away."
+  ^CqiClientPool
+  [{host :host port :port user :user pass :pass opts :pool socket :socket}]
+  (CqiClientPool. ^String host (int port)
+                  ^String user ^String pass
+                  (pool-options (cond-> (or opts {}) socket (assoc :socket socket)))))
+
+(defn borrow!
+  "Borrow a connection from the pool as a CQiClient record."
+  ([^CqiClientPool pool]
+   (map->CQiClient {:client (.borrow pool)}))
+  ([^CqiClientPool pool timeout]
+   (map->CQiClient {:client (.borrow pool (long timeout))})))
+
+(defn return!
+  "Give a borrowed connection back to the pool."
+  [^CqiClientPool pool cqi-client]
+  (let [{client :client} cqi-client]
+    (.release pool client)))
+
+(defn invalidate!
+  "Give back a borrowed connection that must not be reused."
+  [^CqiClientPool pool cqi-client]
+  (let [{client :client} cqi-client]
+    (.invalidate pool client)))
+
+(defn close-pool! [^CqiClientPool pool]
+  (.close pool))
+
+(defn- realize
+  "Force lazy results before the connection they read from is reused."
+  [result]
+  (if (seq? result) (doall result) result))
+
+(defmacro with-pooled-client
+  "Like `with-cqi-client` but borrows the connection from `pool` and
+  gives it back afterwards instead of disconnecting, with the subcorpora
+  it created dropped. Lazy results are realized before that. If `body`
+  throws the connection is invalidated, since its state can't be trusted
+  anymore."
+  [[client-binding pool] & body]
+  `(let [pool# ~pool
+         ~client-binding (borrow! pool#)
+         result# (try
+                   (#'realize (do ~@body))
+                   (catch Throwable e#
+                     (invalidate! pool# ~client-binding)
+                     (throw e#)))]
+     (return! pool# ~client-binding)
+     result#))
+
 (def pos-attr {:attr-type :pos :attr-name "pos"}) 
 (def word-attr {:attr-type :pos :attr-name "word"})
 (def lemma-attr {:attr-type :pos :attr-name "lemma"})
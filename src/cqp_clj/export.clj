@@ -0,0 +1,54 @@
+(ns cqp-clj.export
+  "Streaming export of concordances to TSV, CSV or columnar files, see
+  CqiExport. Hits are written a chunk at a time, so exports of any size
+  run in bounded memory, and an interrupted export resumes from its last
+  checkpoint when run again."
+  (:import [CqiExport] [CqiExport$Format] [CqiExport$Progress]
+           [CqiClient] [java.io File] [java.util.function Consumer])
+  (:require [cqp-clj.core :refer [query! subcorpus]]))
+
+(set! *warn-on-reflection* true)
+
+(def ^:private formats
+  {:tsv CqiExport$Format/TSV
+   :csv CqiExport$Format/CSV
+   :columnar CqiExport$Format/COLUMNAR})
+
+(defn progress->map [^CqiExport$Progress progress]
+  {:hits (.getHits progress)
+   :total-hits (.getTotalHits progress)
+   :resumed-at (.getResumedAt progress)
+   :tokens (.getTokens progress)
+   :bytes (.getBytes progress)
+   :elapsed-ms (/ (.getElapsed progress) 1e6)
+   :hits-per-second (.getHitsPerSecond progress)
+   :tokens-per-second (.getTokensPerSecond progress)
+   :complete (.isComplete progress)})
+
+(defn export!
+  "Write the hits of the last query on `corpus` with the values of :attrs
+  (attribute names, e.g. [\"word\" \"pos\"]) in :context positions around
+  them (default 5) to `target`: a file for :format :tsv (the default) and
+  :csv, a directory for :columnar (positional attributes only). With
+  :query the query is run first.
+
+  Hits are fetched :chunk at a time (default 1000) and progress is
+  checkpointed every :checkpoint-every chunks (default 10) in
+  TARGET.checkpoint; running an interrupted export again resumes it.
+  :on-progress is called with a progress map (see `progress->map`)
+  after every chunk. Returns the final progress map."
+  [cqi-client ^String corpus target
+   {:keys [attrs format context chunk checkpoint-every query charset on-progress]
+    :or {format :tsv context 5 chunk 1000 checkpoint-every 10 charset "utf8"}}]
+  (when query
+    (query! cqi-client corpus query charset))
+  (let [{client :client} cqi-client
+        export (cond-> (-> (CqiExport. corpus (subcorpus cqi-client) ^"[Ljava.lang.String;" (into-array String attrs))
+                           (.setFormat (formats format))
+                           (.setContext (int context))
+                           (.setChunkSize (int chunk))
+                           (.setCheckpointInterval (int checkpoint-every)))
+                 on-progress (.setListener (reify Consumer
+                                             (accept [_ progress]
+                                               (on-progress (progress->map progress))))))]
+    (progress->map (.run ^CqiExport export ^CqiClient client (File. (str target))))))
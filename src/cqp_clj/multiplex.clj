@@ -0,0 +1,65 @@
+(ns cqp-clj.multiplex
+  "Many logical sessions over a few shared connections. Each session
+  is a CQiClient record bound to one of the connections whose
+  :subcorpus lives in a namespace of its own (\"S12_Results\"), so the
+  helpers of cqp-clj.core can be used with it as with any client
+  without sessions overwriting each other's results."
+  (:import [CqiMultiplexer] [CqiMultiplexer$Session] [CqiClient])
+  (:require [cqp-clj.core :refer [map->CQiClient socket-options]]))
+
+(set! *warn-on-reflection* true)
+
+(defn make-multiplexer
+  "Open :connections (default 2) authenticated connections for the
+  given spec (as returned by `read-init`), socket settings taken from
+  :socket. Alternatively, multiplex over the given connected CQiClient
+  records."
+  ^CqiMultiplexer
+  [spec-or-clients]
+  (if (map? spec-or-clients)
+    (let [{:keys [host port user pass connections socket]} spec-or-clients]
+      (CqiMultiplexer/open ^String host (int port) ^String user ^String pass
+                           (int (or connections 2)) (socket-options (or socket {}))))
+    (CqiMultiplexer. ^"[LCqiClient;" (into-array (Class/forName "CqiClient") (map :client spec-or-clients)))))
+
+(defn open-session!
+  "Open a session on the least busy connection. The session is a
+  CQiClient record that queries into its own subcorpus."
+  [^CqiMultiplexer multiplexer]
+  (let [session (.openSession multiplexer)]
+    (map->CQiClient {:client (.getClient session)
+                     :subcorpus (.getSubcorpus session)
+                     :session session})))
+
+(defn with-subcorpus
+  "The session pointing at its subcorpus `subcorpus-name`, to keep
+  several results at once."
+  [session subcorpus-name]
+  (let [{s :session} session]
+    (assoc session :subcorpus (.subcorpus ^CqiMultiplexer$Session s subcorpus-name))))
+
+(defn close-session!
+  "Drop the subcorpora of the session and free its place."
+  [session]
+  (let [{s :session} session]
+    (.close ^CqiMultiplexer$Session s)))
+
+(defn session-counts
+  "Open sessions on each connection."
+  [^CqiMultiplexer multiplexer]
+  (vec (.getSessionCounts multiplexer)))
+
+(defn close-multiplexer!
+  "Disconnect all connections."
+  [^CqiMultiplexer multiplexer]
+  (.close multiplexer))
+
+(defmacro with-session
+  "Evaluate body with a session opened on `multiplexer`, closing it
+  afterwards."
+  [[session-binding multiplexer] & body]
+  `(let [~session-binding (open-session! ~multiplexer)]
+     (try
+       ~@body
+       (finally
+         (close-session! ~session-binding)))))
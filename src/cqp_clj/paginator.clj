@@ -24,19 +24,24 @@
   (prev-page [_ page-size])
   (nth-page [_ page-size n]))
 
-(defrecord Paginator [coll current]
+(defrecord Paginator [size current]
   Paginate
-  (length [this] (count coll))
+  (length [this] (size))
   (current [this] @current)
   (next-page [this page-size]
-    (let [[from to] (pager-next (count coll) page-size @current)]
+    (let [[from to] (pager-next (size) page-size @current)]
       [from (reset! current to)]))
   (prev-page [this page-size]
-    (let [[from to] (pager-prev (count coll) page-size @current)]
+    (let [[from to] (pager-prev (size) page-size @current)]
       [(reset! current from) to]))
   (nth-page [this page-size n]
     [n (reset! current (+ n page-size))]))
 
-(defn paginator [coll]
-  (Paginator. coll (atom 0)))
+(defn sized-paginator
+  "A paginator over something counted by calling `size`, e.g. a result
+  kept on the server."
+  [size]
+  (Paginator. size (atom 0)))
 
+(defn paginator [coll]
+  (sized-paginator #(count coll)))
@@ -0,0 +1,104 @@
+(ns cqp-clj.parallel
+  "Concordance extraction sharded over several server connections.
+  Subcorpora live in the connection that created them, so the query is
+  run once on every connection and each one extracts its own slice of
+  the hits."
+  (:import [CqiClient] [CqiClientException] [CqiClientPool])
+  (:require [cqp-clj.core :refer [query! query-size subcorpus cpos-range-bulk cpos-seq-handler
+                                  borrow! return! invalidate!]]))
+
+(set! *warn-on-reflection* true)
+
+(defn split-range
+  "Split the hit range [from, to) into at most `n` contiguous [from to)
+  ranges whose sizes differ by one at most."
+  [from to n]
+  (let [size (max 0 (- to from))
+        n (max 1 (min n size))
+        step (quot size n)
+        extra (rem size n)]
+    (if (zero? size)
+      []
+      (loop [i 0 start from acc []]
+        (if (= i n)
+          acc
+          (let [end (+ start step (if (< i extra) 1 0))]
+            (recur (inc i) end (conj acc [start end]))))))))
+
+(defn- drop-results!
+  "Drop the results of the last query on `corpus`, if `cqi-client` ran one."
+  [cqi-client ^String corpus]
+  (let [{client :client} cqi-client
+        sub (subcorpus cqi-client)]
+    (when (some #{(str corpus ":" sub)} (.getCreatedSubcorpora ^CqiClient client))
+      (.dropQuery ^CqiClient client corpus ^String sub))))
+
+(defn call-with-pooled-clients
+  "Call (f clients) with up to `n` connections borrowed from `pool`, never
+  more than the pool holds. Only the first one is waited for; the others
+  are taken if available right away, so that concurrent callers can't
+  end up waiting for each other, each holding part of the pool.
+  Afterwards the results of the last query on `corpus` are dropped and
+  the connections given back, or invalidated if anything failed."
+  [^CqiClientPool pool n corpus f]
+  (let [n (max 1 (min n (.getMaxSize pool)))
+        clients (volatile! [])
+        failed (volatile! false)]
+    (try
+      (vswap! clients conj (borrow! pool))
+      (loop []
+        (when (< (count @clients) n)
+          (when-let [client (try (borrow! pool 0) (catch CqiClientException _ nil))]
+            (vswap! clients conj client)
+            (recur))))
+      (f @clients)
+      (catch Throwable e
+        (vreset! failed true)
+        (throw e))
+      (finally
+        (doseq [client @clients]
+          (if (or @failed
+                  (try (drop-results! client corpus) false
+                       (catch CqiClientException _ true)))
+            (invalidate! pool client)
+            (return! pool client)))))))
+
+(defn- extract-shard
+  [cqi-client corpus [from to] context charset attrs]
+  (let [cpos (cpos-range-bulk cqi-client corpus from to)]
+    (doall (cpos-seq-handler cqi-client corpus cpos context charset attrs))))
+
+(defn parallel-concordance
+  "Run `query` on `corpus` and extract the contexts of the hits [from, to)
+  (all of them by default) using up to :parallelism connections borrowed
+  from `pool` (see `call-with-pooled-clients`). Each connection runs the
+  query, then extracts one contiguous shard of the hits on its own
+  thread. Shards are concatenated in hit order, so the result equals
+  that of `cpos-seq-handler` over the whole range. With a single
+  connection everything runs on the calling thread.
+
+  Options: :from, :to, :context (tokens around each hit, default 0),
+  :charset (default \"utf8\"), :attrs and :parallelism (default 4)."
+  [^CqiClientPool pool corpus query
+   {:keys [from to context charset attrs parallelism]
+    :or {from 0 to Integer/MAX_VALUE context 0 charset "utf8" parallelism 4}}]
+  (call-with-pooled-clients
+   pool parallelism corpus
+   (fn [clients]
+     (let [first-client (first clients)
+           _ (query! first-client corpus query charset)
+           to (min to (query-size first-client corpus))
+           shards (split-range from to (count clients))
+           run (fn [client shard]
+                 (when-not (identical? client first-client)
+                   (query! client corpus query charset))
+                 (extract-shard client corpus shard context charset attrs))]
+       (if (<= (count shards) 1)
+         (vec (mapcat #(run first-client %) shards))
+         (let [tasks (mapv (fn [client shard] (future (run client shard)))
+                           clients shards)
+               ;; wait for every shard before the connections go back
+               results (mapv #(try {:hits @%} (catch Exception e {:error e})) tasks)]
+           (when-let [^Throwable e (some :error results)]
+             (throw (or (.getCause e) e)))
+           (into [] (mapcat :hits) results)))))))
@@ -0,0 +1,78 @@
+(ns cqp-clj.server
+  "In-process CQi server over in-memory corpora, for testing without a
+  cqpserver and for embedding small corpora in an application. Clients
+  connect over loopback TCP or, with `local-client`, through in-memory
+  pipes. Queries support the subset of CQP described in CqpQuery."
+  (:import [CqiServer] [CqiCorpus] [CqiCorpus$Builder] [CqiClient]
+           [java.io File] [java.nio.charset Charset])
+  (:require [cqp-clj.core :refer [map->CQiClient connect!]]))
+
+(set! *warn-on-reflection* true)
+
+(defn make-corpus
+  "Build a corpus called `corpus-name` out of a map with
+    :tokens     seq of maps from positional attribute (keyword) to value,
+                all with the keys of the first one (:word among them)
+    :structs    map from structural attribute (keyword) to a seq of
+                [start end] or [start end value] regions, inclusive,
+                ascending and disjoint
+    :full-name  defaults to `corpus-name`
+    :charset    defaults to \"utf8\""
+  ^CqiCorpus
+  [^String corpus-name {:keys [tokens structs full-name charset]}]
+  (let [builder (cond-> (CqiCorpus/builder corpus-name)
+                  full-name (.setFullName ^String full-name)
+                  charset (.setCharset (Charset/forName charset)))]
+    (doseq [attr (keys (first tokens))]
+      (.addPositional ^CqiCorpus$Builder builder (name attr)
+                      ^"[Ljava.lang.String;" (into-array String (map #(str (get % attr)) tokens))))
+    (doseq [[attr regions] structs]
+      (.addStructural ^CqiCorpus$Builder builder (name attr)
+                      ^"[[I" (into-array (map #(int-array (take 2 %)) regions))
+                      ^"[Ljava.lang.String;" (when (some #(> (count %) 2) regions)
+                                               (into-array String (map #(str (nth % 2 "")) regions)))))
+    (.build ^CqiCorpus$Builder builder)))
+
+(defn save-corpus!
+  "Write `corpus` to the directory `dir` (see `open-corpus`)."
+  [^CqiCorpus corpus dir]
+  (.save corpus (File. (str dir))))
+
+(defn open-corpus
+  "Open a corpus written by `save-corpus!`; its columns are memory
+  mapped rather than read."
+  ^CqiCorpus
+  [dir]
+  (CqiCorpus/open (File. (str dir))))
+
+(defn start-server
+  "Start a server over `corpora` listening on loopback :port (default
+  any free one, see `server-port`). With :user and :pass only those
+  credentials are accepted. Without :port, nothing is listened on
+  unless :listen is true; `local-client` works either way."
+  (^CqiServer [corpora]
+   (start-server corpora {}))
+  (^CqiServer [corpora {:keys [port user pass listen]}]
+   (let [^CqiServer server (reduce (fn [^CqiServer server corpus] (.addCorpus server corpus))
+                                   (CqiServer. ^"[LCqiCorpus;" (make-array (Class/forName "CqiCorpus") 0))
+                                   corpora)]
+     (when user
+       (.setCredentials server user pass))
+     (when (or port listen)
+       (.start server (int (or port 0))))
+     server)))
+
+(defn server-port [^CqiServer server]
+  (.getPort server))
+
+(defn stop-server! [^CqiServer server]
+  (.close server))
+
+(defn local-client
+  "A CQiClient record connected to `server` through in-memory pipes."
+  ([server]
+   (local-client server "user" "pass"))
+  ([^CqiServer server user pass]
+   (let [cqi-client (map->CQiClient {:client (.localClient server)})]
+     (connect! cqi-client user pass)
+     cqi-client)))
@@ -0,0 +1,66 @@
+(ns cqp-clj.session
+  "Cursor over a server-side query result (see CQPSession): hits and
+  their contexts are read in blocks, the next block being prefetched
+  while the current one is consumed."
+  (:import [CQPSession] [CQPSession$Hit] [CqiClient]
+           [java.nio.charset Charset])
+  (:require [cqp-clj.paginator :refer [sized-paginator]]))
+
+(set! *warn-on-reflection* true)
+
+(defn make-session
+  "Open a session on its own connection for the given spec (as returned
+  by `read-init`). Options: :attrs (as for `cpos-seq-handler`), :context
+  (default 0) and :block-size (hits read per round trip, default 100)."
+  (^CQPSession [spec] (make-session spec {}))
+  (^CQPSession [{host :host port :port user :user pass :pass}
+                {:keys [attrs context block-size] :or {context 0}}]
+   (let [names (fn [type] (into-array String (map :attr-name (filter #(= type (:attr-type %)) attrs))))
+         session (CQPSession. (int port) ^String host ^String user ^String pass)]
+     (when attrs
+       (.setAttributes session (names :pos) (names :struc)))
+     (when block-size
+       (.setBlockSize session (int block-size)))
+     (.setContext session (int context)))))
+
+(defn query!
+  "Run `query` on `corpus` and move the cursor to its first hit."
+  ([session corpus query]
+   (query! session corpus query "utf8"))
+  ([^CQPSession session ^String corpus ^String query ^String charset]
+   (.query session corpus query (Charset/forName charset))))
+
+(defn size [^CQPSession session]
+  (.size session))
+
+(defn hit->tokens
+  "The tokens of the context of a hit, shaped like one item of
+  `cpos-seq-handler`."
+  [^CQPSession$Hit hit]
+  (map #(.token hit %) (range (.getTokenCount hit))))
+
+(defn next-hit!
+  "Tokens of the hit under the cursor, advancing it, or nil at the end."
+  [^CQPSession session]
+  (when (.hasNext session)
+    (hit->tokens (.next session))))
+
+(defn seek!
+  [^CQPSession session n]
+  (.seek session (int n)))
+
+(defn hits
+  "Tokens of the hits `from` .. `to` - 1."
+  [^CQPSession session from to]
+  (mapv hit->tokens (.page session (int from) (int (max 0 (- to from))))))
+
+(defn close! [^CQPSession session]
+  (.close session))
+
+(defn session-paginator
+  "A paginator over the result of the last query of `session`, counting
+  hits on the server instead of a local collection. Pages are given as
+  [from to] like those of `cqp-clj.paginator/paginator`; `hits` reads
+  them."
+  [^CQPSession session]
+  (sized-paginator #(.size session)))
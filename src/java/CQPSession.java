@@ -1,31 +1,487 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+
+import java.io.Closeable;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cursor over the result of one query. The session owns its subcorpus, and
+ * its connection unless it was given one; hit boundaries and context windows
+ * are read in blocks of blockSize hits, each costing one pipelined round trip
+ * (two with structural attributes). While the caller consumes a block the next one is fetched in
+ * the background, so that sequential reading rarely waits for the server.
+ */
+public class CQPSession implements Closeable {
 
-public class CQPSession {
-    private static final int BUFFER_SIZE = 10;
+    private static final int BUFFER_SIZE = 100;
     private static final int MATCH_START = 0;
     private static final int MATCH_END = 1;
     private static final int TARGET = 2;
     private static final int CONTEXT_START = 3;
     private static final int CONTEXT_END = 4;
+    /**
+     * Blocks kept around the one being read.
+     */
+    private static final int MAX_BLOCKS = 3;
+    /**
+     * Seconds close() waits for the block being read.
+     */
+    private static final int CLOSE_TIMEOUT = 10;
+    private static final String NO_QUERY = "No query has been run in this session";
     private final CqiClient client;
-    private static int port;    
-    private static String host;
-    private static String user;
-    private static String pass;
+    private final boolean ownsClient;
+    private final int port;
+    private final String host;
+    private final ExecutorService prefetcher;
+    private final Map<Integer, Future<Block>> blocks = new HashMap<Integer, Future<Block>>();
     private String corpus;
     private String subcorpus;
     private Charset charset;
-    
-    CQPSession(int port, String host, String user, String pass) {
-	this.port = port;
-	this.host = host;
-	this.user = user;
-	this.pass = pass;
-	try {
-	    this.client = new CqiClient(host, port);
-	    client.connect(user, pass);
-	} catch (CqiClientException e) {
-	    throw new IllegalArgumentException("Could not connet to server");
-	}
+    private String[] positionalAttributes = {"word"};
+    private String[] structuralAttributes = {};
+    private int context = 0;
+    private int blockSize = BUFFER_SIZE;
+    private int size = -1;
+    private int position = 0;
+
+    /**
+     * The hits of one block: boundaries indexed by MATCH_START .. CONTEXT_END
+     * and the tokens of their context windows.
+     */
+    private static final class Block {
+        private final int first;
+        private final int[][] bounds;
+        private final KwicBlock tokens;
+
+        private Block(int first, int[][] bounds, KwicBlock tokens) {
+            this.first = first;
+            this.bounds = bounds;
+            this.tokens = tokens;
+        }
+    }
+
+    /**
+     * One hit of the result and the tokens of its context window.
+     */
+    public static final class Hit {
+        private final int index;
+        private final int[] bounds;
+        private final KwicBlock block;
+        private final int blockHit;
+
+        private Hit(int index, Block block, int blockHit) {
+            this.index = index;
+            this.bounds = new int[CONTEXT_END + 1];
+            for (int i = 0; i < bounds.length; i++) {
+                bounds[i] = block.bounds[i][blockHit];
+            }
+            this.block = block.tokens;
+            this.blockHit = blockHit;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public int getMatchStart() {
+            return bounds[MATCH_START];
+        }
+
+        public int getMatchEnd() {
+            return bounds[MATCH_END];
+        }
+
+        public int getTarget() {
+            return bounds[TARGET];
+        }
+
+        public int getContextStart() {
+            return bounds[CONTEXT_START];
+        }
+
+        public int getContextEnd() {
+            return bounds[CONTEXT_END];
+        }
+
+        public int getTokenCount() {
+            return block.hitOffset(blockHit + 1) - block.hitOffset(blockHit);
+        }
+
+        /**
+         * @return a map view of token <i> of the context window, see KwicBlock
+         */
+        public KwicBlock.Token token(int i) {
+            return block.token(block.hitOffset(blockHit) + i);
+        }
+    }
+
+    /**
+     * Opens a session on a new connection.
+     *
+     * @throws IllegalArgumentException if the server can't be reached or
+     * refuses the credentials
+     */
+    public CQPSession(int port, String host, String user, String pass) {
+        this(connect(port, host, user, pass), host, port);
+    }
+
+    /**
+     * Opens a session on a connected client, which must not be used
+     * elsewhere while the session is open. The client stays with the caller:
+     * close() drops the subcorpus of the session but leaves it connected.
+     */
+    public CQPSession(CqiClient client) {
+        this(client, null, -1, false);
+    }
+
+    private CQPSession(CqiClient client, String host, int port) {
+        this(client, host, port, true);
+    }
+
+    private CQPSession(CqiClient client, String host, int port, boolean ownsClient) {
+        this.client = client;
+        this.host = host;
+        this.port = port;
+        this.ownsClient = ownsClient;
+        this.prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "cqp-session-prefetch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static CqiClient connect(int port, String host, String user, String pass) {
+        CqiClient client = null;
+        try {
+            client = new CqiClient(host, port);
+            if (!client.connect(user, pass)) {
+                client.close();
+                throw new IllegalArgumentException("Server did not accept the credentials");
+            }
+            return client;
+        } catch (CqiClientException e) {
+            if (client != null) {
+                client.close();
+            }
+            throw new IllegalArgumentException("Could not connect to server", e);
+        }
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Attributes read for the context windows. Tokens carry the positional
+     * ones first, then the structural ones. Applies to blocks read from now
+     * on.
+     */
+    public synchronized CQPSession setAttributes(String[] positional, String[] structural) {
+        this.positionalAttributes = positional.clone();
+        this.structuralAttributes = structural.clone();
+        discardBlocks();
+        return this;
+    }
+
+    /**
+     * Tokens read on each side of a match.
+     */
+    public synchronized CQPSession setContext(int context) {
+        this.context = context;
+        discardBlocks();
+        return this;
+    }
+
+    /**
+     * Hits per block.
+     */
+    public synchronized CQPSession setBlockSize(int blockSize) {
+        this.blockSize = Math.max(1, blockSize);
+        discardBlocks();
+        return this;
+    }
+
+    /**
+     * Runs <query> into <subcorpus> and moves the cursor to its first hit.
+     */
+    public synchronized void query(String corpus, String subcorpus, String query, Charset charset)
+            throws CqiClientException {
+        discardBlocks();
+        client.query(corpus, subcorpus, query, charset);
+        this.corpus = corpus;
+        this.subcorpus = subcorpus;
+        this.charset = charset;
+        this.size = client.subCorpusSize(corpus, subcorpus);
+        this.position = 0;
+        prefetch(0);
+    }
+
+    public synchronized void query(String corpus, String query, Charset charset)
+            throws CqiClientException {
+        query(corpus, CqiClient.DEFAULT_SUBCORPUS_NAME, query, charset);
+    }
+
+    /**
+     * @return number of hits of the current query
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return index of the hit next() will return
+     */
+    public synchronized int position() {
+        return position;
+    }
+
+    public synchronized boolean hasNext() {
+        return position < size;
+    }
+
+    /**
+     * Returns the hit under the cursor and advances it.
+     *
+     * @throws IndexOutOfBoundsException past the last hit
+     */
+    public synchronized Hit next() throws CqiClientException {
+        Hit hit = hit(position);
+        position++;
+        return hit;
+    }
+
+    /**
+     * Moves the cursor to hit <index> and starts reading its block.
+     */
+    public synchronized void seek(int index) {
+        checkQuery();
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Hit " + index + " of " + size);
+        }
+        position = index;
+        if (index < size) {
+            prefetch(index / blockSize);
+        }
+    }
+
+    /**
+     * Returns <count> hits (fewer at the end) from <first> on and moves the
+     * cursor after them.
+     */
+    public synchronized List<Hit> page(int first, int count) throws CqiClientException {
+        seek(first);
+        List<Hit> hits = new ArrayList<Hit>(count);
+        while (hits.size() < count && hasNext()) {
+            hits.add(next());
+        }
+        return Collections.unmodifiableList(hits);
+    }
+
+    /**
+     * Returns page <n> (counting from 0), pages being as long as blocks, so
+     * that a page costs a single block read.
+     */
+    public synchronized List<Hit> page(int n) throws CqiClientException {
+        return page(n * blockSize, blockSize);
+    }
+
+    /**
+     * @return hit <index>, reading its block if needed
+     */
+    public synchronized Hit hit(int index) throws CqiClientException {
+        checkQuery();
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Hit " + index + " of " + size);
+        }
+        int number = index / blockSize;
+        Block block = block(number);
+        if ((number + 1) * blockSize < size) {
+            prefetch(number + 1);
+        }
+        return new Hit(index, block, index - block.first);
+    }
+
+    private synchronized Block block(int number) throws CqiClientException {
+        Future<Block> future = prefetch(number);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CqiClientException("Interrupted while reading hits", e);
+        } catch (ExecutionException e) {
+            blocks.remove(number);
+            Throwable cause = e.getCause();
+            if (cause instanceof CqiClientException) {
+                throw (CqiClientException) cause;
+            }
+            throw new CqiClientException("Error reading hits", cause);
+        }
+    }
+
+    /**
+     * Starts reading block <number> in the background unless it is already
+     * there, dropping the blocks farthest from it.
+     */
+    private synchronized Future<Block> prefetch(final int number) {
+        Future<Block> future = blocks.get(number);
+        if (future == null) {
+            final String corpus = this.corpus;
+            final String subcorpus = this.subcorpus;
+            final Charset charset = this.charset;
+            final String[] positional = this.positionalAttributes;
+            final String[] structural = this.structuralAttributes;
+            final int context = this.context;
+            final int first = number * blockSize;
+            final int last = Math.min(first + blockSize, size);
+            future = prefetcher.submit(new Callable<Block>() {
+                public Block call() throws CqiClientException {
+                    return readBlock(corpus, subcorpus, charset, positional, structural,
+                            context, first, last);
+                }
+            });
+            blocks.put(number, future);
+            while (blocks.size() > MAX_BLOCKS) {
+                int farthest = number;
+                for (int other : blocks.keySet()) {
+                    if (Math.abs(other - number) > Math.abs(farthest - number)) {
+                        farthest = other;
+                    }
+                }
+                blocks.remove(farthest).cancel(false);
+            }
+        }
+        return future;
+    }
+
+    private synchronized void discardBlocks() {
+        for (Future<Block> future : blocks.values()) {
+            future.cancel(false);
+        }
+        blocks.clear();
+    }
+
+    private void checkQuery() {
+        if (size < 0) {
+            throw new IllegalStateException(NO_QUERY);
+        }
+    }
+
+    /**
+     * Reads the hits <first> .. <last> - 1 and the tokens of their windows.
+     * Windows are merged into disjoint ranges and the requests for all ranges
+     * and attributes are pipelined.
+     */
+    private Block readBlock(String corpus, String subcorpus, Charset charset, String[] positional,
+            String[] structural, int context, int first, int last) throws CqiClientException {
+        int hits = last - first;
+        int[][] bounds = new int[CONTEXT_END + 1][hits];
+        client.dumpSubCorpusBulk(corpus, subcorpus, first, last, bounds, 0);
+        for (int h = 0; h < hits; h++) {
+            bounds[CONTEXT_START][h] = Math.max(0, bounds[MATCH_START][h] - context);
+            bounds[CONTEXT_END][h] = bounds[MATCH_END][h] + context;
+        }
+        int[][] ranges = KwicBlock.mergeWindows(bounds[CONTEXT_START], bounds[CONTEXT_END], 0);
+        int attributes = positional.length + structural.length;
+        List<List<CqiPipeline.Reply<String[]>>> replies = new ArrayList<List<CqiPipeline.Reply<String[]>>>();
+        List<List<CqiPipeline.Reply<int[]>>> strucs = new ArrayList<List<CqiPipeline.Reply<int[]>>>();
+        CqiPipeline pipeline = client.pipeline();
+        for (int[] range : ranges) {
+            List<CqiPipeline.Reply<String[]>> values = new ArrayList<CqiPipeline.Reply<String[]>>();
+            for (String attribute : positional) {
+                values.add(pipeline.cpos2Str(corpus + "." + attribute, range[0], range[1], charset));
+            }
+            List<CqiPipeline.Reply<int[]>> ids = new ArrayList<CqiPipeline.Reply<int[]>>();
+            for (String attribute : structural) {
+                ids.add(pipeline.cpos2Struc(corpus + "." + attribute, range[0], range[1]));
+            }
+            replies.add(values);
+            strucs.add(ids);
+        }
+        pipeline.sync();
+        if (structural.length > 0) {
+            for (int r = 0; r < ranges.length; r++) {
+                for (int a = 0; a < structural.length; a++) {
+                    replies.get(r).add(pipeline.struc2Str(corpus + "." + structural[a],
+                            strucs.get(r).get(a).get(), charset));
+                }
+            }
+            pipeline.sync();
+        }
+        int[] rangeStart = new int[ranges.length];
+        String[][][] rangeValues = new String[ranges.length][attributes][];
+        for (int r = 0; r < ranges.length; r++) {
+            rangeStart[r] = ranges[r][0];
+            for (int a = 0; a < attributes; a++) {
+                rangeValues[r][a] = replies.get(r).get(a).get();
+            }
+        }
+        String[] names = Arrays.copyOf(positional, attributes);
+        System.arraycopy(structural, 0, names, positional.length, structural.length);
+        KwicBlock tokens = KwicBlock.build(names, bounds[MATCH_START], bounds[MATCH_END],
+                bounds[TARGET], context, rangeStart, rangeValues);
+        return new Block(first, bounds, tokens);
+    }
+
+    /**
+     * Waits for the block being read, if any, drops the subcorpus of the
+     * session and, unless the client was handed to the constructor,
+     * disconnects.
+     */
+    public synchronized void close() {
+        discardBlocks();
+        prefetcher.shutdown();
+        try {
+            if (!prefetcher.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS)) {
+                prefetcher.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            prefetcher.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (size >= 0) {
+                client.dropQuery(corpus, subcorpus);
+            }
+            if (ownsClient) {
+                client.disconnect();
+            }
+        } catch (CqiClientException e) {
+            // the subcorpus goes with the connection anyway
+        } finally {
+            if (ownsClient) {
+                client.close();
+            }
+        }
     }
 }
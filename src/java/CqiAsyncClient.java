@@ -0,0 +1,282 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+
+import java.io.Closeable;
+import java.nio.charset.Charset;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Asynchronous front end for one CQi connection, thread per connection: calls
+ * are queued and served in order by a daemon thread that owns a blocking
+ * CqiClient, and callers get a CompletableFuture immediately instead of
+ * waiting for the round trip.
+ *
+ * This spares the callers from blocking, not threads: every connection keeps
+ * its own thread parked on its socket, so K connections cost K threads.
+ * Queued calls are served one after the other, each with its own round
+ * trips; a call running several requests through a CqiPipeline sends them
+ * in one.
+ */
+public class CqiAsyncClient implements Closeable {
+
+    private static final String CLIENT_CLOSED = "Async client is closed";
+    private static final AtomicInteger LOOP_COUNT = new AtomicInteger();
+
+    /**
+     * A request run by the connection thread against the underlying connection.
+     */
+    public interface Call<T> {
+        T call(CqiClient client) throws CqiClientException;
+    }
+
+    private static final class Task<T> {
+        private final Call<T> call;
+        private final CompletableFuture<T> future = new CompletableFuture<T>();
+
+        private Task(Call<T> call) {
+            this.call = call;
+        }
+
+        private void run(CqiClient client) {
+            if (future.isDone()) {
+                // cancelled by the caller before its turn
+                return;
+            }
+            try {
+                future.complete(call.call(client));
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }
+    }
+
+    private static final Task<Void> POISON = new Task<Void>(null);
+
+    private final CqiClient client;
+    private final BlockingQueue<Task<?>> queue = new LinkedBlockingQueue<Task<?>>();
+    private final Thread loop;
+    private volatile boolean closed = false;
+
+    /**
+     * Wraps an already connected client. The client must not be used directly
+     * afterwards, all calls have to go through this object.
+     *
+     * @param client a connected and authenticated client
+     */
+    public CqiAsyncClient(CqiClient client) {
+        this.client = client;
+        this.loop = new Thread(new Runnable() {
+            public void run() {
+                serve();
+            }
+        }, "cqi-io-" + LOOP_COUNT.incrementAndGet());
+        this.loop.setDaemon(true);
+        this.loop.start();
+    }
+
+    /**
+     * Opens and authenticates a new connection.
+     *
+     * @throws CqiClientException if the server cannot be reached or refuses
+     * the credentials
+     */
+    public CqiAsyncClient(String host, int port, String user, String password,
+            CqiSocketOptions options) throws CqiClientException {
+        this(connected(host, port, user, password, options));
+    }
+
+    private static CqiClient connected(String host, int port, String user, String password,
+            CqiSocketOptions options) throws CqiClientException {
+        CqiClient client = new CqiClient(host, port, options);
+        try {
+            client.connect(user, password);
+        } catch (CqiClientException e) {
+            client.close();
+            throw e;
+        }
+        return client;
+    }
+
+    private void serve() {
+        while (true) {
+            Task<?> task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (task == POISON) {
+                break;
+            }
+            task.run(client);
+        }
+        Task<?> task;
+        while ((task = queue.poll()) != null) {
+            if (task != POISON) {
+                task.future.completeExceptionally(new CqiClientException(CLIENT_CLOSED));
+            }
+        }
+    }
+
+    /**
+     * Queues an arbitrary call on the connection.
+     *
+     * @return a future completed by the connection thread with the result of
+     * the call, or exceptionally with its CqiClientException
+     */
+    public synchronized <T> CompletableFuture<T> submit(Call<T> call) {
+        Task<T> task = new Task<T>(call);
+        if (closed) {
+            task.future.completeExceptionally(new CqiClientException(CLIENT_CLOSED));
+            return task.future;
+        }
+        queue.add(task);
+        return task.future;
+    }
+
+    /**
+     * Queues a function of the connection, for callers that cannot implement
+     * Call (e.g. Clojure, which can't refer to classes in the default package
+     * from reify). Exceptions it throws complete the future exceptionally.
+     */
+    public <T> CompletableFuture<T> apply(final Function<CqiClient, T> function) {
+        return submit(new Call<T>() {
+            public T call(CqiClient client) {
+                return function.apply(client);
+            }
+        });
+    }
+
+    /**
+     * @return requests queued and not yet served
+     */
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    public CompletableFuture<Void> query(final String corpus, final String query, final String charset) {
+        return submit(new Call<Void>() {
+            public Void call(CqiClient client) throws CqiClientException {
+                client.query(corpus, query, charset);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> query(final String corpus, final String subcorpus,
+            final String query, final String charset) {
+        return submit(new Call<Void>() {
+            public Void call(CqiClient client) throws CqiClientException {
+                client.query(corpus, subcorpus, query, Charset.forName(charset));
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> querySize(final String corpus, final String subcorpus) {
+        return submit(new Call<Integer>() {
+            public Integer call(CqiClient client) {
+                return client.querySize(corpus, subcorpus);
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> querySize(String corpus) {
+        return querySize(corpus, CqiClient.DEFAULT_SUBCORPUS_NAME);
+    }
+
+    /**
+     * See CqiClient.dumpSubCorpusBulk.
+     */
+    public CompletableFuture<int[][]> dumpSubCorpus(final String corpus, final String subcorpus,
+            final int fromPosition, final int toPosition) {
+        return submit(new Call<int[][]>() {
+            public int[][] call(CqiClient client) throws CqiClientException {
+                return client.dumpSubCorpusBulk(corpus, subcorpus, fromPosition, toPosition);
+            }
+        });
+    }
+
+    public CompletableFuture<int[][]> dumpSubCorpus(String corpus, int fromPosition, int toPosition) {
+        return dumpSubCorpus(corpus, CqiClient.DEFAULT_SUBCORPUS_NAME, fromPosition, toPosition);
+    }
+
+    public CompletableFuture<String[]> dumpPositionalAttributes(final String corpus,
+            final String attribute, final int fromPosition, final int toPosition, final String charset) {
+        return submit(new Call<String[]>() {
+            public String[] call(CqiClient client) throws CqiClientException {
+                return client.dumpPositionalAttributes(corpus, attribute, fromPosition, toPosition, charset);
+            }
+        });
+    }
+
+    public CompletableFuture<String[]> dumpStructuralAttributes(final String corpus,
+            final String attribute, final int fromPosition, final int toPosition, final String charset) {
+        return submit(new Call<String[]>() {
+            public String[] call(CqiClient client) throws CqiClientException {
+                return client.dumpStructuralAttributes(corpus, attribute, fromPosition, toPosition, charset);
+            }
+        });
+    }
+
+    /**
+     * Disconnects once the requests already queued have been served. Requests
+     * submitted afterwards fail immediately.
+     *
+     * @return a future completed when the connection is closed
+     */
+    public CompletableFuture<Boolean> disconnect() {
+        CompletableFuture<Boolean> bye = submit(new Call<Boolean>() {
+            public Boolean call(CqiClient client) throws CqiClientException {
+                try {
+                    return client.disconnect();
+                } finally {
+                    client.close();
+                }
+            }
+        });
+        shutdown();
+        return bye;
+    }
+
+    /**
+     * Stops the connection thread after the queued requests and closes the socket
+     * without saying goodbye to the server.
+     */
+    public void close() {
+        submit(new Call<Void>() {
+            public Void call(CqiClient client) {
+                client.close();
+                return null;
+            }
+        });
+        shutdown();
+    }
+
+    private synchronized void shutdown() {
+        if (!closed) {
+            closed = true;
+            queue.add(POISON);
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+}
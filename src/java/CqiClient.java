@@ -18,52 +18,70 @@ import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 
 
 public class CqiClient {
 
-    private static final byte[] CQI_PADDING = {(byte) 0x00};
-    private static final byte[] CQI_STATUS_OK = {(byte) 0x01, (byte) 0x01};
-    private static final byte[] CQI_STATUS_CONNECT_OK = {(byte) 0x01, (byte) 0x02};
-    private static final byte[] CQI_STATUS_BYE_OK = {(byte) 0x01, (byte) 0x03};
-    private static final byte[] CQI_STATUS_PING_OK = {(byte) 0x01, (byte) 0x04};
-    private static final byte[] CQI_DATA_BYTE = {(byte) 0x03, (byte) 0x01};
-    private static final byte[] CQI_DATA_BOOL = {(byte) 0x03, (byte) 0x02};
-    private static final byte[] CQI_DATA_INT = {(byte) 0x03, (byte) 0x03};
-    private static final byte[] CQI_DATA_STRING = {(byte) 0x03, (byte) 0x04};
-    private static final byte[] CQI_DATA_BYTE_LIST = {(byte) 0x03, (byte) 0x05};
-    private static final byte[] CQI_DATA_BOOL_LIST = {(byte) 0x03, (byte) 0x06};
-    private static final byte[] CQI_DATA_INT_LIST = {(byte) 0x03, (byte) 0x07};
-    private static final byte[] CQI_DATA_STRING_LIST = {(byte) 0x03, (byte) 0x08};
-    private static final byte[] CQI_DATA_INT_INT = {(byte) 0x03, (byte) 0x09};
-    private static final byte[] CQI_DATA_INT_INT_INT_INT = {(byte) 0x03, (byte) 0x0A};
-    private static final byte[] CQI_DATA_INT_TABLE = {(byte) 0x03, (byte) 0x0B};
-    private static final byte[] CQI_CTRL_CONNECT = {(byte) 0x11, (byte) 0x01};
-    private static final byte[] CQI_CTRL_BYE = {(byte) 0x11, (byte) 0x02};
-    private static final byte[] CQI_CTRL_LAST_GENERAL_ERROR = {(byte) 0x11, (byte) 0x05};
-    private static final byte[] CQI_CTRL_LAST_CQP_ERROR = {(byte) 0x11, (byte) 0x06};
-    private static final byte[] CQI_CORPUS_LIST_CORPORA = {(byte) 0x13, (byte) 0x01};
-    private static final byte[] CQI_CORPUS_CHARSET = {(byte) 0x13, (byte) 0x03};
-    private static final byte[] CQI_CORPUS_POSITIONAL_ATTRIBUTES = {(byte) 0x13, (byte) 0x05};
-    private static final byte[] CQI_CORPUS_STRUCTURAL_ATTRIBUTES = {(byte) 0x13, (byte) 0x06};
-    private static final byte[] CQI_CORPUS_STRUCTURAL_ATTRIBUTE_HAS_VALUES = {(byte) 0x13, (byte) 0x07};
-    private static final byte[] CQI_CORPUS_FULL_NAME = {(byte) 0x13, (byte) 0x09};
-    private static final byte[] CQI_CL_CPOS2STR = {(byte) 0x14, (byte) 0x08};
-    private static final byte[] CQI_CL_CPOS2STRUC = {(byte) 0x14, (byte) 0x09};
-    private static final byte[] CQI_CL_CPOS2LBOUND = {(byte) 0x14, (byte) 0x20};
-    private static final byte[] CQI_CL_CPOS2RBOUND = {(byte) 0x14, (byte) 0x21};
-    private static final byte[] CQI_CL_STRUC2STR = {(byte) 0x14, (byte) 0x0B};
-    private static final byte[] CQI_CQP_QUERY = {(byte) 0x15, (byte) 0x01};
-    private static final byte[] CQI_CQP_LIST_SUBCORPORA = {(byte) 0x15, (byte) 0x02};    
-    private static final byte[] CQI_CQP_SUBCORPUS_SIZE = {(byte) 0x15, (byte) 0x03};
-    private static final byte[] CQI_CQP_DUMP_SUBCORPUS = {(byte) 0x15, (byte) 0x05};
-    private static final byte[] CQI_CQP_DROP_SUBCORPUS = {(byte) 0x15, (byte) 0x09};
-    private static final Charset DEFAULT_CHARSET = Charset.forName("ASCII");
+    static final byte[] CQI_PADDING = {(byte) 0x00};
+    static final byte[] CQI_STATUS_OK = {(byte) 0x01, (byte) 0x01};
+    static final byte[] CQI_STATUS_CONNECT_OK = {(byte) 0x01, (byte) 0x02};
+    static final byte[] CQI_STATUS_BYE_OK = {(byte) 0x01, (byte) 0x03};
+    static final byte[] CQI_STATUS_PING_OK = {(byte) 0x01, (byte) 0x04};
+    static final byte[] CQI_DATA_BYTE = {(byte) 0x03, (byte) 0x01};
+    static final byte[] CQI_DATA_BOOL = {(byte) 0x03, (byte) 0x02};
+    static final byte[] CQI_DATA_INT = {(byte) 0x03, (byte) 0x03};
+    static final byte[] CQI_DATA_STRING = {(byte) 0x03, (byte) 0x04};
+    static final byte[] CQI_DATA_BYTE_LIST = {(byte) 0x03, (byte) 0x05};
+    static final byte[] CQI_DATA_BOOL_LIST = {(byte) 0x03, (byte) 0x06};
+    static final byte[] CQI_DATA_INT_LIST = {(byte) 0x03, (byte) 0x07};
+    static final byte[] CQI_DATA_STRING_LIST = {(byte) 0x03, (byte) 0x08};
+    static final byte[] CQI_DATA_INT_INT = {(byte) 0x03, (byte) 0x09};
+    static final byte[] CQI_DATA_INT_INT_INT_INT = {(byte) 0x03, (byte) 0x0A};
+    static final byte[] CQI_DATA_INT_TABLE = {(byte) 0x03, (byte) 0x0B};
+    static final byte[] CQI_CTRL_CONNECT = {(byte) 0x11, (byte) 0x01};
+    static final byte[] CQI_CTRL_BYE = {(byte) 0x11, (byte) 0x02};
+    static final byte[] CQI_CTRL_PING = {(byte) 0x11, (byte) 0x04};
+    static final byte[] CQI_CTRL_LAST_GENERAL_ERROR = {(byte) 0x11, (byte) 0x05};
+    static final byte[] CQI_CTRL_LAST_CQP_ERROR = {(byte) 0x11, (byte) 0x06};
+    static final byte[] CQI_CORPUS_LIST_CORPORA = {(byte) 0x13, (byte) 0x01};
+    static final byte[] CQI_CORPUS_CHARSET = {(byte) 0x13, (byte) 0x03};
+    static final byte[] CQI_CORPUS_POSITIONAL_ATTRIBUTES = {(byte) 0x13, (byte) 0x05};
+    static final byte[] CQI_CORPUS_STRUCTURAL_ATTRIBUTES = {(byte) 0x13, (byte) 0x06};
+    static final byte[] CQI_CORPUS_STRUCTURAL_ATTRIBUTE_HAS_VALUES = {(byte) 0x13, (byte) 0x07};
+    static final byte[] CQI_CORPUS_FULL_NAME = {(byte) 0x13, (byte) 0x09};
+    static final byte[] CQI_CL_ATTRIBUTE_SIZE = {(byte) 0x14, (byte) 0x01};
+    static final byte[] CQI_CL_LEXICON_SIZE = {(byte) 0x14, (byte) 0x02};
+    static final byte[] CQI_CL_ID2STR = {(byte) 0x14, (byte) 0x05};
+    static final byte[] CQI_CL_ID2FREQ = {(byte) 0x14, (byte) 0x06};
+    static final byte[] CQI_CL_CPOS2ID = {(byte) 0x14, (byte) 0x07};
+    static final byte[] CQI_CL_CPOS2STR = {(byte) 0x14, (byte) 0x08};
+    static final byte[] CQI_CL_CPOS2STRUC = {(byte) 0x14, (byte) 0x09};
+    static final byte[] CQI_CL_CPOS2LBOUND = {(byte) 0x14, (byte) 0x20};
+    static final byte[] CQI_CL_CPOS2RBOUND = {(byte) 0x14, (byte) 0x21};
+    static final byte[] CQI_CL_STRUC2STR = {(byte) 0x14, (byte) 0x0B};
+    static final byte[] CQI_CQP_QUERY = {(byte) 0x15, (byte) 0x01};
+    static final byte[] CQI_CQP_LIST_SUBCORPORA = {(byte) 0x15, (byte) 0x02};    
+    static final byte[] CQI_CQP_SUBCORPUS_SIZE = {(byte) 0x15, (byte) 0x03};
+    static final byte[] CQI_CQP_DUMP_SUBCORPUS = {(byte) 0x15, (byte) 0x05};
+    static final byte[] CQI_CQP_DROP_SUBCORPUS = {(byte) 0x15, (byte) 0x09};
+    static final byte[] CQI_CQP_FDIST_1 = {(byte) 0x15, (byte) 0x10};
+    static final byte[] CQI_CQP_FDIST_2 = {(byte) 0x15, (byte) 0x11};
+    static final Charset DEFAULT_CHARSET = Charset.forName("ASCII");
     public static final byte CQI_CONST_FIELD_MATCH = (byte) 0x10;
     public static final byte CQI_CONST_FIELD_MATCHEND = (byte) 0x11;
     public static final byte CQI_CONST_FIELD_TARGET = (byte) 0x00;
+    public static final byte CQI_CONST_FIELD_KEYWORD = (byte) 0x09;
     /**
      * Error messages
      */
@@ -93,15 +111,103 @@ public class CqiClient {
     /**
      * Constants
      */
-    private static final String DEFAULT_SUBCORPUS_NAME = "Results";
-    private static final int BYTE_BUFFER_SIZE = 40;
+    static final String DEFAULT_SUBCORPUS_NAME = "Results";
+    /**
+     * Bytes of int list replies decoded at a time.
+     */
+    private static final int REPLY_BUFFER_SIZE = 1 << 14;
     private static final int BUFFER_SIZE = 10;
+    private static final int DEFAULT_LEXICON_CACHE_SIZE = 1 << 16;
+    private static final int DEFAULT_LEXICON_PRELOAD_LIMIT = 1024;
+    private static final int DEFAULT_STRUC_VALUE_CACHE_SIZE = 1 << 12;
+    /**
+     * Bounds and target round trip time (ms) for the adaptive chunk size of
+     * dumpSubCorpusBulk.
+     */
+    private static final int MIN_DUMP_CHUNK_SIZE = 1024;
+    private static final int MAX_DUMP_CHUNK_SIZE = 1 << 18;
+    private static final long TARGET_DUMP_ROUND_TRIP = 50;
+    private static final byte[] DUMP_FIELDS = {
+        CQI_CONST_FIELD_MATCH, CQI_CONST_FIELD_MATCHEND, CQI_CONST_FIELD_TARGET
+    };
     private Socket socket;
     private SocketAddress serverAddress;
-    private DataOutput streamToServer;
+    private OutputStream streamToServer;
     private DataInput streamFromServer;
+    private InputStream input;
+    private CountingInputStream received;
+    private boolean closed = false;
+    private final CqiFrame frame = new CqiFrame();
     private final int[][] buffer = new int[3][BUFFER_SIZE];
-    private final byte[] byteBuffer = new byte[BYTE_BUFFER_SIZE];
+    private final byte[] replyBytes = new byte[REPLY_BUFFER_SIZE];
+    private final IntBuffer replyInts = ByteBuffer.wrap(replyBytes).order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+    private int dumpChunkSize = 0;
+    private boolean deferLastError = false;
+    private double lastDumpHitsPerSecond = 0;
+    private final Map<String, LexiconCache> lexicons = new HashMap<String, LexiconCache>();
+    private int lexiconCacheSize = DEFAULT_LEXICON_CACHE_SIZE;
+    private int lexiconPreloadLimit = DEFAULT_LEXICON_PRELOAD_LIMIT;
+    private final Map<String, LexiconCache> strucValues = new HashMap<String, LexiconCache>();
+    private int strucValueCacheSize = DEFAULT_STRUC_VALUE_CACHE_SIZE;
+    private final Map<String, CorpusInfo> corpora = new HashMap<String, CorpusInfo>();
+    private TokenWindowCache tokenCache = null;
+    private CqiStringDecoder stringDecoder = new CqiStringDecoder();
+    private CqiStats.Recorder recorder = null;
+    private CqiQueryCache queryCache = null;
+    private final Set<String> createdSubcorpora = new LinkedHashSet<String>();
+
+    /**
+     * Counts the bytes read from the server. It sits below the buffered
+     * stream, so it costs an addition per buffer refill.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * Metadata of a corpus as far as it has been asked for. Null fields are
+     * not known yet. Subcorpora are those of this connection: once listed,
+     * the set is kept up to date by query and dropSubCorpus.
+     */
+    private static final class CorpusInfo {
+        private String charsetName;
+        private Charset charset;
+        private String fullName;
+        private String[] positionalAttributes;
+        private String[] structuralAttributes;
+        private final Map<String, Boolean> hasValues = new HashMap<String, Boolean>();
+        private Set<String> subcorpora;
+        private int size = -1;
+    }
 
     /**
      * Instantiates a new cqi client.
@@ -112,17 +218,57 @@ public class CqiClient {
      * @throws CqiClientException the server not found exception
      */
     public CqiClient(String host, int port) throws CqiClientException {
+        this(host, port, new CqiSocketOptions());
+    }
+
+    /**
+     * Instantiates a new cqi client.
+     *
+     * @param host the host of the CQI server
+     * @param port the port of the CQI server
+     * @param options socket options (nodelay, buffer sizes, timeouts)
+     *
+     * @throws CqiClientException the server not found exception
+     */
+    public CqiClient(String host, int port, CqiSocketOptions options)
+            throws CqiClientException {
         try {
             this.socket = new Socket();
+            this.socket.setTcpNoDelay(options.getTcpNoDelay());
+            if (options.getSendBufferSize() > 0) {
+                this.socket.setSendBufferSize(options.getSendBufferSize());
+            }
+            if (options.getReceiveBufferSize() > 0) {
+                this.socket.setReceiveBufferSize(options.getReceiveBufferSize());
+            }
+            this.socket.setSoTimeout(options.getReadTimeout());
             this.serverAddress = new InetSocketAddress(host, port);
-            this.socket.connect(serverAddress);
-            this.streamToServer = new DataOutputStream(this.socket.getOutputStream());
-            this.streamFromServer = new DataInputStream(this.socket.getInputStream());
+            this.socket.connect(serverAddress, options.getConnectTimeout());
+            this.streamToServer = this.socket.getOutputStream();
+            this.received = new CountingInputStream(this.socket.getInputStream());
+            this.streamFromServer = new DataInputStream(new BufferedInputStream(
+                    this.received, options.getStreamBufferSize()));
         } catch (IOException e) {
             throw new CqiClientException(SERVER_NOT_FOUND, e);
         }
     }
 
+    /**
+     * Instantiates a cqi client talking to a server over the given streams,
+     * e.g. an in-process one (see CqiServer.localClient). Close closes both
+     * streams.
+     *
+     * @param in the replies of the server
+     * @param out the stream the server reads commands from
+     */
+    public CqiClient(InputStream in, OutputStream out) {
+        this.input = in;
+        this.streamToServer = out;
+        this.received = new CountingInputStream(in);
+        this.streamFromServer = new DataInputStream(new BufferedInputStream(
+                this.received, new CqiSocketOptions().getStreamBufferSize()));
+    }
+
     /**
      * Connect the client to a server
      *
@@ -134,7 +280,7 @@ public class CqiClient {
     public synchronized boolean connect(String username, String password)
             throws CqiClientException {
         try {
-            this.streamToServer.write(CQI_CTRL_CONNECT);
+            this.writeCommand(CQI_CTRL_CONNECT);
             this.writeString(username);
             this.writeString(password);
             return (readHeaderFromServer() == CQI_STATUS_CONNECT_OK);
@@ -152,13 +298,51 @@ public class CqiClient {
      */
     public synchronized boolean disconnect() throws CqiClientException {
         try {
-            this.streamToServer.write(CQI_CTRL_BYE);
+            this.writeCommand(CQI_CTRL_BYE);
             return (readHeaderFromServer() == CQI_STATUS_BYE_OK);
         } catch (IOException ex) {
             throw new CqiClientException(SERVER_IO_ERROR, ex);
         }
     }
 
+    /**
+     * Ping the server
+     *
+     * @return true, if the server answered
+     *
+     * @throws CqiClientException
+     */
+    public synchronized boolean ping() throws CqiClientException {
+        try {
+            this.writeCommand(CQI_CTRL_PING);
+            return (readHeaderFromServer() == CQI_STATUS_PING_OK);
+        } catch (IOException ex) {
+            throw new CqiClientException(SERVER_IO_ERROR, ex);
+        }
+    }
+
+    /**
+     * Closes the socket. Unlike disconnect, nothing is sent to the server, so
+     * it can be used on a broken connection.
+     */
+    public synchronized void close() {
+        this.closed = true;
+        try {
+            if (this.socket != null) {
+                this.socket.close();
+            } else {
+                this.streamToServer.close();
+                this.input.close();
+            }
+        } catch (IOException e) {
+            // nothing left to do with the connection
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return (this.socket != null) ? this.socket.isClosed() : this.closed;
+    }
+
     /**
      * Lists the corpora available on the server
      *
@@ -167,7 +351,7 @@ public class CqiClient {
      */
     public synchronized String[] listCorpora() throws CqiClientException {
         try {
-            this.streamToServer.write(CQI_CORPUS_LIST_CORPORA);
+            this.writeCommand(CQI_CORPUS_LIST_CORPORA);
             return readStringArray(DEFAULT_CHARSET);
         } catch (IOException e) {
             throw new CqiClientException(SERVER_IO_ERROR, e);
@@ -182,14 +366,91 @@ public class CqiClient {
      */
     public synchronized String[] listSubcorpora(String corpus) throws CqiClientException {
 	try {
-	    this.streamToServer.write(CQI_CQP_LIST_SUBCORPORA);
+	    this.writeCommand(CQI_CQP_LIST_SUBCORPORA);
 	    this.writeString(corpus);
-	    return readStringArray(DEFAULT_CHARSET);
+	    String[] subcorpora = readStringArray(DEFAULT_CHARSET);
+	    corpusInfo(corpus).subcorpora = new HashSet<String>(Arrays.asList(subcorpora));
+	    return subcorpora;
 	} catch (IOException e) {
 	    throw new CqiClientException(SERVER_IO_ERROR, e);
 	}
     }
 
+    /**
+     * Tells whether a subcorpus exists. The subcorpora of the corpus are
+     * listed once; afterwards the ones created and dropped through this client
+     * are tracked locally, so no round trip is needed.
+     *
+     * @param corpus the corpus name
+     * @param subcorpus the subcorpus name. Example: "Results"
+     * @throws CqiClientException
+     */
+    public synchronized boolean hasSubcorpus(String corpus, String subcorpus)
+            throws CqiClientException {
+        CorpusInfo info = corpusInfo(corpus);
+        if (info.subcorpora == null) {
+            listSubcorpora(corpus);
+        }
+        return info.subcorpora.contains(subcorpus);
+    }
+
+    /**
+     * Forgets the cached metadata, subcorpora and lexicons of a corpus, e.g.
+     * after it has been re-encoded on the server.
+     *
+     * @param corpus the corpus name
+     */
+    public synchronized void invalidateMetadata(String corpus) {
+        corpora.remove(corpus);
+        if (tokenCache != null) {
+            tokenCache.invalidate(corpus);
+        }
+        for (Map<String, LexiconCache> caches : Arrays.asList(lexicons, strucValues)) {
+            Iterator<String> attributes = caches.keySet().iterator();
+            while (attributes.hasNext()) {
+                if (attributes.next().startsWith(corpus + ".")) {
+                    attributes.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets the cached metadata, subcorpora and lexicons of all corpora.
+     */
+    public synchronized void invalidateMetadata() {
+        corpora.clear();
+        if (tokenCache != null) {
+            tokenCache.clear();
+        }
+        lexicons.clear();
+        strucValues.clear();
+    }
+
+    private synchronized CorpusInfo corpusInfo(String corpus) {
+        CorpusInfo info = corpora.get(corpus);
+        if (info == null) {
+            info = new CorpusInfo();
+            corpora.put(corpus, info);
+        }
+        return info;
+    }
+
+    /**
+     * The charset of a corpus, asked to the server only once.
+     */
+    synchronized Charset charset(String corpus) throws CqiClientException {
+        CorpusInfo info = corpusInfo(corpus);
+        if (info.charset == null) {
+            try {
+                info.charset = Charset.forName(corpusCharset(corpus));
+            } catch (IOException e) {
+                throw new CqiClientException(SERVER_IO_ERROR, e);
+            }
+        }
+        return info.charset;
+    }
+
     /**
      * Gives the corpus positional attributes.
      *
@@ -199,8 +460,12 @@ public class CqiClient {
      */
     public synchronized String[] corpusPositionalAttributes(String corpus)
             throws CqiClientException {
-        return genericStringToStringArray(corpus,
-                CQI_CORPUS_POSITIONAL_ATTRIBUTES);
+        CorpusInfo info = corpusInfo(corpus);
+        if (info.positionalAttributes == null) {
+            info.positionalAttributes = genericStringToStringArray(corpus,
+                    CQI_CORPUS_POSITIONAL_ATTRIBUTES);
+        }
+        return info.positionalAttributes.clone();
     }
 
     /**
@@ -212,8 +477,54 @@ public class CqiClient {
      */
     public synchronized String[] corpusStructuralAttributes(String corpus)
             throws CqiClientException {
-        return genericStringToStringArray(corpus,
-                CQI_CORPUS_STRUCTURAL_ATTRIBUTES);
+        CorpusInfo info = corpusInfo(corpus);
+        if (info.structuralAttributes == null) {
+            info.structuralAttributes = genericStringToStringArray(corpus,
+                    CQI_CORPUS_STRUCTURAL_ATTRIBUTES);
+        }
+        return info.structuralAttributes.clone();
+    }
+
+    /**
+     * Gives the number of tokens of a corpus.
+     *
+     * @param corpus the corpus
+     * @return the corpus size
+     * @throws CqiClientException
+     */
+    public synchronized int corpusSize(String corpus) throws CqiClientException {
+        CorpusInfo info = corpusInfo(corpus);
+        if (info.size < 0) {
+            // all positional attributes span the whole corpus
+            String[] attributes = corpusPositionalAttributes(corpus);
+            info.size = attributeSize(String.format("%s.%s", corpus, attributes[0]));
+        }
+        return info.size;
+    }
+
+    /**
+     * Tells whether the regions of a structural attribute carry values.
+     *
+     * @param corpus the corpus
+     * @param attribute the attribute name. Example: "np_h"
+     * @return true if struc2Str can be used on the attribute
+     * @throws CqiClientException
+     */
+    public synchronized boolean structuralAttributeHasValues(String corpus, String attribute)
+            throws CqiClientException {
+        CorpusInfo info = corpusInfo(corpus);
+        Boolean hasValues = info.hasValues.get(attribute);
+        if (hasValues == null) {
+            try {
+                this.writeCommand(CQI_CORPUS_STRUCTURAL_ATTRIBUTE_HAS_VALUES);
+                this.writeString(String.format("%s.%s", corpus, attribute));
+                hasValues = readBoolean();
+            } catch (IOException e) {
+                throw new CqiClientException(SERVER_IO_ERROR, e);
+            }
+            info.hasValues.put(attribute, hasValues);
+        }
+        return hasValues;
     }
 
     /**
@@ -228,7 +539,11 @@ public class CqiClient {
      */
     public synchronized String corpusCharset(String corpus)
             throws CqiClientException, IOException {
-        return genericStringToString(corpus, CQI_CORPUS_CHARSET);
+        CorpusInfo info = corpusInfo(corpus);
+        if (info.charsetName == null) {
+            info.charsetName = genericStringToString(corpus, CQI_CORPUS_CHARSET);
+        }
+        return info.charsetName;
     }
 
     /**
@@ -241,7 +556,11 @@ public class CqiClient {
      */
     public synchronized String corpusFullName(String corpus)
             throws CqiClientException, IOException {
-        return genericStringToString(corpus, CQI_CORPUS_FULL_NAME);
+        CorpusInfo info = corpusInfo(corpus);
+        if (info.fullName == null) {
+            info.fullName = genericStringToString(corpus, CQI_CORPUS_FULL_NAME);
+        }
+        return info.fullName;
     }
 
     /**
@@ -260,28 +579,28 @@ public class CqiClient {
 
     public synchronized String[] dumpPositionalAttributes(String corpus, String attribute, 
         int[] cpos)  throws CqiClientException {
-	Charset charset;
-	try {
-	    charset = Charset.forName(corpusCharset(corpus));
-	} catch (IOException e) {
-	    throw new CqiClientException(SERVER_IO_ERROR, e);
-	}
+	Charset charset = charset(corpus);
 	return dumpPositionalAttributes(corpus, attribute, cpos, charset);
     }
 
     public synchronized String[] dumpPositionalAttributes(String corpus, String attribute, 
              int fromPosition, int toPosition, Charset charset) throws CqiClientException {
-	return cpos2Str(String.format("%s.%s", corpus, attribute), fromPosition, toPosition, charset); 
+	long started = beginOperation();
+	try {
+	    if (tokenCache != null) {
+		String attributeName = String.format("%s.%s", corpus, attribute);
+		int[] ids = (int[]) cachedWindow(corpus, attribute, fromPosition, toPosition, null);
+		return resolveLexiconIds(attributeName, ids, charset);
+	    }
+	    return cpos2Str(String.format("%s.%s", corpus, attribute), fromPosition, toPosition, charset); 
+	} finally {
+	    endOperation("dumpPositionalAttributes", started);
+	}
     }
 
     public synchronized String[] dumpPositionalAttributes(String corpus, String attribute, 
              int fromPosition, int toPosition) throws CqiClientException {
-	Charset charset;
-	try {
-	    charset = Charset.forName(corpusCharset(corpus));
-	} catch (IOException e) {
-	    throw new CqiClientException(SERVER_IO_ERROR, e);
-	} 
+	Charset charset = charset(corpus);
 	return dumpPositionalAttributes(corpus, attribute, fromPosition, toPosition, charset);
     }
 
@@ -297,6 +616,310 @@ public class CqiClient {
 	return dumpPositionalAttributes(corpus, attribute, fromPosition, toPosition, charset);
     }
 
+    /**
+     * Gives the lexicon ids of a positional attribute for a range of
+     * positions. Wraps cpos2Id.
+     * @param corpus the corpus name
+     * @param attribute the attribute name. Example: "pos"
+     * @param fromPosition starting position
+     * @param toPosition end position
+     */
+    public synchronized int[] dumpPositionalAttributeIds(String corpus, String attribute,
+             int fromPosition, int toPosition) throws CqiClientException {
+        return cpos2Id(String.format("%s.%s", corpus, attribute), fromPosition, toPosition);
+    }
+
+    /**
+     * dumpPositionalAttributeIds into a caller buffer: the ids are put into
+     * <output>, advancing its position.
+     *
+     * @return the number of ids read
+     */
+    public synchronized int dumpPositionalAttributeIds(String corpus, String attribute,
+             int fromPosition, int toPosition, IntBuffer output) throws CqiClientException {
+        try {
+            this.writeCommand(CQI_CL_CPOS2ID);
+            this.writeString(String.format("%s.%s", corpus, attribute));
+            this.writeIntArray(fromPosition, toPosition);
+            return readIntList(output);
+        } catch (IOException e) {
+            throw new CqiClientException(SERVER_IO_ERROR, e);
+        }
+    }
+
+    /**
+     * Gives positional attribute for a range of positions, like
+     * dumpPositionalAttributes, but only lexicon ids are requested from the
+     * server. They are resolved through the lexicon cache of the attribute,
+     * asking the server only for the strings of ids not cached yet.
+     * @param corpus the corpus name
+     * @param attribute the attribute name. Example: "pos"
+     * @param fromPosition starting position
+     * @param toPosition end position
+     * @param charset charset object specifying the charset
+     */
+    public synchronized String[] dumpPositionalAttributesByLexicon(String corpus, String attribute,
+             int fromPosition, int toPosition, Charset charset) throws CqiClientException {
+        long started = beginOperation();
+        try {
+            String attributeName = String.format("%s.%s", corpus, attribute);
+            int[] ids = cpos2Id(attributeName, fromPosition, toPosition);
+            return resolveLexiconIds(attributeName, ids, charset);
+        } finally {
+            endOperation("dumpPositionalAttributesByLexicon", started);
+        }
+    }
+
+    public synchronized String[] dumpPositionalAttributesByLexicon(String corpus, String attribute,
+             int fromPosition, int toPosition, String strCharset) throws CqiClientException {
+        Charset charset = Charset.forName(strCharset);
+        return dumpPositionalAttributesByLexicon(corpus, attribute, fromPosition, toPosition, charset);
+    }
+
+    /**
+     * Resolves lexicon ids to their strings. Ids missing from the lexicon cache
+     * of the attribute are fetched with a single id2Str request and cached. The
+     * first time an attribute is seen its lexicon size is checked, and small
+     * lexicons are loaded completely.
+     * @param attribute the full attribute name. Example: "DICKENS.pos"
+     * @param ids lexicon ids, e.g. from cpos2Id
+     * @param charset charset object specifying the charset
+     * @return the strings, "" for invalid ids
+     */
+    public synchronized String[] resolveLexiconIds(String attribute, int[] ids, Charset charset)
+            throws CqiClientException {
+        LexiconCache cache = lexiconCache(attribute, charset);
+        String[] output = new String[ids.length];
+        int[] missing = new int[ids.length];
+        int missingCount = 0;
+        for (int i = 0; i < ids.length; i++) {
+            output[i] = (ids[i] < 0) ? "" : cache.get(ids[i]);
+            if (output[i] == null) {
+                missing[missingCount++] = ids[i];
+            }
+        }
+        if (missingCount == 0) {
+            return output;
+        }
+        Arrays.sort(missing, 0, missingCount);
+        int distinct = 0;
+        for (int i = 0; i < missingCount; i++) {
+            if (i == 0 || missing[i] != missing[i - 1]) {
+                missing[distinct++] = missing[i];
+            }
+        }
+        missing = Arrays.copyOf(missing, distinct);
+        String[] strings = id2Str(attribute, missing, charset);
+        for (int i = 0; i < distinct; i++) {
+            cache.put(missing[i], strings[i]);
+        }
+        for (int i = 0; i < ids.length; i++) {
+            if (output[i] == null) {
+                output[i] = strings[Arrays.binarySearch(missing, ids[i])];
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Bounds the number of ids cached per attribute whose lexicon is too large
+     * to be preloaded. Applies to attributes seen from now on.
+     */
+    public synchronized void setLexiconCacheSize(int size) {
+        this.lexiconCacheSize = size;
+    }
+
+    /**
+     * Attributes with a lexicon up to this size are loaded completely the
+     * first time they are resolved. Applies to attributes seen from now on.
+     */
+    public synchronized void setLexiconPreloadLimit(int limit) {
+        this.lexiconPreloadLimit = limit;
+    }
+
+    /**
+     * Bounds the per-attribute tables used to share repeated attribute values
+     * between replies. 0 turns interning off. Forgets the current tables.
+     */
+    public synchronized void setInternTableSize(int size) {
+        this.stringDecoder = new CqiStringDecoder(size);
+    }
+
+    /**
+     * @return attribute values found in the intern tables
+     */
+    public synchronized long getInternHits() {
+        return stringDecoder.getInternHits();
+    }
+
+    public synchronized long getInternMisses() {
+        return stringDecoder.getInternMisses();
+    }
+
+    /**
+     * Records the traffic of this client into <stats>, which may be shared
+     * with other clients. Null, the default, turns recording off.
+     */
+    public synchronized void setStats(CqiStats stats) {
+        this.recorder = (stats == null) ? null : new CqiStats.Recorder(stats, received.count);
+    }
+
+    public synchronized CqiStats getStats() {
+        return (recorder == null) ? null : recorder.getStats();
+    }
+
+    /**
+     * Start of a high level call whose round trips and latency are
+     * recorded as one operation.
+     *
+     * @return the argument for endOperation
+     */
+    synchronized long beginOperation() {
+        return (recorder == null) ? 0 : recorder.begin();
+    }
+
+    synchronized void endOperation(String operation, long started) {
+        if (recorder != null) {
+            recorder.end(operation, started, received.count);
+        }
+    }
+
+    /**
+     * Forgets the cached lexicons.
+     */
+    public synchronized void clearLexiconCache() {
+        lexicons.clear();
+    }
+
+    /**
+     * Resolves the ids of regions of a structural attribute to their values.
+     * Runs of the same id, as cpos2Struc returns for consecutive positions,
+     * and repeated ids are asked for once, with a single struc2Str request
+     * for the ids missing from the struc value cache of the attribute.
+     * @param attribute the full attribute name. Example: "DICKENS.np_h"
+     * @param strucs region ids, e.g. from cpos2Struc
+     * @param charset charset object specifying the charset
+     * @return the values, "" for positions outside any region
+     */
+    public synchronized String[] resolveStrucValues(String attribute, int[] strucs, Charset charset)
+            throws CqiClientException {
+        String[] output = new String[strucs.length];
+        int[] missing = lookupStrucValues(attribute, strucs, output);
+        if (missing.length > 0) {
+            completeStrucValues(attribute, strucs, missing, struc2Str(attribute, missing, charset), output);
+        }
+        return output;
+    }
+
+    /**
+     * Fills <output> with the values of <strucs> found in the struc value
+     * cache, and "" for negative ids.
+     *
+     * @return the distinct ids still missing, sorted
+     */
+    synchronized int[] lookupStrucValues(String attribute, int[] strucs, String[] output) {
+        LexiconCache cache = strucValueCache(attribute);
+        int[] missing = new int[strucs.length];
+        int missingCount = 0;
+        for (int i = 0; i < strucs.length; i++) {
+            if (i > 0 && strucs[i] == strucs[i - 1]) {
+                output[i] = output[i - 1];
+            } else if (strucs[i] < 0) {
+                output[i] = "";
+            } else {
+                output[i] = (cache == null) ? null : cache.get(strucs[i]);
+                if (output[i] == null) {
+                    missing[missingCount++] = strucs[i];
+                }
+            }
+        }
+        Arrays.sort(missing, 0, missingCount);
+        int distinct = 0;
+        for (int i = 0; i < missingCount; i++) {
+            if (i == 0 || missing[i] != missing[i - 1]) {
+                missing[distinct++] = missing[i];
+            }
+        }
+        return Arrays.copyOf(missing, distinct);
+    }
+
+    /**
+     * Completes <output>, as left by lookupStrucValues, with the <values>
+     * of the <missing> ids, and caches them.
+     */
+    synchronized void completeStrucValues(String attribute, int[] strucs, int[] missing,
+            String[] values, String[] output) {
+        LexiconCache cache = strucValueCache(attribute);
+        if (cache != null) {
+            for (int i = 0; i < missing.length; i++) {
+                cache.put(missing[i], values[i]);
+            }
+        }
+        for (int i = 0; i < strucs.length; i++) {
+            if (output[i] == null) {
+                output[i] = (i > 0 && strucs[i] == strucs[i - 1])
+                        ? output[i - 1] : values[Arrays.binarySearch(missing, strucs[i])];
+            }
+        }
+    }
+
+    private synchronized LexiconCache strucValueCache(String attribute) {
+        if (strucValueCacheSize == 0) {
+            return null;
+        }
+        LexiconCache cache = strucValues.get(attribute);
+        if (cache == null) {
+            cache = LexiconCache.bounded(strucValueCacheSize);
+            strucValues.put(attribute, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Bounds the number of region values cached per structural attribute.
+     * 0 turns the cache off; repeated ids are still asked for once per
+     * request. Forgets the cached values.
+     */
+    public synchronized void setStrucValueCacheSize(int size) {
+        this.strucValueCacheSize = size;
+        strucValues.clear();
+    }
+
+    /**
+     * @return region values found in the struc value caches
+     */
+    public synchronized long getStrucValueCacheHits() {
+        long hits = 0;
+        for (LexiconCache cache : strucValues.values()) {
+            hits += cache.getHits();
+        }
+        return hits;
+    }
+
+    public synchronized long getStrucValueCacheMisses() {
+        long misses = 0;
+        for (LexiconCache cache : strucValues.values()) {
+            misses += cache.getMisses();
+        }
+        return misses;
+    }
+
+    private synchronized LexiconCache lexiconCache(String attribute, Charset charset)
+            throws CqiClientException {
+        LexiconCache cache = lexicons.get(attribute);
+        if (cache == null) {
+            int size = lexiconSize(attribute);
+            if (size <= lexiconPreloadLimit) {
+                cache = LexiconCache.complete(size == 0 ? new String[0]
+                        : genericStringXIntArraytoStringArray(attribute, 0, size - 1, CQI_CL_ID2STR, charset));
+            } else {
+                cache = LexiconCache.bounded(lexiconCacheSize);
+            }
+            lexicons.put(attribute, cache);
+        }
+        return cache;
+    }
+
     /**
      * Gives positional attribute for a range of positions. Wraps cpos2Str.
      * @param corpus the corpus name
@@ -310,40 +933,36 @@ public class CqiClient {
     public synchronized String[] dumpStructuralAttributes(String corpus, String attribute, int[] cpos, Charset charset) throws CqiClientException {
 	String attributeName = String.format("%s.%s", corpus, attribute);
 	int[] strucs = cpos2Struc(attributeName, cpos);
-	return struc2Str(attributeName, strucs, charset);
+	return resolveStrucValues(attributeName, strucs, charset);
     }
 
     public synchronized String[] dumpStructuralAttributes(String corpus, String attribute, int[] cpos) 
 	throws CqiClientException {
-	Charset charset;
-	try {
-	    charset = Charset.forName(corpusCharset(corpus));
-	} catch (IOException e) {
-	    throw new CqiClientException(SERVER_IO_ERROR, e);
-	}
+	Charset charset = charset(corpus);
 	String attributeName = String.format("%s.%s", corpus, attribute);
 	int[] strucs = cpos2Struc(attributeName, cpos);
-	return struc2Str(attributeName, strucs, charset);
+	return resolveStrucValues(attributeName, strucs, charset);
     }
 
     public synchronized String[] dumpStructuralAttributes(String corpus, String attribute, 
            int fromPosition, int toPosition, Charset charset) throws CqiClientException {
-	String attributeName = String.format("%s.%s", corpus, attribute);
-	int[] strucs = cpos2Struc(attributeName, fromPosition, toPosition);
-	return struc2Str(attributeName, strucs, charset);
+	long started = beginOperation();
+	try {
+	    if (tokenCache != null) {
+		return (String[]) cachedWindow(corpus, attribute, fromPosition, toPosition, charset);
+	    }
+	    String attributeName = String.format("%s.%s", corpus, attribute);
+	    int[] strucs = cpos2Struc(attributeName, fromPosition, toPosition);
+	    return resolveStrucValues(attributeName, strucs, charset);
+	} finally {
+	    endOperation("dumpStructuralAttributes", started);
+	}
     }
 
     public synchronized String[] dumpStructuralAttributes(String corpus, String attribute, 
            int fromPosition, int toPosition) throws CqiClientException {
-	Charset charset;
-	try {
-	    charset = Charset.forName(corpusCharset(corpus));
-	} catch (IOException e) {
-	    throw new CqiClientException(SERVER_IO_ERROR, e);
-	}
-	String attributeName = String.format("%s.%s", corpus, attribute);
-	int[] strucs = cpos2Struc(attributeName, fromPosition, toPosition);
-	return struc2Str(attributeName, strucs, charset);
+	Charset charset = charset(corpus);
+	return dumpStructuralAttributes(corpus, attribute, fromPosition, toPosition, charset);
     }
 
     public synchronized String[] dumpStructuralAttributes(String corpus, String attribute, 
@@ -358,6 +977,101 @@ public class CqiClient {
 	return dumpStructuralAttributes(corpus, attribute, cpos, charset);
     }
 
+    /**
+     * Serves the range overloads of dumpPositionalAttributes and
+     * dumpStructuralAttributes from <cache>: only the blocks of positions
+     * not cached yet are fetched, each run of consecutive missing blocks with
+     * a single request. A cache may be shared by several clients. Null turns
+     * caching off.
+     */
+    public synchronized void setTokenCache(TokenWindowCache cache) {
+        this.tokenCache = cache;
+    }
+
+    public synchronized TokenWindowCache getTokenCache() {
+        return tokenCache;
+    }
+
+    /**
+     * Values of an attribute for <fromPosition> .. <toPosition> assembled from
+     * the blocks of the token cache: lexicon ids (int[]) for a positional
+     * attribute, when <charset> is null, or the values (String[]) of a
+     * structural one. Positions outside the corpus get -1 or "".
+     */
+    private synchronized Object cachedWindow(String corpus, String attribute,
+            int fromPosition, int toPosition, Charset charset) throws CqiClientException {
+        boolean positional = (charset == null);
+        String attributeName = String.format("%s.%s", corpus, attribute);
+        int length = Math.max(toPosition - fromPosition + 1, 0);
+        Object window;
+        if (positional) {
+            window = new int[length];
+            Arrays.fill((int[]) window, -1);
+        } else {
+            window = new String[length];
+            Arrays.fill((String[]) window, "");
+        }
+        int size = corpusSize(corpus);
+        int from = Math.max(fromPosition, 0);
+        int to = Math.min(toPosition, size - 1);
+        if (from > to) {
+            return window;
+        }
+        int blockSize = tokenCache.getBlockSize();
+        int firstBlock = from / blockSize;
+        int lastBlock = to / blockSize;
+        Object[] blocks = new Object[lastBlock - firstBlock + 1];
+        int missingFrom = -1;
+        for (int b = firstBlock; b <= lastBlock + 1; b++) {
+            Object block = null;
+            if (b <= lastBlock) {
+                block = positional ? tokenCache.getIds(attributeName, b)
+                        : tokenCache.getValues(attributeName, charset, b);
+                blocks[b - firstBlock] = block;
+            }
+            if (block == null && b <= lastBlock) {
+                missingFrom = (missingFrom < 0) ? b : missingFrom;
+            } else if (missingFrom >= 0) {
+                fetchBlocks(attributeName, missingFrom, b - 1, size, charset, blocks, firstBlock);
+                missingFrom = -1;
+            }
+        }
+        for (int b = firstBlock; b <= lastBlock; b++) {
+            int blockStart = b * blockSize;
+            int start = Math.max(from, blockStart);
+            int end = Math.min(to, blockStart + blockSize - 1);
+            System.arraycopy(blocks[b - firstBlock], start - blockStart,
+                    window, start - fromPosition, end - start + 1);
+        }
+        return window;
+    }
+
+    private synchronized void fetchBlocks(String attributeName, int firstBlock, int lastBlock,
+            int size, Charset charset, Object[] blocks, int offset) throws CqiClientException {
+        int blockSize = tokenCache.getBlockSize();
+        int from = firstBlock * blockSize;
+        int to = Math.min((lastBlock + 1) * blockSize, size) - 1;
+        Object values;
+        if (charset == null) {
+            values = cpos2Id(attributeName, from, to);
+        } else {
+            values = resolveStrucValues(attributeName, cpos2Struc(attributeName, from, to), charset);
+        }
+        for (int b = firstBlock; b <= lastBlock; b++) {
+            int start = (b - firstBlock) * blockSize;
+            int length = Math.min(blockSize, to - from + 1 - start);
+            if (charset == null) {
+                int[] block = Arrays.copyOfRange((int[]) values, start, start + length);
+                tokenCache.putIds(attributeName, b, block);
+                blocks[b - offset] = block;
+            } else {
+                String[] block = Arrays.copyOfRange((String[]) values, start, start + length);
+                tokenCache.putValues(attributeName, charset, b, block);
+                blocks[b - offset] = block;
+            }
+        }
+    }
+
     /**
      * Runs a default CQP query (storing results to result)
      * @param corpus the corpus name
@@ -383,6 +1097,86 @@ public class CqiClient {
 	throws CqiClientException {
 	cqpQuery(corpus, subcorpus, query, charset);
     }
+
+    /**
+     * Runs a CQP query into a subcorpus of the query cache, unless an
+     * identical one is cached already. Running it may make the cache drop
+     * the least recently used subcorpora.
+     *
+     * @param corpus the corpus name
+     * @param query the query
+     * @param charset the charset of the query
+     * @return the subcorpus holding the results, e.g. "Cached12", to be passed
+     * to querySize, dumpSubCorpus, etc.
+     * @throws IllegalStateException if no query cache is set
+     */
+    public synchronized String cachedQuery(String corpus, String query, Charset charset)
+            throws CqiClientException {
+        if (queryCache == null) {
+            throw new IllegalStateException("No query cache set");
+        }
+        String subcorpus = queryCache.get(corpus, query, charset);
+        if (subcorpus != null) {
+            return subcorpus;
+        }
+        subcorpus = queryCache.nextName();
+        cqpQuery(corpus, subcorpus, query, charset);
+        int size = subCorpusSize(String.format("%s:%s", corpus, subcorpus));
+        for (String dropped : queryCache.put(corpus, query, charset, subcorpus, size)) {
+            dropCachedSubCorpus(dropped);
+        }
+        return subcorpus;
+    }
+
+    public synchronized String cachedQuery(String corpus, String query, String charset)
+            throws CqiClientException {
+        return cachedQuery(corpus, query, Charset.forName(charset));
+    }
+
+    /**
+     * Keeps the results of cachedQuery in <cache>, which can't be used by
+     * other clients. The subcorpora of the previous cache are dropped. Null
+     * turns caching off.
+     */
+    public synchronized void setQueryCache(CqiQueryCache cache) throws CqiClientException {
+        if (cache == queryCache) {
+            return;
+        }
+        if (cache != null) {
+            cache.attach(this);
+        }
+        clearQueryCache();
+        this.queryCache = cache;
+    }
+
+    public synchronized CqiQueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * Drops all the subcorpora of the query cache.
+     */
+    public synchronized void clearQueryCache() throws CqiClientException {
+        if (queryCache != null) {
+            for (String dropped : queryCache.clear()) {
+                dropCachedSubCorpus(dropped);
+            }
+        }
+    }
+
+    /**
+     * Drops a subcorpus evicted from the query cache. It may be gone already,
+     * e.g. dropped by the user.
+     */
+    private synchronized void dropCachedSubCorpus(String subcorpus) throws CqiClientException {
+        try {
+            dropSubCorpus(subcorpus);
+        } catch (CqiClientException e) {
+            if (e.getCause() instanceof IOException) {
+                throw e;
+            }
+        }
+    }
     /**
      * drops query, defaulting to default subcorpus name
      *
@@ -397,6 +1191,37 @@ public class CqiClient {
     public synchronized void dropQuery(String corpus) throws CqiClientException {
 	dropQuery(corpus, DEFAULT_SUBCORPUS_NAME);
     }
+    /**
+     * @return the subcorpora created through this client and not dropped
+     * through it since, e.g. "DICKENS:Results"
+     */
+    public synchronized String[] getCreatedSubcorpora() {
+        return createdSubcorpora.toArray(new String[createdSubcorpora.size()]);
+    }
+
+    /**
+     * Brings the connection back to the state of a new one before it is
+     * handed to someone else (see CqiClientPool.release): the subcorpora
+     * created through it are dropped, the query cache, token cache and fixed
+     * dump chunk size are unset and traffic is recorded into <stats> again.
+     * Metadata and lexicons are kept, they don't depend on the user.
+     *
+     * @param stats the stats of the pool, or null
+     * @throws CqiClientException if a subcorpus could not be dropped
+     */
+    synchronized void recycle(CqiStats stats) throws CqiClientException {
+        setQueryCache(null);
+        for (String subcorpus : getCreatedSubcorpora()) {
+            dropCachedSubCorpus(subcorpus);
+            createdSubcorpora.remove(subcorpus);
+        }
+        tokenCache = null;
+        dumpChunkSize = 0;
+        if (getStats() != stats) {
+            setStats(stats);
+        }
+    }
+
     /**
      * returns query size with appropriate defaults
      *
@@ -410,8 +1235,86 @@ public class CqiClient {
 	}
     }
 
-    public int querySize(String corpus) {
-	return querySize(corpus, DEFAULT_SUBCORPUS_NAME);
+    public int querySize(String corpus) {
+	return querySize(corpus, DEFAULT_SUBCORPUS_NAME);
+    }
+
+    /**
+     * Number of hits of a subcorpus. Unlike querySize, a missing subcorpus is
+     * reported rather than answered with -1.
+     *
+     * @param corpus corpus name
+     * @param subcorpus subcorpus name
+     * @throws CqiClientException
+     */
+    public synchronized int subCorpusSize(String corpus, String subcorpus) throws CqiClientException {
+        return subCorpusSize(String.format("%s:%s", corpus, subcorpus));
+    }
+
+    /**
+     * Frequency distribution of the values of a positional attribute at one
+     * field of the hits of a subcorpus, computed by the server.
+     *
+     * @param corpus corpus name
+     * @param subCorpus subcorpus name
+     * @param cutoff minimum frequency of the returned values
+     * @param field one of the CQI_CONST_FIELD_* constants
+     * @param attribute the attribute name. Example: "pos"
+     * @return (lexicon id, frequency) rows, most frequent first
+     * @throws CqiClientException
+     */
+    public synchronized int[][] fdist1(String corpus, String subCorpus, int cutoff,
+            byte field, String attribute) throws CqiClientException {
+        long started = beginOperation();
+        try {
+            this.writeCommand(CQI_CQP_FDIST_1);
+            this.writeString(String.format("%s:%s", corpus, subCorpus));
+            this.writeInt(cutoff);
+            this.writeByte(field);
+            this.writeString(attribute);
+            return readIntTable();
+        } catch (IOException e) {
+            throw new CqiClientException(SERVER_IO_ERROR, e);
+        } finally {
+            endOperation("fdist1", started);
+        }
+    }
+
+    public synchronized int[][] fdist1(String corpus, int cutoff, byte field, String attribute)
+            throws CqiClientException {
+        return fdist1(corpus, DEFAULT_SUBCORPUS_NAME, cutoff, field, attribute);
+    }
+
+    /**
+     * Joint frequency distribution of the values of two positional attributes
+     * at two fields of the hits of a subcorpus, computed by the server.
+     *
+     * @return (lexicon id 1, lexicon id 2, frequency) rows, most frequent first
+     * @throws CqiClientException
+     */
+    public synchronized int[][] fdist2(String corpus, String subCorpus, int cutoff,
+            byte field1, String attribute1, byte field2, String attribute2)
+            throws CqiClientException {
+        long started = beginOperation();
+        try {
+            this.writeCommand(CQI_CQP_FDIST_2);
+            this.writeString(String.format("%s:%s", corpus, subCorpus));
+            this.writeInt(cutoff);
+            this.writeByte(field1);
+            this.writeString(attribute1);
+            this.writeByte(field2);
+            this.writeString(attribute2);
+            return readIntTable();
+        } catch (IOException e) {
+            throw new CqiClientException(SERVER_IO_ERROR, e);
+        } finally {
+            endOperation("fdist2", started);
+        }
+    }
+
+    public synchronized int[][] fdist2(String corpus, int cutoff, byte field1, String attribute1,
+            byte field2, String attribute2) throws CqiClientException {
+        return fdist2(corpus, DEFAULT_SUBCORPUS_NAME, cutoff, field1, attribute1, field2, attribute2);
     }
 
     /**
@@ -422,11 +1325,11 @@ public class CqiClient {
      * @param fromPosition last index in subcorpus to be dumped  
      */
     public synchronized int[][] dumpSubCorpus(String corpus, String subCorpus, int fromPosition, int toPosition) {
+	long started = beginOperation();
 	try {
-	    String[] subcorpora = listSubcorpora(corpus);
-	    if (!Arrays.asList(listSubcorpora(corpus)).contains(subCorpus)) {
+	    if (!hasSubcorpus(corpus, subCorpus)) {
 		return null;
-	    } 	    
+	    }
 	    String subCorpusName = String.format("%s:%s", corpus, subCorpus);
 	    int resultSize = subCorpusSize(subCorpusName);
 	    toPosition = (toPosition >= resultSize) ? resultSize : toPosition;
@@ -450,6 +1353,8 @@ public class CqiClient {
 	    return result;
 	} catch (CqiClientException e) {
 	    return new int[3][0];		
+	} finally {
+	    endOperation("dumpSubCorpus", started);
 	}
     }
 
@@ -457,6 +1362,170 @@ public class CqiClient {
 	return dumpSubCorpus(corpus, DEFAULT_SUBCORPUS_NAME, fromPosition, toPosition);
     }
 
+    /**
+     * Bulk dumpSubCorpus. Match, matchend and target of every hit in the range
+     * are fetched in large chunks: the three requests of a chunk are sent
+     * together and their replies are read straight into the result. Unless
+     * fixed with setDumpChunkSize, the chunk size adapts to the measured round
+     * trip time. The subcorpus is not looked up beforehand, a missing one is
+     * reported by the server.
+     *
+     * @param corpus corpus name
+     * @param subCorpus subcorpus name
+     * @param fromPosition first index in subcorpus to be dumped
+     * @param toPosition index after the last one to be dumped
+     * @return match, matchend and target arrays
+     * @throws CqiClientException
+     */
+    public synchronized int[][] dumpSubCorpusBulk(String corpus, String subCorpus,
+            int fromPosition, int toPosition) throws CqiClientException {
+        int resultSize = subCorpusSize(String.format("%s:%s", corpus, subCorpus));
+        toPosition = Math.min(toPosition, resultSize);
+        fromPosition = Math.max(fromPosition, 0);
+        int[][] result = new int[3][Math.max(toPosition - fromPosition, 0)];
+        dumpSubCorpusBulk(corpus, subCorpus, fromPosition, toPosition, result, 0);
+        return result;
+    }
+
+    /**
+     * dumpSubCorpusBulk into caller buffers: match, matchend and target are
+     * written to <output>[0], [1] and [2] starting at <offset>, so that a
+     * result can be walked through with the same arrays. The range isn't
+     * clipped to the size of the subcorpus.
+     *
+     * @param output three arrays with room for toPosition - fromPosition
+     * values from offset
+     * @return the number of hits dumped
+     * @throws CqiClientException
+     */
+    public synchronized int dumpSubCorpusBulk(String corpus, String subCorpus,
+            int fromPosition, int toPosition, int[][] output, int offset)
+            throws CqiClientException {
+        String subCorpusName = String.format("%s:%s", corpus, subCorpus);
+        int dumpSize = Math.max(toPosition - fromPosition, 0);
+        int chunk = (dumpChunkSize > 0) ? dumpChunkSize
+                : Math.max(MIN_DUMP_CHUNK_SIZE, Math.min(dumpSize / 16, MAX_DUMP_CHUNK_SIZE));
+        long start = System.nanoTime();
+        long started = beginOperation();
+        int index = 0;
+        try {
+            while (index < dumpSize) {
+                int size = Math.min(chunk, dumpSize - index);
+                int first = fromPosition + index;
+                long chunkStart = System.nanoTime();
+                for (byte field : DUMP_FIELDS) {
+                    this.writeCommand(CQI_CQP_DUMP_SUBCORPUS);
+                    this.writeString(subCorpusName);
+                    this.writeByte(field);
+                    this.writeInt(first);
+                    this.writeInt(first + size - 1);
+                }
+                CqiClientException error = null;
+                // the details of an error are asked for once the replies
+                // still on the socket have been read
+                boolean deferred = deferLastError;
+                deferLastError = true;
+                try {
+                    for (int f = 0; f < DUMP_FIELDS.length; f++) {
+                        try {
+                            readIntList(output[f], offset + index);
+                        } catch (CqiClientException e) {
+                            if (e.getCause() instanceof IOException) {
+                                throw e;
+                            }
+                            // keep reading so that the remaining replies are consumed
+                            error = (error == null) ? e : error;
+                        }
+                    }
+                } finally {
+                    deferLastError = deferred;
+                }
+                if (error != null) {
+                    String message = deferred ? error.getMessage() : lastErrorMessage(error.getMessage());
+                    throw message.equals(error.getMessage()) ? error : new CqiClientException(message, error);
+                }
+                index += size;
+                if (dumpChunkSize <= 0) {
+                    long elapsed = (System.nanoTime() - chunkStart) / 1000000;
+                    if (elapsed < TARGET_DUMP_ROUND_TRIP / 2) {
+                        chunk = Math.min(chunk * 2, MAX_DUMP_CHUNK_SIZE);
+                    } else if (elapsed > TARGET_DUMP_ROUND_TRIP * 2) {
+                        chunk = Math.max(chunk / 2, MIN_DUMP_CHUNK_SIZE);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new CqiClientException(SERVER_IO_ERROR, e);
+        } finally {
+            endOperation("dumpSubCorpusBulk", started);
+        }
+        long elapsed = System.nanoTime() - start;
+        lastDumpHitsPerSecond = (elapsed > 0) ? dumpSize * 1e9 / elapsed : 0;
+        return dumpSize;
+    }
+
+    public synchronized int[][] dumpSubCorpusBulk(String corpus, int fromPosition, int toPosition)
+            throws CqiClientException {
+        return dumpSubCorpusBulk(corpus, DEFAULT_SUBCORPUS_NAME, fromPosition, toPosition);
+    }
+
+    /**
+     * Fixes the number of hits requested per chunk by dumpSubCorpusBulk.
+     *
+     * @param chunkSize hits per chunk, 0 or less to adapt it to the round trip time
+     */
+    public synchronized void setDumpChunkSize(int chunkSize) {
+        this.dumpChunkSize = chunkSize;
+    }
+
+    public synchronized int getDumpChunkSize() {
+        return dumpChunkSize;
+    }
+
+    /**
+     * Throughput of the last dumpSubCorpusBulk call in hits per second.
+     */
+    public synchronized double getLastDumpHitsPerSecond() {
+        return lastDumpHitsPerSecond;
+    }
+
+    /**
+     * Write a command code on the socket.
+     *
+     * @param command one of the CQI_* command codes
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    synchronized void writeCommand(byte[] command) throws IOException {
+        try {
+            this.frame.putBytes(command);
+        } catch (RuntimeException e) {
+            discardFrame();
+            throw e;
+        }
+        if (recorder != null) {
+            recorder.command(command);
+        }
+    }
+
+    synchronized void writeByte(byte b) throws IOException {
+        try {
+            this.frame.putByte(b);
+        } catch (RuntimeException e) {
+            discardFrame();
+            throw e;
+        }
+    }
+
+    synchronized void writeInt(int i) throws IOException {
+        try {
+            this.frame.putInt(i);
+        } catch (RuntimeException e) {
+            discardFrame();
+            throw e;
+        }
+    }
+
     /**
      * Write a string on the socket.
      *
@@ -464,13 +1533,16 @@ public class CqiClient {
      *
      * @throws IOException Signals that an I/O exception has occurred.
      */
-    private synchronized void writeString(String string, Charset charset) throws IOException {
-        byte[] bytes = string.getBytes(charset);
-        this.streamToServer.writeShort(bytes.length);
-        this.streamToServer.write(bytes);
+    synchronized void writeString(String string, Charset charset) throws IOException {
+        try {
+            this.frame.putString(string, charset);
+        } catch (RuntimeException e) {
+            discardFrame();
+            throw e;
+        }
     }
 
-    private synchronized void writeString(String string) throws IOException {
+    synchronized void writeString(String string) throws IOException {
         writeString(string, DEFAULT_CHARSET);
     }
 
@@ -481,11 +1553,12 @@ public class CqiClient {
      *
      * @throws IOException Signals that an I/O exception has occurred.
      */
-    private synchronized void writeIntArray(int[] ints) throws IOException {
-        int length = ints.length;
-        this.streamToServer.writeInt(length);
-        for (int i = 0; i < length; i++) {
-            this.streamToServer.writeInt(ints[i]);
+    synchronized void writeIntArray(int[] ints) throws IOException {
+        try {
+            this.frame.putIntArray(ints);
+        } catch (RuntimeException e) {
+            discardFrame();
+            throw e;
         }
     }
 
@@ -496,10 +1569,12 @@ public class CqiClient {
      *
      * @throws IOException Signals that an I/O exception has occurred.
      */
-    private synchronized void writeIntArray(int[] ints, int length) throws IOException {
-        this.streamToServer.writeInt(length);
-        for (int i = 0; i < length; i++) {
-            this.streamToServer.writeInt(ints[i]);
+    synchronized void writeIntArray(int[] ints, int length) throws IOException {
+        try {
+            this.frame.putIntArray(ints, length);
+        } catch (RuntimeException e) {
+            discardFrame();
+            throw e;
         }
     }
 
@@ -510,11 +1585,48 @@ public class CqiClient {
      *
      * @throws IOException Signals that an I/O exception has occurred.
      */
-    private synchronized void writeIntArray(int from, int to) throws IOException {
-        this.streamToServer.writeInt(to - from + 1);
-        for (int i = from; i <= to; i++) {
-            this.streamToServer.writeInt(i);
+    synchronized void writeIntArray(int from, int to) throws IOException {
+        try {
+            this.frame.putIntRange(from, to);
+        } catch (RuntimeException e) {
+            discardFrame();
+            throw e;
+        }
+    }
+
+    /**
+     * Drops the frame after an argument could not be encoded (e.g. a null or
+     * too long string), so that the commands written so far are not sent
+     * ahead of the next request.
+     */
+    private void discardFrame() {
+        this.frame.clear();
+        if (recorder != null) {
+            recorder.discard();
+        }
+    }
+
+    /**
+     * Send the command(s) encoded in the frame to the server in one write.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    synchronized void flushFrame() throws IOException {
+        if (this.frame.isEmpty()) {
+            return;
+        }
+        if (recorder == null) {
+            this.frame.writeTo(this.streamToServer);
+            return;
         }
+        int size = this.frame.size();
+        try {
+            this.frame.writeTo(this.streamToServer);
+        } catch (IOException e) {
+            recorder.discard();
+            throw e;
+        }
+        recorder.sent(size, received.count);
     }
 
     /**
@@ -531,11 +1643,7 @@ public class CqiClient {
         if (readHeaderFromServer() != CQI_DATA_STRING) {
             throw new CqiClientException(UNEXPECTED_ANSWER);
         }
-        short length = this.streamFromServer.readShort();
-        byte[] bytes = new byte[length];
-        this.streamFromServer.readFully(bytes);
-        String res = new String(bytes, charset);
-        return res;
+        return stringDecoder.readString(this.streamFromServer, charset);
     }
 
     private synchronized String readString() throws
@@ -567,7 +1675,7 @@ public class CqiClient {
      * unexpected
      * @throws IOException Signals that an I/O exception has occurred.
      */
-    private synchronized int readInt() throws CqiClientException, IOException {
+    synchronized int readInt() throws CqiClientException, IOException {
         if (readHeaderFromServer() != CQI_DATA_INT) {
             throw new CqiClientException(UNEXPECTED_ANSWER);
         }
@@ -582,7 +1690,20 @@ public class CqiClient {
      *
      * @throws CqiClientException
      */
-    private synchronized String[] readStringArray(Charset charset)
+    synchronized String[] readStringArray(Charset charset)
+            throws CqiClientException {
+        return readStringArray(charset, null);
+    }
+
+    /**
+     * Read a string array of values of <attribute> from the socket, interning
+     * repeated values.
+     *
+     * @return the string array
+     *
+     * @throws CqiClientException
+     */
+    synchronized String[] readStringArray(Charset charset, String attribute)
             throws CqiClientException {
         try {
             byte[] header = readHeaderFromServer();
@@ -590,77 +1711,142 @@ public class CqiClient {
                 throw new CqiClientException(UNEXPECTED_ANSWER);
             }
             int arrayLength = this.streamFromServer.readInt();
-            String[] strings = new String[arrayLength];
-            for (int i = 0; i < arrayLength; i++) {
-                short stringLength = this.streamFromServer.readShort();
-                byte[] bytes = new byte[stringLength];
-                this.streamFromServer.readFully(bytes);
-                strings[i] = new String(bytes, charset);
-            }
-            return strings;
+            return stringDecoder.readStrings(this.streamFromServer, arrayLength, charset, attribute);
         } catch (IOException e) {
             throw new CqiClientException("Error reading a string array", e);
         }
     }
 
-    private synchronized int[] readIntArray() throws CqiClientException {
-	try {
-	    byte[] header = readHeaderFromServer();
-	    if (header != CQI_DATA_INT_LIST) {
-		throw new CqiClientException(UNEXPECTED_ANSWER);
-	    }
-	    int arrayLength = this.streamFromServer.readInt();
-	    int bsize = arrayLength * 4;
-	    int[] output = new int[arrayLength];
-	    byte[] abuffer = new byte[bsize];
-	    streamFromServer.readFully(abuffer, 0, bsize);
-	    for (int i = 0; i + 3 < bsize; i += 4) {
-		output[i >> 2] = bytesToInt(abuffer[i], abuffer[i+1], abuffer[i+2], abuffer[i+3]);
-	    }
-	    return output;
-	} catch (IOException e) {
-	    throw new CqiClientException("Error reading an int array", e);
-	}
+    synchronized int[] readIntArray() throws CqiClientException {
+        try {
+            if (readHeaderFromServer() != CQI_DATA_INT_LIST) {
+                throw new CqiClientException(UNEXPECTED_ANSWER);
+            }
+            int[] output = new int[this.streamFromServer.readInt()];
+            readInts(output.length, output, 0);
+            return output;
+        } catch (IOException e) {
+            throw new CqiClientException("Error reading an int array", e);
+        }
+    }
+
+    /**
+     * Read an int table from the socket.
+     *
+     * @return the rows of the table
+     *
+     * @throws CqiClientException
+     */
+    synchronized int[][] readIntTable() throws CqiClientException {
+        try {
+            if (readHeaderFromServer() != CQI_DATA_INT_TABLE) {
+                throw new CqiClientException(UNEXPECTED_ANSWER);
+            }
+            int rows = this.streamFromServer.readInt();
+            int columns = this.streamFromServer.readInt();
+            int[][] table = new int[rows][columns];
+            int chunk = Math.max(1, (REPLY_BUFFER_SIZE >> 2) / Math.max(columns, 1));
+            for (int i = 0; i < rows; i += chunk) {
+                int n = Math.min(chunk, rows - i);
+                this.streamFromServer.readFully(replyBytes, 0, n * columns * 4);
+                replyInts.clear();
+                for (int j = i; j < i + n; j++) {
+                    replyInts.get(table[j]);
+                }
+            }
+            return table;
+        } catch (IOException e) {
+            throw new CqiClientException("Error reading an int table", e);
+        }
     }
 
     /**
-     * Read an int array from the socket.
+     * Read an int list from the socket into <output>.
      *
-     * @return the int array
+     * @return the length of the list
      *
      * @throws CqiClientException
      * @throws IOException
      */
-    private synchronized void readIntList(int[] output) throws CqiClientException,
+    private synchronized int readIntList(int[] output) throws CqiClientException,
             IOException {
+        return readIntList(output, 0);
+    }
+
+    /**
+     * Read an int list from the socket into <output> starting at <offset>.
+     * A list that doesn't fit is consumed and reported as an error.
+     *
+     * @return the length of the list
+     *
+     * @throws CqiClientException
+     * @throws IOException
+     */
+    private synchronized int readIntList(int[] output, int offset)
+            throws CqiClientException, IOException {
         if ((readHeaderFromServer()) != CQI_DATA_INT_LIST) {
             throw new CqiClientException(UNEXPECTED_ANSWER);
         }
         int arrayLength = this.streamFromServer.readInt();
-        if (output.length < arrayLength) {
+        if (output.length - offset < arrayLength) {
+            skipInts(arrayLength);
             throw new CqiClientException(INSUFFICIENT_BUFFER_SIZE);
         }
-        int bsize = arrayLength * 4;
-        if (byteBuffer.length < bsize) {
+        readInts(arrayLength, output, offset);
+        return arrayLength;
+    }
+
+    /**
+     * Read an int list from the socket into the remaining space of <output>,
+     * advancing its position.
+     *
+     * @return the length of the list
+     *
+     * @throws CqiClientException
+     * @throws IOException
+     */
+    private synchronized int readIntList(IntBuffer output)
+            throws CqiClientException, IOException {
+        if ((readHeaderFromServer()) != CQI_DATA_INT_LIST) {
+            throw new CqiClientException(UNEXPECTED_ANSWER);
+        }
+        int arrayLength = this.streamFromServer.readInt();
+        if (output.remaining() < arrayLength) {
+            skipInts(arrayLength);
             throw new CqiClientException(INSUFFICIENT_BUFFER_SIZE);
         }
-        streamFromServer.readFully(byteBuffer, 0, bsize);
-        for (int i = 0; i + 3 < bsize; i += 4) {
-            output[i >> 2] = bytesToInt(byteBuffer[i], byteBuffer[i + 1], byteBuffer[i + 2], byteBuffer[i + 3]);
+        for (int count = arrayLength; count > 0; ) {
+            int n = Math.min(count, REPLY_BUFFER_SIZE >> 2);
+            this.streamFromServer.readFully(replyBytes, 0, n << 2);
+            replyInts.clear();
+            replyInts.limit(n);
+            output.put(replyInts);
+            count -= n;
         }
+        return arrayLength;
     }
 
     /**
-     * Bytes to int.
-     *
-     * @param a the a
-     * @param b the b
-     * @param c the c
-     * @param d the d
-     * @return the int
+     * Decodes <count> big-endian ints from the socket into <output> from
+     * <offset>, through the reply buffer.
      */
-    private synchronized static int bytesToInt(byte a, byte b, byte c, byte d) {
-        return (((a & 0xff) << 24) | ((b & 0xff) << 16) | ((c & 0xff) << 8) | (d & 0xff));
+    private void readInts(int count, int[] output, int offset) throws IOException {
+        while (count > 0) {
+            int n = Math.min(count, REPLY_BUFFER_SIZE >> 2);
+            this.streamFromServer.readFully(replyBytes, 0, n << 2);
+            replyInts.clear();
+            replyInts.get(output, offset, n);
+            offset += n;
+            count -= n;
+        }
+    }
+
+    private void skipInts(int count) throws IOException {
+        while (count > 0) {
+            int n = Math.min(count, REPLY_BUFFER_SIZE >> 2);
+            this.streamFromServer.readFully(replyBytes, 0, n << 2);
+            count -= n;
+        }
     }
 
     /**
@@ -673,7 +1859,12 @@ public class CqiClient {
      */
     private synchronized byte[] readHeaderFromServer()
             throws CqiClientException, IOException {
+        // every reply is preceded by its request: send whatever is pending
+        flushFrame();
         byte b = this.streamFromServer.readByte();
+        if (recorder != null) {
+            recorder.replied();
+        }
         switch (b) {
             case 0x00:// cf cqi.h:29
                 return CQI_PADDING;
@@ -694,15 +1885,15 @@ public class CqiClient {
                 b = this.streamFromServer.readByte();
                 switch (b) {
                     case 0x01:// cf cqi.h:39
-                        throw new CqiClientException(GENERAL_ERROR);
+                        throw serverError(GENERAL_ERROR);
                     case 0x02:// cf cqi.h:40
-                        throw new CqiClientException(CONNECTION_REFUSED_ERROR);
+                        throw serverError(CONNECTION_REFUSED_ERROR);
                     case 0x03:// cf cqi.h:41
-                        throw new CqiClientException(USER_ABORT_ERROR);
+                        throw serverError(USER_ABORT_ERROR);
                     case 0x04:// cf cqi.h:42
-                        throw new CqiClientException(SYNTAX_ERROR);
+                        throw serverError(SYNTAX_ERROR);
                     default:
-                        throw new CqiClientException(INTERNAL_CQI_ERROR);
+                        throw serverError(INTERNAL_CQI_ERROR);
                 }
             case 0x03:// cf cqi.h:53
                 b = this.streamFromServer.readByte();
@@ -737,43 +1928,66 @@ public class CqiClient {
                 b = this.streamFromServer.readByte();
                 switch (b) {
                     case 0x01:// cf cqi.h:39
-                        throw new CqiClientException(NO_SUCH_ATTRIBUTE_ERROR);
+                        throw serverError(NO_SUCH_ATTRIBUTE_ERROR);
                     case 0x02:// cf cqi.h:40
-                        throw new CqiClientException(WRONG_ATTRIBUTE_TYPE_ERROR);
+                        throw serverError(WRONG_ATTRIBUTE_TYPE_ERROR);
                     case 0x03:// cf cqi.h:41
-                        throw new CqiClientException(OUT_OF_RANGE_ERROR);
+                        throw serverError(OUT_OF_RANGE_ERROR);
                     case 0x04:// cf cqi.h:42
-                        throw new CqiClientException(REGEX_ERROR + ": " + getLastCqiError());
+                        throw serverError(REGEX_ERROR, false);
                     case 0x05:// cf cqi.h:42
-                        throw new CqiClientException(CORPUS_ACCESS_ERROR);
+                        throw serverError(CORPUS_ACCESS_ERROR);
                     case 0x06:// cf cqi.h:42
-                        throw new CqiClientException(OUT_OF_MEMORY_ERROR);
+                        throw serverError(OUT_OF_MEMORY_ERROR);
                     case 0x07:// cf cqi.h:42
-                        throw new CqiClientException(INTERNAL_ERROR);
+                        throw serverError(INTERNAL_ERROR);
                     default:
-                        throw new CqiClientException(INTERNAL_CL_ERROR);
+                        throw serverError(INTERNAL_CL_ERROR);
                 }
             case 0x05:// cf cqi.h:94
 
                 b = this.streamFromServer.readByte();
                 switch (b) {
                     case 0x01:// cf cqi.h:39
-                        throw new CqiClientException(GENERAL_CQP_ERROR);
+                        throw serverError(GENERAL_CQP_ERROR);
                     case 0x02:// cf cqi.h:40
-                        throw new CqiClientException(NO_SUCH_CORPUS_CQP_ERROR);
+                        throw serverError(NO_SUCH_CORPUS_CQP_ERROR);
                     case 0x03:// cf cqi.h:41
-                        throw new CqiClientException(INVALID_FIELD_CQP_ERROR);
+                        throw serverError(INVALID_FIELD_CQP_ERROR);
                     case 0x04:// cf cqi.h:42
-                        throw new CqiClientException(OUT_OF_RANGE_CQP_ERROR);
+                        throw serverError(OUT_OF_RANGE_CQP_ERROR);
                     case 0x05:// cf cqi.h:44
-                        throw new CqiClientException(SYNTAX_CQP_ERROR + ": " + getLastCQPError());
+                        throw serverError(SYNTAX_CQP_ERROR, true);
                     default:
-                        throw new CqiClientException(INTERNAL_CQP_ERROR);
+                        throw serverError(INTERNAL_CQP_ERROR);
                 }
         }
         return null;
     }
 
+    /**
+     * The exception for an error reply of <kind>, counted in the stats.
+     */
+    private CqiClientException serverError(String kind) {
+        if (recorder != null) {
+            recorder.error(kind);
+        }
+        return new CqiClientException(kind);
+    }
+
+    /**
+     * Like serverError, with the description of the error given by the
+     * server unless deferred (see setDeferLastError).
+     */
+    private CqiClientException serverError(String kind, boolean cqpError)
+            throws CqiClientException, IOException {
+        CqiClientException error = serverError(kind);
+        if (deferLastError) {
+            return error;
+        }
+        return new CqiClientException(kind + ": " + (cqpError ? getLastCQPError() : getLastCqiError()));
+    }
+
     /**
      * Ask the server to execute a function with a String->String signature.
      *
@@ -786,7 +2000,7 @@ public class CqiClient {
      */
     private synchronized String genericStringToString(String string,
             byte[] function) throws CqiClientException, IOException {
-        this.streamToServer.write(function);
+        this.writeCommand(function);
         this.writeString(string, DEFAULT_CHARSET);
         return readString(DEFAULT_CHARSET);
     }
@@ -803,7 +2017,7 @@ public class CqiClient {
     private synchronized String[] genericStringToStringArray(String string,
             byte[] function) throws CqiClientException {
         try {
-            this.streamToServer.write(function);
+            this.writeCommand(function);
             this.writeString(string, DEFAULT_CHARSET);
         } catch (IOException e) {
             throw new CqiClientException(SERVER_IO_ERROR, e);
@@ -825,10 +2039,10 @@ public class CqiClient {
             String string, int[] ints, byte[] function, Charset charset) throws
             CqiClientException {
         try {
-            this.streamToServer.write(function);
+            this.writeCommand(function);
             this.writeString(string, charset);
             this.writeIntArray(ints);
-            String[] res = readStringArray(charset);
+            String[] res = readStringArray(charset, string);
             return res;
         } catch (IOException e) {
             throw new CqiClientException(SERVER_IO_ERROR, e);
@@ -839,10 +2053,10 @@ public class CqiClient {
             String string, int fromPosition, int toPosition, byte[] function, Charset charset) throws
             CqiClientException {
         try {
-            this.streamToServer.write(function);
+            this.writeCommand(function);
             this.writeString(string, charset);
             this.writeIntArray(fromPosition, toPosition);
-            String[] res = readStringArray(charset);
+            String[] res = readStringArray(charset, string);
             return res;
         } catch (IOException e) {
             throw new CqiClientException(SERVER_IO_ERROR, e);
@@ -863,7 +2077,7 @@ public class CqiClient {
     private synchronized int[] genericStringXIntArraytoIntArray(String string, 
             int[] ints, byte[] function) throws CqiClientException {
 	try {
-	    this.streamToServer.write(function);
+	    this.writeCommand(function);
 	    this.writeString(string);
 	    this.writeIntArray(ints);
 	    int[] output = readIntArray();
@@ -876,7 +2090,7 @@ public class CqiClient {
     private synchronized int[] genericStringXIntArraytoIntArray(String string, 
               int fromPosition, int toPosition, byte[] function) throws CqiClientException {
 	try {
-	    this.streamToServer.write(function);
+	    this.writeCommand(function);
 	    this.writeString(string);
 	    this.writeIntArray(fromPosition, toPosition);
 	    int[] output = readIntArray();
@@ -889,7 +2103,7 @@ public class CqiClient {
     private synchronized void genericStringXIntArraytoIntArray(String string,
             int[] ints, byte[] function, int[] output, int size) throws CqiClientException {
         try {
-            this.streamToServer.write(function);
+            this.writeCommand(function);
             this.writeString(string);
             this.writeIntArray(ints, size);
             readIntList(output);
@@ -899,6 +2113,47 @@ public class CqiClient {
     }
 
 
+    /**
+     * While set, errors whose details are normally fetched with
+     * CQI_CTRL_LAST_*_ERROR are reported without them: further replies are
+     * still waiting on the socket ahead of the answer (see CqiPipeline).
+     */
+    synchronized void setDeferLastError(boolean defer) {
+        this.deferLastError = defer;
+    }
+
+    synchronized boolean isDeferLastError() {
+        return deferLastError;
+    }
+
+    /**
+     * Completes the message of an error raised while deferLastError was set
+     * with the details kept by the server, if it is of a kind that has them.
+     *
+     * @param message the message of the deferred error
+     * @return the completed message
+     * @throws CqiClientException
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    synchronized String lastErrorMessage(String message) throws CqiClientException, IOException {
+        if (REGEX_ERROR.equals(message)) {
+            return REGEX_ERROR + ": " + getLastCqiError();
+        }
+        if (SYNTAX_CQP_ERROR.equals(message)) {
+            return SYNTAX_CQP_ERROR + ": " + getLastCQPError();
+        }
+        return message;
+    }
+
+    /**
+     * Creates a pipeline to send several commands before reading their replies.
+     *
+     * @return a new, empty pipeline on this connection
+     */
+    public CqiPipeline pipeline() {
+        return new CqiPipeline(this);
+    }
+
     /**
      * return the last CQP error.
      *
@@ -908,8 +2163,8 @@ public class CqiClient {
      * @throws IOException Signals that an I/O exception has occurred.
      * @throws CqiServerError Signals that the cqi server raised an error
      */
-    private synchronized String getLastCqiError() throws CqiClientException, IOException {
-        this.streamToServer.write(CQI_CTRL_LAST_GENERAL_ERROR);
+    synchronized String getLastCqiError() throws CqiClientException, IOException {
+        this.writeCommand(CQI_CTRL_LAST_GENERAL_ERROR);
 
         try {
             String ret = readString();
@@ -928,9 +2183,9 @@ public class CqiClient {
      * @throws IOException Signals that an I/O exception has occurred.
      * @throws CqiServerError Signals that the cqi server raised an error
      */
-    private synchronized String getLastCQPError() throws CqiClientException, IOException {
+    synchronized String getLastCQPError() throws CqiClientException, IOException {
 
-        this.streamToServer.write(CQI_CTRL_LAST_CQP_ERROR);
+        this.writeCommand(CQI_CTRL_LAST_CQP_ERROR);
 
         try {
             String ret = readString();
@@ -959,6 +2214,88 @@ public class CqiClient {
                 CQI_CL_CPOS2STR, charset);
     }
 
+    /**
+     * Converts positions to their lexicon id given a positional attribute.
+     *
+     * @param attribute the attribute
+     * @param cpos the cpos
+     * @return the lexicon ids
+     * @throws CqiClientException
+     */
+    synchronized int[] cpos2Id(String attribute, int[] cpos) throws CqiClientException {
+        return genericStringXIntArraytoIntArray(attribute, cpos, CQI_CL_CPOS2ID);
+    }
+
+    synchronized int[] cpos2Id(String attribute, int fromPosition, int toPosition)
+        throws CqiClientException {
+        return genericStringXIntArraytoIntArray(attribute, fromPosition, toPosition, CQI_CL_CPOS2ID);
+    }
+
+    synchronized void cpos2Id(String attribute, int[] cpos, int[] output, int size)
+        throws CqiClientException {
+        genericStringXIntArraytoIntArray(attribute, cpos, CQI_CL_CPOS2ID, output, size);
+    }
+
+    /**
+     * Converts lexicon ids to their string given a positional attribute.
+     *
+     * @param attribute the attribute
+     * @param ids the lexicon ids
+     * @return the strings
+     * @throws CqiClientException
+     */
+    synchronized String[] id2Str(String attribute, int[] ids, Charset charset)
+        throws CqiClientException {
+        return genericStringXIntArraytoStringArray(attribute, ids, CQI_CL_ID2STR, charset);
+    }
+
+    /**
+     * Gives the corpus frequencies of lexicon ids of a positional attribute.
+     *
+     * @param attribute the attribute
+     * @param ids the lexicon ids
+     * @return the frequencies
+     * @throws CqiClientException
+     */
+    synchronized int[] id2Freq(String attribute, int[] ids) throws CqiClientException {
+        return genericStringXIntArraytoIntArray(attribute, ids, CQI_CL_ID2FREQ);
+    }
+
+    /**
+     * Gives the number of positions of a positional attribute, or of regions
+     * of a structural one.
+     *
+     * @param attribute the attribute
+     * @return the attribute size
+     * @throws CqiClientException
+     */
+    synchronized int attributeSize(String attribute) throws CqiClientException {
+        try {
+            this.writeCommand(CQI_CL_ATTRIBUTE_SIZE);
+            this.writeString(attribute);
+            return this.readInt();
+        } catch (IOException e) {
+            throw new CqiClientException(SERVER_IO_ERROR, e);
+        }
+    }
+
+    /**
+     * Gives the number of entries in the lexicon of a positional attribute.
+     *
+     * @param attribute the attribute
+     * @return the lexicon size
+     * @throws CqiClientException
+     */
+    synchronized int lexiconSize(String attribute) throws CqiClientException {
+        try {
+            this.writeCommand(CQI_CL_LEXICON_SIZE);
+            this.writeString(attribute);
+            return this.readInt();
+        } catch (IOException e) {
+            throw new CqiClientException(SERVER_IO_ERROR, e);
+        }
+    }
+
     /**
      * Computes for each position of an array the Id of the enclosing structural
      * attribute.
@@ -993,17 +2330,17 @@ public class CqiClient {
      * @return the positions of the left boundaries
      * @throws CqiClientException
      */
-    synchronized int[] cpos2LBound(String attribute, int[] cpos)
+    public synchronized int[] cpos2LBound(String attribute, int[] cpos)
 	throws CqiClientException {
         return genericStringXIntArraytoIntArray(attribute, cpos, CQI_CL_CPOS2LBOUND);
     }
 
-    synchronized int[] cpos2LBound(String attribute, int fromPosition, int toPosition) 
+    public synchronized int[] cpos2LBound(String attribute, int fromPosition, int toPosition) 
 	throws CqiClientException {
 	return genericStringXIntArraytoIntArray(attribute, fromPosition, toPosition, CQI_CL_CPOS2LBOUND);
     }
 
-    synchronized void cpos2LBound(String attribute, int[] cpos, int[] output, int size)
+    public synchronized void cpos2LBound(String attribute, int[] cpos, int[] output, int size)
 	throws CqiClientException {
         genericStringXIntArraytoIntArray(attribute, cpos, CQI_CL_CPOS2LBOUND, output, size);
     }
@@ -1017,20 +2354,54 @@ public class CqiClient {
      * @return the positions of the right boundaries
      * @throws CqiClientException
      */
-    synchronized int[] cpos2RBound(String attribute, int[] cpos)
+    public synchronized int[] cpos2RBound(String attribute, int[] cpos)
 	throws CqiClientException {
         return genericStringXIntArraytoIntArray(attribute, cpos, CQI_CL_CPOS2RBOUND);
     }
 
-    synchronized int[] cpos2RBound(String attribute, int fromPosition, int toPosition) 
+    public synchronized int[] cpos2RBound(String attribute, int fromPosition, int toPosition) 
 	throws CqiClientException {
 	return genericStringXIntArraytoIntArray(attribute, fromPosition, toPosition, CQI_CL_CPOS2RBOUND);
     }
 
-    synchronized void cpos2RBound(String attribute, int[] cpos, int[] output, int size)
+    public synchronized void cpos2RBound(String attribute, int[] cpos, int[] output, int size)
 	throws CqiClientException {
         genericStringXIntArraytoIntArray(attribute, cpos, CQI_CL_CPOS2RBOUND, output, size);
     }
+
+    /**
+     * Bounds of the regions of the structural attribute <attribute> (e.g.
+     * "s") that enclose each hit: the left bound of the region of its first
+     * position and the right bound of the region of its last one. Both are
+     * asked for all hits at once, in a single round trip. Ends of a hit
+     * outside any region are their own bounds.
+     *
+     * @param corpus the corpus name
+     * @param attribute the structural attribute
+     * @param matchStart first position of each hit
+     * @param matchEnd last position of each hit
+     * @return {left bounds, right bounds}
+     * @throws CqiClientException
+     */
+    public synchronized int[][] regionBounds(String corpus, String attribute,
+            int[] matchStart, int[] matchEnd) throws CqiClientException {
+        if (matchStart.length == 0) {
+            return new int[][]{new int[0], new int[0]};
+        }
+        String attributeName = String.format("%s.%s", corpus, attribute);
+        CqiPipeline pipeline = pipeline();
+        CqiPipeline.Reply<int[]> left = pipeline.cpos2LBound(attributeName, matchStart);
+        CqiPipeline.Reply<int[]> right = pipeline.cpos2RBound(attributeName, matchEnd);
+        pipeline.sync();
+        int[] lbounds = left.get();
+        int[] rbounds = right.get();
+        for (int i = 0; i < lbounds.length; i++) {
+            lbounds[i] = (lbounds[i] < 0) ? matchStart[i] : lbounds[i];
+            rbounds[i] = (rbounds[i] < 0) ? matchEnd[i] : rbounds[i];
+        }
+        return new int[][]{lbounds, rbounds};
+    }
+
     /**
      * Retrieves annotated string values of structure regions in <strucs>; "" if
      * out of range.
@@ -1056,14 +2427,43 @@ public class CqiClient {
      */
     private synchronized void cqpQuery(String corpus, String subcorpus,
             String query, Charset charset) throws CqiClientException {
+        long started = beginOperation();
         try {
-            this.streamToServer.write(CQI_CQP_QUERY);
+            this.writeCommand(CQI_CQP_QUERY);
             this.writeString(corpus);
             this.writeString(subcorpus);
             this.writeString(query, charset);
             this.readHeaderFromServer();
         } catch (IOException e) {
             throw new CqiClientException(SERVER_IO_ERROR, e);
+        } finally {
+            endOperation("query", started);
+        }
+        subCorpusCreated(corpus, subcorpus);
+    }
+
+    /**
+     * Reads the reply to a CQI_CQP_QUERY sent by a pipeline and records the
+     * subcorpus it created.
+     */
+    synchronized void readQueryReply(String corpus, String subcorpus)
+            throws CqiClientException, IOException {
+        readHeaderFromServer();
+        subCorpusCreated(corpus, subcorpus);
+    }
+
+    /**
+     * Forgets what the caches knew of <corpus>:<subcorpus>, which a query
+     * has just (re)written, and records it as created through this client.
+     */
+    private void subCorpusCreated(String corpus, String subcorpus) {
+        if (queryCache != null) {
+            queryCache.forget(String.format("%s:%s", corpus, subcorpus));
+        }
+        createdSubcorpora.add(String.format("%s:%s", corpus, subcorpus));
+        CorpusInfo info = corpora.get(corpus);
+        if (info != null && info.subcorpora != null) {
+            info.subcorpora.add(subcorpus);
         }
     }
 
@@ -1079,7 +2479,7 @@ public class CqiClient {
     private synchronized int subCorpusSize(String subcorpus) throws
             CqiClientException {
         try {
-            this.streamToServer.write(CQI_CQP_SUBCORPUS_SIZE);
+            this.writeCommand(CQI_CQP_SUBCORPUS_SIZE);
             this.writeString(subcorpus);
             return this.readInt();
         } catch (IOException e) {
@@ -1103,11 +2503,11 @@ public class CqiClient {
     synchronized void dumpSubCorpusBuffer(String subcorpus, byte field,
             int first, int last, int[] output) throws CqiClientException {
         try {
-            this.streamToServer.write(CQI_CQP_DUMP_SUBCORPUS);
+            this.writeCommand(CQI_CQP_DUMP_SUBCORPUS);
             this.writeString(subcorpus);
-            this.streamToServer.writeByte(field);
-            this.streamToServer.writeInt(first);
-            this.streamToServer.writeInt(last);
+            this.writeByte(field);
+            this.writeInt(first);
+            this.writeInt(last);
             this.readIntList(output);
         } catch (IOException e) {
             throw new CqiClientException(SERVER_IO_ERROR, e);
@@ -1124,11 +2524,20 @@ public class CqiClient {
     synchronized void dropSubCorpus(String subcorpus) throws
             CqiClientException {
         try {
-            this.streamToServer.write(CQI_CQP_DROP_SUBCORPUS);
+            this.writeCommand(CQI_CQP_DROP_SUBCORPUS);
             this.writeString(subcorpus);
             this.readHeaderFromServer();
         } catch (IOException e) {
             throw new CqiClientException(SERVER_IO_ERROR, e);
         }
+        if (queryCache != null) {
+            queryCache.forget(subcorpus);
+        }
+        createdSubcorpora.remove(subcorpus);
+        int colon = subcorpus.indexOf(':');
+        CorpusInfo info = (colon < 0) ? null : corpora.get(subcorpus.substring(0, colon));
+        if (info != null && info.subcorpora != null) {
+            info.subcorpora.remove(subcorpus.substring(colon + 1));
+        }
     }
 }
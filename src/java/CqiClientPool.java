@@ -0,0 +1,363 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of connected and authenticated CqiClients. Each CqiClient
+ * serializes its calls, so concurrent users should each borrow their own
+ * connection and give it back with release once done.
+ *
+ * <pre>
+ * CqiClient client = pool.borrow();
+ * try {
+ *     ...
+ * } finally {
+ *     pool.release(client);
+ * }
+ * </pre>
+ *
+ * Connections that failed (e.g. after an IO error) should be given back with
+ * invalidate instead, so that they are closed rather than reused.
+ */
+public class CqiClientPool implements Closeable {
+
+    private static final String POOL_CLOSED = "Connection pool is closed";
+    private static final String POOL_EXHAUSTED = "Timed out waiting for a pooled connection";
+    private static final String POOL_INTERRUPTED = "Interrupted while waiting for a pooled connection";
+    private static final String AUTHENTICATION_ERROR = "Server did not accept the credentials";
+    /**
+     * Waiting borrowers wake up at least this often to see whether a
+     * connection was invalidated, leaving room for a new one.
+     */
+    private static final long WAIT_SLICE = 50;
+
+    private static final class Entry {
+        private final CqiClient client;
+        private final long lastUsed;
+
+        private Entry(CqiClient client, long lastUsed) {
+            this.client = client;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final String user;
+    private final String password;
+    private final CqiPoolOptions options;
+    private final LinkedBlockingDeque<Entry> idle = new LinkedBlockingDeque<Entry>();
+    private final Set<CqiClient> borrowed =
+            Collections.newSetFromMap(new ConcurrentHashMap<CqiClient, Boolean>());
+    private final AtomicInteger size = new AtomicInteger();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates the pool and opens its first options.getMinSize() connections.
+     *
+     * @param host the host of the CQI server
+     * @param port the port of the CQI server
+     * @param user the username
+     * @param password the password
+     * @param options pool settings
+     * @throws CqiClientException if the initial connections cannot be opened
+     */
+    public CqiClientPool(String host, int port, String user, String password,
+            CqiPoolOptions options) throws CqiClientException {
+        this.host = host;
+        this.port = port;
+        this.user = user;
+        this.password = password;
+        this.options = options;
+        try {
+            while (size.get() < options.getMinSize()) {
+                size.incrementAndGet();
+                idle.offerLast(new Entry(open(), System.currentTimeMillis()));
+            }
+        } catch (CqiClientException e) {
+            size.decrementAndGet();
+            close();
+            throw e;
+        }
+        this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "cqi-pool-evictor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long interval = options.getEvictionInterval();
+        this.evictor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                evict();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public CqiClientPool(String host, int port, String user, String password)
+            throws CqiClientException {
+        this(host, port, user, password, new CqiPoolOptions());
+    }
+
+    /**
+     * Borrows a connection, waiting up to the configured borrow timeout.
+     */
+    public CqiClient borrow() throws CqiClientException {
+        return borrow(options.getBorrowTimeout());
+    }
+
+    /**
+     * Borrows a connection. Idle connections are reused most recently used
+     * first, and are pinged first if they have been idle for a while. A new
+     * connection is opened if none is idle and the pool is not full.
+     *
+     * @param timeout how long to wait for a connection in ms
+     * @return a connected client
+     * @throws CqiClientException if the pool is closed, no connection became
+     * available in time or a new one could not be opened
+     */
+    public CqiClient borrow(long timeout) throws CqiClientException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (true) {
+            if (closed) {
+                throw new CqiClientException(POOL_CLOSED);
+            }
+            Entry entry = idle.pollFirst();
+            if (entry == null && reserve()) {
+                CqiClient client;
+                try {
+                    client = open();
+                } catch (CqiClientException e) {
+                    size.decrementAndGet();
+                    throw e;
+                }
+                borrowed.add(client);
+                recordWait(start);
+                return client;
+            }
+            if (entry == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    recordWait(start);
+                    throw new CqiClientException(POOL_EXHAUSTED);
+                }
+                try {
+                    entry = idle.pollFirst(Math.min(remaining,
+                            TimeUnit.MILLISECONDS.toNanos(WAIT_SLICE)), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CqiClientException(POOL_INTERRUPTED, e);
+                }
+                if (entry == null) {
+                    continue;
+                }
+            }
+            if (isAlive(entry)) {
+                borrowed.add(entry.client);
+                recordWait(start);
+                return entry.client;
+            }
+            destroy(entry.client, false);
+        }
+    }
+
+    /**
+     * Gives a healthy connection back to the pool. The subcorpora created
+     * through it are dropped and its caches and settings reset (see
+     * CqiClient.recycle), so the next borrower gets a clean connection; if
+     * that fails the connection is closed instead.
+     *
+     * @param client a client obtained from borrow
+     */
+    public void release(CqiClient client) {
+        if (!borrowed.remove(client)) {
+            throw new IllegalArgumentException("Client was not borrowed from this pool");
+        }
+        if (closed || client.isClosed()) {
+            destroy(client, !client.isClosed());
+            return;
+        }
+        try {
+            client.recycle(options.getStats());
+        } catch (CqiClientException e) {
+            destroy(client, false);
+            return;
+        }
+        offer(new Entry(client, System.currentTimeMillis()), true);
+    }
+
+    /**
+     * Gives back a connection that must not be reused; it is closed and its
+     * place in the pool freed.
+     *
+     * @param client a client obtained from borrow
+     */
+    public void invalidate(CqiClient client) {
+        if (borrowed.remove(client)) {
+            destroy(client, false);
+        }
+    }
+
+    /**
+     * Closes the idle connections and stops the evictor. Borrowed connections
+     * are closed when they are released.
+     */
+    public void close() {
+        closed = true;
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+        Entry entry;
+        while ((entry = idle.pollFirst()) != null) {
+            destroy(entry.client, true);
+        }
+    }
+
+    /**
+     * @return open connections, idle or borrowed
+     */
+    public int getSize() {
+        return size.get();
+    }
+
+    public int getMaxSize() {
+        return options.getMaxSize();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getBorrowedCount() {
+        return borrowed.size();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private void recordWait(long start) {
+        CqiStats stats = options.getStats();
+        if (stats != null) {
+            stats.recordPoolWait(System.nanoTime() - start);
+        }
+    }
+
+    private CqiClient open() throws CqiClientException {
+        CqiClient client = new CqiClient(host, port, options.getSocketOptions());
+        client.setStats(options.getStats());
+        try {
+            if (!client.connect(user, password)) {
+                throw new CqiClientException(AUTHENTICATION_ERROR);
+            }
+        } catch (CqiClientException e) {
+            client.close();
+            throw e;
+        }
+        return client;
+    }
+
+    /**
+     * Claims room for a new connection if the pool is not full.
+     */
+    private boolean reserve() {
+        while (true) {
+            int current = size.get();
+            if (current >= options.getMaxSize()) {
+                return false;
+            }
+            if (size.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean isAlive(Entry entry) {
+        if (entry.client.isClosed()) {
+            return false;
+        }
+        if (System.currentTimeMillis() - entry.lastUsed < options.getValidateAfterIdle()) {
+            return true;
+        }
+        try {
+            return entry.client.ping();
+        } catch (CqiClientException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Makes a connection idle. If the pool was closed meanwhile, close may
+     * have emptied the idle connections already, so it is closed here.
+     */
+    private void offer(Entry entry, boolean first) {
+        if (first) {
+            idle.offerFirst(entry);
+        } else {
+            idle.offerLast(entry);
+        }
+        if (closed && idle.removeFirstOccurrence(entry)) {
+            destroy(entry.client, true);
+        }
+    }
+
+    private void destroy(CqiClient client, boolean sayBye) {
+        size.decrementAndGet();
+        if (sayBye) {
+            try {
+                client.disconnect();
+            } catch (CqiClientException e) {
+                // closed below anyway
+            }
+        }
+        client.close();
+    }
+
+    /**
+     * Closes connections idle for too long, as long as the pool stays above
+     * its minimum size, then opens new ones if it fell below it.
+     */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> oldestFirst = idle.descendingIterator();
+        while (oldestFirst.hasNext() && size.get() > options.getMinSize()) {
+            Entry entry = oldestFirst.next();
+            if (now - entry.lastUsed > options.getMaxIdleTime() && idle.removeFirstOccurrence(entry)) {
+                destroy(entry.client, true);
+            }
+        }
+        while (!closed && size.get() < options.getMinSize() && reserve()) {
+            try {
+                offer(new Entry(open(), System.currentTimeMillis()), false);
+            } catch (CqiClientException e) {
+                size.decrementAndGet();
+                return;
+            }
+        }
+    }
+}
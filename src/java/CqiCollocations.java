@@ -0,0 +1,368 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collocates of the hits of a subcorpus: the values of a positional
+ * attribute within <left> positions before and <right> positions after each
+ * hit, with their association to the hits.
+ *
+ * Hits are dumped a chunk at a time and the lexicon ids of all the windows of
+ * a chunk are fetched with a single cpos2Id request, so only ids travel and
+ * nothing is kept per hit. Ids are counted in primitive open addressing
+ * tables, one per worker, merged at the end; memory is thus proportional to
+ * the number of distinct collocates. Given several clients, each one with the
+ * same query results in <subcorpus>, chunks are spread over them and counted
+ * on a thread per client.
+ *
+ * Scores compare the count of a collocate in the windows (O) with what its
+ * corpus frequency (ID2FREQ) predicts for as many tokens as the windows hold
+ * (E): log-likelihood of the 2x2 contingency table, mutual information
+ * log2(O / E) and t-score (O - E) / sqrt(O).
+ *
+ * <pre>
+ * CqiCollocations.Result result = new CqiCollocations("DICKENS", "Results", "lemma")
+ *     .setSpan(5, 5).setMinFrequency(3).compute(charset, client);
+ * </pre>
+ */
+public class CqiCollocations {
+
+    private static final int DEFAULT_CHUNK_SIZE = 1000;
+    /**
+     * Ids per ID2FREQ request when scoring.
+     */
+    private static final int FREQUENCY_BATCH = 1 << 16;
+
+    /**
+     * One collocate and its association scores.
+     */
+    public static final class Collocate {
+        private final int id;
+        private final String value;
+        private final int frequency;
+        private final int corpusFrequency;
+        private final double expected;
+        private final double logLikelihood;
+        private final double mutualInformation;
+        private final double tScore;
+
+        private Collocate(int id, String value, int frequency, int corpusFrequency,
+                long windowTokens, long corpusSize) {
+            this.id = id;
+            this.value = value;
+            this.frequency = frequency;
+            this.corpusFrequency = corpusFrequency;
+            double o11 = frequency;
+            double r1 = windowTokens;
+            double c1 = corpusFrequency;
+            double n = corpusSize;
+            this.expected = r1 * c1 / n;
+            this.logLikelihood = 2 * (term(o11, expected)
+                    + term(r1 - o11, r1 * (n - c1) / n)
+                    + term(c1 - o11, (n - r1) * c1 / n)
+                    + term(n - r1 - c1 + o11, (n - r1) * (n - c1) / n));
+            this.mutualInformation = Math.log(o11 / expected) / Math.log(2);
+            this.tScore = (o11 - expected) / Math.sqrt(o11);
+        }
+
+        private static double term(double observed, double expected) {
+            return (observed > 0 && expected > 0) ? observed * Math.log(observed / expected) : 0;
+        }
+
+        /**
+         * @return the lexicon id of the collocate
+         */
+        public int getId() {
+            return id;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        /**
+         * @return occurrences in the windows of the hits
+         */
+        public int getFrequency() {
+            return frequency;
+        }
+
+        public int getCorpusFrequency() {
+            return corpusFrequency;
+        }
+
+        /**
+         * @return occurrences in the windows expected from the corpus frequency
+         */
+        public double getExpected() {
+            return expected;
+        }
+
+        public double getLogLikelihood() {
+            return logLikelihood;
+        }
+
+        public double getMutualInformation() {
+            return mutualInformation;
+        }
+
+        public double getTScore() {
+            return tScore;
+        }
+    }
+
+    /**
+     * Collocates of a run, ordered by lexicon id.
+     */
+    public static final class Result {
+        private final int hits;
+        private final long windowTokens;
+        private final int corpusSize;
+        private final int distinct;
+        private final Collocate[] collocates;
+
+        private Result(int hits, long windowTokens, int corpusSize, int distinct, Collocate[] collocates) {
+            this.hits = hits;
+            this.windowTokens = windowTokens;
+            this.corpusSize = corpusSize;
+            this.distinct = distinct;
+            this.collocates = collocates;
+        }
+
+        public int getHits() {
+            return hits;
+        }
+
+        /**
+         * @return positions in the windows of all hits
+         */
+        public long getWindowTokens() {
+            return windowTokens;
+        }
+
+        public int getCorpusSize() {
+            return corpusSize;
+        }
+
+        /**
+         * @return distinct collocates counted, including those below the
+         * minimum frequency
+         */
+        public int getDistinctCollocates() {
+            return distinct;
+        }
+
+        public Collocate[] getCollocates() {
+            return collocates.clone();
+        }
+    }
+
+    /**
+     * Counts of one worker.
+     */
+    private final class Worker implements Runnable {
+        private final CqiClient client;
+        private final AtomicInteger nextChunk;
+        private final int hits;
+        private final int corpusSize;
+        private final IntCounts counts = new IntCounts();
+        private long windowTokens = 0;
+        private Throwable error = null;
+
+        private Worker(CqiClient client, AtomicInteger nextChunk, int hits, int corpusSize) {
+            this.client = client;
+            this.nextChunk = nextChunk;
+            this.hits = hits;
+            this.corpusSize = corpusSize;
+        }
+
+        public void run() {
+            String attributeName = corpus + "." + attribute;
+            int[] cpos = new int[chunkSize * (left + right)];
+            int[] ids = new int[cpos.length];
+            int[][] dump = new int[3][chunkSize];
+            try {
+                for (int chunk = nextChunk.getAndIncrement(); (long) chunk * chunkSize < hits;
+                        chunk = nextChunk.getAndIncrement()) {
+                    int from = chunk * chunkSize;
+                    int to = (int) Math.min((long) from + chunkSize, hits);
+                    int count = client.dumpSubCorpusBulk(corpus, subcorpus, from, to, dump, 0);
+                    int size = 0;
+                    for (int h = 0; h < count; h++) {
+                        for (int p = Math.max(dump[0][h] - left, 0); p < dump[0][h]; p++) {
+                            cpos[size++] = p;
+                        }
+                        int last = (int) Math.min((long) dump[1][h] + right, corpusSize - 1);
+                        for (int p = dump[1][h] + 1; p <= last; p++) {
+                            cpos[size++] = p;
+                        }
+                    }
+                    if (size == 0) {
+                        continue;
+                    }
+                    client.cpos2Id(attributeName, cpos, ids, size);
+                    for (int i = 0; i < size; i++) {
+                        if (ids[i] >= 0) {
+                            counts.add(ids[i], 1);
+                        }
+                    }
+                    windowTokens += size;
+                }
+            } catch (Throwable e) {
+                error = e;
+                // let the other workers stop early
+                nextChunk.set(Integer.MAX_VALUE / 2);
+            }
+        }
+    }
+
+    private final String corpus;
+    private final String subcorpus;
+    private final String attribute;
+    private int left = 5;
+    private int right = 5;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int minFrequency = 1;
+
+    /**
+     * @param corpus the corpus name
+     * @param subcorpus the subcorpus holding the hits, e.g. "Results"
+     * @param attribute the positional attribute counted, e.g. "lemma"
+     */
+    public CqiCollocations(String corpus, String subcorpus, String attribute) {
+        this.corpus = corpus;
+        this.subcorpus = subcorpus;
+        this.attribute = attribute;
+    }
+
+    /**
+     * Positions counted before the start and after the end of each hit,
+     * 5 and 5 by default.
+     */
+    public CqiCollocations setSpan(int left, int right) {
+        if (left < 0 || right < 0) {
+            throw new IllegalArgumentException("Span can't be negative");
+        }
+        this.left = left;
+        this.right = right;
+        return this;
+    }
+
+    /**
+     * Hits dumped and counted at a time, 1000 by default.
+     */
+    public CqiCollocations setChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Collocates occurring fewer times in the windows are not scored nor
+     * resolved, 1 by default.
+     */
+    public CqiCollocations setMinFrequency(int minFrequency) {
+        this.minFrequency = Math.max(minFrequency, 1);
+        return this;
+    }
+
+    /**
+     * Counts and scores the collocates. Corpus frequencies and values are
+     * asked for through the first client.
+     *
+     * @param charset the charset of the corpus
+     * @param clients connections holding the same hits in the subcorpus
+     * @throws CqiClientException the first error of any client, or if the
+     * subcorpus doesn't exist
+     */
+    public Result compute(Charset charset, CqiClient... clients) throws CqiClientException {
+        if (clients.length == 0) {
+            throw new IllegalArgumentException("At least one client is needed");
+        }
+        CqiClient first = clients[0];
+        int hits = first.subCorpusSize(corpus, subcorpus);
+        int corpusSize = first.corpusSize(corpus);
+        AtomicInteger nextChunk = new AtomicInteger();
+        int chunks = (int) ((hits + (long) chunkSize - 1) / chunkSize);
+        Worker[] workers = new Worker[Math.max(Math.min(clients.length, chunks), 1)];
+        for (int w = 0; w < workers.length; w++) {
+            workers[w] = new Worker(clients[w], nextChunk, hits, corpusSize);
+        }
+        run(workers);
+        IntCounts counts = workers[0].counts;
+        long windowTokens = 0;
+        for (Worker worker : workers) {
+            rethrow(worker.error);
+            if (worker != workers[0]) {
+                counts.addAll(worker.counts);
+            }
+            windowTokens += worker.windowTokens;
+        }
+        int[] ids = counts.keys(minFrequency);
+        int[] frequencies = new int[ids.length];
+        for (int from = 0; from < ids.length; from += FREQUENCY_BATCH) {
+            int[] batch = Arrays.copyOfRange(ids, from, Math.min(from + FREQUENCY_BATCH, ids.length));
+            System.arraycopy(first.id2Freq(corpus + "." + attribute, batch), 0, frequencies, from, batch.length);
+        }
+        String[] values = first.resolveLexiconIds(corpus + "." + attribute, ids, charset);
+        Collocate[] collocates = new Collocate[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            collocates[i] = new Collocate(ids[i], values[i], counts.get(ids[i]), frequencies[i],
+                    windowTokens, corpusSize);
+        }
+        return new Result(hits, windowTokens, corpusSize, counts.size(), collocates);
+    }
+
+    /**
+     * Throws the error a worker ran into, if any, from the calling thread.
+     */
+    private static void rethrow(Throwable error) throws CqiClientException {
+        if (error instanceof CqiClientException) {
+            throw (CqiClientException) error;
+        } else if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error instanceof Error) {
+            throw (Error) error;
+        } else if (error != null) {
+            throw new CqiClientException("Error counting collocates", error);
+        }
+    }
+
+    private static void run(Worker[] workers) throws CqiClientException {
+        if (workers.length == 1) {
+            workers[0].run();
+            return;
+        }
+        Thread[] threads = new Thread[workers.length];
+        for (int w = 0; w < workers.length; w++) {
+            threads[w] = new Thread(workers[w], "cqp-collocations-" + w);
+            threads[w].setDaemon(true);
+            threads[w].start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CqiClientException("Interrupted while counting collocates", e);
+        }
+    }
+}
@@ -0,0 +1,424 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Read-only corpus served by CqiServer. Every positional attribute is a
+ * lexicon plus one lexicon id per position, every structural attribute a
+ * list of non-overlapping [start, end] regions in ascending order, with an
+ * optional value per region.
+ *
+ * Corpora are assembled with a Builder, and can be saved to a directory of
+ * column files and opened again memory-mapped, so that only the pages
+ * actually read are loaded. The files are laid out like the uncompressed
+ * CWB ones: <attr>.corpus holds the ids as big-endian ints, <attr>.lexicon
+ * the strings of the lexicon NUL-terminated, <attr>.rng the region bounds
+ * as big-endian int pairs and <attr>.avs the value of every region,
+ * NUL-terminated. Names and attribute lists go to corpus.properties.
+ */
+public class CqiCorpus {
+
+    private static final String PROPERTIES = "corpus.properties";
+
+    static final class PositionalAttribute {
+        final String[] lexicon;
+        final IntBuffer ids;
+        private int[] frequencies;
+        private Map<String, Integer> index;
+
+        private PositionalAttribute(String[] lexicon, IntBuffer ids) {
+            this.lexicon = lexicon;
+            this.ids = ids;
+        }
+
+        int id(int cpos) {
+            return (cpos >= 0 && cpos < ids.limit()) ? ids.get(cpos) : -1;
+        }
+
+        String value(int cpos) {
+            int id = id(cpos);
+            return (id < 0) ? "" : lexicon[id];
+        }
+
+        synchronized int frequency(int id) {
+            if (frequencies == null) {
+                int[] counts = new int[lexicon.length];
+                for (int i = 0; i < ids.limit(); i++) {
+                    counts[ids.get(i)]++;
+                }
+                frequencies = counts;
+            }
+            return (id >= 0 && id < lexicon.length) ? frequencies[id] : 0;
+        }
+
+        synchronized int str2Id(String value) {
+            if (index == null) {
+                Map<String, Integer> map = new HashMap<String, Integer>(lexicon.length * 2);
+                for (int i = 0; i < lexicon.length; i++) {
+                    map.put(lexicon[i], i);
+                }
+                index = map;
+            }
+            Integer id = index.get(value);
+            return (id == null) ? -1 : id;
+        }
+    }
+
+    static final class StructuralAttribute {
+        final IntBuffer bounds;
+        final String[] values;
+
+        private StructuralAttribute(IntBuffer bounds, String[] values) {
+            this.bounds = bounds;
+            this.values = values;
+        }
+
+        int size() {
+            return bounds.limit() / 2;
+        }
+
+        int start(int struc) {
+            return bounds.get(2 * struc);
+        }
+
+        int end(int struc) {
+            return bounds.get(2 * struc + 1);
+        }
+
+        /**
+         * @return the region enclosing <cpos>, or -1
+         */
+        int struc(int cpos) {
+            int lo = 0;
+            int hi = size() - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (end(mid) < cpos) {
+                    lo = mid + 1;
+                } else if (start(mid) > cpos) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        String value(int struc) {
+            return (values == null || struc < 0 || struc >= values.length) ? "" : values[struc];
+        }
+    }
+
+    private final String name;
+    private final String fullName;
+    private final Charset charset;
+    private final int size;
+    final Map<String, PositionalAttribute> positional;
+    final Map<String, StructuralAttribute> structural;
+
+    private CqiCorpus(String name, String fullName, Charset charset, int size,
+            Map<String, PositionalAttribute> positional,
+            Map<String, StructuralAttribute> structural) {
+        this.name = name;
+        this.fullName = fullName;
+        this.charset = charset;
+        this.size = size;
+        this.positional = positional;
+        this.structural = structural;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getFullName() {
+        return fullName;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String[] getPositionalAttributes() {
+        return positional.keySet().toArray(new String[0]);
+    }
+
+    public String[] getStructuralAttributes() {
+        return structural.keySet().toArray(new String[0]);
+    }
+
+    public static Builder builder(String name) {
+        return new Builder(name);
+    }
+
+    /**
+     * Assembles a corpus in memory. The first positional attribute fixes
+     * the size of the corpus; "word" is expected to be among them.
+     */
+    public static class Builder {
+
+        private final String name;
+        private String fullName;
+        private Charset charset = StandardCharsets.UTF_8;
+        private int size = -1;
+        private final Map<String, PositionalAttribute> positional = new LinkedHashMap<String, PositionalAttribute>();
+        private final Map<String, StructuralAttribute> structural = new LinkedHashMap<String, StructuralAttribute>();
+
+        private Builder(String name) {
+            this.name = name;
+            this.fullName = name;
+        }
+
+        public Builder setFullName(String fullName) {
+            this.fullName = fullName;
+            return this;
+        }
+
+        /**
+         * Charset the corpus reports, used by clients to encode queries and
+         * decode values. Saved corpora are always stored in UTF-8.
+         */
+        public Builder setCharset(Charset charset) {
+            this.charset = charset;
+            return this;
+        }
+
+        /**
+         * Adds a positional attribute with a value for every position. Ids
+         * are given in order of first occurrence.
+         */
+        public Builder addPositional(String attribute, String[] values) {
+            checkSize(values.length);
+            Map<String, Integer> index = new HashMap<String, Integer>();
+            List<String> lexicon = new ArrayList<String>();
+            int[] ids = new int[values.length];
+            for (int i = 0; i < values.length; i++) {
+                Integer id = index.get(values[i]);
+                if (id == null) {
+                    id = lexicon.size();
+                    index.put(values[i], id);
+                    lexicon.add(values[i]);
+                }
+                ids[i] = id;
+            }
+            positional.put(attribute, new PositionalAttribute(
+                    lexicon.toArray(new String[0]), IntBuffer.wrap(ids)));
+            return this;
+        }
+
+        /**
+         * Adds a structural attribute.
+         *
+         * @param regions [start, end] of every region, inclusive, in
+         * ascending order and not overlapping
+         * @param values value of every region, or null if the attribute
+         * has no values
+         */
+        public Builder addStructural(String attribute, int[][] regions, String[] values) {
+            if (values != null && values.length != regions.length) {
+                throw new IllegalArgumentException("One value per region expected for " + attribute);
+            }
+            int[] bounds = new int[2 * regions.length];
+            for (int r = 0; r < regions.length; r++) {
+                int start = regions[r][0];
+                int end = regions[r][1];
+                if (start > end || (r > 0 && start <= bounds[2 * r - 1])) {
+                    throw new IllegalArgumentException("Regions of " + attribute
+                            + " must be ascending and disjoint: " + Arrays.toString(regions[r]));
+                }
+                bounds[2 * r] = start;
+                bounds[2 * r + 1] = end;
+            }
+            structural.put(attribute, new StructuralAttribute(IntBuffer.wrap(bounds),
+                    (values == null) ? null : values.clone()));
+            return this;
+        }
+
+        public CqiCorpus build() {
+            if (positional.isEmpty()) {
+                throw new IllegalStateException("Corpus " + name + " has no positional attribute");
+            }
+            return new CqiCorpus(name, fullName, charset, size,
+                    new LinkedHashMap<String, PositionalAttribute>(positional),
+                    new LinkedHashMap<String, StructuralAttribute>(structural));
+        }
+
+        private void checkSize(int length) {
+            if (size < 0) {
+                size = length;
+            } else if (size != length) {
+                throw new IllegalArgumentException("Attribute of " + length
+                        + " positions in a corpus of " + size);
+            }
+        }
+    }
+
+    /**
+     * Writes the corpus to <directory>, created if needed, as column files
+     * (see the class description).
+     */
+    public void save(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        Properties properties = new Properties();
+        properties.setProperty("name", name);
+        properties.setProperty("fullName", fullName);
+        properties.setProperty("charset", charset.name());
+        properties.setProperty("size", Integer.toString(size));
+        properties.setProperty("positional", join(positional.keySet()));
+        properties.setProperty("structural", join(structural.keySet()));
+        OutputStream out = new FileOutputStream(new File(directory, PROPERTIES));
+        try {
+            properties.store(out, "CqiCorpus");
+        } finally {
+            out.close();
+        }
+        for (Map.Entry<String, PositionalAttribute> entry : positional.entrySet()) {
+            writeInts(new File(directory, entry.getKey() + ".corpus"), entry.getValue().ids);
+            writeStrings(new File(directory, entry.getKey() + ".lexicon"), entry.getValue().lexicon);
+        }
+        for (Map.Entry<String, StructuralAttribute> entry : structural.entrySet()) {
+            writeInts(new File(directory, entry.getKey() + ".rng"), entry.getValue().bounds);
+            if (entry.getValue().values != null) {
+                writeStrings(new File(directory, entry.getKey() + ".avs"), entry.getValue().values);
+            }
+        }
+    }
+
+    /**
+     * Opens a corpus saved with save: id and region columns are
+     * memory-mapped, lexicons and region values are read into memory.
+     */
+    public static CqiCorpus open(File directory) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(new File(directory, PROPERTIES));
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        int size = Integer.parseInt(properties.getProperty("size"));
+        Map<String, PositionalAttribute> positional = new LinkedHashMap<String, PositionalAttribute>();
+        for (String attribute : split(properties.getProperty("positional"))) {
+            IntBuffer ids = mapInts(new File(directory, attribute + ".corpus"));
+            if (ids.limit() != size) {
+                throw new IOException(attribute + ".corpus has " + ids.limit()
+                        + " positions, expected " + size);
+            }
+            positional.put(attribute, new PositionalAttribute(
+                    readStrings(new File(directory, attribute + ".lexicon")), ids));
+        }
+        Map<String, StructuralAttribute> structural = new LinkedHashMap<String, StructuralAttribute>();
+        for (String attribute : split(properties.getProperty("structural"))) {
+            File values = new File(directory, attribute + ".avs");
+            structural.put(attribute, new StructuralAttribute(
+                    mapInts(new File(directory, attribute + ".rng")),
+                    values.exists() ? readStrings(values) : null));
+        }
+        return new CqiCorpus(properties.getProperty("name"), properties.getProperty("fullName"),
+                Charset.forName(properties.getProperty("charset")), size, positional, structural);
+    }
+
+    private static String join(Iterable<String> names) {
+        StringBuilder joined = new StringBuilder();
+        for (String name : names) {
+            joined.append((joined.length() > 0) ? "," : "").append(name);
+        }
+        return joined.toString();
+    }
+
+    private static String[] split(String names) {
+        return (names == null || names.isEmpty()) ? new String[0] : names.split(",");
+    }
+
+    private static void writeInts(File file, IntBuffer ints) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(4 * ints.limit());
+        bytes.asIntBuffer().put(ints.duplicate().clear());
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes.array());
+        } finally {
+            out.close();
+        }
+    }
+
+    private static IntBuffer mapInts(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // the mapping stays valid once the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()).asIntBuffer();
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void writeStrings(File file, String[] strings) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (String string : strings) {
+                bytes.write(string.getBytes(StandardCharsets.UTF_8));
+                bytes.write(0);
+            }
+            bytes.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String[] readStrings(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        byte[] bytes = new byte[(int) raf.length()];
+        try {
+            raf.readFully(bytes);
+        } finally {
+            raf.close();
+        }
+        List<String> strings = new ArrayList<String>();
+        int start = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == 0) {
+                strings.add(new String(bytes, start, i - start, StandardCharsets.UTF_8));
+                start = i + 1;
+            }
+        }
+        return strings.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,668 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.function.Consumer;
+
+/**
+ * Writes the hits of a subcorpus with the values of some attributes around
+ * them to disk, a chunk of hits at a time, so memory is bounded by the chunk
+ * size whatever the number of hits.
+ *
+ * TSV and CSV write a file with a header and a row per hit: its number,
+ * match, matchend and target, and for every attribute the values of the left
+ * context, the match and the right context, separated by spaces. Positional
+ * and structural attributes can be given; attributes whose regions carry no
+ * values (e.g. "p") are written as region numbers, empty outside any region.
+ *
+ * COLUMNAR writes a directory of big-endian int columns, positional
+ * attributes only:
+ * <pre>
+ * hits.bin        match, matchend, target, first and last position of the
+ *                 window of each hit
+ * ATTR.ids        lexicon id of every position of every window, in order
+ * ATTR.lexids     the ids found in ATTR.ids, ascending
+ * ATTR.lexicon    their values, UTF-8, each one followed by a 0 byte
+ * export.properties
+ * </pre>
+ *
+ * Every few chunks the outputs are flushed and their sizes recorded, with
+ * the hits written so far, in TARGET.checkpoint. Running the same export
+ * again after an interruption truncates the outputs to the checkpoint and
+ * carries on from there. The checkpoint is removed once the export is
+ * complete.
+ */
+public class CqiExport {
+
+    public enum Format {
+        TSV, CSV, COLUMNAR
+    }
+
+    /**
+     * How far an export got, and how fast.
+     */
+    public static final class Progress {
+        private final int hits;
+        private final int totalHits;
+        private final int resumedAt;
+        private final long tokens;
+        private final long bytes;
+        private final long elapsed;
+
+        private Progress(int hits, int totalHits, int resumedAt, long tokens, long bytes, long elapsed) {
+            this.hits = hits;
+            this.totalHits = totalHits;
+            this.resumedAt = resumedAt;
+            this.tokens = tokens;
+            this.bytes = bytes;
+            this.elapsed = elapsed;
+        }
+
+        /**
+         * @return hits written, including those of interrupted runs
+         */
+        public int getHits() {
+            return hits;
+        }
+
+        public int getTotalHits() {
+            return totalHits;
+        }
+
+        /**
+         * @return hits written by interrupted runs before this one
+         */
+        public int getResumedAt() {
+            return resumedAt;
+        }
+
+        /**
+         * @return positions written by this run
+         */
+        public long getTokens() {
+            return tokens;
+        }
+
+        /**
+         * @return size of the outputs
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return time spent by this run, in nanoseconds
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        public double getHitsPerSecond() {
+            return (elapsed > 0) ? (hits - resumedAt) * 1e9 / elapsed : 0;
+        }
+
+        public double getTokensPerSecond() {
+            return (elapsed > 0) ? tokens * 1e9 / elapsed : 0;
+        }
+
+        public boolean isComplete() {
+            return hits == totalHits;
+        }
+    }
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int DEFAULT_CHUNK_SIZE = 1000;
+    private static final int DEFAULT_CHECKPOINT_INTERVAL = 10;
+    /**
+     * Ids per id2Str request when writing lexicons.
+     */
+    private static final int LEXICON_BATCH = 1 << 16;
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+    private static final String HITS_FILE = "hits.bin";
+    private static final String PROPERTIES_FILE = "export.properties";
+    private static final String DONE = "done";
+    /**
+     * Kinds of the exported attributes.
+     */
+    private static final int POSITIONAL = 0;
+    private static final int STRUCTURAL = 1;
+    private static final int REGIONS = 2;
+
+    /**
+     * An output file written through a direct buffer.
+     */
+    private static final class Output implements Closeable {
+        private final String name;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        /**
+         * Opens <file> truncated to <size> for appending.
+         */
+        private Output(File file, long size) throws IOException {
+            this.name = file.getName();
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+            if (channel.size() < size) {
+                channel.close();
+                throw new IOException(file + " is shorter than its checkpoint");
+            }
+            channel.truncate(size);
+            channel.position(size);
+        }
+
+        private void putInt(int value) throws IOException {
+            if (buffer.remaining() < 4) {
+                flush();
+            }
+            buffer.putInt(value);
+        }
+
+        private void put(byte[] bytes) throws IOException {
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int length = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private long size() throws IOException {
+            return channel.position() + buffer.position();
+        }
+
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private final String corpus;
+    private final String subcorpus;
+    private final String[] attributes;
+    private Format format = Format.TSV;
+    private int context = 5;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    private Consumer<Progress> listener = null;
+
+    /**
+     * @param corpus the corpus name
+     * @param subcorpus the subcorpus holding the hits, e.g. "Results"
+     * @param attributes the attributes to write, e.g. "word", "pos"
+     */
+    public CqiExport(String corpus, String subcorpus, String... attributes) {
+        this.corpus = corpus;
+        this.subcorpus = subcorpus;
+        this.attributes = attributes.clone();
+    }
+
+    public CqiExport setFormat(Format format) {
+        this.format = format;
+        return this;
+    }
+
+    /**
+     * Positions written on each side of a hit, 5 by default.
+     */
+    public CqiExport setContext(int context) {
+        if (context < 0) {
+            throw new IllegalArgumentException("Context can't be negative");
+        }
+        this.context = context;
+        return this;
+    }
+
+    /**
+     * Hits fetched and written at a time, 1000 by default.
+     */
+    public CqiExport setChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Chunks written between checkpoints, 10 by default.
+     */
+    public CqiExport setCheckpointInterval(int chunks) {
+        if (chunks < 1) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive");
+        }
+        this.checkpointInterval = chunks;
+        return this;
+    }
+
+    /**
+     * Told about the progress of the export after every chunk.
+     */
+    public CqiExport setListener(Consumer<Progress> listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Exports the hits to <target>, a file for TSV and CSV and a directory
+     * for COLUMNAR, resuming from TARGET.checkpoint if there is one. The
+     * thread can be interrupted between chunks; the export then stops at a
+     * checkpoint with an InterruptedIOException.
+     *
+     * @return the final progress
+     * @throws IOException if an output can't be written, or the checkpoint
+     * belongs to another export
+     * @throws CqiClientException
+     */
+    public Progress run(CqiClient client, File target) throws CqiClientException, IOException {
+        long start = System.nanoTime();
+        Charset charset = client.charset(corpus);
+        int hits = client.subCorpusSize(corpus, subcorpus);
+        int corpusSize = client.corpusSize(corpus);
+        int[] kinds = kinds(client);
+        int[][] dump = new int[3][chunkSize];
+        File checkpointFile = new File(target.getPath() + CHECKPOINT_SUFFIX);
+        Properties description = describe(hits);
+        Properties checkpoint = new Properties();
+        int done = 0;
+        if (checkpointFile.exists()) {
+            checkpoint = load(checkpointFile);
+            for (String key : description.stringPropertyNames()) {
+                if (!description.getProperty(key).equals(checkpoint.getProperty(key))) {
+                    throw new IOException(checkpointFile + " belongs to another export (" + key + ")");
+                }
+            }
+            done = Integer.parseInt(checkpoint.getProperty(DONE));
+        } else if (format == Format.COLUMNAR && !target.isDirectory() && !target.mkdirs()) {
+            throw new IOException("Cannot create " + target);
+        }
+        int resumedAt = done;
+        List<Output> outputs = new ArrayList<Output>();
+        try {
+            for (File file : files(target)) {
+                outputs.add(new Output(file, Long.parseLong(checkpoint.getProperty(file.getName(), "0"))));
+            }
+            if (format != Format.COLUMNAR && outputs.get(0).size() == 0) {
+                outputs.get(0).put(header());
+            }
+            long tokens = 0;
+            int chunks = 0;
+            while (done < hits) {
+                if (Thread.interrupted()) {
+                    checkpoint(checkpointFile, description, done, outputs);
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Export interrupted after " + done + " hits");
+                }
+                int to = (int) Math.min((long) done + chunkSize, hits);
+                tokens += writeChunk(client, charset, corpusSize, kinds, dump, done, to, outputs);
+                done = to;
+                if (++chunks % checkpointInterval == 0 && done < hits) {
+                    checkpoint(checkpointFile, description, done, outputs);
+                }
+                if (listener != null) {
+                    listener.accept(new Progress(done, hits, resumedAt, tokens, size(outputs),
+                            System.nanoTime() - start));
+                }
+            }
+            checkpoint(checkpointFile, description, done, outputs);
+            for (Output output : outputs) {
+                output.close();
+            }
+            outputs.clear();
+            if (format == Format.COLUMNAR) {
+                writeLexicons(client, charset, target);
+                store(description, new File(target, PROPERTIES_FILE));
+            }
+            Files.delete(checkpointFile.toPath());
+            return new Progress(done, hits, resumedAt, tokens, totalSize(target),
+                    System.nanoTime() - start);
+        } finally {
+            for (Output output : outputs) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    // the first error is the one worth reporting
+                }
+            }
+        }
+    }
+
+    /**
+     * Fetches hits <from> .. <to> - 1 into <dump> and their windows, a round
+     * trip for the hits (more if the chunk is larger than a dump request, see
+     * CqiClient.dumpSubCorpusBulk) and one for all attributes (two with
+     * structural ones carrying values), and writes them.
+     *
+     * @return positions written
+     */
+    private long writeChunk(CqiClient client, Charset charset, int corpusSize, int[] kinds,
+            int[][] dump, int from, int to, List<Output> outputs) throws CqiClientException, IOException {
+        int hits = client.dumpSubCorpusBulk(corpus, subcorpus, from, to, dump, 0);
+        int[] windowStart = new int[hits];
+        int[] windowEnd = new int[hits];
+        int size = 0;
+        for (int h = 0; h < hits; h++) {
+            windowStart[h] = Math.max(dump[0][h] - context, 0);
+            windowEnd[h] = (int) Math.min((long) dump[1][h] + context, corpusSize - 1);
+            size += windowEnd[h] - windowStart[h] + 1;
+        }
+        int[] cpos = new int[size];
+        for (int h = 0, i = 0; h < hits; h++) {
+            for (int p = windowStart[h]; p <= windowEnd[h]; p++) {
+                cpos[i++] = p;
+            }
+        }
+        CqiPipeline pipeline = client.pipeline();
+        List<CqiPipeline.Reply<int[]>> replies = new ArrayList<CqiPipeline.Reply<int[]>>();
+        for (int a = 0; a < attributes.length; a++) {
+            String attributeName = corpus + "." + attributes[a];
+            replies.add((kinds[a] == POSITIONAL) ? pipeline.cpos2Id(attributeName, cpos)
+                    : pipeline.cpos2Struc(attributeName, cpos));
+        }
+        if (size > 0) {
+            pipeline.sync();
+        }
+        if (format == Format.COLUMNAR) {
+            Output hitsOutput = outputs.get(0);
+            for (int h = 0; h < hits; h++) {
+                hitsOutput.putInt(dump[0][h]);
+                hitsOutput.putInt(dump[1][h]);
+                hitsOutput.putInt(dump[2][h]);
+                hitsOutput.putInt(windowStart[h]);
+                hitsOutput.putInt(windowEnd[h]);
+            }
+            for (int a = 0; a < attributes.length && size > 0; a++) {
+                Output ids = outputs.get(a + 1);
+                for (int id : replies.get(a).get()) {
+                    ids.putInt(id);
+                }
+            }
+            return size;
+        }
+        String[][] values = new String[attributes.length][];
+        for (int a = 0; a < attributes.length && size > 0; a++) {
+            String attributeName = corpus + "." + attributes[a];
+            int[] ids = replies.get(a).get();
+            if (kinds[a] == POSITIONAL) {
+                values[a] = client.resolveLexiconIds(attributeName, ids, charset);
+            } else if (kinds[a] == STRUCTURAL) {
+                values[a] = client.resolveStrucValues(attributeName, ids, charset);
+            } else {
+                values[a] = regions(ids);
+            }
+        }
+        char separator = (format == Format.CSV) ? ',' : '\t';
+        StringBuilder row = new StringBuilder();
+        for (int h = 0, offset = 0; h < hits; h++) {
+            row.setLength(0);
+            row.append(from + h).append(separator).append(dump[0][h]).append(separator)
+                    .append(dump[1][h]).append(separator).append(dump[2][h]);
+            int length = windowEnd[h] - windowStart[h] + 1;
+            int matchFrom = offset + dump[0][h] - windowStart[h];
+            int matchTo = offset + dump[1][h] - windowStart[h] + 1;
+            for (int a = 0; a < attributes.length; a++) {
+                row.append(separator);
+                field(row, values[a], offset, matchFrom);
+                row.append(separator);
+                field(row, values[a], matchFrom, matchTo);
+                row.append(separator);
+                field(row, values[a], matchTo, offset + length);
+            }
+            row.append('\n');
+            outputs.get(0).put(row.toString().getBytes(StandardCharsets.UTF_8));
+            offset += length;
+        }
+        return size;
+    }
+
+    /**
+     * Appends <values> <from> .. <to> - 1 joined by spaces, escaped for the
+     * format.
+     */
+    private void field(StringBuilder row, String[] values, int from, int to) {
+        int start = row.length();
+        for (int i = from; i < to; i++) {
+            row.append((i > from) ? " " : "").append(values[i]);
+        }
+        if (format == Format.TSV) {
+            for (int i = start; i < row.length(); i++) {
+                char c = row.charAt(i);
+                if (c == '\t' || c == '\n' || c == '\r') {
+                    row.setCharAt(i, ' ');
+                }
+            }
+            return;
+        }
+        boolean quote = false;
+        for (int i = start; i < row.length() && !quote; i++) {
+            char c = row.charAt(i);
+            quote = (c == ',' || c == '"' || c == '\n' || c == '\r');
+        }
+        if (quote) {
+            String value = row.substring(start).replace("\"", "\"\"");
+            row.setLength(start);
+            row.append('"').append(value).append('"');
+        }
+    }
+
+    private byte[] header() {
+        String separator = (format == Format.CSV) ? "," : "\t";
+        StringBuilder header = new StringBuilder("hit").append(separator).append("match")
+                .append(separator).append("matchend").append(separator).append("target");
+        for (String attribute : attributes) {
+            for (String part : new String[]{"left", "match", "right"}) {
+                header.append(separator).append(attribute).append('_').append(part);
+            }
+        }
+        return header.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes ATTR.lexids and ATTR.lexicon out of ATTR.ids, reading it back a
+     * buffer at a time.
+     */
+    private void writeLexicons(CqiClient client, Charset charset, File directory)
+            throws CqiClientException, IOException {
+        for (String attribute : attributes) {
+            IntCounts seen = new IntCounts();
+            FileChannel in = new RandomAccessFile(new File(directory, attribute + ".ids"), "r").getChannel();
+            try {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                while (in.read(buffer) >= 0 || buffer.position() > 0) {
+                    buffer.flip();
+                    while (buffer.remaining() >= 4) {
+                        int id = buffer.getInt();
+                        if (id >= 0) {
+                            seen.add(id, 1);
+                        }
+                    }
+                    buffer.compact();
+                    if (buffer.position() > 0 && in.position() == in.size()) {
+                        throw new IOException(attribute + ".ids is truncated");
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            int[] ids = seen.keys(1);
+            Output lexids = new Output(new File(directory, attribute + ".lexids"), 0);
+            Output lexicon = new Output(new File(directory, attribute + ".lexicon"), 0);
+            try {
+                for (int from = 0; from < ids.length; from += LEXICON_BATCH) {
+                    int[] batch = Arrays.copyOfRange(ids, from, Math.min(from + LEXICON_BATCH, ids.length));
+                    String[] values = client.resolveLexiconIds(corpus + "." + attribute, batch, charset);
+                    for (int i = 0; i < batch.length; i++) {
+                        lexids.putInt(batch[i]);
+                        lexicon.put(values[i].getBytes(StandardCharsets.UTF_8));
+                        lexicon.put(new byte[]{0});
+                    }
+                }
+            } finally {
+                lexids.close();
+                lexicon.close();
+            }
+        }
+    }
+
+    /**
+     * @return the kind of every attribute, POSITIONAL, STRUCTURAL or REGIONS
+     * for structural attributes without values
+     */
+    private int[] kinds(CqiClient client) throws CqiClientException {
+        List<String> strucs = Arrays.asList(client.corpusStructuralAttributes(corpus));
+        int[] kinds = new int[attributes.length];
+        for (int a = 0; a < attributes.length; a++) {
+            if (!strucs.contains(attributes[a])) {
+                kinds[a] = POSITIONAL;
+                continue;
+            }
+            if (format == Format.COLUMNAR) {
+                throw new IllegalArgumentException("Columnar exports take positional attributes only: "
+                        + attributes[a]);
+            }
+            kinds[a] = client.structuralAttributeHasValues(corpus, attributes[a]) ? STRUCTURAL : REGIONS;
+        }
+        return kinds;
+    }
+
+    /**
+     * @return the region numbers <strucs> as strings, "" outside any region
+     */
+    private static String[] regions(int[] strucs) {
+        String[] values = new String[strucs.length];
+        for (int i = 0; i < strucs.length; i++) {
+            values[i] = (strucs[i] < 0) ? "" : Integer.toString(strucs[i]);
+        }
+        return values;
+    }
+
+    private List<File> files(File target) {
+        List<File> files = new ArrayList<File>();
+        if (format == Format.COLUMNAR) {
+            files.add(new File(target, HITS_FILE));
+            for (String attribute : attributes) {
+                files.add(new File(target, attribute + ".ids"));
+            }
+        } else {
+            files.add(target);
+        }
+        return files;
+    }
+
+    /**
+     * What a checkpoint must match to be resumed.
+     */
+    private Properties describe(int hits) {
+        Properties description = new Properties();
+        description.setProperty("corpus", corpus);
+        description.setProperty("subcorpus", subcorpus);
+        description.setProperty("attributes", String.join(",", attributes));
+        description.setProperty("format", format.name());
+        description.setProperty("context", Integer.toString(context));
+        description.setProperty("hits", Integer.toString(hits));
+        return description;
+    }
+
+    /**
+     * Flushes the outputs and records their sizes. The checkpoint replaces
+     * the previous one only once it is complete on disk.
+     */
+    private static void checkpoint(File file, Properties description, int done, List<Output> outputs)
+            throws IOException {
+        Properties checkpoint = new Properties();
+        checkpoint.putAll(description);
+        checkpoint.setProperty(DONE, Integer.toString(done));
+        for (Output output : outputs) {
+            output.flush();
+            output.channel.force(false);
+            checkpoint.setProperty(output.name, Long.toString(output.size()));
+        }
+        File temporary = new File(file.getPath() + ".tmp");
+        store(checkpoint, temporary);
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static long size(List<Output> outputs) throws IOException {
+        long size = 0;
+        for (Output output : outputs) {
+            size += output.size();
+        }
+        return size;
+    }
+
+    private static long totalSize(File target) {
+        if (!target.isDirectory()) {
+            return target.length();
+        }
+        long size = 0;
+        for (File file : target.listFiles()) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    private static void store(Properties properties, File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            properties.store(out, "CqiExport");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static Properties load(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Reusable buffer in which outgoing CQi commands are encoded before they are
+ * written to the socket. A command (or several of them) is assembled here and
+ * sent with a single write, instead of one write per header, string and int.
+ */
+class CqiFrame {
+
+    private static final int DEFAULT_CAPACITY = 4096;
+    /**
+     * Frames grown above this size by a huge request are shrunk back after
+     * being sent, so that a single large command does not pin the memory.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 1 << 20;
+    private final int initialCapacity;
+    private ByteBuffer buffer;
+
+    CqiFrame() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    CqiFrame(int capacity) {
+        this.initialCapacity = capacity;
+        this.buffer = ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Number of bytes currently waiting to be sent.
+     */
+    int size() {
+        return buffer.position();
+    }
+
+    boolean isEmpty() {
+        return buffer.position() == 0;
+    }
+
+    /**
+     * Discards the pending bytes.
+     */
+    void clear() {
+        buffer.clear();
+    }
+
+    CqiFrame putBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        buffer.put(bytes);
+        return this;
+    }
+
+    CqiFrame putByte(byte b) {
+        ensureCapacity(1);
+        buffer.put(b);
+        return this;
+    }
+
+    CqiFrame putInt(int i) {
+        ensureCapacity(4);
+        buffer.putInt(i);
+        return this;
+    }
+
+    /**
+     * Encodes a CQi string: an unsigned short length followed by the bytes.
+     */
+    CqiFrame putString(String string, Charset charset) {
+        byte[] bytes = string.getBytes(charset);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("CQi string too long: " + bytes.length + " bytes");
+        }
+        ensureCapacity(2 + bytes.length);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+        return this;
+    }
+
+    /**
+     * Encodes a CQi int list with the first <length> elements of <ints>.
+     */
+    CqiFrame putIntArray(int[] ints, int length) {
+        ensureCapacity(4 + 4 * length);
+        buffer.putInt(length);
+        int position = buffer.position();
+        buffer.asIntBuffer().put(ints, 0, length);
+        buffer.position(position + 4 * length);
+        return this;
+    }
+
+    CqiFrame putIntArray(int[] ints) {
+        return putIntArray(ints, ints.length);
+    }
+
+    /**
+     * Encodes the CQi int list <from> .. <to> (both inclusive).
+     */
+    CqiFrame putIntRange(int from, int to) {
+        int length = to - from + 1;
+        ensureCapacity(4 + 4 * length);
+        buffer.putInt(length);
+        for (int i = from; i <= to; i++) {
+            buffer.putInt(i);
+        }
+        return this;
+    }
+
+    /**
+     * Writes the pending bytes to <out> in one call, flushes it and resets the
+     * frame for the next command.
+     *
+     * @param out the stream to the server
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        try {
+            out.write(buffer.array(), 0, buffer.position());
+            out.flush();
+        } finally {
+            if (buffer.capacity() > MAX_RETAINED_CAPACITY) {
+                buffer = ByteBuffer.allocate(initialCapacity);
+            } else {
+                buffer.clear();
+            }
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (buffer.remaining() >= extra) {
+            return;
+        }
+        long required = (long) buffer.position() + extra;
+        long capacity = Math.max((long) buffer.capacity() * 2, required);
+        if (capacity > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("CQi frame too large: " + required + " bytes");
+        }
+        ByteBuffer grown = ByteBuffer.allocate((int) capacity);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+}
@@ -0,0 +1,211 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Logical sessions over a fixed set of connections. Every session is bound
+ * to one connection, the one with fewest open sessions when it's opened, and
+ * owns the subcorpora whose names start with its prefix ("S12_"), so that
+ * sessions sharing a connection don't overwrite each other's results. The
+ * number of server processes thus grows with the connections instead of
+ * with the users.
+ *
+ * CqiClient serializes its calls, so sessions on the same connection can be
+ * used from different threads; they just wait for each other.
+ *
+ * <pre>
+ * CqiMultiplexer mux = CqiMultiplexer.open(host, port, user, pass, 4, new CqiSocketOptions());
+ * CqiMultiplexer.Session session = mux.openSession();
+ * session.getClient().query("DICKENS", session.getSubcorpus(), "[word='living']", charset);
+ * ...
+ * session.close();
+ * </pre>
+ */
+public class CqiMultiplexer implements Closeable {
+
+    private static final String AUTHENTICATION_ERROR = "Server did not accept the credentials";
+    private static final String MULTIPLEXER_CLOSED = "Multiplexer is closed";
+
+    private final CqiClient[] clients;
+    private final int[] sessionCounts;
+    private int nextId = 1;
+    private boolean closed = false;
+
+    /**
+     * A user session: a connection shared with other sessions and a private
+     * subcorpus namespace on it.
+     */
+    public final class Session implements Closeable {
+
+        private final int id;
+        private final int connection;
+        private boolean closed = false;
+
+        private Session(int id, int connection) {
+            this.id = id;
+            this.connection = connection;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public CqiClient getClient() {
+            return clients[connection];
+        }
+
+        /**
+         * @return the prefix of the subcorpora of this session, e.g. "S12_"
+         */
+        public String getPrefix() {
+            return "S" + id + "_";
+        }
+
+        /**
+         * @return the subcorpus of this session named <name>
+         */
+        public String subcorpus(String name) {
+            return getPrefix() + name;
+        }
+
+        /**
+         * @return the default subcorpus of this session, e.g. "S12_Results"
+         */
+        public String getSubcorpus() {
+            return subcorpus(CqiClient.DEFAULT_SUBCORPUS_NAME);
+        }
+
+        /**
+         * Drops the subcorpora the session created, in every corpus, and
+         * frees its place on the connection. They are known to the client,
+         * so this costs a round trip per subcorpus and none to list them.
+         */
+        public void close() throws IOException {
+            synchronized (CqiMultiplexer.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                sessionCounts[connection]--;
+            }
+            CqiClient client = getClient();
+            if (client.isClosed()) {
+                return;
+            }
+            try {
+                synchronized (client) {
+                    for (String subcorpus : client.getCreatedSubcorpora()) {
+                        int colon = subcorpus.indexOf(':');
+                        if (subcorpus.startsWith(getPrefix(), colon + 1)) {
+                            client.dropQuery(subcorpus.substring(0, colon),
+                                    subcorpus.substring(colon + 1));
+                        }
+                    }
+                }
+            } catch (CqiClientException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * Multiplexes sessions over already connected clients, which are closed
+     * with the multiplexer.
+     */
+    public CqiMultiplexer(CqiClient... clients) {
+        if (clients.length == 0) {
+            throw new IllegalArgumentException("At least one connection is needed");
+        }
+        this.clients = clients.clone();
+        this.sessionCounts = new int[clients.length];
+    }
+
+    /**
+     * Opens and authenticates <connections> connections to the server.
+     */
+    public static CqiMultiplexer open(String host, int port, String user, String password,
+            int connections, CqiSocketOptions options) throws CqiClientException {
+        CqiClient[] clients = new CqiClient[connections];
+        try {
+            for (int i = 0; i < connections; i++) {
+                clients[i] = new CqiClient(host, port, options);
+                if (!clients[i].connect(user, password)) {
+                    throw new CqiClientException(AUTHENTICATION_ERROR);
+                }
+            }
+        } catch (CqiClientException e) {
+            for (CqiClient client : clients) {
+                if (client != null) {
+                    client.close();
+                }
+            }
+            throw e;
+        }
+        return new CqiMultiplexer(clients);
+    }
+
+    /**
+     * Opens a session on the connection with fewest sessions.
+     */
+    public synchronized Session openSession() throws CqiClientException {
+        if (closed) {
+            throw new CqiClientException(MULTIPLEXER_CLOSED);
+        }
+        int connection = 0;
+        for (int i = 1; i < clients.length; i++) {
+            if (sessionCounts[i] < sessionCounts[connection]) {
+                connection = i;
+            }
+        }
+        sessionCounts[connection]++;
+        return new Session(nextId++, connection);
+    }
+
+    /**
+     * @return open sessions on each connection
+     */
+    public synchronized int[] getSessionCounts() {
+        return sessionCounts.clone();
+    }
+
+    public int getConnectionCount() {
+        return clients.length;
+    }
+
+    /**
+     * Disconnects all connections; the subcorpora of the sessions still open
+     * go with them.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        for (CqiClient client : clients) {
+            try {
+                if (!client.isClosed()) {
+                    client.disconnect();
+                }
+            } catch (CqiClientException e) {
+                // closed below anyway
+            }
+            client.close();
+        }
+    }
+}
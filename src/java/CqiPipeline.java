@@ -0,0 +1,421 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Batch of CQi commands sent to the server together. CQi answers strictly in
+ * order, so all queued commands are written in one frame and their replies are
+ * read afterwards, costing a single round trip for the whole batch.
+ *
+ * <pre>
+ * CqiPipeline p = client.pipeline();
+ * CqiPipeline.Reply&lt;String[]&gt; words = p.cpos2Str("DICKENS.word", 10, 20, charset);
+ * CqiPipeline.Reply&lt;String[]&gt; pos = p.cpos2Str("DICKENS.pos", 10, 20, charset);
+ * p.sync();
+ * words.get();
+ * </pre>
+ *
+ * A pipeline can be reused after sync. It is not thread safe, but sync holds
+ * the client monitor so it does not interleave with other calls on the client.
+ */
+public class CqiPipeline {
+
+    /**
+     * Reads the reply to one command.
+     */
+    private interface Decoder<T> {
+        T read(CqiClient client) throws CqiClientException, IOException;
+    }
+
+    /**
+     * Writes one command into the client frame.
+     */
+    private interface Encoder {
+        void write(CqiClient client) throws IOException;
+    }
+
+    /**
+     * Handle on the result of a queued command, available after sync.
+     */
+    public static final class Reply<T> {
+        private final String command;
+        private final Encoder encoder;
+        private final Decoder<T> decoder;
+        private T value;
+        private CqiClientException error;
+        private boolean done = false;
+        private int index = -1;
+
+        private Reply(String command, Encoder encoder, Decoder<T> decoder) {
+            this.command = command;
+            this.encoder = encoder;
+            this.decoder = decoder;
+        }
+
+        /**
+         * @return the result of the command
+         * @throws CqiClientException the error the server answered this command
+         * with, or if the pipeline has not been synced yet
+         */
+        public T get() throws CqiClientException {
+            if (!done) {
+                throw new CqiClientException(command + " has not been sent yet");
+            }
+            if (error != null) {
+                throw error;
+            }
+            return value;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+
+        public boolean isFailed() {
+            return error != null;
+        }
+
+        /**
+         * @return a description of the command, e.g. "cpos2Str(DICKENS.word)"
+         */
+        public String getCommand() {
+            return command;
+        }
+
+        /**
+         * @return the position of the command in the batch it was sent with,
+         * -1 before sync
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        private void fail(int index, String message, Throwable cause) {
+            this.index = index;
+            this.error = new CqiClientException(
+                    String.format("%s (command %d of pipeline): %s", command, index, message), cause);
+            this.done = true;
+        }
+    }
+
+    private final CqiClient client;
+    private final List<Reply<?>> queue = new ArrayList<Reply<?>>();
+
+    CqiPipeline(CqiClient client) {
+        this.client = client;
+    }
+
+    /**
+     * @return number of commands waiting to be sent
+     */
+    public int size() {
+        return queue.size();
+    }
+
+    private <T> Reply<T> enqueue(String command, Encoder encoder, Decoder<T> decoder) {
+        Reply<T> reply = new Reply<T>(command, encoder, decoder);
+        queue.add(reply);
+        return reply;
+    }
+
+    private static Decoder<String[]> strings(final Charset charset, final String attribute) {
+        return new Decoder<String[]>() {
+            public String[] read(CqiClient client) throws CqiClientException {
+                return client.readStringArray(charset, attribute);
+            }
+        };
+    }
+
+    private static final Decoder<int[]> INTS = new Decoder<int[]>() {
+        public int[] read(CqiClient client) throws CqiClientException {
+            return client.readIntArray();
+        }
+    };
+
+    private static final Decoder<Integer> INT = new Decoder<Integer>() {
+        public Integer read(CqiClient client) throws CqiClientException, IOException {
+            return client.readInt();
+        }
+    };
+
+    private static Encoder stringXInts(final byte[] function, final String string,
+            final Charset charset, final int[] ints) {
+        return new Encoder() {
+            public void write(CqiClient client) throws IOException {
+                client.writeCommand(function);
+                client.writeString(string, charset);
+                client.writeIntArray(ints);
+            }
+        };
+    }
+
+    private static Encoder stringXRange(final byte[] function, final String string,
+            final Charset charset, final int fromPosition, final int toPosition) {
+        return new Encoder() {
+            public void write(CqiClient client) throws IOException {
+                client.writeCommand(function);
+                client.writeString(string, charset);
+                client.writeIntArray(fromPosition, toPosition);
+            }
+        };
+    }
+
+    /**
+     * Queues CQI_CL_CPOS2STR.
+     *
+     * @param attribute the attribute, e.g. "DICKENS.word"
+     * @param cpos the positions
+     * @param charset the charset of the corpus
+     */
+    public Reply<String[]> cpos2Str(String attribute, int[] cpos, Charset charset) {
+        return enqueue("cpos2Str(" + attribute + ")",
+                stringXInts(CqiClient.CQI_CL_CPOS2STR, attribute, charset, cpos), strings(charset, attribute));
+    }
+
+    /**
+     * Queues CQI_CL_CPOS2STR for the positions <fromPosition> .. <toPosition>.
+     */
+    public Reply<String[]> cpos2Str(String attribute, int fromPosition, int toPosition, Charset charset) {
+        return enqueue("cpos2Str(" + attribute + ")",
+                stringXRange(CqiClient.CQI_CL_CPOS2STR, attribute, charset, fromPosition, toPosition),
+                strings(charset, attribute));
+    }
+
+    /**
+     * Queues CQI_CL_CPOS2ID.
+     */
+    public Reply<int[]> cpos2Id(String attribute, int[] cpos) {
+        return enqueue("cpos2Id(" + attribute + ")",
+                stringXInts(CqiClient.CQI_CL_CPOS2ID, attribute, CqiClient.DEFAULT_CHARSET, cpos), INTS);
+    }
+
+    public Reply<int[]> cpos2Id(String attribute, int fromPosition, int toPosition) {
+        return enqueue("cpos2Id(" + attribute + ")",
+                stringXRange(CqiClient.CQI_CL_CPOS2ID, attribute, CqiClient.DEFAULT_CHARSET,
+                        fromPosition, toPosition), INTS);
+    }
+
+    /**
+     * Queues CQI_CL_CPOS2STRUC.
+     */
+    public Reply<int[]> cpos2Struc(String attribute, int[] cpos) {
+        return enqueue("cpos2Struc(" + attribute + ")",
+                stringXInts(CqiClient.CQI_CL_CPOS2STRUC, attribute, CqiClient.DEFAULT_CHARSET, cpos), INTS);
+    }
+
+    public Reply<int[]> cpos2Struc(String attribute, int fromPosition, int toPosition) {
+        return enqueue("cpos2Struc(" + attribute + ")",
+                stringXRange(CqiClient.CQI_CL_CPOS2STRUC, attribute, CqiClient.DEFAULT_CHARSET,
+                        fromPosition, toPosition), INTS);
+    }
+
+    /**
+     * Queues CQI_CL_STRUC2STR for the distinct ids of <strucs> missing from
+     * the struc value cache of the client (see resolveStrucValues). If none
+     * is missing nothing is queued and the reply is ready at once.
+     */
+    public Reply<String[]> struc2Str(final String attribute, final int[] strucs, final Charset charset) {
+        final String[] output = new String[strucs.length];
+        final int[] missing = client.lookupStrucValues(attribute, strucs, output);
+        String command = "struc2Str(" + attribute + ")";
+        if (missing.length == 0) {
+            Reply<String[]> reply = new Reply<String[]>(command, null, null);
+            reply.value = output;
+            reply.done = true;
+            return reply;
+        }
+        return enqueue(command, stringXInts(CqiClient.CQI_CL_STRUC2STR, attribute, charset, missing),
+                new Decoder<String[]>() {
+                    public String[] read(CqiClient client) throws CqiClientException {
+                        String[] values = client.readStringArray(charset, attribute);
+                        client.completeStrucValues(attribute, strucs, missing, values, output);
+                        return output;
+                    }
+                });
+    }
+
+    /**
+     * Queues CQI_CL_CPOS2LBOUND.
+     */
+    public Reply<int[]> cpos2LBound(String attribute, int[] cpos) {
+        return enqueue("cpos2LBound(" + attribute + ")",
+                stringXInts(CqiClient.CQI_CL_CPOS2LBOUND, attribute, CqiClient.DEFAULT_CHARSET, cpos), INTS);
+    }
+
+    public Reply<int[]> cpos2LBound(String attribute, int fromPosition, int toPosition) {
+        return enqueue("cpos2LBound(" + attribute + ")",
+                stringXRange(CqiClient.CQI_CL_CPOS2LBOUND, attribute, CqiClient.DEFAULT_CHARSET,
+                        fromPosition, toPosition), INTS);
+    }
+
+    /**
+     * Queues CQI_CL_CPOS2RBOUND.
+     */
+    public Reply<int[]> cpos2RBound(String attribute, int[] cpos) {
+        return enqueue("cpos2RBound(" + attribute + ")",
+                stringXInts(CqiClient.CQI_CL_CPOS2RBOUND, attribute, CqiClient.DEFAULT_CHARSET, cpos), INTS);
+    }
+
+    public Reply<int[]> cpos2RBound(String attribute, int fromPosition, int toPosition) {
+        return enqueue("cpos2RBound(" + attribute + ")",
+                stringXRange(CqiClient.CQI_CL_CPOS2RBOUND, attribute, CqiClient.DEFAULT_CHARSET,
+                        fromPosition, toPosition), INTS);
+    }
+
+    /**
+     * Queues CQI_CQP_DUMP_SUBCORPUS for hits <first> .. <last>.
+     *
+     * @param subcorpus the subcorpus, e.g. "DICKENS:Results"
+     * @param field one of the CQI_CONST_FIELD_* constants
+     */
+    public Reply<int[]> dumpSubCorpusBuffer(final String subcorpus, final byte field,
+            final int first, final int last) {
+        return enqueue("dumpSubCorpus(" + subcorpus + ")", new Encoder() {
+            public void write(CqiClient client) throws IOException {
+                client.writeCommand(CqiClient.CQI_CQP_DUMP_SUBCORPUS);
+                client.writeString(subcorpus);
+                client.writeByte(field);
+                client.writeInt(first);
+                client.writeInt(last);
+            }
+        }, INTS);
+    }
+
+    /**
+     * Queues CQI_CQP_QUERY, running <query> into <corpus>:<subcorpus>. Unlike
+     * CqiClient.query, the query cache is not looked at.
+     *
+     * @return a reply holding the subcorpus, e.g. "DICKENS:Results"
+     */
+    public Reply<String> query(final String corpus, final String subcorpus, final String query,
+            final Charset charset) {
+        return enqueue("query(" + corpus + ":" + subcorpus + ")", new Encoder() {
+            public void write(CqiClient client) throws IOException {
+                client.writeCommand(CqiClient.CQI_CQP_QUERY);
+                client.writeString(corpus);
+                client.writeString(subcorpus);
+                client.writeString(query, charset);
+            }
+        }, new Decoder<String>() {
+            public String read(CqiClient client) throws CqiClientException, IOException {
+                client.readQueryReply(corpus, subcorpus);
+                return corpus + ":" + subcorpus;
+            }
+        });
+    }
+
+    /**
+     * Queues CQI_CQP_SUBCORPUS_SIZE.
+     */
+    public Reply<Integer> subCorpusSize(final String subcorpus) {
+        return enqueue("subCorpusSize(" + subcorpus + ")", new Encoder() {
+            public void write(CqiClient client) throws IOException {
+                client.writeCommand(CqiClient.CQI_CQP_SUBCORPUS_SIZE);
+                client.writeString(subcorpus);
+            }
+        }, INT);
+    }
+
+    /**
+     * Sends all queued commands and reads their replies in order. Every reply
+     * is read even if earlier ones failed, so that the connection stays in a
+     * consistent state; failures are kept in the corresponding Reply.
+     *
+     * @return the replies, in the order the commands were queued
+     * @throws CqiClientException the first error answered by the server,
+     * naming the command that caused it
+     */
+    public List<Reply<?>> sync() throws CqiClientException {
+        List<Reply<?>> batch = new ArrayList<Reply<?>>(queue);
+        queue.clear();
+        synchronized (client) {
+            long started = client.beginOperation();
+            try {
+                try {
+                    for (Reply<?> reply : batch) {
+                        reply.encoder.write(client);
+                    }
+                    client.flushFrame();
+                } catch (IOException e) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        batch.get(i).fail(i, "IO Error while communicating to the server", e);
+                    }
+                    throw batch.get(0).error;
+                }
+                Reply<?> firstFailure = null;
+                Reply<?> lastFailure = null;
+                int lastFailureIndex = -1;
+                boolean deferred = client.isDeferLastError();
+                client.setDeferLastError(true);
+                try {
+                    for (int i = 0; i < batch.size(); i++) {
+                        Reply<?> reply = batch.get(i);
+                        reply.index = i;
+                        try {
+                            read(client, reply);
+                        } catch (CqiClientException e) {
+                            if (e.getCause() instanceof IOException) {
+                                // the stream is broken, nothing else can be read
+                                for (int j = i; j < batch.size(); j++) {
+                                    batch.get(j).fail(j, e.getMessage(), e);
+                                }
+                                throw batch.get(i).error;
+                            }
+                            reply.fail(i, e.getMessage(), e);
+                            firstFailure = (firstFailure == null) ? reply : firstFailure;
+                            lastFailure = reply;
+                            lastFailureIndex = i;
+                        } catch (IOException e) {
+                            for (int j = i; j < batch.size(); j++) {
+                                batch.get(j).fail(j, "IO Error while communicating to the server", e);
+                            }
+                            throw batch.get(i).error;
+                        }
+                    }
+                } finally {
+                    client.setDeferLastError(deferred);
+                }
+                if (lastFailure != null) {
+                    // the server only remembers the details of the last error;
+                    // a caller deferring errors itself asks for them
+                    if (!deferred) {
+                        CqiClientException cause = (CqiClientException) lastFailure.error.getCause();
+                        try {
+                            String message = client.lastErrorMessage(cause.getMessage());
+                            lastFailure.fail(lastFailureIndex, message, cause);
+                        } catch (IOException e) {
+                            throw new CqiClientException("IO Error while communicating to the server", e);
+                        }
+                    }
+                    throw firstFailure.error;
+                }
+            } finally {
+                client.endOperation("pipeline", started);
+            }
+        }
+        return Collections.unmodifiableList(batch);
+    }
+
+    private static <T> void read(CqiClient client, Reply<T> reply)
+            throws CqiClientException, IOException {
+        reply.value = reply.decoder.read(client);
+        reply.done = true;
+    }
+}
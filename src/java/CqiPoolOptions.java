@@ -0,0 +1,124 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+
+/**
+ * Settings of a CqiClientPool. Times are given in milliseconds.
+ */
+public class CqiPoolOptions {
+
+    private int minSize = 1;
+    private int maxSize = 8;
+    private long maxIdleTime = 5 * 60 * 1000;
+    private long evictionInterval = 30 * 1000;
+    private long borrowTimeout = 10 * 1000;
+    private long validateAfterIdle = 1000;
+    private CqiSocketOptions socketOptions = new CqiSocketOptions();
+    private CqiStats stats = null;
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    /**
+     * Connections opened when the pool starts and kept open while idle.
+     */
+    public CqiPoolOptions setMinSize(int minSize) {
+        this.minSize = minSize;
+        return this;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Upper bound of open connections, borrowed or idle.
+     */
+    public CqiPoolOptions setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    public long getMaxIdleTime() {
+        return maxIdleTime;
+    }
+
+    /**
+     * Idle connections above the minimum are closed after this time.
+     */
+    public CqiPoolOptions setMaxIdleTime(long maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+        return this;
+    }
+
+    public long getEvictionInterval() {
+        return evictionInterval;
+    }
+
+    /**
+     * How often idle connections are checked for eviction.
+     */
+    public CqiPoolOptions setEvictionInterval(long evictionInterval) {
+        this.evictionInterval = evictionInterval;
+        return this;
+    }
+
+    public long getBorrowTimeout() {
+        return borrowTimeout;
+    }
+
+    /**
+     * How long borrow waits for a connection when the pool is exhausted.
+     */
+    public CqiPoolOptions setBorrowTimeout(long borrowTimeout) {
+        this.borrowTimeout = borrowTimeout;
+        return this;
+    }
+
+    public long getValidateAfterIdle() {
+        return validateAfterIdle;
+    }
+
+    /**
+     * Connections idle for longer than this are pinged before being handed
+     * out. 0 pings on every borrow.
+     */
+    public CqiPoolOptions setValidateAfterIdle(long validateAfterIdle) {
+        this.validateAfterIdle = validateAfterIdle;
+        return this;
+    }
+
+    public CqiSocketOptions getSocketOptions() {
+        return socketOptions;
+    }
+
+    public CqiPoolOptions setSocketOptions(CqiSocketOptions socketOptions) {
+        this.socketOptions = socketOptions;
+        return this;
+    }
+
+    public CqiStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Stats recorded by every connection of the pool, along with the time
+     * spent waiting in borrow. Null, the default, records nothing.
+     */
+    public CqiPoolOptions setStats(CqiStats stats) {
+        this.stats = stats;
+        return this;
+    }
+}
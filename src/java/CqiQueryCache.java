@@ -0,0 +1,225 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Results of earlier queries kept on the server, see CqiClient.cachedQuery.
+ * Every distinct (corpus, query, charset) gets its own subcorpus, named
+ * SUBCORPUS_PREFIX followed by a number, and repeating the query reuses it.
+ * The least recently used subcorpora are dropped once there are more than
+ * maxEntries of them or they hold more than maxHits hits, which is what
+ * the server memory they take is proportional to.
+ *
+ * Subcorpora belong to a connection, so a cache serves a single client.
+ * It is thread safe, so that it can be watched while in use.
+ */
+public class CqiQueryCache {
+
+    public static final String SUBCORPUS_PREFIX = "Cached";
+
+    /**
+     * Approximate server memory per hit: match, matchend, target and
+     * keyword positions.
+     */
+    private static final int BYTES_PER_HIT = 16;
+
+    private static final class Key {
+        private final String corpus;
+        private final String query;
+        private final Charset charset;
+
+        private Key(String corpus, String query, Charset charset) {
+            this.corpus = corpus;
+            this.query = query;
+            this.charset = charset;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return corpus.equals(other.corpus) && query.equals(other.query)
+                    && charset.equals(other.charset);
+        }
+
+        @Override
+        public int hashCode() {
+            return (corpus.hashCode() * 31 + query.hashCode()) * 31 + charset.hashCode();
+        }
+    }
+
+    private static final class Entry {
+        private final String subcorpus;
+        private final int size;
+
+        private Entry(String subcorpus, int size) {
+            this.subcorpus = subcorpus;
+            this.size = size;
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxHits;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private CqiClient owner = null;
+    private int nextId = 1;
+    private long cachedHits = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param maxEntries subcorpora kept before the least recently used one
+     * is dropped
+     * @param maxHits bound of the hits of all subcorpora together; the
+     * latest one is kept even if it is larger
+     */
+    public CqiQueryCache(int maxEntries, long maxHits) {
+        if (maxEntries < 1 || maxHits < 1) {
+            throw new IllegalArgumentException("maxEntries and maxHits must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.maxHits = maxHits;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return number of cached subcorpora
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return hits of all cached subcorpora
+     */
+    public synchronized long getCachedHits() {
+        return cachedHits;
+    }
+
+    /**
+     * @return estimate of the server memory taken by the cached subcorpora
+     */
+    public synchronized long getServerBytes() {
+        return cachedHits * BYTES_PER_HIT;
+    }
+
+    /**
+     * Binds the cache to <client>, the only one it can serve.
+     */
+    synchronized void attach(CqiClient client) {
+        if (owner != null && owner != client) {
+            throw new IllegalArgumentException("Query cache already in use by another client");
+        }
+        owner = client;
+    }
+
+    /**
+     * @return the subcorpus (without corpus) holding the results of the
+     * query, or null
+     */
+    synchronized String get(String corpus, String query, Charset charset) {
+        Entry entry = entries.get(new Key(corpus, query, charset));
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.subcorpus;
+    }
+
+    /**
+     * @return a subcorpus name not used by the cache yet
+     */
+    synchronized String nextName() {
+        return SUBCORPUS_PREFIX + nextId++;
+    }
+
+    /**
+     * Adds the results of a query, run into <subcorpus> with <size> hits.
+     *
+     * @return the subcorpora to drop, as CORPUS:Name
+     */
+    synchronized List<String> put(String corpus, String query, Charset charset, String subcorpus, int size) {
+        Key key = new Key(corpus, query, charset);
+        Entry previous = entries.put(key, new Entry(subcorpus, size));
+        List<String> dropped = new ArrayList<String>();
+        if (previous != null) {
+            cachedHits -= previous.size;
+            dropped.add(corpus + ":" + previous.subcorpus);
+        }
+        cachedHits += size;
+        Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || cachedHits > maxHits) && entries.size() > 1) {
+            Map.Entry<Key, Entry> evicted = eldest.next();
+            cachedHits -= evicted.getValue().size;
+            dropped.add(evicted.getKey().corpus + ":" + evicted.getValue().subcorpus);
+            eldest.remove();
+            evictions++;
+        }
+        return dropped;
+    }
+
+    /**
+     * Forgets the entry of a subcorpus dropped or overwritten elsewhere.
+     *
+     * @param subcorpus CORPUS:Name
+     */
+    synchronized void forget(String subcorpus) {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Entry> entry = it.next();
+            if (subcorpus.equals(entry.getKey().corpus + ":" + entry.getValue().subcorpus)) {
+                cachedHits -= entry.getValue().size;
+                it.remove();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Empties the cache.
+     *
+     * @return the subcorpora to drop, as CORPUS:Name
+     */
+    synchronized List<String> clear() {
+        List<String> dropped = new ArrayList<String>();
+        for (Map.Entry<Key, Entry> entry : entries.entrySet()) {
+            dropped.add(entry.getKey().corpus + ":" + entry.getValue().subcorpus);
+        }
+        entries.clear();
+        cachedHits = 0;
+        return dropped;
+    }
+}
@@ -0,0 +1,948 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * In-process implementation of the server side of the CQi commands used by
+ * CqiClient, over CqiCorpus corpora. Clients reach it over TCP on the
+ * loopback interface (start) or through in-memory pipes without any
+ * networking (localClient). As with cqpserver, every connection has its
+ * own subcorpora; queries are limited to the subset described in CqpQuery.
+ *
+ * Replies are sent once all pending requests of a connection have been
+ * answered, so that pipelined requests get their replies in one write.
+ */
+public class CqiServer implements Closeable {
+
+    private static final int CTRL_CONNECT = 0x1101;
+    private static final int CTRL_BYE = 0x1102;
+    private static final int CTRL_PING = 0x1104;
+    private static final int CTRL_LAST_GENERAL_ERROR = 0x1105;
+    private static final int CTRL_LAST_CQP_ERROR = 0x1106;
+    private static final int CORPUS_LIST_CORPORA = 0x1301;
+    private static final int CORPUS_CHARSET = 0x1303;
+    private static final int CORPUS_POSITIONAL_ATTRIBUTES = 0x1305;
+    private static final int CORPUS_STRUCTURAL_ATTRIBUTES = 0x1306;
+    private static final int CORPUS_STRUCTURAL_ATTRIBUTE_HAS_VALUES = 0x1307;
+    private static final int CORPUS_FULL_NAME = 0x1309;
+    private static final int CL_ATTRIBUTE_SIZE = 0x1401;
+    private static final int CL_LEXICON_SIZE = 0x1402;
+    private static final int CL_STR2ID = 0x1404;
+    private static final int CL_ID2STR = 0x1405;
+    private static final int CL_ID2FREQ = 0x1406;
+    private static final int CL_CPOS2ID = 0x1407;
+    private static final int CL_CPOS2STR = 0x1408;
+    private static final int CL_CPOS2STRUC = 0x1409;
+    private static final int CL_STRUC2STR = 0x140B;
+    private static final int CL_CPOS2LBOUND = 0x1420;
+    private static final int CL_CPOS2RBOUND = 0x1421;
+    private static final int CQP_QUERY = 0x1501;
+    private static final int CQP_LIST_SUBCORPORA = 0x1502;
+    private static final int CQP_SUBCORPUS_SIZE = 0x1503;
+    private static final int CQP_DUMP_SUBCORPUS = 0x1505;
+    private static final int CQP_DROP_SUBCORPUS = 0x1509;
+    private static final int CQP_FDIST_1 = 0x1510;
+    private static final int CQP_FDIST_2 = 0x1511;
+
+    private static final int STATUS_OK = 0x0101;
+    private static final int STATUS_CONNECT_OK = 0x0102;
+    private static final int STATUS_BYE_OK = 0x0103;
+    private static final int STATUS_PING_OK = 0x0104;
+    private static final int DATA_BOOL = 0x0302;
+    private static final int DATA_INT = 0x0303;
+    private static final int DATA_STRING = 0x0304;
+    private static final int DATA_INT_LIST = 0x0307;
+    private static final int DATA_STRING_LIST = 0x0308;
+    private static final int DATA_INT_TABLE = 0x030B;
+    private static final int ERROR_GENERAL_ERROR = 0x0201;
+    private static final int ERROR_CONNECT_REFUSED = 0x0202;
+    private static final int CL_ERROR_NO_SUCH_ATTRIBUTE = 0x0401;
+    private static final int CL_ERROR_WRONG_ATTRIBUTE_TYPE = 0x0402;
+    private static final int CQP_ERROR_GENERAL = 0x0501;
+    private static final int CQP_ERROR_NO_SUCH_CORPUS = 0x0502;
+    private static final int CQP_ERROR_INVALID_FIELD = 0x0503;
+    private static final int CQP_ERROR_OUT_OF_RANGE = 0x0504;
+    private static final int CQP_ERROR_SYNTAX = 0x0505;
+
+    private static final byte FIELD_MATCH = 0x10;
+    private static final byte FIELD_MATCHEND = 0x11;
+    private static final byte FIELD_TARGET = 0x00;
+    private static final byte FIELD_KEYWORD = 0x09;
+
+    private static final Pattern SUBCORPUS_NAME = Pattern.compile("[A-Z][A-Za-z0-9_\\-]*");
+    private static final int STREAM_BUFFER_SIZE = 1 << 16;
+
+    private final Map<String, CqiCorpus> corpora = new ConcurrentHashMap<String, CqiCorpus>();
+    private final Set<Connection> connections = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private volatile String user = null;
+    private volatile String password = null;
+    private volatile boolean closed = false;
+    private ServerSocket serverSocket;
+
+    public CqiServer(CqiCorpus... corpora) {
+        for (CqiCorpus corpus : corpora) {
+            addCorpus(corpus);
+        }
+    }
+
+    public CqiServer addCorpus(CqiCorpus corpus) {
+        corpora.put(corpus.getName(), corpus);
+        return this;
+    }
+
+    /**
+     * Only accept connections with these credentials. By default any are
+     * accepted.
+     */
+    public CqiServer setCredentials(String user, String password) {
+        this.user = user;
+        this.password = password;
+        return this;
+    }
+
+    /**
+     * Starts listening on the loopback interface.
+     *
+     * @param port the port, 0 for any free one (see getPort)
+     */
+    public synchronized CqiServer start(int port) throws IOException {
+        if (serverSocket != null) {
+            throw new IllegalStateException("Server already started");
+        }
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "cqi-server-" + serverSocket.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return this;
+    }
+
+    public CqiServer start() throws IOException {
+        return start(0);
+    }
+
+    /**
+     * @return the port listened on, -1 if not started
+     */
+    public synchronized int getPort() {
+        return (serverSocket == null) ? -1 : serverSocket.getLocalPort();
+    }
+
+    /**
+     * A client connected through in-memory pipes, served by a thread of
+     * this server. Like a client created with a host and port, it still has
+     * to connect with a user and password.
+     */
+    public CqiClient localClient() {
+        if (closed) {
+            throw new IllegalStateException("Server closed");
+        }
+        Pipe requests = new Pipe(STREAM_BUFFER_SIZE, false);
+        // replies never block the server, which would otherwise deadlock
+        // with a client still writing pipelined requests
+        Pipe replies = new Pipe(STREAM_BUFFER_SIZE, true);
+        serve(new Connection(requests.source(), replies.sink(), null));
+        return new CqiClient(replies.source(), requests.sink());
+    }
+
+    /**
+     * Stops listening and closes every connection.
+     */
+    public void close() throws IOException {
+        closed = true;
+        synchronized (this) {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        }
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                serve(new Connection(socket.getInputStream(), socket.getOutputStream(), socket));
+            } catch (IOException e) {
+                // server socket closed
+                return;
+            }
+        }
+    }
+
+    private void serve(Connection connection) {
+        connections.add(connection);
+        Thread thread = new Thread(connection, "cqi-server-connection-" + connectionCount.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static String charsetName(Charset charset) {
+        if (charset.equals(StandardCharsets.UTF_8)) {
+            return "utf8";
+        }
+        if (charset.equals(StandardCharsets.ISO_8859_1)) {
+            return "latin1";
+        }
+        return charset.name();
+    }
+
+    /**
+     * Serves one client.
+     */
+    private final class Connection implements Runnable {
+
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final Closeable input;
+        private final Closeable output;
+        private final Socket socket;
+        private final Map<String, int[][]> subcorpora = new LinkedHashMap<String, int[][]>();
+        private boolean connected = false;
+        private String lastGeneralError = "";
+        private String lastCqpError = "";
+
+        private Connection(InputStream input, OutputStream output, Socket socket) {
+            this.in = new DataInputStream(new BufferedInputStream(input, STREAM_BUFFER_SIZE));
+            this.out = new DataOutputStream(new BufferedOutputStream(output, STREAM_BUFFER_SIZE));
+            this.input = input;
+            this.output = output;
+            this.socket = socket;
+        }
+
+        public void run() {
+            try {
+                while (serve(in.readUnsignedShort())) {
+                    if (in.available() == 0) {
+                        out.flush();
+                    }
+                }
+                out.flush();
+            } catch (IOException e) {
+                // client gone or server closed
+            } finally {
+                close();
+                connections.remove(this);
+            }
+        }
+
+        void close() {
+            try {
+                if (socket != null) {
+                    socket.close();
+                } else {
+                    input.close();
+                    output.close();
+                }
+            } catch (IOException e) {
+                // nothing left to do with the connection
+            }
+        }
+
+        /**
+         * Reads the arguments of <command> and answers it.
+         *
+         * @return false once the connection is to be closed
+         */
+        private boolean serve(int command) throws IOException {
+            if (!connected && command != CTRL_CONNECT) {
+                lastGeneralError = "not connected";
+                out.writeShort(ERROR_CONNECT_REFUSED);
+                return false;
+            }
+            switch (command) {
+                case CTRL_CONNECT: {
+                    String user = readString();
+                    String password = readString();
+                    String expectedUser = CqiServer.this.user;
+                    if (expectedUser != null
+                            && !(expectedUser.equals(user) && CqiServer.this.password.equals(password))) {
+                        lastGeneralError = "access denied";
+                        out.writeShort(ERROR_CONNECT_REFUSED);
+                        return false;
+                    }
+                    connected = true;
+                    out.writeShort(STATUS_CONNECT_OK);
+                    return true;
+                }
+                case CTRL_BYE:
+                    out.writeShort(STATUS_BYE_OK);
+                    return false;
+                case CTRL_PING:
+                    out.writeShort(STATUS_PING_OK);
+                    return true;
+                case CTRL_LAST_GENERAL_ERROR:
+                    writeString(lastGeneralError, StandardCharsets.UTF_8);
+                    return true;
+                case CTRL_LAST_CQP_ERROR:
+                    writeString(lastCqpError, StandardCharsets.UTF_8);
+                    return true;
+                case CORPUS_LIST_CORPORA: {
+                    String[] names = corpora.keySet().toArray(new String[0]);
+                    Arrays.sort(names);
+                    writeStrings(names, StandardCharsets.UTF_8);
+                    return true;
+                }
+                case CORPUS_CHARSET: {
+                    CqiCorpus corpus = corpus(readString());
+                    if (corpus != null) {
+                        writeString(charsetName(corpus.getCharset()), StandardCharsets.UTF_8);
+                    }
+                    return true;
+                }
+                case CORPUS_FULL_NAME: {
+                    CqiCorpus corpus = corpus(readString());
+                    if (corpus != null) {
+                        writeString(corpus.getFullName(), corpus.getCharset());
+                    }
+                    return true;
+                }
+                case CORPUS_POSITIONAL_ATTRIBUTES: {
+                    CqiCorpus corpus = corpus(readString());
+                    if (corpus != null) {
+                        writeStrings(corpus.getPositionalAttributes(), StandardCharsets.UTF_8);
+                    }
+                    return true;
+                }
+                case CORPUS_STRUCTURAL_ATTRIBUTES: {
+                    CqiCorpus corpus = corpus(readString());
+                    if (corpus != null) {
+                        writeStrings(corpus.getStructuralAttributes(), StandardCharsets.UTF_8);
+                    }
+                    return true;
+                }
+                case CORPUS_STRUCTURAL_ATTRIBUTE_HAS_VALUES: {
+                    CqiCorpus.StructuralAttribute attribute = structural(readString());
+                    if (attribute != null) {
+                        out.writeShort(DATA_BOOL);
+                        out.writeByte(attribute.values != null ? 1 : 0);
+                    }
+                    return true;
+                }
+                case CL_ATTRIBUTE_SIZE: {
+                    String name = readString();
+                    CqiCorpus corpus = attributeCorpus(name);
+                    if (corpus == null) {
+                        return true;
+                    }
+                    String attribute = name.substring(name.indexOf('.') + 1);
+                    out.writeShort(DATA_INT);
+                    out.writeInt(corpus.positional.containsKey(attribute)
+                            ? corpus.size() : corpus.structural.get(attribute).size());
+                    return true;
+                }
+                case CL_LEXICON_SIZE: {
+                    CqiCorpus.PositionalAttribute attribute = positional(readString());
+                    if (attribute != null) {
+                        out.writeShort(DATA_INT);
+                        out.writeInt(attribute.lexicon.length);
+                    }
+                    return true;
+                }
+                case CL_STR2ID: {
+                    String name = readString();
+                    // the values are read before the attribute is resolved,
+                    // which may answer with an error
+                    int dot = name.indexOf('.');
+                    CqiCorpus corpus = (dot < 0) ? null : corpora.get(name.substring(0, dot));
+                    String[] values = readStrings(corpus == null ? StandardCharsets.UTF_8 : corpus.getCharset());
+                    CqiCorpus.PositionalAttribute attribute = positional(name);
+                    if (attribute != null) {
+                        int[] ids = new int[values.length];
+                        for (int i = 0; i < values.length; i++) {
+                            ids[i] = attribute.str2Id(values[i]);
+                        }
+                        writeInts(ids);
+                    }
+                    return true;
+                }
+                case CL_ID2STR: {
+                    String name = readString();
+                    int[] ids = readInts();
+                    CqiCorpus.PositionalAttribute attribute = positional(name);
+                    if (attribute != null) {
+                        String[] values = new String[ids.length];
+                        for (int i = 0; i < ids.length; i++) {
+                            int id = ids[i];
+                            values[i] = (id >= 0 && id < attribute.lexicon.length) ? attribute.lexicon[id] : "";
+                        }
+                        writeStrings(values, attributeCorpus(name).getCharset());
+                    }
+                    return true;
+                }
+                case CL_ID2FREQ: {
+                    String name = readString();
+                    int[] ids = readInts();
+                    CqiCorpus.PositionalAttribute attribute = positional(name);
+                    if (attribute != null) {
+                        int[] frequencies = new int[ids.length];
+                        for (int i = 0; i < ids.length; i++) {
+                            frequencies[i] = attribute.frequency(ids[i]);
+                        }
+                        writeInts(frequencies);
+                    }
+                    return true;
+                }
+                case CL_CPOS2ID:
+                case CL_CPOS2STR: {
+                    String name = readString();
+                    int[] cpos = readInts();
+                    CqiCorpus.PositionalAttribute attribute = positional(name);
+                    if (attribute == null) {
+                        return true;
+                    }
+                    if (command == CL_CPOS2ID) {
+                        int[] ids = new int[cpos.length];
+                        for (int i = 0; i < cpos.length; i++) {
+                            ids[i] = attribute.id(cpos[i]);
+                        }
+                        writeInts(ids);
+                    } else {
+                        String[] values = new String[cpos.length];
+                        for (int i = 0; i < cpos.length; i++) {
+                            values[i] = attribute.value(cpos[i]);
+                        }
+                        writeStrings(values, attributeCorpus(name).getCharset());
+                    }
+                    return true;
+                }
+                case CL_CPOS2STRUC:
+                case CL_CPOS2LBOUND:
+                case CL_CPOS2RBOUND: {
+                    String name = readString();
+                    int[] cpos = readInts();
+                    CqiCorpus.StructuralAttribute attribute = structural(name);
+                    if (attribute == null) {
+                        return true;
+                    }
+                    int[] result = new int[cpos.length];
+                    for (int i = 0; i < cpos.length; i++) {
+                        int struc = attribute.struc(cpos[i]);
+                        result[i] = (struc < 0 || command == CL_CPOS2STRUC) ? struc
+                                : (command == CL_CPOS2LBOUND) ? attribute.start(struc) : attribute.end(struc);
+                    }
+                    writeInts(result);
+                    return true;
+                }
+                case CL_STRUC2STR: {
+                    String name = readString();
+                    int[] strucs = readInts();
+                    CqiCorpus.StructuralAttribute attribute = structural(name);
+                    if (attribute == null) {
+                        return true;
+                    }
+                    if (attribute.values == null) {
+                        out.writeShort(CL_ERROR_WRONG_ATTRIBUTE_TYPE);
+                        return true;
+                    }
+                    String[] values = new String[strucs.length];
+                    for (int i = 0; i < strucs.length; i++) {
+                        values[i] = attribute.value(strucs[i]);
+                    }
+                    writeStrings(values, attributeCorpus(name).getCharset());
+                    return true;
+                }
+                case CQP_QUERY:
+                    query(readString(), readString());
+                    return true;
+                case CQP_LIST_SUBCORPORA: {
+                    String corpus = readString();
+                    List<String> names = new ArrayList<String>();
+                    for (String subcorpus : subcorpora.keySet()) {
+                        if (subcorpus.startsWith(corpus + ":")) {
+                            names.add(subcorpus.substring(corpus.length() + 1));
+                        }
+                    }
+                    writeStrings(names.toArray(new String[0]), StandardCharsets.UTF_8);
+                    return true;
+                }
+                case CQP_SUBCORPUS_SIZE: {
+                    int[][] hits = subcorpus(readString());
+                    if (hits != null) {
+                        out.writeShort(DATA_INT);
+                        out.writeInt(hits[0].length);
+                    }
+                    return true;
+                }
+                case CQP_DUMP_SUBCORPUS: {
+                    String name = readString();
+                    byte field = in.readByte();
+                    int first = in.readInt();
+                    int last = in.readInt();
+                    int[][] hits = subcorpus(name);
+                    if (hits == null) {
+                        return true;
+                    }
+                    int[] column = field(hits, field);
+                    if (column == null) {
+                        return true;
+                    }
+                    if (first < 0 || first > last || last >= column.length) {
+                        lastCqpError = "range " + first + ".." + last + " out of " + column.length + " hits";
+                        out.writeShort(CQP_ERROR_OUT_OF_RANGE);
+                        return true;
+                    }
+                    writeInts(Arrays.copyOfRange(column, first, last + 1));
+                    return true;
+                }
+                case CQP_DROP_SUBCORPUS: {
+                    String name = readString();
+                    if (subcorpus(name) != null) {
+                        subcorpora.remove(name);
+                        out.writeShort(STATUS_OK);
+                    }
+                    return true;
+                }
+                case CQP_FDIST_1:
+                case CQP_FDIST_2:
+                    fdist(command == CQP_FDIST_2);
+                    return true;
+                default:
+                    // the arguments of an unknown command can't be skipped
+                    lastGeneralError = String.format("unknown command 0x%04X", command);
+                    out.writeShort(ERROR_GENERAL_ERROR);
+                    return false;
+            }
+        }
+
+        private void query(String mother, String child) throws IOException {
+            String motherCorpus = mother.contains(":") ? mother.substring(0, mother.indexOf(':')) : mother;
+            CqiCorpus corpus = corpora.get(motherCorpus);
+            String query = readString(corpus == null ? StandardCharsets.UTF_8 : corpus.getCharset());
+            if (corpus == null) {
+                lastCqpError = "no such corpus: " + motherCorpus;
+                out.writeShort(CQP_ERROR_NO_SUCH_CORPUS);
+                return;
+            }
+            if (!SUBCORPUS_NAME.matcher(child).matches()) {
+                lastCqpError = "invalid subcorpus name: " + child;
+                out.writeShort(CQP_ERROR_GENERAL);
+                return;
+            }
+            int[][] scope = null;
+            if (!mother.equals(motherCorpus)) {
+                scope = subcorpus(mother);
+                if (scope == null) {
+                    return;
+                }
+            }
+            CqpQuery parsed;
+            try {
+                parsed = CqpQuery.parse(corpus, query);
+            } catch (CqpQuery.SyntaxException e) {
+                lastCqpError = e.getMessage();
+                out.writeShort(CQP_ERROR_SYNTAX);
+                return;
+            }
+            int[][] hits;
+            if (scope == null) {
+                hits = parsed.run(0, corpus.size() - 1);
+            } else {
+                List<int[][]> parts = new ArrayList<int[][]>();
+                for (int h = 0; h < scope[0].length; h++) {
+                    parts.add(parsed.run(scope[0][h], scope[1][h]));
+                }
+                hits = concat(parts);
+            }
+            subcorpora.put(motherCorpus + ":" + child, hits);
+            out.writeShort(STATUS_OK);
+        }
+
+        private void fdist(boolean pairs) throws IOException {
+            String name = readString();
+            int cutoff = in.readInt();
+            byte field1 = in.readByte();
+            String attribute1 = readString();
+            byte field2 = pairs ? in.readByte() : 0;
+            String attribute2 = pairs ? readString() : null;
+            int[][] hits = subcorpus(name);
+            if (hits == null) {
+                return;
+            }
+            String corpus = name.substring(0, name.indexOf(':'));
+            int[] column1 = field(hits, field1);
+            int[] column2 = pairs ? field(hits, field2) : null;
+            if (column1 == null || (pairs && column2 == null)) {
+                return;
+            }
+            CqiCorpus.PositionalAttribute values1 = positional(corpus + "." + attribute1);
+            if (values1 == null) {
+                return;
+            }
+            CqiCorpus.PositionalAttribute values2 = null;
+            if (pairs) {
+                values2 = positional(corpus + "." + attribute2);
+                if (values2 == null) {
+                    return;
+                }
+            }
+            Map<Long, int[]> counts = new HashMap<Long, int[]>();
+            for (int h = 0; h < column1.length; h++) {
+                int id1 = values1.id(column1[h]);
+                int id2 = pairs ? values2.id(column2[h]) : 0;
+                if (id1 < 0 || id2 < 0) {
+                    continue;
+                }
+                Long key = ((long) id1 << 32) | (id2 & 0xffffffffL);
+                int[] count = counts.get(key);
+                if (count == null) {
+                    counts.put(key, new int[]{1});
+                } else {
+                    count[0]++;
+                }
+            }
+            List<int[]> rows = new ArrayList<int[]>();
+            for (Map.Entry<Long, int[]> entry : counts.entrySet()) {
+                int frequency = entry.getValue()[0];
+                if (frequency >= cutoff) {
+                    long key = entry.getKey();
+                    rows.add(pairs ? new int[]{(int) (key >>> 32), (int) key, frequency}
+                            : new int[]{(int) (key >>> 32), frequency});
+                }
+            }
+            final int columns = pairs ? 3 : 2;
+            Collections.sort(rows, new Comparator<int[]>() {
+                public int compare(int[] a, int[] b) {
+                    if (a[columns - 1] != b[columns - 1]) {
+                        return (a[columns - 1] > b[columns - 1]) ? -1 : 1;
+                    }
+                    return (a[0] != b[0]) ? Integer.compare(a[0], b[0]) : Integer.compare(a[1], b[1]);
+                }
+            });
+            out.writeShort(DATA_INT_TABLE);
+            out.writeInt(rows.size());
+            out.writeInt(columns);
+            for (int[] row : rows) {
+                for (int value : row) {
+                    out.writeInt(value);
+                }
+            }
+        }
+
+        private CqiCorpus corpus(String name) throws IOException {
+            CqiCorpus corpus = corpora.get(name);
+            if (corpus == null) {
+                lastCqpError = "no such corpus: " + name;
+                out.writeShort(CQP_ERROR_NO_SUCH_CORPUS);
+            }
+            return corpus;
+        }
+
+        /**
+         * The corpus of the attribute CORPUS.attr, answering with an error
+         * if there is no such attribute.
+         */
+        private CqiCorpus attributeCorpus(String name) throws IOException {
+            int dot = name.indexOf('.');
+            CqiCorpus corpus = (dot < 0) ? null : corpora.get(name.substring(0, dot));
+            String attribute = name.substring(dot + 1);
+            if (corpus == null || !(corpus.positional.containsKey(attribute)
+                    || corpus.structural.containsKey(attribute))) {
+                lastGeneralError = "no such attribute: " + name;
+                out.writeShort(CL_ERROR_NO_SUCH_ATTRIBUTE);
+                return null;
+            }
+            return corpus;
+        }
+
+        private CqiCorpus.PositionalAttribute positional(String name) throws IOException {
+            CqiCorpus corpus = attributeCorpus(name);
+            if (corpus == null) {
+                return null;
+            }
+            CqiCorpus.PositionalAttribute attribute = corpus.positional.get(name.substring(name.indexOf('.') + 1));
+            if (attribute == null) {
+                out.writeShort(CL_ERROR_WRONG_ATTRIBUTE_TYPE);
+            }
+            return attribute;
+        }
+
+        private CqiCorpus.StructuralAttribute structural(String name) throws IOException {
+            CqiCorpus corpus = attributeCorpus(name);
+            if (corpus == null) {
+                return null;
+            }
+            CqiCorpus.StructuralAttribute attribute = corpus.structural.get(name.substring(name.indexOf('.') + 1));
+            if (attribute == null) {
+                out.writeShort(CL_ERROR_WRONG_ATTRIBUTE_TYPE);
+            }
+            return attribute;
+        }
+
+        private int[][] subcorpus(String name) throws IOException {
+            int[][] hits = subcorpora.get(name);
+            if (hits == null) {
+                lastCqpError = "no such subcorpus: " + name;
+                out.writeShort(CQP_ERROR_NO_SUCH_CORPUS);
+            }
+            return hits;
+        }
+
+        private int[] field(int[][] hits, byte field) throws IOException {
+            switch (field) {
+                case FIELD_MATCH:
+                    return hits[0];
+                case FIELD_MATCHEND:
+                    return hits[1];
+                case FIELD_TARGET:
+                    return hits[2];
+                case FIELD_KEYWORD: {
+                    int[] keywords = new int[hits[0].length];
+                    Arrays.fill(keywords, -1);
+                    return keywords;
+                }
+                default:
+                    lastCqpError = "invalid field " + field;
+                    out.writeShort(CQP_ERROR_INVALID_FIELD);
+                    return null;
+            }
+        }
+
+        private String readString() throws IOException {
+            return readString(StandardCharsets.UTF_8);
+        }
+
+        private String readString(Charset charset) throws IOException {
+            byte[] bytes = new byte[in.readUnsignedShort()];
+            in.readFully(bytes);
+            return new String(bytes, charset);
+        }
+
+        private String[] readStrings(Charset charset) throws IOException {
+            String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = readString(charset);
+            }
+            return strings;
+        }
+
+        private int[] readInts() throws IOException {
+            int[] ints = new int[in.readInt()];
+            for (int i = 0; i < ints.length; i++) {
+                ints[i] = in.readInt();
+            }
+            return ints;
+        }
+
+        private void writeString(String string, Charset charset) throws IOException {
+            out.writeShort(DATA_STRING);
+            writeBytes(string, charset);
+        }
+
+        private void writeStrings(String[] strings, Charset charset) throws IOException {
+            out.writeShort(DATA_STRING_LIST);
+            out.writeInt(strings.length);
+            for (String string : strings) {
+                writeBytes(string, charset);
+            }
+        }
+
+        private void writeBytes(String string, Charset charset) throws IOException {
+            byte[] bytes = string.getBytes(charset);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+
+        private void writeInts(int[] ints) throws IOException {
+            out.writeShort(DATA_INT_LIST);
+            out.writeInt(ints.length);
+            for (int i : ints) {
+                out.writeInt(i);
+            }
+        }
+    }
+
+    private static int[][] concat(List<int[][]> parts) {
+        int size = 0;
+        for (int[][] part : parts) {
+            size += part[0].length;
+        }
+        int[][] all = new int[3][size];
+        int offset = 0;
+        for (int[][] part : parts) {
+            for (int f = 0; f < 3; f++) {
+                System.arraycopy(part[f], 0, all[f], offset, part[f].length);
+            }
+            offset += part[0].length;
+        }
+        return all;
+    }
+
+    /**
+     * Byte pipe between two threads. Writes block while the buffer is full,
+     * unless it may grow; reads block while it is empty, and return end of
+     * stream once the writing side is closed.
+     */
+    private static final class Pipe {
+
+        private byte[] buffer;
+        private final boolean growable;
+        private int head = 0;
+        private int count = 0;
+        private boolean sinkClosed = false;
+        private boolean sourceClosed = false;
+
+        Pipe(int capacity, boolean growable) {
+            this.buffer = new byte[capacity];
+            this.growable = growable;
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (count == 0) {
+                if (sourceClosed) {
+                    throw new IOException("Pipe closed");
+                }
+                if (sinkClosed) {
+                    return -1;
+                }
+                await();
+            }
+            int n = Math.min(Math.min(len, count), buffer.length - head);
+            System.arraycopy(buffer, head, b, off, n);
+            head = (head + n) % buffer.length;
+            count -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (sinkClosed || sourceClosed) {
+                    throw new IOException("Pipe closed");
+                }
+                if (count == buffer.length) {
+                    if (growable) {
+                        grow(count + len);
+                    } else {
+                        await();
+                        continue;
+                    }
+                }
+                int tail = (head + count) % buffer.length;
+                int n = Math.min(Math.min(len, buffer.length - count), buffer.length - tail);
+                System.arraycopy(b, off, buffer, tail, n);
+                count += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        synchronized int available() {
+            return count;
+        }
+
+        synchronized void closeSink() {
+            sinkClosed = true;
+            notifyAll();
+        }
+
+        synchronized void closeSource() {
+            sourceClosed = true;
+            notifyAll();
+        }
+
+        private void grow(int capacity) {
+            byte[] grown = new byte[Math.max(capacity, buffer.length * 2)];
+            int first = Math.min(count, buffer.length - head);
+            System.arraycopy(buffer, head, grown, 0, first);
+            System.arraycopy(buffer, 0, grown, first, count - first);
+            buffer = grown;
+            head = 0;
+        }
+
+        private void await() throws IOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        InputStream source() {
+            return new InputStream() {
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return (Pipe.this.read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+                }
+
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return Pipe.this.read(b, off, len);
+                }
+
+                public int available() {
+                    return Pipe.this.available();
+                }
+
+                public void close() {
+                    closeSource();
+                }
+            };
+        }
+
+        OutputStream sink() {
+            return new OutputStream() {
+                public void write(int b) throws IOException {
+                    Pipe.this.write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                public void write(byte[] b, int off, int len) throws IOException {
+                    Pipe.this.write(b, off, len);
+                }
+
+                public void close() {
+                    closeSink();
+                }
+            };
+        }
+    }
+}
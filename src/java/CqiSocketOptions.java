@@ -0,0 +1,103 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+
+/**
+ * Socket level settings used by CqiClient when it opens the connection to the
+ * server. Sizes and timeouts of 0 leave the operating system defaults (and
+ * infinite timeouts) in place.
+ */
+public class CqiSocketOptions {
+
+    private boolean tcpNoDelay = true;
+    private int sendBufferSize = 0;
+    private int receiveBufferSize = 0;
+    private int connectTimeout = 0;
+    private int readTimeout = 0;
+    private int streamBufferSize = 64 * 1024;
+
+    public boolean getTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * Disables Nagle's algorithm. Commands are already written as a single
+     * frame, so there is nothing to gain from delaying them.
+     */
+    public CqiSocketOptions setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * SO_SNDBUF in bytes.
+     */
+    public CqiSocketOptions setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+        return this;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * SO_RCVBUF in bytes.
+     */
+    public CqiSocketOptions setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+        return this;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Connect timeout in milliseconds.
+     */
+    public CqiSocketOptions setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * SO_TIMEOUT in milliseconds: how long a read may block waiting for the
+     * server to answer.
+     */
+    public CqiSocketOptions setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
+    public int getStreamBufferSize() {
+        return streamBufferSize;
+    }
+
+    /**
+     * Size in bytes of the client side buffer the replies are read through.
+     */
+    public CqiSocketOptions setStreamBufferSize(int streamBufferSize) {
+        this.streamBufferSize = streamBufferSize;
+        return this;
+    }
+}
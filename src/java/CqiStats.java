@@ -0,0 +1,569 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+import javax.management.ConstructorParameters;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Counters and latency histograms of the CQi traffic of the clients
+ * recording into it (see CqiClient.setStats and CqiPoolOptions.setStats):
+ * per command latency and errors, error replies by kind, bytes and round
+ * trips, round trips and latency of high level calls such as dumpSubCorpus,
+ * and the time spent waiting in CqiClientPool.borrow.
+ *
+ * Command latency is the time from sending a request to the arrival of its
+ * reply header, so that it doesn't include decoding. Clients without stats
+ * record nothing. A CqiStats may be shared by any number of clients, and can
+ * be published through JMX with register. Recording clients also emit the
+ * JFR events cqp.CqiCommand and cqp.CqiOperation when a recording enables
+ * them.
+ */
+public class CqiStats implements CqiStatsMXBean {
+
+    /**
+     * Command codes 0x11xx to 0x15xx, plus one slot for anything else.
+     */
+    private static final int FIRST_GROUP = 0x11;
+    private static final int COMMANDS = 5 * 256 + 1;
+    private static final String[] COMMAND_NAMES = commandNames();
+    private static final EventType COMMAND_EVENT = EventType.getEventType(CommandEvent.class);
+    private static final EventType OPERATION_EVENT = EventType.getEventType(OperationEvent.class);
+
+    private final AtomicReferenceArray<Histogram> commandLatencies = new AtomicReferenceArray<Histogram>(COMMANDS);
+    private final AtomicLongArray commandErrors = new AtomicLongArray(COMMANDS);
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<String, LongAdder>();
+    private final Map<String, Operation> operations = new ConcurrentHashMap<String, Operation>();
+    private final Histogram poolWait = new Histogram();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder roundTrips = new LongAdder();
+    private ObjectName objectName;
+
+    /**
+     * Log-linear histogram of non negative values, in the manner of
+     * HdrHistogram: every power of two is split in SUB_BUCKETS buckets, so
+     * values are kept with a relative error below 1 / SUB_BUCKETS.
+     */
+    public static final class Histogram {
+
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(new LongBinaryOperator() {
+            public long applyAsLong(long left, long right) {
+                return Math.max(left, right);
+            }
+        }, 0);
+
+        public void record(long value) {
+            value = Math.max(value, 0);
+            counts.incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            long n = count.sum();
+            return (n == 0) ? 0 : (double) sum.sum() / n;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the highest value equivalent to the one at <percentile>
+         */
+        public long getValueAtPercentile(double percentile) {
+            long n = count.sum();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(highestEquivalentValue(i), getMax());
+                }
+            }
+            return getMax();
+        }
+
+        public void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts.set(i, 0);
+            }
+            count.reset();
+            sum.reset();
+            max.reset();
+        }
+
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int shift = exponent - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        private static long highestEquivalentValue(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+    }
+
+    /**
+     * Snapshot of a histogram, times in microseconds.
+     */
+    public static final class Summary {
+
+        private final String name;
+        private final long count;
+        private final long errors;
+        private final double meanMicros;
+        private final double p50Micros;
+        private final double p99Micros;
+        private final double maxMicros;
+        private final double meanRoundTrips;
+        private final long maxRoundTrips;
+
+        @ConstructorParameters({"name", "count", "errors", "meanMicros", "p50Micros", "p99Micros",
+            "maxMicros", "meanRoundTrips", "maxRoundTrips"})
+        public Summary(String name, long count, long errors, double meanMicros, double p50Micros,
+                double p99Micros, double maxMicros, double meanRoundTrips, long maxRoundTrips) {
+            this.name = name;
+            this.count = count;
+            this.errors = errors;
+            this.meanMicros = meanMicros;
+            this.p50Micros = p50Micros;
+            this.p99Micros = p99Micros;
+            this.maxMicros = maxMicros;
+            this.meanRoundTrips = meanRoundTrips;
+            this.maxRoundTrips = maxRoundTrips;
+        }
+
+        private Summary(String name, Histogram latency, long errors, Histogram roundTrips) {
+            this(name, latency.getCount(), errors, latency.getMean() / 1000,
+                    latency.getValueAtPercentile(50) / 1000.0, latency.getValueAtPercentile(99) / 1000.0,
+                    latency.getMax() / 1000.0,
+                    (roundTrips == null) ? 0 : roundTrips.getMean(),
+                    (roundTrips == null) ? 0 : roundTrips.getMax());
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Error replies; always 0 for operations and pool waits.
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        public double getMeanMicros() {
+            return meanMicros;
+        }
+
+        public double getP50Micros() {
+            return p50Micros;
+        }
+
+        public double getP99Micros() {
+            return p99Micros;
+        }
+
+        public double getMaxMicros() {
+            return maxMicros;
+        }
+
+        /**
+         * Round trips per call of an operation; 0 for commands and pool
+         * waits.
+         */
+        public double getMeanRoundTrips() {
+            return meanRoundTrips;
+        }
+
+        public long getMaxRoundTrips() {
+            return maxRoundTrips;
+        }
+    }
+
+    private static final class Operation {
+        private final Histogram latency = new Histogram();
+        private final Histogram roundTrips = new Histogram();
+    }
+
+    @Name("cqp.CqiCommand")
+    @Label("CQi Command")
+    @Category("CQi")
+    static final class CommandEvent extends Event {
+        @Label("Command")
+        String command;
+        @Label("Latency")
+        @Timespan
+        long latency;
+    }
+
+    @Name("cqp.CqiOperation")
+    @Label("CQi Operation")
+    @Category("CQi")
+    static final class OperationEvent extends Event {
+        @Label("Operation")
+        String operation;
+        @Label("Latency")
+        @Timespan
+        long latency;
+        @Label("Round Trips")
+        int roundTrips;
+    }
+
+    /**
+     * Records the traffic of one client into its stats. Like the client, it
+     * is not thread safe: it's only used under the client lock.
+     */
+    static final class Recorder {
+
+        private final CqiStats stats;
+        private int[] pending = new int[16];
+        private long[] sent = new long[16];
+        private int head = 0;
+        private int count = 0;
+        private int unsent = 0;
+        private int lastCommand = -1;
+        private int depth = 0;
+        private long roundTrips = 0;
+        private long roundTripsAtBegin = 0;
+        private long received = 0;
+
+        Recorder(CqiStats stats, long received) {
+            this.stats = stats;
+            this.received = received;
+        }
+
+        CqiStats getStats() {
+            return stats;
+        }
+
+        /**
+         * A request for <command> was added to the frame.
+         */
+        void command(byte[] command) {
+            if (count == pending.length) {
+                int[] grownPending = new int[2 * count];
+                long[] grownSent = new long[2 * count];
+                for (int i = 0; i < count; i++) {
+                    grownPending[i] = pending[(head + i) % count];
+                    grownSent[i] = sent[(head + i) % count];
+                }
+                pending = grownPending;
+                sent = grownSent;
+                head = 0;
+            }
+            pending[(head + count) % pending.length] = commandIndex(command);
+            count++;
+            unsent++;
+        }
+
+        /**
+         * The frame was sent: <bytes> bytes, and <received> bytes have been
+         * read from the server so far.
+         */
+        void sent(int bytes, long received) {
+            long now = System.nanoTime();
+            for (int i = count - unsent; i < count; i++) {
+                sent[(head + i) % pending.length] = now;
+            }
+            unsent = 0;
+            roundTrips++;
+            stats.roundTrips.increment();
+            stats.bytesSent.add(bytes);
+            received(received);
+        }
+
+        /**
+         * The header of the reply to the oldest pending request arrived.
+         */
+        void replied() {
+            if (count == 0) {
+                lastCommand = -1;
+                return;
+            }
+            long latency = System.nanoTime() - sent[head];
+            lastCommand = pending[head];
+            head = (head + 1) % pending.length;
+            count--;
+            stats.commandLatency(lastCommand).record(latency);
+            if (COMMAND_EVENT.isEnabled()) {
+                CommandEvent event = new CommandEvent();
+                event.command = COMMAND_NAMES[lastCommand];
+                event.latency = latency;
+                event.commit();
+            }
+        }
+
+        /**
+         * The last reply was an error of <kind>.
+         */
+        void error(String kind) {
+            stats.error(kind);
+            if (lastCommand >= 0) {
+                stats.commandErrors.incrementAndGet(lastCommand);
+            }
+        }
+
+        /**
+         * The frame was thrown away unsent, e.g. after a failed write.
+         */
+        void discard() {
+            count -= unsent;
+            unsent = 0;
+        }
+
+        /**
+         * Start of a high level call. Nested calls count as part of the
+         * outermost one.
+         *
+         * @return the start time to pass to end
+         */
+        long begin() {
+            if (depth++ == 0) {
+                roundTripsAtBegin = roundTrips;
+            }
+            return System.nanoTime();
+        }
+
+        void end(String operation, long started, long received) {
+            if (--depth > 0) {
+                return;
+            }
+            long latency = System.nanoTime() - started;
+            int trips = (int) (roundTrips - roundTripsAtBegin);
+            Operation stat = stats.operation(operation);
+            stat.latency.record(latency);
+            stat.roundTrips.record(trips);
+            received(received);
+            if (OPERATION_EVENT.isEnabled()) {
+                OperationEvent event = new OperationEvent();
+                event.operation = operation;
+                event.latency = latency;
+                event.roundTrips = trips;
+                event.commit();
+            }
+        }
+
+        private void received(long total) {
+            stats.bytesReceived.add(total - received);
+            received = total;
+        }
+    }
+
+    /**
+     * Adds the time a borrower waited for a pooled connection.
+     */
+    public void recordPoolWait(long nanos) {
+        poolWait.record(nanos);
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public long getRoundTrips() {
+        return roundTrips.sum();
+    }
+
+    public Map<String, Long> getErrorCounts() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<String, LongAdder> entry : errors.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().sum());
+        }
+        return counts;
+    }
+
+    public List<Summary> getCommands() {
+        List<Summary> summaries = new ArrayList<Summary>();
+        for (int i = 0; i < COMMANDS; i++) {
+            Histogram latency = commandLatencies.get(i);
+            if (latency != null && latency.getCount() > 0) {
+                summaries.add(new Summary(COMMAND_NAMES[i], latency, commandErrors.get(i), null));
+            }
+        }
+        return summaries;
+    }
+
+    public List<Summary> getOperations() {
+        List<Summary> summaries = new ArrayList<Summary>();
+        for (Map.Entry<String, Operation> entry : new TreeMap<String, Operation>(operations).entrySet()) {
+            Operation operation = entry.getValue();
+            summaries.add(new Summary(entry.getKey(), operation.latency, 0, operation.roundTrips));
+        }
+        return summaries;
+    }
+
+    public Summary getPoolWait() {
+        return new Summary("poolWait", poolWait, 0, null);
+    }
+
+    /**
+     * Latency histogram of a command, e.g. "CL_CPOS2STR", or null if it was
+     * never sent.
+     */
+    public Histogram getCommandLatency(String command) {
+        int index = Arrays.asList(COMMAND_NAMES).indexOf(command);
+        return (index < 0) ? null : commandLatencies.get(index);
+    }
+
+    public void reset() {
+        for (int i = 0; i < COMMANDS; i++) {
+            Histogram latency = commandLatencies.get(i);
+            if (latency != null) {
+                latency.reset();
+            }
+            commandErrors.set(i, 0);
+        }
+        errors.clear();
+        operations.clear();
+        poolWait.reset();
+        bytesSent.reset();
+        bytesReceived.reset();
+        roundTrips.reset();
+    }
+
+    /**
+     * Publishes these stats in the platform MBean server as
+     * cqp-clj:type=CqiStats,name=<name>.
+     */
+    public synchronized ObjectName register(String name) throws JMException {
+        unregister();
+        ObjectName objectName = new ObjectName("cqp-clj:type=CqiStats,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        this.objectName = objectName;
+        return objectName;
+    }
+
+    public synchronized void unregister() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    private Histogram commandLatency(int index) {
+        Histogram latency = commandLatencies.get(index);
+        if (latency == null) {
+            commandLatencies.compareAndSet(index, null, new Histogram());
+            latency = commandLatencies.get(index);
+        }
+        return latency;
+    }
+
+    private void error(String kind) {
+        LongAdder count = errors.get(kind);
+        if (count == null) {
+            errors.putIfAbsent(kind, new LongAdder());
+            count = errors.get(kind);
+        }
+        count.increment();
+    }
+
+    private Operation operation(String name) {
+        Operation operation = operations.get(name);
+        if (operation == null) {
+            operations.putIfAbsent(name, new Operation());
+            operation = operations.get(name);
+        }
+        return operation;
+    }
+
+    private static int commandIndex(byte[] command) {
+        int group = (command[0] & 0xff) - FIRST_GROUP;
+        return (group < 0 || group >= 5) ? COMMANDS - 1 : (group << 8) | (command[1] & 0xff);
+    }
+
+    /**
+     * Names of the command codes, after the CQI_* constants of CqiClient
+     * without prefix.
+     */
+    private static String[] commandNames() {
+        String[] names = new String[COMMANDS];
+        for (int i = 0; i < COMMANDS - 1; i++) {
+            names[i] = String.format("0x%04X", ((i >> 8) + FIRST_GROUP) << 8 | (i & 0xff));
+        }
+        names[COMMANDS - 1] = "OTHER";
+        for (Field field : CqiClient.class.getDeclaredFields()) {
+            String name = field.getName();
+            if (Modifier.isStatic(field.getModifiers()) && field.getType() == byte[].class
+                    && name.matches("CQI_(CTRL|CORPUS|CL|CQP)_.*")) {
+                try {
+                    field.setAccessible(true);
+                    int index = commandIndex((byte[]) field.get(null));
+                    if (index < COMMANDS - 1) {
+                        names[index] = name.substring("CQI_".length());
+                    }
+                } catch (IllegalAccessException e) {
+                    // keep the numeric name
+                }
+            }
+        }
+        return names;
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMX view of CqiStats (see CqiStats.register).
+ */
+public interface CqiStatsMXBean {
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getRoundTrips();
+
+    /**
+     * Error replies by kind, e.g. "No such attribute".
+     */
+    Map<String, Long> getErrorCounts();
+
+    /**
+     * Latency of every command sent at least once.
+     */
+    List<CqiStats.Summary> getCommands();
+
+    /**
+     * Latency and round trips of the high level calls, e.g. dumpSubCorpus.
+     */
+    List<CqiStats.Summary> getOperations();
+
+    /**
+     * Time spent waiting for a connection in CqiClientPool.borrow.
+     */
+    CqiStats.Summary getPoolWait();
+
+    void reset();
+}
@@ -0,0 +1,173 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes the strings of CQi replies. Bytes are read into one reusable
+ * buffer and decoded straight out of it, so no byte[] is allocated per
+ * string. Strings of an attribute are also looked up in a bounded intern
+ * table of that attribute, keyed by their bytes: repeated values (e.g. "NN")
+ * are returned as the same instance and aren't decoded again.
+ *
+ * Not thread safe, each client has its own.
+ */
+public class CqiStringDecoder {
+
+    /**
+     * Longer strings are never interned.
+     */
+    public static final int MAX_INTERNED_LENGTH = 64;
+    public static final int DEFAULT_TABLE_SIZE = 4096;
+
+    /**
+     * Direct-mapped table from byte sequences to strings. A new sequence
+     * overwrites whatever was cached in its slot.
+     */
+    private static final class InternTable {
+        private final Charset charset;
+        private final int[] hashes;
+        private final byte[][] keys;
+        private final String[] values;
+        private final int mask;
+
+        private InternTable(int size, Charset charset) {
+            this.charset = charset;
+            int capacity = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+            this.hashes = new int[capacity];
+            this.keys = new byte[capacity][];
+            this.values = new String[capacity];
+            this.mask = capacity - 1;
+        }
+    }
+
+    private final int tableSize;
+    private final Map<String, InternTable> tables = new HashMap<String, InternTable>();
+    private byte[] bytes = new byte[MAX_INTERNED_LENGTH * 4];
+    private long internHits = 0;
+    private long internMisses = 0;
+
+    /**
+     * @param tableSize entries of the intern table of each attribute, 0 to
+     * disable interning
+     */
+    public CqiStringDecoder(int tableSize) {
+        this.tableSize = tableSize;
+    }
+
+    public CqiStringDecoder() {
+        this(DEFAULT_TABLE_SIZE);
+    }
+
+    /**
+     * Reads <count> strings, each as an unsigned short length followed by
+     * its bytes, as they come in CQI_DATA_STRING_LIST replies.
+     *
+     * @param attribute the attribute the strings are values of, or null if
+     * they shouldn't be interned
+     */
+    public String[] readStrings(DataInput input, int count, Charset charset, String attribute)
+            throws IOException {
+        InternTable table = table(attribute, charset);
+        String[] strings = new String[count];
+        for (int i = 0; i < count; i++) {
+            int length = input.readUnsignedShort();
+            ensureCapacity(length);
+            input.readFully(bytes, 0, length);
+            strings[i] = lookup(table, length, charset);
+        }
+        return strings;
+    }
+
+    /**
+     * Reads one string: an unsigned short length followed by its bytes.
+     */
+    public String readString(DataInput input, Charset charset) throws IOException {
+        int length = input.readUnsignedShort();
+        ensureCapacity(length);
+        input.readFully(bytes, 0, length);
+        return decode(length, charset);
+    }
+
+    public long getInternHits() {
+        return internHits;
+    }
+
+    public long getInternMisses() {
+        return internMisses;
+    }
+
+    private InternTable table(String attribute, Charset charset) {
+        if (attribute == null || tableSize <= 0) {
+            return null;
+        }
+        InternTable table = tables.get(attribute);
+        if (table == null || !table.charset.equals(charset)) {
+            table = new InternTable(tableSize, charset);
+            tables.put(attribute, table);
+        }
+        return table;
+    }
+
+    private String lookup(InternTable table, int length, Charset charset) {
+        if (table == null || length > MAX_INTERNED_LENGTH) {
+            return decode(length, charset);
+        }
+        int hash = length;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        int slot = (hash ^ (hash >>> 16)) & table.mask;
+        byte[] key = table.keys[slot];
+        if (key != null && table.hashes[slot] == hash && key.length == length && sameBytes(key, length)) {
+            internHits++;
+            return table.values[slot];
+        }
+        internMisses++;
+        String value = decode(length, charset);
+        byte[] copy = new byte[length];
+        System.arraycopy(bytes, 0, copy, 0, length);
+        table.hashes[slot] = hash;
+        table.keys[slot] = copy;
+        table.values[slot] = value;
+        return value;
+    }
+
+    private boolean sameBytes(byte[] key, int length) {
+        for (int i = 0; i < length; i++) {
+            if (key[i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String decode(int length, Charset charset) {
+        if (length == 0) {
+            return "";
+        }
+        return new String(bytes, 0, length, charset);
+    }
+
+    private void ensureCapacity(int length) {
+        if (bytes.length < length) {
+            bytes = new byte[Math.max(length, bytes.length * 2)];
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The subset of the CQP query language understood by CqiServer: a sequence
+ * of token patterns, each optionally marked as target with @ and followed
+ * by a quantifier (?, *, + or {n,m}), optionally ending with "within s" and
+ * a semicolon. A token pattern is [] (any token), a string (shorthand for
+ * [word="..."]) or a boolean expression of attribute tests in brackets:
+ *
+ * [pos = "NN.*" & !(word = "the"%c | lemma != 'be')]
+ *
+ * Values are regular expressions matched against the whole value; %c makes
+ * them case insensitive. Matches are leftmost-longest and don't overlap,
+ * repetitions being cut at MAX_REPETITIONS tokens.
+ */
+class CqpQuery {
+
+    static final int MAX_REPETITIONS = 100;
+
+    /**
+     * Thrown for queries that can't be parsed or refer to unknown
+     * attributes.
+     */
+    static class SyntaxException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        SyntaxException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A boolean expression over the attributes of a token.
+     */
+    private interface Test {
+        boolean matches(int cpos);
+    }
+
+    private static final Test ANY = new Test() {
+        public boolean matches(int cpos) {
+            return true;
+        }
+    };
+
+    private static final class Item {
+        final Test test;
+        final int min;
+        final int max;
+        final boolean target;
+
+        Item(Test test, int min, int max, boolean target) {
+            this.test = test;
+            this.min = min;
+            this.max = max;
+            this.target = target;
+        }
+    }
+
+    private final CqiCorpus corpus;
+    private final String query;
+    private final List<Item> items = new ArrayList<Item>();
+    private CqiCorpus.StructuralAttribute within;
+    private int pos = 0;
+
+    private CqpQuery(CqiCorpus corpus, String query) {
+        this.corpus = corpus;
+        this.query = query;
+    }
+
+    static CqpQuery parse(CqiCorpus corpus, String query) throws SyntaxException {
+        CqpQuery parsed = new CqpQuery(corpus, query);
+        parsed.parse();
+        return parsed;
+    }
+
+    /**
+     * Runs the query over the positions <from> .. <to>.
+     *
+     * @return match, matchend and target of every hit; target is -1 if the
+     * query has no target or it wasn't matched
+     */
+    int[][] run(int from, int to) {
+        IntList match = new IntList();
+        IntList matchEnd = new IntList();
+        IntList target = new IntList();
+        int[] result = new int[2];
+        int start = Math.max(from, 0);
+        int last = Math.min(to, corpus.size() - 1);
+        while (start <= last) {
+            int limit = last;
+            if (within != null) {
+                int struc = within.struc(start);
+                if (struc < 0) {
+                    start++;
+                    continue;
+                }
+                limit = Math.min(limit, within.end(struc));
+            }
+            result[0] = -1;
+            result[1] = -1;
+            match(0, 0, start, start, limit, -1, result);
+            if (result[0] >= start) {
+                match.add(start);
+                matchEnd.add(result[0]);
+                target.add(result[1]);
+                start = result[0] + 1;
+            } else {
+                start++;
+            }
+        }
+        return new int[][]{match.toArray(), matchEnd.toArray(), target.toArray()};
+    }
+
+    /**
+     * Depth-first search for the longest match of the items from <item>,
+     * the current one having been repeated <count> times, with the next
+     * token at <cpos>. The best end and its target are kept in <result>.
+     */
+    private void match(int item, int count, int start, int cpos, int limit, int target, int[] result) {
+        if (item == items.size()) {
+            int end = cpos - 1;
+            if (end >= start && end > result[0]) {
+                result[0] = end;
+                result[1] = target;
+            }
+            return;
+        }
+        Item current = items.get(item);
+        if (count < current.max && cpos <= limit && current.test.matches(cpos)) {
+            match(item, count + 1, start, cpos + 1, limit, current.target ? cpos : target, result);
+        }
+        if (count >= current.min) {
+            match(item + 1, 0, start, cpos, limit, target, result);
+        }
+    }
+
+    private void parse() throws SyntaxException {
+        skipSpace();
+        while (pos < query.length() && !startsWithWord("within") && peek() != ';') {
+            boolean target = false;
+            if (peek() == '@') {
+                target = true;
+                pos++;
+                skipSpace();
+            }
+            Test test;
+            if (peek() == '[') {
+                pos++;
+                skipSpace();
+                if (peek() == ']') {
+                    test = ANY;
+                } else {
+                    test = parseOr();
+                }
+                expect(']');
+            } else if (peek() == '"' || peek() == '\'') {
+                test = valueTest("word", false);
+            } else {
+                throw error("token pattern expected");
+            }
+            int min = 1;
+            int max = 1;
+            skipSpace();
+            if (pos < query.length()) {
+                char c = peek();
+                if (c == '?' || c == '*' || c == '+') {
+                    pos++;
+                    min = (c == '+') ? 1 : 0;
+                    max = (c == '?') ? 1 : MAX_REPETITIONS;
+                } else if (c == '{') {
+                    pos++;
+                    min = parseInt();
+                    max = min;
+                    skipSpace();
+                    if (peek() == ',') {
+                        pos++;
+                        skipSpace();
+                        max = (peek() == '}') ? MAX_REPETITIONS : parseInt();
+                    }
+                    expect('}');
+                    if (max < min || max == 0) {
+                        throw error("bad repetition bounds");
+                    }
+                    max = Math.min(max, MAX_REPETITIONS);
+                }
+            }
+            items.add(new Item(test, min, max, target));
+            skipSpace();
+        }
+        if (startsWithWord("within")) {
+            pos += "within".length();
+            skipSpace();
+            String name = parseName();
+            within = corpus.structural.get(name);
+            if (within == null) {
+                throw new SyntaxException("no such structural attribute: " + name);
+            }
+            skipSpace();
+        }
+        if (pos < query.length() && peek() == ';') {
+            pos++;
+            skipSpace();
+        }
+        if (pos < query.length()) {
+            throw error("unexpected input");
+        }
+        if (items.isEmpty()) {
+            throw error("empty query");
+        }
+    }
+
+    private Test parseOr() throws SyntaxException {
+        final Test left = parseAnd();
+        skipSpace();
+        if (pos < query.length() && peek() == '|') {
+            pos++;
+            final Test right = parseOr();
+            return new Test() {
+                public boolean matches(int cpos) {
+                    return left.matches(cpos) || right.matches(cpos);
+                }
+            };
+        }
+        return left;
+    }
+
+    private Test parseAnd() throws SyntaxException {
+        final Test left = parseNot();
+        skipSpace();
+        if (pos < query.length() && peek() == '&') {
+            pos++;
+            final Test right = parseAnd();
+            return new Test() {
+                public boolean matches(int cpos) {
+                    return left.matches(cpos) && right.matches(cpos);
+                }
+            };
+        }
+        return left;
+    }
+
+    private Test parseNot() throws SyntaxException {
+        skipSpace();
+        if (peek() == '!') {
+            pos++;
+            final Test negated = parseNot();
+            return new Test() {
+                public boolean matches(int cpos) {
+                    return !negated.matches(cpos);
+                }
+            };
+        }
+        if (peek() == '(') {
+            pos++;
+            Test test = parseOr();
+            expect(')');
+            return test;
+        }
+        String attribute = parseName();
+        skipSpace();
+        boolean negate = false;
+        if (peek() == '!') {
+            negate = true;
+            pos++;
+        }
+        expect('=');
+        skipSpace();
+        return valueTest(attribute, negate);
+    }
+
+    /**
+     * Parses a quoted regular expression and its flags into a test on the
+     * values of <attribute>. The lexicon is matched once, so that testing a
+     * token is a single lookup.
+     */
+    private Test valueTest(String attribute, final boolean negate) throws SyntaxException {
+        final CqiCorpus.PositionalAttribute values = corpus.positional.get(attribute);
+        if (values == null) {
+            throw new SyntaxException("no such positional attribute: " + attribute);
+        }
+        String regex = parseString();
+        int flags = 0;
+        if (pos < query.length() && peek() == '%') {
+            pos++;
+            String name = parseName();
+            if (!name.equals("c")) {
+                throw error("unsupported flag %" + name);
+            }
+            flags = Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+        }
+        Pattern pattern;
+        try {
+            pattern = Pattern.compile(regex, flags);
+        } catch (PatternSyntaxException e) {
+            throw new SyntaxException("bad regular expression " + regex + ": " + e.getDescription());
+        }
+        final BitSet matching = new BitSet(values.lexicon.length);
+        for (int id = 0; id < values.lexicon.length; id++) {
+            if (pattern.matcher(values.lexicon[id]).matches()) {
+                matching.set(id);
+            }
+        }
+        return new Test() {
+            public boolean matches(int cpos) {
+                return matching.get(values.ids.get(cpos)) != negate;
+            }
+        };
+    }
+
+    private String parseString() throws SyntaxException {
+        char quote = peek();
+        if (quote != '"' && quote != '\'') {
+            throw error("quoted value expected");
+        }
+        int end = query.indexOf(quote, pos + 1);
+        if (end < 0) {
+            throw error("unterminated string");
+        }
+        String value = query.substring(pos + 1, end);
+        pos = end + 1;
+        return value;
+    }
+
+    private String parseName() throws SyntaxException {
+        int start = pos;
+        while (pos < query.length()
+                && (Character.isLetterOrDigit(query.charAt(pos)) || query.charAt(pos) == '_')) {
+            pos++;
+        }
+        if (start == pos) {
+            throw error("name expected");
+        }
+        return query.substring(start, pos);
+    }
+
+    private int parseInt() throws SyntaxException {
+        skipSpace();
+        int start = pos;
+        while (pos < query.length() && Character.isDigit(query.charAt(pos))) {
+            pos++;
+        }
+        if (start == pos) {
+            throw error("number expected");
+        }
+        return Integer.parseInt(query.substring(start, pos));
+    }
+
+    private boolean startsWithWord(String word) {
+        return query.startsWith(word, pos)
+                && (pos + word.length() == query.length()
+                || !Character.isLetterOrDigit(query.charAt(pos + word.length())));
+    }
+
+    private char peek() {
+        return (pos < query.length()) ? query.charAt(pos) : '\0';
+    }
+
+    private void expect(char c) throws SyntaxException {
+        skipSpace();
+        if (peek() != c) {
+            throw error("'" + c + "' expected");
+        }
+        pos++;
+    }
+
+    private void skipSpace() {
+        while (pos < query.length() && Character.isWhitespace(query.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private SyntaxException error(String message) {
+        return new SyntaxException(message + " at position " + pos + " of " + query);
+    }
+
+    /**
+     * Growable int array.
+     */
+    private static final class IntList {
+        private int[] values = new int[64];
+        private int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
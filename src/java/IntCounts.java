@@ -0,0 +1,112 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+
+import java.util.Arrays;
+
+/**
+ * Counts per int key, in a linear probing table that doubles when half
+ * full. Keys must not be negative.
+ */
+final class IntCounts {
+    private int[] keys;
+    private int[] counts;
+    private int size = 0;
+
+    IntCounts() {
+        this(64);
+    }
+
+    IntCounts(int capacity) {
+        int length = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        keys = new int[length];
+        Arrays.fill(keys, -1);
+        counts = new int[length];
+    }
+
+    void add(int key, int count) {
+        int mask = keys.length - 1;
+        int slot = slot(key, mask);
+        while (keys[slot] != key) {
+            if (keys[slot] < 0) {
+                keys[slot] = key;
+                if (++size * 2 > keys.length) {
+                    counts[slot] = count;
+                    grow();
+                    return;
+                }
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        counts[slot] += count;
+    }
+
+    int get(int key) {
+        int mask = keys.length - 1;
+        for (int slot = slot(key, mask); keys[slot] >= 0; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return counts[slot];
+            }
+        }
+        return 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void addAll(IntCounts other) {
+        for (int i = 0; i < other.keys.length; i++) {
+            if (other.keys[i] >= 0) {
+                add(other.keys[i], other.counts[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the keys counted at least <min> times, ascending
+     */
+    int[] keys(int min) {
+        int[] output = new int[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] >= 0 && counts[i] >= min) {
+                output[n++] = keys[i];
+            }
+        }
+        output = Arrays.copyOf(output, n);
+        Arrays.sort(output);
+        return output;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldCounts = counts;
+        keys = new int[oldKeys.length * 2];
+        Arrays.fill(keys, -1);
+        counts = new int[oldKeys.length * 2];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] >= 0) {
+                add(oldKeys[i], oldCounts[i]);
+            }
+        }
+    }
+
+    private static int slot(int key, int mask) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,303 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+
+import clojure.lang.APersistentMap;
+import clojure.lang.ArraySeq;
+import clojure.lang.IMapEntry;
+import clojure.lang.IPersistentCollection;
+import clojure.lang.IPersistentMap;
+import clojure.lang.ISeq;
+import clojure.lang.Keyword;
+import clojure.lang.MapEntry;
+import clojure.lang.PersistentArrayMap;
+import clojure.lang.PersistentHashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Columnar concordance: the tokens of the context windows of a list of hits,
+ * stored as one int[] of corpus positions, one String[] column per attribute
+ * and two bitsets flagging the tokens inside the match and the target. The
+ * tokens of hit h are those from hitOffset(h) to hitOffset(h + 1) - 1.
+ *
+ * token(i) gives a read-only map view of a token, equal to the map built by
+ * cpos-token-handler for it, without copying anything out of the columns.
+ */
+public class KwicBlock {
+
+    private static final Keyword ID = Keyword.intern(null, "id");
+    private static final Keyword MATCH = Keyword.intern(null, "match");
+    private static final Keyword TARGET = Keyword.intern(null, "target");
+
+    private final Keyword[] keys;
+    private final int[] offsets;
+    private final int[] cpos;
+    private final String[][] columns;
+    private final BitSet match;
+    private final BitSet target;
+
+    private KwicBlock(Keyword[] keys, int[] offsets, int[] cpos, String[][] columns,
+            BitSet match, BitSet target) {
+        this.keys = keys;
+        this.offsets = offsets;
+        this.cpos = cpos;
+        this.columns = columns;
+        this.match = match;
+        this.target = target;
+    }
+
+    /**
+     * Builds the block of the hits <matchStart> .. <matchEnd> (with
+     * <targets>, -1 if none) and <context> tokens on each side, out of the
+     * values of merged position ranges as fetched from the server.
+     *
+     * @param attributes attribute names, in column order
+     * @param matchStart first position of each hit
+     * @param matchEnd last position of each hit
+     * @param targets target position of each hit
+     * @param context tokens on each side of a match
+     * @param rangeStart first position of each range, in ascending order;
+     * ranges must cover the window of every hit
+     * @param rangeValues for each range, the values of every attribute
+     */
+    public static KwicBlock build(String[] attributes, int[] matchStart, int[] matchEnd,
+            int[] targets, int context, int[] rangeStart, String[][][] rangeValues) {
+        int hits = matchStart.length;
+        int[] offsets = new int[hits + 1];
+        for (int h = 0; h < hits; h++) {
+            int from = Math.max(0, matchStart[h] - context);
+            offsets[h + 1] = offsets[h] + Math.max(matchEnd[h] + context - from + 1, 0);
+        }
+        int tokens = offsets[hits];
+        int[] cpos = new int[tokens];
+        String[][] columns = new String[attributes.length][tokens];
+        BitSet match = new BitSet(tokens);
+        BitSet target = new BitSet(tokens);
+        for (int h = 0; h < hits; h++) {
+            int from = Math.max(0, matchStart[h] - context);
+            int offset = offsets[h];
+            int length = offsets[h + 1] - offset;
+            if (length == 0) {
+                continue;
+            }
+            int r = Arrays.binarySearch(rangeStart, from);
+            r = (r >= 0) ? r : -r - 2;
+            int rangeOffset = from - rangeStart[r];
+            for (int a = 0; a < attributes.length; a++) {
+                System.arraycopy(rangeValues[r][a], rangeOffset, columns[a], offset, length);
+            }
+            for (int i = 0; i < length; i++) {
+                cpos[offset + i] = from + i;
+            }
+            int first = Math.max(matchStart[h], from) - from;
+            int last = Math.min(matchEnd[h] - from, length - 1);
+            if (first <= last) {
+                match.set(offset + first, offset + last + 1);
+            }
+            if (targets[h] >= from && targets[h] - from < length) {
+                target.set(offset + targets[h] - from);
+            }
+        }
+        Keyword[] keys = new Keyword[attributes.length];
+        for (int a = 0; a < attributes.length; a++) {
+            keys[a] = Keyword.intern(null, attributes[a]);
+        }
+        return new KwicBlock(keys, offsets, cpos, columns, match, target);
+    }
+
+    /**
+     * Merges the inclusive windows <starts>[i] .. <ends>[i] into disjoint
+     * inclusive ranges, joining windows that overlap or are at most <gap>
+     * positions apart, as needed for the rangeStart and rangeValues of build.
+     *
+     * @return the ranges as {from, to} pairs, sorted by position
+     */
+    public static int[][] mergeWindows(int[] starts, int[] ends, int gap) {
+        int n = starts.length;
+        long[] windows = new long[n];
+        for (int i = 0; i < n; i++) {
+            windows[i] = ((long) starts[i] << 32) | (ends[i] & 0xffffffffL);
+        }
+        Arrays.sort(windows);
+        List<int[]> ranges = new ArrayList<int[]>();
+        for (long window : windows) {
+            int start = (int) (window >> 32);
+            int end = (int) window;
+            int[] current = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (current != null && (long) start <= (long) current[1] + gap + 1) {
+                current[1] = Math.max(current[1], end);
+            } else {
+                ranges.add(new int[]{start, end});
+            }
+        }
+        return ranges.toArray(new int[ranges.size()][]);
+    }
+
+    public int getHitCount() {
+        return offsets.length - 1;
+    }
+
+    public int getTokenCount() {
+        return cpos.length;
+    }
+
+    /**
+     * @return index of the first token of hit <h>; hitOffset(getHitCount())
+     * is the token count
+     */
+    public int hitOffset(int h) {
+        return offsets[h];
+    }
+
+    public int cpos(int i) {
+        return cpos[i];
+    }
+
+    public String value(int attribute, int i) {
+        return columns[attribute][i];
+    }
+
+    /**
+     * True for the tokens from match start to match end, and for the target.
+     */
+    public boolean isMatch(int i) {
+        return match.get(i) || target.get(i);
+    }
+
+    public boolean isTarget(int i) {
+        return target.get(i);
+    }
+
+    public int[] getCpos() {
+        return cpos;
+    }
+
+    public String[] getColumn(int attribute) {
+        return columns[attribute];
+    }
+
+    /**
+     * @return a map view of token <i>
+     */
+    public Token token(int i) {
+        return new Token(this, i);
+    }
+
+    /**
+     * Read-only map view of one token: an entry per attribute plus :id, and
+     * :match / :target when they hold. Updates return a regular persistent
+     * map with the token copied into it.
+     */
+    public static final class Token extends APersistentMap {
+
+        private static final long serialVersionUID = 1L;
+
+        private final KwicBlock block;
+        private final int index;
+
+        private Token(KwicBlock block, int index) {
+            this.block = block;
+            this.index = index;
+        }
+
+        private int attribute(Object key) {
+            for (int a = 0; a < block.keys.length; a++) {
+                if (block.keys[a] == key) {
+                    return a;
+                }
+            }
+            return -1;
+        }
+
+        public Object valAt(Object key, Object notFound) {
+            if (key == ID) {
+                return Long.valueOf(block.cpos[index]);
+            }
+            if (key == MATCH) {
+                return block.isMatch(index) ? Boolean.TRUE : notFound;
+            }
+            if (key == TARGET) {
+                return block.isTarget(index) ? Boolean.TRUE : notFound;
+            }
+            int a = attribute(key);
+            return (a < 0) ? notFound : block.columns[a][index];
+        }
+
+        public Object valAt(Object key) {
+            return valAt(key, null);
+        }
+
+        public boolean containsKey(Object key) {
+            return valAt(key, this) != this;
+        }
+
+        public IMapEntry entryAt(Object key) {
+            Object value = valAt(key, this);
+            return (value == this) ? null : new MapEntry(key, value);
+        }
+
+        public int count() {
+            return block.keys.length + 1 + (block.isMatch(index) ? 1 : 0)
+                    + (block.isTarget(index) ? 1 : 0);
+        }
+
+        private Object[] entries() {
+            Object[] entries = new Object[count()];
+            int n = 0;
+            for (int a = 0; a < block.keys.length; a++) {
+                entries[n++] = new MapEntry(block.keys[a], block.columns[a][index]);
+            }
+            entries[n++] = new MapEntry(ID, Long.valueOf(block.cpos[index]));
+            if (block.isMatch(index)) {
+                entries[n++] = new MapEntry(MATCH, Boolean.TRUE);
+            }
+            if (block.isTarget(index)) {
+                entries[n++] = new MapEntry(TARGET, Boolean.TRUE);
+            }
+            return entries;
+        }
+
+        public ISeq seq() {
+            return ArraySeq.create(entries());
+        }
+
+        public Iterator<Object> iterator() {
+            return Arrays.asList(entries()).iterator();
+        }
+
+        private IPersistentMap copy() {
+            return PersistentHashMap.create(this);
+        }
+
+        public IPersistentMap assoc(Object key, Object value) {
+            return copy().assoc(key, value);
+        }
+
+        public IPersistentMap assocEx(Object key, Object value) {
+            return copy().assocEx(key, value);
+        }
+
+        public IPersistentMap without(Object key) {
+            return copy().without(key);
+        }
+
+        public IPersistentCollection empty() {
+            return PersistentArrayMap.EMPTY;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+
+import java.util.Arrays;
+
+/**
+ * Client side id to string table for the lexicon of one positional
+ * attribute. Small lexicons (e.g. "pos") are held completely in a dense
+ * array; large ones (e.g. "word") in a bounded direct-mapped table in which
+ * an id overwrites whatever other id was cached in its slot. Bounded tables
+ * also hold the values of the regions of structural attributes by struc id.
+ */
+public class LexiconCache {
+
+    private final String[] lexicon;
+    private final int[] keys;
+    private final String[] values;
+    private final int mask;
+    private long hits = 0;
+    private long misses = 0;
+
+    private LexiconCache(String[] lexicon, int capacity) {
+        this.lexicon = lexicon;
+        if (lexicon == null) {
+            int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+            this.keys = new int[size];
+            Arrays.fill(this.keys, -1);
+            this.values = new String[size];
+            this.mask = size - 1;
+        } else {
+            this.keys = null;
+            this.values = null;
+            this.mask = 0;
+        }
+    }
+
+    /**
+     * A cache holding at most about <capacity> ids.
+     */
+    public static LexiconCache bounded(int capacity) {
+        return new LexiconCache(null, capacity);
+    }
+
+    /**
+     * A cache holding the whole lexicon, <lexicon>[id] being the string of id.
+     */
+    public static LexiconCache complete(String[] lexicon) {
+        return new LexiconCache(lexicon, 0);
+    }
+
+    public boolean isComplete() {
+        return lexicon != null;
+    }
+
+    /**
+     * @return the string of <id>, or null if it is not cached
+     */
+    public String get(int id) {
+        String value = null;
+        if (lexicon != null) {
+            value = (id >= 0 && id < lexicon.length) ? lexicon[id] : null;
+        } else {
+            int slot = slot(id);
+            value = (keys[slot] == id) ? values[slot] : null;
+        }
+        if (value == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return value;
+    }
+
+    public void put(int id, String value) {
+        if (lexicon != null || id < 0) {
+            return;
+        }
+        int slot = slot(id);
+        keys[slot] = id;
+        values[slot] = value;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    private int slot(int id) {
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ *
+ * This software is copyright (c) 2015 by Enrique Manjavacas
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms described in the GNU General Public License v3 of which you should
+ * have received a copy. Otherwise you can download it from
+ *
+ * http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright 2015 Enrique Manjavacas
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt GNU General Public License
+ * v3
+ */
+
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of attribute values for fixed size blocks of corpus positions.
+ * Positional attributes are kept as lexicon ids (int[]), structural ones as
+ * the values of their regions (String[]). Blocks are keyed by attribute and
+ * block number, so overlapping windows share the blocks they have in common.
+ *
+ * The cache is thread safe and may be shared by several clients connected to
+ * the same server, e.g. those of a CqiClientPool.
+ */
+public class TokenWindowCache {
+
+    private static final class Key {
+        private final String attribute;
+        private final Charset charset;
+        private final int block;
+
+        private Key(String attribute, Charset charset, int block) {
+            this.attribute = attribute;
+            this.charset = charset;
+            this.block = block;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return block == other.block && attribute.equals(other.attribute)
+                    && (charset == null ? other.charset == null : charset.equals(other.charset));
+        }
+
+        @Override
+        public int hashCode() {
+            int h = attribute.hashCode() * 31 + block;
+            return (charset == null) ? h : h * 31 + charset.hashCode();
+        }
+    }
+
+    private final int blockSize;
+    private final int maxBlocks;
+    private final LinkedHashMap<Key, Object> blocks;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param maxBlocks number of blocks kept before the least recently used
+     * one is evicted
+     * @param blockSize corpus positions per block
+     */
+    public TokenWindowCache(int maxBlocks, int blockSize) {
+        if (maxBlocks < 1 || blockSize < 1) {
+            throw new IllegalArgumentException("maxBlocks and blockSize must be positive");
+        }
+        this.maxBlocks = maxBlocks;
+        this.blockSize = blockSize;
+        this.blocks = new LinkedHashMap<Key, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+                if (size() > TokenWindowCache.this.maxBlocks) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getMaxBlocks() {
+        return maxBlocks;
+    }
+
+    /**
+     * @return the lexicon ids of <block> of a positional attribute, or null
+     */
+    public synchronized int[] getIds(String attribute, int block) {
+        return (int[]) lookup(new Key(attribute, null, block));
+    }
+
+    public synchronized void putIds(String attribute, int block, int[] ids) {
+        blocks.put(new Key(attribute, null, block), ids);
+    }
+
+    /**
+     * @return the values of <block> of a structural attribute, or null
+     */
+    public synchronized String[] getValues(String attribute, Charset charset, int block) {
+        return (String[]) lookup(new Key(attribute, charset, block));
+    }
+
+    public synchronized void putValues(String attribute, Charset charset, int block, String[] values) {
+        blocks.put(new Key(attribute, charset, block), values);
+    }
+
+    private Object lookup(Key key) {
+        Object block = blocks.get(key);
+        if (block == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return block;
+    }
+
+    /**
+     * Drops the blocks of every attribute of <corpus>.
+     */
+    public synchronized void invalidate(String corpus) {
+        Iterator<Key> keys = blocks.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().attribute.startsWith(corpus + ".")) {
+                keys.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        blocks.clear();
+    }
+
+    public synchronized int size() {
+        return blocks.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+}
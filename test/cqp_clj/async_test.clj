@@ -0,0 +1,42 @@
+(ns cqp-clj.async-test
+  (:require [clojure.test :refer :all]
+            [cqp-clj.core :as core]
+            [cqp-clj.server :refer [local-client]]
+            [cqp-clj.async :refer :all]
+            [cqp-clj.test-server :refer [with-toy-server]])
+  (:import [java.util.concurrent ExecutionException]))
+
+(def ^:private word [{:attr-type :pos :attr-name "word"}])
+
+(deftest async-client-test
+  (with-toy-server [server client]
+    (let [async (make-async-client (local-client server))]
+      (try
+        (core/query! client "TOY" "[pos=\"NN\"]")
+        (testing "requests are answered like on a blocking client"
+          (let [queried (query! async "TOY" "[pos=\"NN\"]")
+                size (query-size async "TOY")
+                hits (cpos-range async "TOY" 0 10)
+                words (span->attr async "TOY" "word" 0 3)
+                sentences (span->struc async "TOY" "s" 5 8)]
+            (is (nil? @queried))
+            (is (= (core/query-size client "TOY") @size))
+            (is (= (core/cpos-range client "TOY" 0 10) @hits))
+            (is (= (core/span->attr client "TOY" "word" 0 3) @words))
+            (is (= (core/span->struc client "TOY" "s" 5 8) @sentences))))
+        (testing "core functions run on the I/O loop"
+          (is (= (core/cpos-seq-handler client "TOY" (core/cpos-range client "TOY" 0 3) 1 word)
+                 @(submit async (fn [c]
+                                  (doall (core/cpos-seq-handler c "TOY" (core/cpos-range c "TOY" 0 3)
+                                                                1 word)))))))
+        (testing "futures are completed in request order"
+          (let [sizes (mapv #(then (query! async "TOY" (str "\"" % "\""))
+                                   (constantly %))
+                            ["the" "cat" "dog"])]
+            (is (= ["the" "cat" "dog"] (map deref sizes)))))
+        (testing "errors fail the future, not the connection"
+          (let [e (is (thrown? ExecutionException @(query! async "TOY" "[pos=")))]
+            (is (= "CqiClientException" (.getName (class (.getCause ^Exception e))))))
+          (is (= 1 @(query-size async "TOY"))))
+        (finally
+          @(disconnect! async))))))
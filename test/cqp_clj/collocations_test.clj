@@ -0,0 +1,54 @@
+(ns cqp-clj.collocations-test
+  (:require [clojure.test :refer :all]
+            [cqp-clj.core :refer :all]
+            [cqp-clj.server :refer :all]
+            [cqp-clj.collocations :refer :all]
+            [cqp-clj.test-server :refer [word-corpus with-toy-server]])
+  (:import [CqiClientException] [CqiClientPool]))
+
+(def toy-corpus
+  (word-corpus ["the" "cat" "sat" "on" "the" "mat" "the" "cat" "ran"]))
+
+(defn- by-value [collocates]
+  (into {} (map (juxt :value identity)) collocates))
+
+(deftest collocations-test
+  (with-toy-server [server client toy-corpus {:listen true}]
+    (query! client "TOY" "\"cat\"")
+    (testing "counts and scores"
+      (let [colls (collocations client "TOY" "word" {:left 1 :right 1})
+            the (get (by-value colls) "the")]
+        (is (= {:hits 2 :window-tokens 4 :corpus-size 9 :distinct 3} (meta colls)))
+        (is (apply >= (map :log-likelihood colls)))
+        (is (= "the" (:value (first (collocations client "TOY" "word"
+                                                  {:left 1 :right 1 :sort-by :frequency})))))
+        (is (= {"the" 2 "sat" 1 "ran" 1} (into {} (map (juxt :value :frequency)) colls)))
+        (is (= 3 (:corpus-frequency the)))
+        (is (< (Math/abs (- (:mi the) (/ (Math/log 1.5) (Math/log 2)))) 1e-9))
+        (is (< (Math/abs (- (:t-score the) (/ (- 2 4/3) (Math/sqrt 2)))) 1e-9))
+        (is (pos? (:log-likelihood the)))))
+    (testing "windows stop at the corpus bounds"
+      (is (= 6 (:window-tokens (meta (collocations client "TOY" "word" {:left 2 :right 2}))))))
+    (testing "minimum frequency and limit"
+      (is (= ["the"] (map :value (collocations client "TOY" "word"
+                                               {:left 1 :right 1 :min-freq 2}))))
+      (is (= 1 (count (collocations client "TOY" "word" {:limit 1})))))
+    (testing "a missing subcorpus is an error, not an empty result"
+      (is (thrown? CqiClientException
+                   (collocations (assoc client :subcorpus "Nothing") "TOY" "word"))))
+    (testing "chunks spread over pooled connections"
+      (let [pool (make-cqi-pool {:host "localhost" :port (server-port server)
+                                 :user "user" :pass "pass" :pool {:max-size 2}})]
+        (try
+          (is (= (collocations client "TOY" "word" {:left 2 :right 2})
+                 (parallel-collocations pool "TOY" "\"cat\"" "word"
+                                        {:left 2 :right 2 :chunk 1 :parallelism 2})))
+          (testing "no more connections than the pool holds"
+            (is (= (collocations client "TOY" "word")
+                   (parallel-collocations pool "TOY" "\"cat\"" "word" {:chunk 1 :parallelism 8}))))
+          (testing "the connections are given back after an error"
+            (is (thrown? CqiClientException
+                         (parallel-collocations pool "TOY" "[word=" "word" {:parallelism 2})))
+            (is (= 0 (.getBorrowedCount ^CqiClientPool pool))))
+          (finally
+            (close-pool! pool)))))))
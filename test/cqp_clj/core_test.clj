@@ -1,7 +1,9 @@
 (ns cqp-clj.core-test
   (:require [clojure.test :refer :all]
             [cqp-clj.core :refer :all]
-            [cqp-clj.paginator :refer :all]))
+            [cqp-clj.paginator :refer :all])
+  (:import [CqiClient] [CqiClientException]
+           [java.io ByteArrayInputStream ByteArrayOutputStream DataOutputStream]))
 
 (deftest sort-position-test-a
   (testing "sort-position in the middle"
@@ -53,3 +55,42 @@
       (is (= (repeatedly 5 (fn [] (prev-page pager 2)))
              '([8 0] [6 8] [4 6] [2 4] [0 2]))))))
 
+
+(deftest merge-windows-test
+  (testing "overlapping and nearby windows share a range"
+    (is (= (merge-windows [[0 4] [3 8] [11 12] [30 31]] 1)
+           {:ranges [[0 8] [11 12] [30 31]]
+            :slots [[0 0] [0 3] [1 0] [2 0]]})))
+  (testing "windows out of order map back to their input position"
+    (is (= (merge-windows [[20 25] [0 5] [4 9]] 0)
+           {:ranges [[0 9] [20 25]]
+            :slots [[1 0] [0 0] [0 4]]})))
+  (testing "adjacent windows merge even without a gap"
+    (is (= (:ranges (merge-windows [[0 4] [5 6]] 0)) [[0 6]]))))
+
+(defn- replies
+  "Bytes of a server answering a failed DUMP_SUBCORPUS, two int lists and
+  the LAST_CQP_ERROR that follows."
+  ^bytes []
+  (let [bytes (ByteArrayOutputStream.)
+        out (DataOutputStream. bytes)]
+    (.writeShort out 0x0505)
+    (dotimes [_ 2]
+      (.writeShort out 0x0307)
+      (.writeInt out 1)
+      (.writeInt out 5))
+    (.writeShort out 0x0304)
+    (.writeShort out 4)
+    (.writeBytes out "oops")
+    (.toByteArray bytes)))
+
+(deftest dump-error-test
+  (testing "the error details are asked for after the pending replies"
+    (let [sent (ByteArrayOutputStream.)
+          client (CqiClient. (ByteArrayInputStream. (replies)) sent)
+          e (is (thrown? CqiClientException
+                         (.dumpSubCorpusBulk client "TOY" "Results" 0 1
+                                             ^"[[I" (make-array Integer/TYPE 3 1) 0)))
+          sent (.toByteArray sent)]
+      (is (= "CQP Syntax error: oops" (.getMessage ^Exception e)))
+      (is (= [0x11 0x06] (map #(bit-and % 0xff) (take-last 2 sent)))))))
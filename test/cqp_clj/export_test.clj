@@ -0,0 +1,71 @@
+(ns cqp-clj.export-test
+  (:require [clojure.test :refer :all]
+            [clojure.string :as str]
+            [cqp-clj.core :refer :all]
+            [cqp-clj.export :refer :all]
+            [cqp-clj.test-server :refer [word-corpus with-toy-server]])
+  (:import [CqiClientException]
+           [java.io File InterruptedIOException]
+           [java.nio ByteBuffer]
+           [java.nio.file Files]
+           [java.nio.file.attribute FileAttribute]))
+
+(def toy-corpus
+  (assoc (word-corpus ["the" "cat" "sat" "," "the" "mat" "." "a" "cat" "ran" "."])
+         :structs {:s [[0 6 "s1"] [7 10 "s2"]]
+                   :p [[0 3] [4 10]]}))
+
+(defn- temp-dir ^File []
+  (.toFile (Files/createTempDirectory "cqi-export" (make-array FileAttribute 0))))
+
+(defn- read-ints [^File file]
+  (let [buffer (ByteBuffer/wrap (Files/readAllBytes (.toPath file)))]
+    (vec (repeatedly (quot (.remaining buffer) 4) #(.getInt buffer)))))
+
+(deftest export-test
+  (with-toy-server [server client toy-corpus]
+    (let [dir (temp-dir)]
+      (query! client "TOY" "\"cat\"")
+      (testing "tsv, with positional and structural attributes"
+        (let [file (File. dir "cat.tsv")
+              progress (export! client "TOY" file {:attrs ["word" "s"] :context 1})]
+          (is (= (str/split-lines (slurp file))
+                 ["hit\tmatch\tmatchend\ttarget\tword_left\tword_match\tword_right\ts_left\ts_match\ts_right"
+                  "0\t1\t1\t-1\tthe\tcat\tsat\ts1\ts1\ts1"
+                  "1\t8\t8\t-1\ta\tcat\tran\ts2\ts2\ts2"]))
+          (is (= {:hits 2 :total-hits 2 :resumed-at 0 :tokens 6 :complete true}
+                 (select-keys progress [:hits :total-hits :resumed-at :tokens :complete])))
+          (is (not (.exists (File. dir "cat.tsv.checkpoint"))))))
+      (testing "structural attributes without values give region numbers"
+        (let [file (File. dir "regions.tsv")]
+          (export! client "TOY" file {:attrs ["p"] :context 3})
+          (is (= ["0\t1\t1\t-1\t0\t0\t0 0 1"
+                  "1\t8\t8\t-1\t1 1 1\t1\t1 1"]
+                 (rest (str/split-lines (slurp file)))))))
+      (testing "a missing subcorpus is an error, not an empty export"
+        (is (thrown? CqiClientException
+                     (export! (assoc client :subcorpus "Nothing") "TOY" (File. dir "none.tsv")
+                              {:attrs ["word"]}))))
+      (testing "csv quotes values with separators"
+        (let [file (File. dir "cat.csv")]
+          (export! client "TOY" file {:attrs ["word"] :context 2 :format :csv})
+          (is (= "0,1,1,-1,the,cat,\"sat ,\"" (second (str/split-lines (slurp file)))))))
+      (testing "columnar"
+        (let [out (File. dir "cat")]
+          (export! client "TOY" out {:attrs ["word"] :context 1 :format :columnar})
+          (let [lexicon (zipmap (read-ints (File. out "word.lexids"))
+                                (str/split (slurp (File. out "word.lexicon")) #"\u0000"))]
+            (is (= [1 1 -1 0 2 8 8 -1 7 9] (read-ints (File. out "hits.bin"))))
+            (is (= ["the" "cat" "sat" "a" "cat" "ran"] (map lexicon (read-ints (File. out "word.ids"))))))))
+      (testing "an interrupted export resumes from its checkpoint"
+        (let [file (File. dir "resumed.tsv")
+              opts {:attrs ["word"] :context 1 :chunk 1 :checkpoint-every 1}]
+          (is (thrown? InterruptedIOException
+                       (export! client "TOY" file
+                                (assoc opts :on-progress #(when (= 1 (:hits %))
+                                                            (.interrupt (Thread/currentThread)))))))
+          (Thread/interrupted)
+          (is (.exists (File. dir "resumed.tsv.checkpoint")))
+          (is (= 1 (:resumed-at (export! client "TOY" file opts))))
+          (export! client "TOY" (File. dir "plain.tsv") {:attrs ["word"] :context 1})
+          (is (= (slurp (File. dir "plain.tsv")) (slurp file))))))))
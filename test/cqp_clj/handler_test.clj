@@ -0,0 +1,88 @@
+(ns cqp-clj.handler-test
+  "The batched, cached and columnar context handlers against the plain
+  `cpos-seq-handler`."
+  (:require [clojure.test :refer :all]
+            [cqp-clj.core :refer :all]
+            [cqp-clj.test-server :refer [with-toy-server]]))
+
+(def ^:private attrs
+  [{:attr-type :pos :attr-name "word"}
+   {:attr-type :pos :attr-name "pos" :lexicon true}
+   {:attr-type :struc :attr-name "s"}])
+
+(defn- hits [client query]
+  (query! client "TOY" query)
+  (cpos-range client "TOY" 0 (query-size client "TOY")))
+
+(deftest batch-handler-test
+  (with-toy-server [server client]
+    (let [cpos (hits client "[pos=\"NN|DT\"]")
+          expected (vec (cpos-seq-handler client "TOY" cpos 2 attrs))]
+      (testing "same contexts as one request per hit"
+        (is (= expected (cpos-batch-handler client "TOY" cpos 2 "utf8" attrs)))
+        (is (= expected (cpos-batch-handler client "TOY" cpos 2 "utf8" attrs {:gap 0 :batch 1}))))
+      (testing "overlapping windows are fetched once"
+        (is (= {:hits 6 :ranges 1 :round-trips 2}
+               (select-keys (meta (cpos-batch-handler client "TOY" cpos 2 "utf8" attrs))
+                            [:hits :ranges :round-trips]))))
+      (testing "windows clipped at the start of the corpus"
+        (let [cpos (hits client "\"the\"")]
+          (is (= (vec (cpos-seq-handler client "TOY" cpos 3 attrs))
+                 (cpos-batch-handler client "TOY" cpos 3 "utf8" attrs))))))))
+
+(deftest token-cache-test
+  (with-toy-server [server client]
+    (let [cpos (hits client "[pos=\"NN|DT\"]")
+          expected (vec (cpos-seq-handler client "TOY" cpos 2 attrs))
+          cache (token-cache {:blocks 2 :block-size 4})]
+      (set-token-cache! client cache)
+      (testing "cached windows match uncached ones"
+        (is (= expected (vec (cpos-seq-handler client "TOY" cpos 2 attrs))))
+        (is (= expected (cpos-batch-handler client "TOY" cpos 2 "utf8" attrs)))
+        (is (= (span->struc client "TOY" "s" 5 8) ["s1" "s1" "s2" "s2"])))
+      (testing "blocks are reused and evicted"
+        (let [{:keys [hits misses evictions blocks]} (token-cache-stats cache)]
+          (is (pos? hits))
+          (is (pos? misses))
+          (is (pos? evictions))
+          (is (<= blocks 2))))
+      (testing "switching the cache off"
+        (set-token-cache! client nil)
+        (is (= expected (vec (cpos-seq-handler client "TOY" cpos 2 attrs))))))))
+
+(deftest columnar-handler-test
+  (with-toy-server [server client]
+    (let [cpos (hits client "[pos=\"NN|DT\"] @[]")
+          expected (vec (cpos-seq-handler client "TOY" cpos 2 attrs))
+          block (cpos-columnar-handler client "TOY" cpos 2 "utf8" attrs)]
+      (testing "kwic-hits read like the per-token maps"
+        (is (= expected (kwic-hits block)))
+        (is (= expected (mapv #(mapv (partial into {}) %) (kwic-hits block)))))
+      (testing "tokens are copied on update"
+        (let [token (first (first (kwic-hits block)))]
+          (is (= (assoc (first (first expected)) :x 1) (assoc token :x 1)))
+          (is (= (dissoc (first (first expected)) :id) (dissoc token :id))))))))
+
+(deftest concordance-source-test
+  (with-toy-server [server client]
+    (let [cpos (hits client "[pos=\"NN|DT\"]")
+          expected (vec (cpos-seq-handler client "TOY" cpos 2 attrs))]
+      (testing "chunks read like one request per hit"
+        (is (= expected (into [] (concordance-source client "TOY" {:context 2 :attrs attrs :chunk 4}))))
+        (is (= (apply map vector cpos) (into [] (concordance-source client "TOY" {:chunk 4})))))
+      (testing "the size is asked for once, not per chunk"
+        (let [recorded (set-stats! client (make-stats))]
+          (into [] (concordance-source client "TOY" {:chunk 1}))
+          (set-stats! client nil)
+          (is (= 1 (get-in (stats recorded) [:commands "CQP_SUBCORPUS_SIZE" :count])))
+          (is (= 18 (get-in (stats recorded) [:commands "CQP_DUMP_SUBCORPUS" :count])))))
+      (testing "reduction stops early"
+        (is (= 2 (reduce (fn [n _] (if (= n 1) (reduced 2) (inc n)))
+                         0 (concordance-source client "TOY" {:chunk 1})))))
+      (testing "with :query the last query of the client is kept"
+        (is (= [[5 5 -1]] (into [] (concordance-source client "TOY" {:query "\"mat\""}))))
+        (is (= (apply map vector cpos) (into [] (concordance-source client "TOY" {}))))
+        (is (= #{"Results"} (set (.listSubcorpora ^CqiClient (:client client) "TOY")))))
+      (testing "a missing subcorpus fails instead of reading as empty"
+        (.dropQuery ^CqiClient (:client client) "TOY")
+        (is (thrown? Exception (into [] (concordance-source client "TOY" {}))))))))
@@ -0,0 +1,47 @@
+(ns cqp-clj.multiplex-test
+  (:require [clojure.test :refer :all]
+            [cqp-clj.core :refer :all]
+            [cqp-clj.server :refer [local-client]]
+            [cqp-clj.multiplex :refer :all]
+            [cqp-clj.test-server :refer [small-corpus with-toy-server]]))
+
+(defn- subcorpora [cqi-client]
+  (let [{client :client} cqi-client]
+    (set (.listSubcorpora ^CqiClient client "TOY"))))
+
+(deftest multiplex-test
+  (with-toy-server [server _ small-corpus]
+    (let [mux (make-multiplexer [(local-client server) (local-client server)])]
+      (try
+        (let [s1 (open-session! mux)
+              s2 (open-session! mux)
+              s3 (open-session! mux)]
+          (testing "sessions are spread over the connections"
+            (is (= [2 1] (session-counts mux)))
+            (is (identical? (:client s1) (:client s3))))
+          (testing "sessions on one connection keep their own results"
+            (query! s1 "TOY" "\"a\"")
+            (query! s3 "TOY" "\"dog\"")
+            (query! (with-subcorpus s1 "Cats") "TOY" "\"cat\"")
+            (is (= 2 (query-size s1 "TOY")))
+            (is (= 1 (query-size s3 "TOY")))
+            (is (= [[1] [1] [-1]] (cpos-range (with-subcorpus s1 "Cats") "TOY" 0 1))))
+          (testing "closing a session drops its subcorpora only"
+            (let [recorded (set-stats! s1 (make-stats))]
+              (close-session! s1)
+              (set-stats! s1 nil)
+              (testing "without listing the subcorpora first"
+                (is (= {"CQP_DROP_SUBCORPUS" 2}
+                       (into {} (map (fn [[k v]] [k (:count v)])) (:commands (stats recorded)))))))
+            (is (= #{(:subcorpus s3)} (subcorpora s3)))
+            (is (= [1 1] (session-counts mux)))
+            (is (= 1 (query-size s3 "TOY"))))
+          (testing "with-session"
+            (is (= 1 (with-session [s mux]
+                       (query! s "TOY" "\"cat\"")
+                       (query-size s "TOY"))))
+            (is (= [1 1] (session-counts mux))))
+          (close-session! s2)
+          (close-session! s3))
+        (finally
+          (close-multiplexer! mux))))))
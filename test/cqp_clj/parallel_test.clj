@@ -0,0 +1,48 @@
+(ns cqp-clj.parallel-test
+  (:require [clojure.test :refer :all]
+            [cqp-clj.core :refer :all]
+            [cqp-clj.server :refer [server-port]]
+            [cqp-clj.parallel :refer :all]
+            [cqp-clj.test-server :refer [toy-corpus with-toy-server]]))
+
+(deftest split-range-test
+  (testing "shards cover the range in order with balanced sizes"
+    (is (= (split-range 0 10 3) [[0 4] [4 7] [7 10]]))
+    (is (= (split-range 5 9 4) [[5 6] [6 7] [7 8] [8 9]])))
+  (testing "never more shards than hits"
+    (is (= (split-range 0 2 8) [[0 1] [1 2]]))
+    (is (= (split-range 3 3 4) [])))
+  (testing "a single shard is the whole range"
+    (is (= (split-range 2 100 1) [[2 100]]))))
+
+(def ^:private word [{:attr-type :pos :attr-name "word"}])
+
+(deftest parallel-concordance-test
+  (with-toy-server [server client toy-corpus {:listen true}]
+    (let [pool (make-cqi-pool {:host "localhost" :port (server-port server)
+                               :user "user" :pass "pass" :pool {:max-size 2}})
+          query "[pos=\"DT|NN\"]"]
+      (try
+        (query! client "TOY" query)
+        (let [expected (vec (cpos-seq-handler client "TOY" (cpos-range client "TOY" 0 10) 1 word))]
+          (testing "shards are joined in hit order"
+            (is (= expected (parallel-concordance pool "TOY" query
+                                                  {:context 1 :attrs word :parallelism 2}))))
+          (testing "parallelism is capped at the size of the pool"
+            (is (= expected (parallel-concordance pool "TOY" query
+                                                  {:context 1 :attrs word :parallelism 8})))
+            (is (<= (.getSize pool) 2)))
+          (testing "a sub range"
+            (is (= (subvec expected 2 5)
+                   (parallel-concordance pool "TOY" query
+                                         {:from 2 :to 5 :context 1 :attrs word :parallelism 2})))))
+        (testing "connections go back without the results"
+          (is (= 0 (.getBorrowedCount pool)))
+          (with-pooled-client [pooled pool]
+            (invalidate-metadata! pooled "TOY")
+            (is (empty? (.listSubcorpora ^CqiClient (:client pooled) "TOY")))))
+        (testing "failed queries invalidate the connections"
+          (is (thrown? Exception (parallel-concordance pool "TOY" "[pos=" {:parallelism 2})))
+          (is (= 0 (.getBorrowedCount pool))))
+        (finally
+          (close-pool! pool))))))
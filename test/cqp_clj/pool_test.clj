@@ -0,0 +1,45 @@
+(ns cqp-clj.pool-test
+  (:require [clojure.test :refer :all]
+            [cqp-clj.core :refer :all]
+            [cqp-clj.server :refer [server-port]]
+            [cqp-clj.test-server :refer [small-corpus with-toy-server]]))
+
+(defn- make-pool ^CqiClientPool [server opts]
+  (make-cqi-pool {:host "localhost" :port (server-port server) :user "user" :pass "pass"
+                  :pool opts}))
+
+(deftest pool-test
+  (with-toy-server [server _ small-corpus {:listen true}]
+    (let [pool (make-pool server {:min-size 1 :max-size 1})]
+      (try
+        (testing "released connections come back without the state of the last borrower"
+          (let [first-client (borrow! pool)]
+            (query! first-client "TOY" "\"a\"")
+            (set-query-cache! first-client (query-cache {}))
+            (cached-query! first-client "TOY" "\"dog\"")
+            (set-token-cache! first-client (token-cache {}))
+            (return! pool first-client)
+            (let [client (borrow! pool)
+                  {^CqiClient raw :client} client]
+              (is (identical? (:client first-client) raw))
+              (is (empty? (.getCreatedSubcorpora raw)))
+              (is (nil? (.getQueryCache raw)))
+              (is (nil? (.getTokenCache raw)))
+              (invalidate-metadata! client "TOY")
+              (is (empty? (.listSubcorpora raw "TOY")))
+              (return! pool client))))
+        (testing "with-pooled-client"
+          (is (= 2 (with-pooled-client [client pool]
+                     (query! client "TOY" "\"a\"")
+                     (query-size client "TOY"))))
+          (is (thrown? Exception (with-pooled-client [client pool]
+                                   (query! client "TOY" "[word="))))
+          (is (= 0 (.getBorrowedCount pool))))
+        (testing "a connection released after close is closed"
+          (let [client (borrow! pool)]
+            (close-pool! pool)
+            (return! pool client)
+            (is (.isClosed ^CqiClient (:client client)))
+            (is (= 0 (.getSize pool)))))
+        (finally
+          (close-pool! pool))))))
@@ -0,0 +1,37 @@
+(ns cqp-clj.query-cache-test
+  (:require [clojure.test :refer :all]
+            [cqp-clj.core :refer :all]
+            [cqp-clj.test-server :refer [small-corpus with-toy-server]]))
+
+(defn- on-server? [cqi-client subcorpus]
+  (let [{client :client} cqi-client]
+    (invalidate-metadata! cqi-client "TOY")
+    (.hasSubcorpus ^CqiClient client "TOY" subcorpus)))
+
+(deftest query-cache-test
+  (with-toy-server [server client small-corpus]
+    (let [cache (query-cache {:max-entries 2 :max-hits 5})]
+      (set-query-cache! client cache)
+      (testing "repeated queries reuse their subcorpus"
+        (let [as (cached-query! client "TOY" "\"a\"")]
+          (is (= "Cached1" (:subcorpus as)))
+          (is (= "Cached1" (:subcorpus (cached-query! client "TOY" "\"a\""))))
+          (is (= [[0 3] [0 3] [-1 -1]] (cpos-range as "TOY" 0 (query-size as "TOY"))))
+          (is (= {:hits 1 :misses 1 :evictions 0 :entries 1 :cached-hits 2 :server-bytes 32}
+                 (query-cache-stats cache)))))
+      (testing "other subcorpora are left alone"
+        (query! client "TOY" "\"dog\"")
+        (is (= 1 (query-size client "TOY")))
+        (is (= 2 (query-size (cached-query! client "TOY" "\"a\"") "TOY"))))
+      (testing "least recently used subcorpora are dropped"
+        (cached-query! client "TOY" "\"cat\"")
+        (cached-query! client "TOY" "\"a\"")
+        (cached-query! client "TOY" "\"dog\"")
+        (is (not (on-server? client "Cached2")))
+        (is (on-server? client "Cached1"))
+        (is (= 1 (:evictions (query-cache-stats cache)))))
+      (testing "the hit budget bounds the cached results"
+        (cached-query! client "TOY" "[]")
+        (is (= {:entries 1 :cached-hits 6}
+               (select-keys (query-cache-stats cache) [:entries :cached-hits])))
+        (is (not (on-server? client "Cached1")))))))
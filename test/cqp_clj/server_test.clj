@@ -0,0 +1,219 @@
+(ns cqp-clj.server-test
+  (:require [clojure.test :refer :all]
+            [cqp-clj.core :refer :all]
+            [cqp-clj.server :refer :all]
+            [cqp-clj.test-server :refer [toy-corpus word-corpus with-toy-server]])
+  (:import [CqiClientException] [CqiPipeline$Reply] [CqiStringDecoder]
+           [java.io DataInputStream DataOutputStream]
+           [java.nio IntBuffer]
+           [java.nio.charset Charset]
+           [java.net Socket]
+           [java.nio.file Files]
+           [java.nio.file.attribute FileAttribute]))
+
+(defn- hits [client query]
+  (query! client "TOY" query)
+  (cpos-range client "TOY" 0 (query-size client "TOY")))
+
+(deftest query-test
+  (with-toy-server [server client]
+    (testing "sequences, targets and regular expressions"
+      (is (= (hits client "[pos=\"DT\"] @[pos=\"N.*\"]")
+             [[0 4 7] [1 5 8] [1 5 8]]))
+      (is (= (hits client "\"the\" []{1,2} within s;")
+             [[0 4] [2 6] [-1 -1]])))
+    (testing "regions limit matches"
+      (is (= (hits client "[pos=\"NN\"] [] [] within s")
+             [[1 8] [3 10] [-1 -1]])))
+    (testing "concordance lines with structural values"
+      (query! client "TOY" "\"dog\"")
+      (is (= (map :word (first (cpos-seq-handler client "TOY" (cpos-range client "TOY" 0 1) 1
+                                                 [{:attr-type :pos :attr-name "word"}])))
+             ["a" "dog" "ran"]))
+      (is (= (span->struc client "TOY" "s" 5 8) ["s1" "s1" "s2" "s2"])))
+    (testing "frequency distributions"
+      (query! client "TOY" "[pos=\"DT\"]")
+      (is (= (fdist-1 client "TOY" "word") {"the" 2 "a" 1})))
+    (testing "syntax errors"
+      (is (thrown? Exception (query! client "TOY" "[pos="))))))
+
+(deftest fdist-test
+  (with-toy-server [server client]
+    (query! client "TOY" "[pos=\"DT\"] [pos=\"NN\"]")
+    (testing "fdist-1 at other fields and with a cutoff"
+      (is (= {"cat" 1 "mat" 1 "dog" 1} (fdist-1 client "TOY" "word" {:field :matchend})))
+      (is (= {"the" 2} (fdist-1 client "TOY" "word" {:cutoff 2}))))
+    (testing "fdist-2 is keyed by pairs of values"
+      (is (= {["the" "DT"] 2 ["a" "DT"] 1} (fdist-2 client "TOY" "word" "pos")))
+      (is (= {["the" "cat"] 1 ["the" "mat"] 1 ["a" "dog"] 1}
+             (fdist-2 client "TOY" "word" "word" {:field2 :matchend})))
+      (is (= {["DT" "NN"] 3} (fdist-2 client "TOY" "pos" "pos" {:field2 :matchend}))))
+    (testing "fdist-2 with a cutoff"
+      (is (= {["the" "DT"] 2} (fdist-2 client "TOY" "word" "pos" {:cutoff 2})))
+      (is (= {} (fdist-2 client "TOY" "word" "word" {:field2 :matchend :cutoff 2}))))))
+
+(deftest intern-test
+  (with-toy-server [server client]
+    (let [raw ^CqiClient (:client client)
+          pos #(span->attr client "TOY" "pos" 0 10)]
+      (testing "repeated values are the same instance, within and across replies"
+        (let [first-read (pos) second-read (pos)]
+          (is (identical? (nth first-read 0) (nth first-read 4)))
+          (is (every? true? (map identical? first-read second-read)))
+          (is (pos? (.getInternHits raw)))))
+      (testing "a table size of 0 turns interning off"
+        (.setInternTableSize raw 0)
+        (let [first-read (pos) second-read (pos)]
+          (is (= first-read second-read))
+          (is (not (identical? (nth first-read 0) (nth first-read 4))))
+          (is (zero? (.getInternHits raw)))))))
+  (testing "values longer than MAX_INTERNED_LENGTH are decoded, not interned"
+    (let [long-word (apply str (repeat (inc CqiStringDecoder/MAX_INTERNED_LENGTH) "x"))
+          wide-word (apply str (repeat 200 "\u00e9"))]
+      (with-toy-server [server client (word-corpus [long-word wide-word long-word "a" "a"])]
+        (let [words (span->attr client "TOY" "word" 0 4)]
+          (is (= [long-word wide-word long-word "a" "a"] words))
+          (is (not (identical? (nth words 0) (nth words 2))))
+          (is (identical? (nth words 3) (nth words 4))))))))
+
+(deftest undersized-buffer-test
+  (testing "a reply too large for the buffer is drained before the error"
+    ;; more ints than the client's reply buffer holds, so it is read in pieces
+    (let [n 10000
+          words (mapv #(str "w" (mod % 7)) (range n))]
+      (with-toy-server [server client (word-corpus words)]
+        (let [raw ^CqiClient (:client client)
+              ids (vec (.dumpPositionalAttributeIds raw "TOY" "word" (int 0) (int (dec n))))]
+          (testing "into an IntBuffer"
+            (let [small (IntBuffer/allocate 100)]
+              (is (thrown-with-msg? CqiClientException #"Insufficient buffer size"
+                                    (.dumpPositionalAttributeIds raw "TOY" "word" (int 0) (int (dec n)) small)))
+              (is (= 0 (.position small))))
+            (is (= ["w0" "w1" "w2"] (span->attr client "TOY" "word" 0 2)))
+            (let [buffer (IntBuffer/allocate (inc n))]
+              (is (= n (.dumpPositionalAttributeIds raw "TOY" "word" (int 0) (int (dec n)) buffer)))
+              (is (= n (.position buffer)))
+              (is (= ids (vec (take n (.array buffer)))))))
+          (testing "into an int[] slice"
+            (query! client "TOY" "[]")
+            (.setDumpChunkSize raw n)
+            (let [output ^"[[I" (make-array Integer/TYPE 3 n)]
+              (is (thrown-with-msg? CqiClientException #"Insufficient buffer size"
+                                    (.dumpSubCorpusBulk raw "TOY" "Results" (int 0) (int n) output (int 1))))
+              (is (= ["w5" "w6"] (span->attr client "TOY" "word" 5 6)))
+              (is (= n (.dumpSubCorpusBulk raw "TOY" "Results" (int 0) (int n) output (int 0))))
+              (is (= (range n) (vec (aget output 0)))))))))))
+
+(deftest save-open-test
+  (testing "a saved corpus answers like the one in memory, over TCP"
+    (let [dir (Files/createTempDirectory "cqi-corpus" (make-array FileAttribute 0))
+          _ (save-corpus! (make-corpus "TOY" toy-corpus) dir)
+          server (start-server [(open-corpus dir)] {:listen true :user "u" :pass "p"})
+          client (make-cqi-client "localhost" (server-port server) "u" "p")]
+      (try
+        (is (= (hits client "[word=\"the|a\"]") [[0 4 7] [0 4 7] [-1 -1 -1]]))
+        (is (= (span->attr client "TOY" "pos" 4 6) ["DT" "NN" "SENT"]))
+        (finally
+          (disconnect! client)
+          (stop-server! server))))))
+
+(defn- write-string [^DataOutputStream out ^String s]
+  (.writeShort out (count s))
+  (.writeBytes out s))
+
+(deftest one-reply-per-request-test
+  (testing "an unknown attribute is answered with a single error"
+    (with-toy-server [server _ toy-corpus {:listen true}]
+      (with-open [socket (Socket. "localhost" (int (server-port server)))]
+        (let [out (DataOutputStream. (.getOutputStream socket))
+              in (DataInputStream. (.getInputStream socket))]
+          (.writeShort out 0x1101)
+          (write-string out "user")
+          (write-string out "pass")
+          (.flush out)
+          (is (= 0x0102 (.readShort in)))
+          ;; CL_STR2ID, then CTRL_PING
+          (.writeShort out 0x1404)
+          (write-string out "TOY.lemma")
+          (.writeInt out 1)
+          (write-string out "cat")
+          (.writeShort out 0x1104)
+          (.flush out)
+          (is (= 0x0401 (.readShort in)))
+          (is (= 0x0104 (.readShort in))))))))
+
+(deftest unencodable-request-test
+  (testing "a request that can't be encoded is not sent with the next one"
+    (with-toy-server [server client]
+      (is (thrown? IllegalArgumentException
+                   (span->attr client "TOY" (apply str (repeat 70000 "w")) 0 1)))
+      (is (= ["the" "cat"] (span->attr client "TOY" "word" 0 1))))))
+
+(deftest region-context-test
+  (with-toy-server [server client]
+    (let [word [{:attr-type :pos :attr-name "word"}]]
+      (testing "hits get their enclosing sentence, fetched once per sentence"
+        (query! client "TOY" "[pos=\"NN\"]")
+        (let [lines (cpos-region-handler client "TOY" (cpos-range client "TOY" 0 3) "s" word)]
+          (is (= (map #(map :word %) lines)
+                 [["the" "cat" "sat" "on" "the" "mat" "."]
+                  ["the" "cat" "sat" "on" "the" "mat" "."]
+                  ["a" "dog" "ran" "."]]))
+          (is (= (map :id (filter :match (nth lines 1))) [5]))
+          (is (= (select-keys (meta lines) [:hits :regions :round-trips])
+                 {:hits 3 :regions 2 :round-trips 2}))))
+      (testing "hits crossing a boundary span both regions"
+        (is (= [[0 10]] (apply map vector (.regionBounds ^CqiClient (:client client) "TOY" "s"
+                                                         (int-array [3]) (int-array [8]))))))
+      (testing "concordance source with :within"
+        (is (= (into [] (map count) (concordance-source client "TOY" {:query "\"ran\"" :within "s"
+                                                                      :attrs word}))
+               [4]))))))
+
+(deftest struc-value-cache-test
+  (with-toy-server [server client]
+    (let [recorded (set-stats! client (make-stats))
+          struc2str #(get-in (stats recorded) [:commands "CL_STRUC2STR" :count] 0)]
+      (testing "each region is asked for once"
+        (is (= (span->struc client "TOY" "s" 0 10) (into (vec (repeat 7 "s1")) (repeat 4 "s2"))))
+        (is (= 1 (struc2str))))
+      (testing "cached values need no request"
+        (is (= (map :s (span->values client "TOY" 5 8 [{:attr-type :struc :attr-name "s"}]))
+               ["s1" "s1" "s2" "s2"]))
+        (is (= 1 (struc2str)))
+        (is (= 2 (.getStrucValueCacheHits ^CqiClient (:client client)))))
+      (testing "positions outside any region"
+        (is (= (span->struc client "TOY" "s" 9 12) ["s2" "s2" "" ""]))))))
+
+(defn- error-message
+  "The message of the CqiClientException thrown by (f), or nil."
+  [f]
+  (try (f) nil (catch CqiClientException e (.getMessage e))))
+
+(deftest pipeline-errors-test
+  (with-toy-server [server client]
+    (let [raw ^CqiClient (:client client)
+          utf8 (Charset/forName "utf8")
+          p (.pipeline raw)
+          before (.cpos2Str p "TOY.word" (int 0) (int 1) utf8)
+          missing (.cpos2Str p "TOY.lemma" (int 0) (int 1) utf8)
+          syntax (.query p "TOY" "Bad" "[pos=" utf8)
+          after (.cpos2Str p "TOY.word" (int 9) (int 10) utf8)
+          message (error-message #(.sync p))]
+      (testing "sync throws the first failure, naming its command"
+        (is (some? message))
+        (is (.startsWith ^String message "cpos2Str(TOY.lemma) (command 1 of pipeline)")))
+      (testing "each reply knows its command and position"
+        (is (= [0 1 2 3] (map #(.getIndex ^CqiPipeline$Reply %) [before missing syntax after])))
+        (is (= [false true true false] (map #(.isFailed ^CqiPipeline$Reply %) [before missing syntax after])))
+        (is (= "query(TOY:Bad)" (.getCommand syntax))))
+      (testing "the last failure has the details kept by the server"
+        (is (re-find #"^query\(TOY:Bad\) \(command 2 of pipeline\): CQP Syntax error: .+"
+                     (error-message #(.get syntax)))))
+      (testing "replies after a failure are read in order"
+        (is (= ["the" "cat"] (vec (.get before))))
+        (is (= ["ran" "."] (vec (.get after)))))
+      (testing "errors on the connection are detailed again afterwards"
+        (is (re-find #"CQP Syntax error: .+"
+                     (error-message #(query! client "TOY" "[word="))))
+        (is (= ["the"] (span->attr client "TOY" "word" 0 0)))))))
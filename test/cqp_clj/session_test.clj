@@ -0,0 +1,66 @@
+(ns cqp-clj.session-test
+  (:require [clojure.test :refer :all]
+            [cqp-clj.core :as core]
+            [cqp-clj.paginator :refer [next-page length]]
+            [cqp-clj.server :refer [make-corpus server-port start-server stop-server!]]
+            [cqp-clj.session :refer :all]
+            [cqp-clj.test-server :refer [toy-corpus with-toy-server]])
+  (:import [CQPSession] [CqiClient] [CqiClientException]))
+
+(def ^:private attrs
+  [{:attr-type :pos :attr-name "word"}
+   {:attr-type :pos :attr-name "pos"}
+   {:attr-type :struc :attr-name "s"}])
+
+(def ^:private query "[pos=\"NN|DT\"]")
+
+(deftest session-test
+  (with-toy-server [server client toy-corpus {:listen true}]
+    (core/query! client "TOY" query)
+    (let [expected (vec (core/cpos-seq-handler client "TOY"
+                                               (core/cpos-range client "TOY" 0 (core/query-size client "TOY"))
+                                               2 attrs))
+          session (make-session {:host "localhost" :port (server-port server) :user "user" :pass "pass"}
+                                {:attrs attrs :context 2 :block-size 2})]
+      (try
+        (query! session "TOY" query)
+        (testing "hits read in blocks match one request per hit"
+          (is (= (count expected) (size session)))
+          (is (= expected (hits session 0 (size session)))))
+        (testing "next walks every hit, then gives nil"
+          (seek! session 0)
+          (is (= expected (vec (repeatedly (size session) #(next-hit! session)))))
+          (is (nil? (next-hit! session))))
+        (testing "seek moves the cursor"
+          (seek! session 3)
+          (is (= (nth expected 3) (next-hit! session)))
+          (is (= 4 (.position session))))
+        (testing "pages are as long as blocks"
+          (is (= (subvec expected 2 4) (mapv hit->tokens (.page session (int 1)))))
+          (is (= (subvec expected 5) (hits session 5 10))))
+        (testing "the paginator counts the hits on the server"
+          (let [pager (session-paginator session)]
+            (is (= (count expected) (length pager)))
+            (is (= [0 4] (next-page pager 4)))))
+        (finally
+          (close! session))))))
+
+(deftest borrowed-client-test
+  (testing "a session on a given client leaves it connected"
+    (with-toy-server [server client]
+      (let [session (CQPSession. ^CqiClient (:client client))]
+        (.setAttributes session (into-array String ["word"]) (into-array String []))
+        (query! session "TOY" "\"dog\"")
+        (is (= [["dog"]] (mapv #(map :word %) (hits session 0 1))))
+        (close! session)
+        (is (= ["the" "cat"] (core/span->attr client "TOY" "word" 0 1)))
+        (is (thrown? CqiClientException (.subCorpusSize ^CqiClient (:client client) "TOY" "Results")))))))
+
+(deftest refused-session-test
+  (testing "refused credentials fail the session"
+    (let [server (start-server [(make-corpus "TOY" toy-corpus)] {:listen true :user "u" :pass "p"})]
+      (try
+        (is (thrown? IllegalArgumentException
+                     (make-session {:host "localhost" :port (server-port server) :user "u" :pass "wrong"})))
+        (finally
+          (stop-server! server))))))
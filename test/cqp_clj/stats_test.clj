@@ -0,0 +1,53 @@
+(ns cqp-clj.stats-test
+  (:require [clojure.test :refer :all]
+            [cqp-clj.core :refer :all]
+            [cqp-clj.test-server :refer [small-corpus with-toy-server]])
+  (:import [CqiClient]))
+
+(deftest stats-test
+  (with-toy-server [server client small-corpus]
+    (let [recorded (set-stats! client (make-stats))]
+      (query! client "TOY" "\"a\"")
+      (cpos-range-bulk client "TOY" 0 (query-size client "TOY"))
+      (span->attr client "TOY" "word" 0 5)
+      (is (thrown? Exception (span->attr client "TOY" "lemma" 0 5)))
+      (let [{:keys [commands errors operations round-trips bytes-sent bytes-received]} (stats recorded)]
+        (testing "commands are counted with their errors"
+          (is (= 3 (get-in commands ["CQP_DUMP_SUBCORPUS" :count])))
+          (is (= 2 (get-in commands ["CL_CPOS2STR" :count])))
+          (is (= 1 (get-in commands ["CL_CPOS2STR" :errors])))
+          (is (= {"No such attribute" 1} errors)))
+        (testing "the three dumps of a chunk share a round trip"
+          (is (= 1 (get-in operations ["dumpSubCorpusBulk" :max-round-trips])))
+          (is (= 1 (get-in operations ["query" :count]))))
+        (testing "traffic"
+          (is (pos? round-trips))
+          (is (pos? bytes-sent))
+          (is (pos? bytes-received))))
+      (testing "nothing is recorded once disabled"
+        (set-stats! client nil)
+        (let [before (:round-trips (stats recorded))]
+          (query! client "TOY" "\"dog\"")
+          (is (= before (:round-trips (stats recorded)))))))))
+
+(deftest metadata-cache-test
+  (with-toy-server [server client]
+    (let [raw ^CqiClient (:client client)
+          recorded (set-stats! client (make-stats))
+          hot-calls #(do (.dumpPositionalAttributes raw "TOY" "word" (int 0) (int 3))
+                         (.dumpStructuralAttributes raw "TOY" "s" (int 0) (int 3))
+                         (.dumpSubCorpus raw "TOY" (int 0) (int 2)))
+          metadata #(select-keys (into {} (map (fn [[k v]] [k (:count v)])) (:commands (stats recorded)))
+                                 ["CORPUS_CHARSET" "CQP_LIST_SUBCORPORA"])]
+      (query! client "TOY" "\"the\"")
+      (testing "the first calls ask for the metadata"
+        (hot-calls)
+        (is (= {"CORPUS_CHARSET" 1 "CQP_LIST_SUBCORPORA" 1} (metadata))))
+      (testing "warm calls make no metadata round trips"
+        (hot-calls)
+        (is (= {"CORPUS_CHARSET" 1 "CQP_LIST_SUBCORPORA" 1} (metadata)))
+        (is (= [[0 4] [0 4] [-1 -1]] (mapv vec (.dumpSubCorpus raw "TOY" (int 0) (int 2))))))
+      (testing "invalidate-metadata! makes them come back"
+        (invalidate-metadata! client "TOY")
+        (hot-calls)
+        (is (= {"CORPUS_CHARSET" 2 "CQP_LIST_SUBCORPORA" 2} (metadata)))))))
@@ -0,0 +1,35 @@
+(ns cqp-clj.test-server
+  "Toy corpora and an in-process server for the tests."
+  (:require [cqp-clj.core :refer [disconnect!]]
+            [cqp-clj.server :refer [make-corpus start-server stop-server! local-client]]))
+
+(defn word-corpus
+  "A corpus spec (see `make-corpus`) with a word attribute only."
+  [words]
+  {:tokens (map (fn [w] {:word w}) words)})
+
+(def toy-corpus
+  {:tokens (map (fn [[word pos]] {:word word :pos pos})
+                [["the" "DT"] ["cat" "NN"] ["sat" "VBD"] ["on" "IN"] ["the" "DT"]
+                 ["mat" "NN"] ["." "SENT"] ["a" "DT"] ["dog" "NN"] ["ran" "VBD"]
+                 ["." "SENT"]])
+   :structs {:s [[0 6 "s1"] [7 10 "s2"]]}})
+
+(def small-corpus
+  (word-corpus ["a" "cat" "and" "a" "dog" "."]))
+
+(defmacro with-toy-server
+  "Evaluate `body` with `server` bound to an in-process server holding
+  `corpus` (default `toy-corpus`) as TOY, started with `opts` (see
+  `start-server`), and `client` to a local connection to it. Both are
+  closed afterwards."
+  [[server client & [corpus opts]] & body]
+  `(let [~server (start-server [(make-corpus "TOY" ~(or corpus `toy-corpus))] ~(or opts {}))]
+     (try
+       (let [~client (local-client ~server)]
+         (try
+           ~@body
+           (finally
+             (disconnect! ~client))))
+       (finally
+         (stop-server! ~server)))))